@@ -0,0 +1,544 @@
+package org.lei.opi.core;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import org.lei.opi.core.OpiListener.Encoding;
+import org.lei.opi.core.OpiListener.Framing;
+import org.lei.opi.core.definitions.Packet;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.JsonSyntaxException;
+
+/**
+ * The {@link Encoding#BINARY} form of commands and Packets.
+ *
+ * A message is CBOR (RFC 8949) using only maps, arrays, text, integers, decimal fractions,
+ * floats, true, false and null.
+ * Map keys that are in {@link NAMES} (the transport names, the parameters of a JOVP present and the
+ * fields of a JOVP Response) are sent as their index in that array, so "eyexStart" takes one byte
+ * rather than twelve; any other key is sent as text. Whole numbers are sent as integers, numbers
+ * with up to 3 decimal places (eg -26.5 or 0.125) as decimal fractions, and others as 32 bit floats
+ * if that loses nothing, else as 64 bit floats. Every number decodes to exactly the double it was,
+ * except an integer that fits a long, which is sent and decodes (in a Packet msg) as that long.
+ *
+ * Commands decode to the same shapes as {@link OpiCommand#decode} (every number a double, lists of them double[])
+ * so a machine cannot tell which encoding a command arrived in.
+ * The Packet msg decodes to the same JSON it was sent as.
+ *
+ * @since 3.0.0
+ */
+final class BinaryCodec {
+
+    /** {@value BAD_MESSAGE} */
+    static final String BAD_MESSAGE = "Cannot decode binary message.";
+
+    /** Keys sent as their index. The order is part of the protocol, so only ever add to the end. */
+    private static final String[] NAMES = {
+        "command", OpiListener.ID, "error", "close", "msg", OpiListener.FRAMING, OpiListener.ENCODING,
+        "stim.length", "eye", "x", "y", "sx", "sy", "t", "w", "lum", "color1", "color2",
+        "rotation", "contrast", "phase", "frequency", "envType", "envSdx", "envSdy", "envRotation",
+        "defocus", "texRotation", "shape", "type", "imageFilename", "fullFoV", "optotype",
+        "seen", "time", "eyexStart", "eyeyStart", "eyedStart", "eyetStart", "eyexEnd", "eyeyEnd", "eyedEnd", "eyetEnd",
+        OpiListener.RETRY_AFTER, OpiListener.EVENT, OpiListener.RING, OpiListener.RING_TOKEN
+    };
+    /** Index of each of {@link NAMES} */
+    private static final HashMap<String, Integer> INDEX = new HashMap<String, Integer>();
+    static {
+        for (int i = 0 ; i < NAMES.length ; i++)
+            INDEX.put(NAMES[i], i);
+    }
+
+        // CBOR major types and the simple values used
+    private static final int UINT = 0;
+    private static final int NEGINT = 1;
+    private static final int TEXT = 3;
+    private static final int ARRAY = 4;
+    private static final int MAP = 5;
+    private static final int TAG = 6;
+    private static final int SIMPLE = 7;
+    private static final int FALSE = 0xf4;
+    private static final int TRUE = 0xf5;
+    private static final int NULL = 0xf6;
+    private static final int FLOAT16 = 0xf9;
+    private static final int FLOAT32 = 0xfa;
+    private static final int FLOAT64 = 0xfb;
+    /** Tag 4: a decimal fraction [exponent, mantissa] */
+    private static final int DECIMAL = 4;
+
+    /** Powers of 10 for the decimal places tried in decimal fractions */
+    private static final double[] POW10 = {1, 10, 100, 1000};
+
+    /** Largest magnitude for which every whole double is exact */
+    private static final double MAX_EXACT = 0x1p53;
+
+    private BinaryCodec() { ; }
+
+    /**
+     * Encode a command.
+     *
+     * @param message A JSON object
+     *
+     * @return The message as CBOR
+     */
+    static byte[] encode(JsonObject message) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+        write(out, message);
+        return out.toByteArray();
+    }
+
+    /**
+     * Encode a Packet as a map of its fields, with msg as the JSON it holds.
+     *
+     * @param p The Packet
+     *
+     * @return The Packet as CBOR
+     */
+    static byte[] encode(Packet p) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(128);
+        head(out, MAP, 3 + (p.getId() == null ? 0 : 1) + (p.getFraming() == null ? 0 : 1) + (p.getEncoding() == null ? 0 : 1)
+                     + (p.getRetryAfter() == null ? 0 : 1) + (p.getEvent() == null ? 0 : 1) + (p.getRing() == null ? 0 : 1));
+        if (p.getId() != null) {
+            key(out, OpiListener.ID);
+            text(out, p.getId());
+        }
+        if (p.getFraming() != null) {
+            key(out, OpiListener.FRAMING);
+            text(out, p.getFraming().name().toLowerCase(Locale.ROOT));
+        }
+        if (p.getEncoding() != null) {
+            key(out, OpiListener.ENCODING);
+            text(out, p.getEncoding().name().toLowerCase(Locale.ROOT));
+        }
+        if (p.getRetryAfter() != null) {
+            key(out, OpiListener.RETRY_AFTER);
+            number(out, p.getRetryAfter());
+        }
+        if (p.getEvent() != null) {
+            key(out, OpiListener.EVENT);
+            text(out, p.getEvent());
+        }
+        if (p.getRing() != null) {
+            key(out, OpiListener.RING);
+            text(out, p.getRing());
+        }
+        key(out, "error");
+        out.write(p.getError() ? TRUE : FALSE);
+        key(out, "close");
+        out.write(p.getClose() ? TRUE : FALSE);
+        key(out, "msg");
+        write(out, p.getMsgElement());
+        return out.toByteArray();
+    }
+
+    /**
+     * Decode a command.
+     *
+     * @param message A CBOR map
+     *
+     * @return The command
+     *
+     * @throws JsonSyntaxException If message is not a single map of the CBOR used here
+     */
+    static OpiCommand decodeCommand(byte[] message) throws JsonSyntaxException {
+        Input in = new Input(message);
+        try {
+            int n = in.count(MAP);
+            HashMap<String, Object> pairs = new HashMap<String, Object>();
+            for (int i = 0 ; i < n ; i++)
+                pairs.put(in.key(), in.value());
+            in.end();
+            return OpiCommand.of(pairs);
+        } catch (IllegalStateException e) {
+            throw new JsonSyntaxException(BAD_MESSAGE, e);
+        }
+    }
+
+    /**
+     * Decode a Packet.
+     *
+     * @param message A CBOR map as made by {@link encode(Packet)}
+     *
+     * @return The Packet
+     *
+     * @throws JsonSyntaxException If message is not a Packet
+     */
+    static Packet decodePacket(byte[] message) throws JsonSyntaxException {
+        Input in = new Input(message);
+        try {
+            boolean error = false;
+            boolean close = false;
+            JsonElement msg = JsonNull.INSTANCE;
+            String id = null;
+            Framing framing = null;
+            Encoding encoding = null;
+            Long retryAfter = null;
+            String event = null;
+            String ring = null;
+
+            int n = in.count(MAP);
+            for (int i = 0 ; i < n ; i++) {
+                switch (in.key()) {
+                    case OpiListener.ID -> id = (String) in.value();
+                    case OpiListener.FRAMING -> framing = Framing.valueOf(((String) in.value()).toUpperCase(Locale.ROOT));
+                    case OpiListener.ENCODING -> encoding = Encoding.valueOf(((String) in.value()).toUpperCase(Locale.ROOT));
+                    case OpiListener.RETRY_AFTER -> retryAfter = ((Number) in.value()).longValue();
+                    case OpiListener.EVENT -> event = (String) in.value();
+                    case OpiListener.RING -> ring = (String) in.value();
+                    case "error" -> error = (Boolean) in.value();
+                    case "close" -> close = (Boolean) in.value();
+                    case "msg" -> msg = in.element();
+                    default -> in.value();   // not a Packet field
+                }
+            }
+            in.end();
+            return new Packet(error, close, msg).setId(id).setFraming(framing).setEncoding(encoding).setRetryAfter(retryAfter).setEvent(event).setRing(ring);
+        } catch (IllegalStateException | IllegalArgumentException | ClassCastException | NullPointerException e) {
+            throw new JsonSyntaxException(BAD_MESSAGE, e);
+        }
+    }
+
+    private static void write(ByteArrayOutputStream out, JsonElement e) {
+        if (e.isJsonObject()) {
+            JsonObject o = e.getAsJsonObject();
+            head(out, MAP, o.size());
+            for (Map.Entry<String, JsonElement> entry : o.entrySet()) {
+                key(out, entry.getKey());
+                write(out, entry.getValue());
+            }
+        } else if (e.isJsonArray()) {
+            JsonArray a = e.getAsJsonArray();
+            head(out, ARRAY, a.size());
+            for (JsonElement x : a)
+                write(out, x);
+        } else if (e.isJsonNull()) {
+            out.write(NULL);
+        } else {
+            JsonPrimitive p = e.getAsJsonPrimitive();
+            if (p.isBoolean())
+                out.write(p.getAsBoolean() ? TRUE : FALSE);
+            else if (p.isNumber())
+                number(out, p.getAsNumber());
+            else
+                text(out, p.getAsString());
+        }
+    }
+
+    /**
+     * Write n as an integer if it is written as one (eg in the JSON it was parsed from) that fits a long,
+     * so that one beyond 2^53 is sent exactly rather than rounded to a double; else as {@link #number(ByteArrayOutputStream, double)}.
+     */
+    private static void number(ByteArrayOutputStream out, Number n) {
+        if (n instanceof Long || n instanceof Integer) {
+            integer(out, n.longValue());
+            return;
+        }
+        if (!(n instanceof Double || n instanceof Float)) {   // eg a LazilyParsedNumber, which is its text
+            String s = n.toString();
+            if (s.indexOf('.') < 0 && s.indexOf('e') < 0 && s.indexOf('E') < 0)
+                try {
+                    integer(out, Long.parseLong(s));
+                    return;
+                } catch (NumberFormatException ignored) { ; }   // beyond a long
+        }
+        number(out, n.doubleValue());
+    }
+
+    /** Write d as an integer if it is whole, else a decimal fraction if that is exact, else the shortest float that holds it exactly. */
+    private static void number(ByteArrayOutputStream out, double d) {
+        if (d == Math.rint(d) && Math.abs(d) <= MAX_EXACT && Double.doubleToRawLongBits(d) != Double.doubleToRawLongBits(-0.0)) {
+            integer(out, (long) d);
+            return;
+        }
+        for (int places = 1 ; places < POW10.length ; places++) {
+            double mantissa = Math.rint(d * POW10[places]);
+            if (mantissa != 0 && Math.abs(mantissa) <= MAX_EXACT && mantissa / POW10[places] == d) {  // as it will be decoded
+                head(out, TAG, DECIMAL);
+                head(out, ARRAY, 2);
+                integer(out, -places);
+                integer(out, (long) mantissa);
+                return;
+            }
+        }
+        if ((double)(float) d == d) {
+            out.write(FLOAT32);
+            bigEndian(out, Float.floatToIntBits((float) d), 4);
+        } else {
+            out.write(FLOAT64);
+            bigEndian(out, Double.doubleToLongBits(d), 8);
+        }
+    }
+
+    private static void integer(ByteArrayOutputStream out, long v) {
+        if (v >= 0)
+            head(out, UINT, v);
+        else
+            head(out, NEGINT, -1 - v);
+    }
+
+    private static void key(ByteArrayOutputStream out, String name) {
+        Integer i = INDEX.get(name);
+        if (i != null)
+            head(out, UINT, i);
+        else
+            text(out, name);
+    }
+
+    private static void text(ByteArrayOutputStream out, String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        head(out, TEXT, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    /** Write the initial byte of a major type with argument n (unsigned) in as few bytes as possible. */
+    private static void head(ByteArrayOutputStream out, int major, long n) {
+        int m = major << 5;
+        if (n < 24) {
+            out.write(m | (int) n);
+        } else if (n < 0x100) {
+            out.write(m | 24);
+            out.write((int) n);
+        } else if (n < 0x10000) {
+            out.write(m | 25);
+            bigEndian(out, n, 2);
+        } else if (n < 0x100000000L) {
+            out.write(m | 26);
+            bigEndian(out, n, 4);
+        } else {
+            out.write(m | 27);
+            bigEndian(out, n, 8);
+        }
+    }
+
+    private static void bigEndian(ByteArrayOutputStream out, long n, int bytes) {
+        for (int shift = 8 * (bytes - 1) ; shift >= 0 ; shift -= 8)
+            out.write((int)(n >>> shift));
+    }
+
+    /** A message being decoded. Any problem with it is an IllegalStateException. */
+    private static final class Input {
+        private final byte[] bytes;
+        private int pos = 0;
+
+        Input(byte[] bytes) { this.bytes = bytes; }
+
+        private int next() {
+            if (pos >= bytes.length)
+                throw new IllegalStateException("Message ended early.");
+            return bytes[pos++] & 0xff;
+        }
+
+        private long bigEndian(int n) {
+            long v = 0;
+            for (int i = 0 ; i < n ; i++)
+                v = (v << 8) | next();
+            return v;
+        }
+
+        /** The argument of the item whose initial byte is ib */
+        private long argument(int ib) {
+            int info = ib & 0x1f;
+            if (info < 24)
+                return info;
+            return switch (info) {
+                case 24 -> bigEndian(1);
+                case 25 -> bigEndian(2);
+                case 26 -> bigEndian(4);
+                case 27 -> bigEndian(8);
+                default -> throw new IllegalStateException("Unsupported item " + ib);
+            };
+        }
+
+        /** The argument of ib as a number of bytes or items, which cannot be more than are left */
+        private int length(int ib) {
+            long n = argument(ib);
+            if (n < 0 || n > bytes.length - pos)
+                throw new IllegalStateException("Length " + n + " is longer than the message.");
+            return (int) n;
+        }
+
+        /** Read the head of a map or array and return its number of items */
+        int count(int major) {
+            int ib = next();
+            if (ib >>> 5 != major)
+                throw new IllegalStateException("Expected major type " + major + " not " + (ib >>> 5));
+            return length(ib);
+        }
+
+        String key() {
+            int ib = next();
+            if (ib >>> 5 == TEXT)
+                return text(ib);
+            if (ib >>> 5 != UINT)
+                throw new IllegalStateException("Bad key " + ib);
+            long i = argument(ib);
+            if (i >= NAMES.length)
+                throw new IllegalStateException("Unknown key " + i);
+            return NAMES[(int) i];
+        }
+
+        private String text(int ib) {
+            int n = length(ib);
+            String s = new String(bytes, pos, n, StandardCharsets.UTF_8);
+            pos += n;
+            return s;
+        }
+
+        /** An integer item */
+        private long integer() {
+            int ib = next();
+            if (ib >>> 5 == UINT)
+                return argument(ib);
+            if (ib >>> 5 == NEGINT)
+                return -1 - argument(ib);
+            throw new IllegalStateException("Expected an integer not " + ib);
+        }
+
+        /** The decimal fraction after its tag, as written by {@link BinaryCodec#number} */
+        private double decimal(int ib) {
+            if (argument(ib) != DECIMAL || count(ARRAY) != 2)
+                throw new IllegalStateException("Unsupported tag " + ib);
+            long places = -integer();
+            if (places < 1 || places >= POW10.length)
+                throw new IllegalStateException("Unsupported decimal places " + places);
+            return integer() / POW10[(int) places];
+        }
+
+        /** A true, false, null or float as Boolean, null or Double */
+        private Object simple(int ib) {
+            return switch (ib) {
+                case FALSE -> false;
+                case TRUE -> true;
+                case NULL -> null;
+                case FLOAT16, FLOAT32, FLOAT64 -> floating(ib);
+                default -> throw new IllegalStateException("Unsupported item " + ib);
+            };
+        }
+
+        /** A float of any size */
+        private double floating(int ib) {
+            return switch (ib) {
+                case FLOAT16 -> Float.float16ToFloat((short) bigEndian(2));
+                case FLOAT32 -> Float.intBitsToFloat((int) bigEndian(4));
+                default -> Double.longBitsToDouble(bigEndian(8));
+            };
+        }
+
+        /** Whether the next item is a number (an integer, decimal fraction or float) */
+        private boolean atNumber() {
+            if (pos >= bytes.length)
+                return false;
+            int ib = bytes[pos] & 0xff;
+            return ib >>> 5 == UINT || ib >>> 5 == NEGINT || ib >>> 5 == TAG || ib == FLOAT16 || ib == FLOAT32 || ib == FLOAT64;
+        }
+
+        /** The next item, which {@link #atNumber} says is a number */
+        private double number() {
+            int ib = next();
+            return switch (ib >>> 5) {
+                case UINT -> argument(ib);
+                case NEGINT -> -1.0 - argument(ib);
+                case TAG -> decimal(ib);
+                default -> floating(ib);
+            };
+        }
+
+        /** The n items of an array: all numbers as a double[], all arrays of numbers as a double[][], anything else (or nothing) as an ArrayList */
+        private Object array(int n) {
+            ArrayList<Object> list = new ArrayList<Object>(n);
+            if (n > 0 && atNumber()) {
+                double[] a = new double[n];
+                int i = 0;
+                while (i < n && atNumber())
+                    a[i++] = number();
+                if (i == n)
+                    return a;
+                for (int k = 0 ; k < i ; k++)   // not all numbers
+                    list.add(a[k]);
+            }
+            boolean rows = n > 0 && list.isEmpty();
+            while (list.size() < n) {
+                Object value = value();
+                rows &= value instanceof double[];
+                list.add(value);
+            }
+            return rows ? list.toArray(new double[n][]) : list;
+        }
+
+        /** The next item as a Double, String, Boolean, null, list (see {@link #array}) or LinkedHashMap */
+        Object value() {
+            int ib = next();
+            switch (ib >>> 5) {
+                case UINT:
+                    return (double) argument(ib);
+                case NEGINT:
+                    return -1.0 - argument(ib);
+                case TEXT:
+                    return text(ib);
+                case ARRAY:
+                    return array(length(ib));
+                case MAP:
+                    int m = length(ib);
+                    LinkedHashMap<String, Object> map = new LinkedHashMap<String, Object>();
+                    for (int i = 0 ; i < m ; i++)
+                        map.put(key(), value());
+                    return map;
+                case TAG:
+                    return decimal(ib);
+                case SIMPLE:
+                    return simple(ib);
+                default:
+                    throw new IllegalStateException("Unsupported item " + ib);
+            }
+        }
+
+        /** The next item as JSON, with integers as Long */
+        JsonElement element() {
+            int ib = next();
+            switch (ib >>> 5) {
+                case UINT:
+                    return new JsonPrimitive(argument(ib));
+                case NEGINT:
+                    return new JsonPrimitive(-1 - argument(ib));
+                case TEXT:
+                    return new JsonPrimitive(text(ib));
+                case ARRAY:
+                    int n = length(ib);
+                    JsonArray array = new JsonArray(n);
+                    for (int i = 0 ; i < n ; i++)
+                        array.add(element());
+                    return array;
+                case MAP:
+                    int m = length(ib);
+                    JsonObject object = new JsonObject();
+                    for (int i = 0 ; i < m ; i++)
+                        object.add(key(), element());
+                    return object;
+                case TAG:
+                    return new JsonPrimitive(decimal(ib));
+                case SIMPLE:
+                    Object o = simple(ib);
+                    if (o == null)
+                        return JsonNull.INSTANCE;
+                    return o instanceof Boolean b ? new JsonPrimitive(b) : new JsonPrimitive((Double) o);
+                default:
+                    throw new IllegalStateException("Unsupported item " + ib);
+            }
+        }
+
+        /** Check that all of the message has been read */
+        void end() {
+            if (pos != bytes.length)
+                throw new IllegalStateException("Message was not fully consumed.");
+        }
+    }
+}
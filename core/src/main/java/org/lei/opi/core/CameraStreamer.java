@@ -22,6 +22,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Create a thread that serves/streams raw images from one or more "webcams" on a TCP port.
@@ -43,6 +44,8 @@ public abstract class CameraStreamer<FT extends FrameInfo> extends Thread {
     public LinkedBlockingDeque<PupilRequest> requestQueue;
     /** Queue of results from image processing */
     public LinkedBlockingQueue<PupilResponse> responseQueue;
+    /** Number of requests answered without a pupil because {@link requestQueue} was full */
+    private final LongAdder refusedRequests = new LongAdder();
 
     /** The device numbers of the one or two cameras to stream on the machine on which this is running. 
      * If ony one camera, then just use "Left".
@@ -64,6 +67,32 @@ public abstract class CameraStreamer<FT extends FrameInfo> extends Thread {
     /** Accesor for buffers  - used in tests */
     public CircularBuffer<FT> getBuffer(ViewEye eye) { return frameBuffer.get(eye);} 
 
+    /** @return Number of requests answered without a pupil because the request queue was full */
+    public long getRefusedRequests() { return refusedRequests.sum(); }
+
+    /**
+     * Ask for the pupil position and diameter at the time of request.
+     * If {@link requestQueue} is full the request is answered straight away on {@link responseQueue}
+     * with no pupil, so whoever is waiting for it does not wait for an answer that will never come.
+     *
+     * @param request The request
+     *
+     * @return true if the request was queued, false if it was answered with no pupil
+     */
+    public boolean request(PupilRequest request) {
+        if (requestQueue.offer(request))
+            return true;
+        refuse(request);
+        return false;
+    }
+
+    /** Answer request with no pupil as there is no room to queue it. */
+    private void refuse(PupilRequest request) {
+        refusedRequests.increment();
+        if (!responseQueue.offer(new PupilResponse(request.timeStamp(), System.currentTimeMillis())))
+            System.out.println("Request and response queues are both full. Dropping request " + request.timeStamp());
+    }
+
     /** working area for copying out of queue */
     protected FT workingFrameInfo;
 
@@ -232,9 +261,10 @@ public abstract class CameraStreamer<FT extends FrameInfo> extends Thread {
                 System.out.println("Response queue is full, apparently!");
             }
         } else {
-            if (request.incTries())
-                requestQueue.addFirst(request); // put it back for a go at another frame
-            else {
+            if (request.incTries()) {
+                if (!requestQueue.offerFirst(request)) // put it back for a go at another frame
+                    refuse(request);
+            } else {
                 try {
                     responseQueue.add(new PupilResponse(request.timeStamp(), workingFrameInfo.timeStamp()));
                 } catch (IllegalStateException e) {
@@ -0,0 +1,283 @@
+package org.lei.opi.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.function.IntFunction;
+
+import org.lei.opi.core.definitions.Packet;
+
+/**
+ * Conversions used by the command records that the annotation processor (the processor module) generates
+ * from the @Parameter annotations of each OpiMachine, eg {@code JovpCommands.Present} for {@link Jovp#present}.
+ *
+ * Values come from pairs: a Double, String, enum constant or ArrayList of them, as {@link OpiMachine#checkArgs} leaves them,
+ * or a double[] or double[][], which are used as they are rather than copied. Enum values are matched to the name of a constant in any case.
+ *
+ * @since 3.0.0
+ */
+public final class CommandCodec {
+
+    private CommandCodec() { ; }
+
+    /**
+     * The exception for a parameter that is not optional and is missing, as {@link OpiMachine#checkArgs} reports it.
+     *
+     * @param name Name of the parameter
+     * @param command Name of the command
+     * @param machine The machine whose command it is
+     *
+     * @return The exception
+     */
+    public static IllegalArgumentException missing(String name, String command, Class<?> machine) {
+        return new IllegalArgumentException(String.format(OpiMachine.MISSING_PARAMETER, name, command, machine));
+    }
+
+    /**
+     * The error for a list that is empty, as {@link OpiMachine#checkArgs} reports it.
+     *
+     * @param name Name of the parameter
+     * @param command Name of the command
+     * @param machine The machine whose command it is
+     *
+     * @return The error Packet
+     */
+    public static Packet notList(String name, String command, Class<?> machine) {
+        return Packet.error(String.format(OpiMachine.NOT_LIST, name, command, machine));
+    }
+
+    /**
+     * The error for a list of lists with an empty list in it, as {@link OpiMachine#checkArgs} reports it.
+     *
+     * @param name Name of the parameter
+     * @param command Name of the command
+     * @param machine The machine whose command it is
+     *
+     * @return The error Packet
+     */
+    public static Packet notListOfList(String name, String command, Class<?> machine) {
+        return Packet.error(String.format(OpiMachine.NOT_LIST_OF_LIST, name, command, machine));
+    }
+
+    /**
+     * The error for a value outside [min, max], as {@link OpiMachine#checkArgs} reports it.
+     *
+     * @param name Name of the parameter
+     * @param command Name of the command
+     * @param machine The machine whose command it is
+     * @param min Smallest value allowed
+     * @param max Largest value allowed
+     * @param value The value
+     *
+     * @return The error Packet
+     */
+    public static Packet outOfRange(String name, String command, Class<?> machine, double min, double max, double value) {
+        return Packet.error(String.format(OpiMachine.OUT_OF_RANGE, name, command, machine, min, max, value));
+    }
+
+    /**
+     * Convert a double parameter.
+     *
+     * @param value A value from pairs (a Number)
+     *
+     * @return value as a double
+     *
+     * @throws ClassCastException If value is not a Number
+     */
+    public static double toDouble(Object value) { return ((Number) value).doubleValue(); }
+
+    /**
+     * Convert an int parameter.
+     *
+     * @param value A value from pairs (a Number)
+     *
+     * @return value rounded to an int
+     *
+     * @throws ClassCastException If value is not a Number
+     */
+    public static int toInt(Object value) { return (int) Math.round(((Number) value).doubleValue()); }
+
+    /**
+     * Convert a String parameter.
+     *
+     * @param value A value from pairs (a String)
+     *
+     * @return value as a String
+     *
+     * @throws ClassCastException If value is not a String
+     */
+    public static String toText(Object value) { return (String) value; }
+
+    /**
+     * Convert an enum parameter.
+     *
+     * @param <E> The enum
+     * @param type Class of the enum
+     * @param value A value from pairs: a constant of type, or the name of one in any case
+     *
+     * @return The constant
+     *
+     * @throws IllegalArgumentException If value does not name a constant of type
+     * @throws ClassCastException If value is neither a constant of type nor a String
+     */
+    public static <E extends Enum<E>> E toEnum(Class<E> type, Object value) {
+        return type.isInstance(value) ? type.cast(value) : Enum.valueOf(type, ((String) value).toUpperCase(Locale.ROOT));
+    }
+
+    /**
+     * Convert a list of double parameter.
+     *
+     * @param value A value from pairs: an ArrayList of Number, or a double[] (which is returned as it is)
+     *
+     * @return value as a double[]
+     *
+     * @throws ClassCastException If value or an element of it is not of those types
+     */
+    public static double[] toDoubles(Object value) {
+        if (value instanceof double[] a)
+            return a;
+        ArrayList<?> list = (ArrayList<?>) value;
+        double[] a = new double[list.size()];
+        for (int i = 0 ; i < a.length ; i++)
+            a[i] = toDouble(list.get(i));
+        return a;
+    }
+
+    /**
+     * Convert a list of int parameter.
+     *
+     * @param value A value from pairs: an ArrayList of Number, or a double[]
+     *
+     * @return value with each element rounded to an int
+     *
+     * @throws ClassCastException If value or an element of it is not of those types
+     */
+    public static int[] toInts(Object value) {
+        if (value instanceof double[] d) {
+            int[] a = new int[d.length];
+            for (int i = 0 ; i < a.length ; i++)
+                a[i] = (int) Math.round(d[i]);
+            return a;
+        }
+        ArrayList<?> list = (ArrayList<?>) value;
+        int[] a = new int[list.size()];
+        for (int i = 0 ; i < a.length ; i++)
+            a[i] = toInt(list.get(i));
+        return a;
+    }
+
+    /**
+     * Convert a list of lists of double parameter.
+     *
+     * @param value A value from pairs: an ArrayList of lists that {@link toDoubles} takes, or a double[][] (which is returned as it is)
+     *
+     * @return value as a double[][]
+     *
+     * @throws ClassCastException If value or an element of it is not of those types
+     */
+    public static double[][] toDoubleLists(Object value) {
+        if (value instanceof double[][] a)
+            return a;
+        ArrayList<?> list = (ArrayList<?>) value;
+        double[][] a = new double[list.size()][];
+        for (int i = 0 ; i < a.length ; i++)
+            a[i] = toDoubles(list.get(i));
+        return a;
+    }
+
+    /**
+     * Convert a list of String parameter.
+     *
+     * @param value A value from pairs (an ArrayList of String)
+     *
+     * @return value as a String[]
+     *
+     * @throws ClassCastException If value or an element of it is not of that type
+     */
+    public static String[] toTexts(Object value) {
+        ArrayList<?> list = (ArrayList<?>) value;
+        String[] a = new String[list.size()];
+        for (int i = 0 ; i < a.length ; i++)
+            a[i] = toText(list.get(i));
+        return a;
+    }
+
+    /**
+     * Convert a list of enum parameter.
+     *
+     * @param <E> The enum
+     * @param type Class of the enum
+     * @param value A value from pairs: an ArrayList of elements that {@link toEnum} takes
+     * @param make Makes an array of E of a given length, eg {@code ViewEye[]::new}
+     *
+     * @return value as an array of constants
+     *
+     * @throws IllegalArgumentException If an element does not name a constant of type
+     * @throws ClassCastException If value or an element of it is not of those types
+     */
+    public static <E extends Enum<E>> E[] toEnums(Class<E> type, Object value, IntFunction<E[]> make) {
+        ArrayList<?> list = (ArrayList<?>) value;
+        E[] a = make.apply(list.size());
+        for (int i = 0 ; i < a.length ; i++)
+            a[i] = toEnum(type, list.get(i));
+        return a;
+    }
+
+    /**
+     * Pad a default list to the number of stimuli, as {@link OpiMachine#buildDefault} does.
+     *
+     * @param values The default (not empty), which is not changed
+     * @param n The length wanted
+     *
+     * @return A copy of values with its first element repeated up to length n (or just a copy if values is as long)
+     */
+    public static double[] pad(double[] values, int n) {
+        double[] a = Arrays.copyOf(values, Math.max(n, values.length));
+        Arrays.fill(a, values.length, a.length, values[0]);
+        return a;
+    }
+
+    /**
+     * As {@link pad(double[], int)} for a list of int.
+     *
+     * @param values The default (not empty), which is not changed
+     * @param n The length wanted
+     *
+     * @return A copy of values with its first element repeated up to length n
+     */
+    public static int[] pad(int[] values, int n) {
+        int[] a = Arrays.copyOf(values, Math.max(n, values.length));
+        Arrays.fill(a, values.length, a.length, values[0]);
+        return a;
+    }
+
+    /**
+     * As {@link pad(double[], int)} for a list of lists, copying each list so that none is shared.
+     *
+     * @param values The default (not empty), which is not changed
+     * @param n The length wanted
+     *
+     * @return A copy of values with (a copy of) its first list repeated up to length n
+     */
+    public static double[][] pad(double[][] values, int n) {
+        double[][] a = new double[Math.max(n, values.length)][];
+        for (int i = 0 ; i < a.length ; i++)
+            a[i] = values[i < values.length ? i : 0].clone();
+        return a;
+    }
+
+    /**
+     * As {@link pad(double[], int)} for a list of String or enum constants.
+     *
+     * @param <T> The element type
+     * @param values The default (not empty), which is not changed
+     * @param n The length wanted
+     *
+     * @return A copy of values with its first element repeated up to length n
+     */
+    public static <T> T[] pad(T[] values, int n) {
+        T[] a = Arrays.copyOf(values, Math.max(n, values.length));
+        Arrays.fill(a, values.length, a.length, values[0]);
+        return a;
+    }
+}
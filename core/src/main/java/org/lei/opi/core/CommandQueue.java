@@ -0,0 +1,152 @@
+package org.lei.opi.core;
+
+import java.util.ArrayDeque;
+
+import org.lei.opi.core.definitions.Packet;
+
+/**
+ * The commands of one connection that have been read but not yet answered:
+ * those waiting for the OpiMachine, and those it is running (eg pipelined commands on their own threads).
+ *
+ * It holds at most {@link capacity} commands. A command that arrives when it is full is not
+ * admitted, and the reader answers it at once with an {@link overload} Packet carrying a
+ * retry-after hint, so a client that floods the server learns about it straight away
+ * rather than the server queueing (or spawning threads) without bound.
+ *
+ * It also counts what passes through it, so that a busy connection can be diagnosed.
+ *
+ * @since 3.0.0
+ */
+public class CommandQueue {
+
+    /** Default for {@link capacity}: {@value CAPACITY} */
+    public static final int CAPACITY = 64;
+    /** Shortest retry-after hint in ms: {@value MIN_RETRY_AFTER} */
+    public static final long MIN_RETRY_AFTER = 10;
+    /** For overload Packets: {@value OVERLOADED} */
+    public static final String OVERLOADED = "Overloaded: %d commands are waiting. Retry after %d ms.";
+    /** Weight of the latest command in {@link meanServiceTime} */
+    private static final double ALPHA = 0.125;
+
+    /** Most commands that can be waiting and running at once */
+    private final int capacity;
+    /** Commands admitted but not yet taken by {@link poll} */
+    private final ArrayDeque<OpiCommand> waiting = new ArrayDeque<OpiCommand>();
+    /** Commands taken (or admitted to run straight away) and not yet {@link done} */
+    private int running = 0;
+
+    /** Number of commands admitted */
+    private long admitted = 0;
+    /** Number of commands turned away */
+    private long rejected = 0;
+    /** Most commands waiting and running at once */
+    private int peak = 0;
+    /** Moving average of the ns a command takes to run */
+    private double meanServiceTime = 0;
+
+    /**
+     * @param capacity Most commands that can be waiting and running at once
+     *
+     * @throws IllegalArgumentException If capacity is less than 1
+     */
+    public CommandQueue(int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("CommandQueue capacity must be at least 1, not " + capacity);
+        this.capacity = capacity;
+    }
+
+    /**
+     * Queue a command for the machine if there is room.
+     *
+     * @param command A command from the client
+     *
+     * @return true if it was queued, false if the queue is full
+     */
+    public synchronized boolean offer(OpiCommand command) {
+        if (!admit(0))
+            return false;
+        waiting.add(command);
+        return true;
+    }
+
+    /**
+     * Take the next waiting command. It still counts against {@link capacity} until {@link done} is called for it.
+     *
+     * @return The command, or null if none are waiting
+     */
+    public synchronized OpiCommand poll() {
+        OpiCommand command = waiting.poll();
+        if (command != null)
+            running++;
+        return command;
+    }
+
+    /**
+     * Admit a command that the reader runs (or dispatches) itself rather than queueing.
+     *
+     * @return true if there was room for it, false if it should be turned away
+     */
+    public synchronized boolean admit() {
+        return admit(1);
+    }
+
+    private boolean admit(int run) {
+        if (waiting.size() + running >= capacity) {
+            rejected++;
+            return false;
+        }
+        admitted++;
+        running += run;
+        peak = Math.max(peak, waiting.size() + running + 1 - run);
+        return true;
+    }
+
+    /**
+     * Record that a command taken by {@link poll} or {@link admit} has been answered.
+     *
+     * @param started {@link System#nanoTime} when the command was taken or admitted
+     */
+    public synchronized void done(long started) {
+        assert running > 0 : "done() for a command that was not taken or admitted";
+        running--;
+        double t = System.nanoTime() - started;
+        meanServiceTime = meanServiceTime == 0 ? t : meanServiceTime + ALPHA * (t - meanServiceTime);
+    }
+
+    /** Forget any waiting commands (eg when the connection closes). */
+    public synchronized void clear() {
+        waiting.clear();
+    }
+
+    /**
+     * An error Packet for a command that was not admitted.
+     * The retry-after hint is the time the commands ahead of it are expected to take, one after another.
+     *
+     * @param id The id of the command (null for none)
+     *
+     * @return The Packet to send straight back
+     */
+    public synchronized Packet overload(String id) {
+        int size = waiting.size() + running;
+        long retryAfter = Math.max(MIN_RETRY_AFTER, Math.round(size * meanServiceTime / 1e6));
+        return Packet.error(String.format(OVERLOADED, size, retryAfter)).setId(id).setRetryAfter(retryAfter);
+    }
+
+    /** @return Most commands that can be waiting and running at once */
+    public int getCapacity() { return capacity; }
+    /** @return Number of commands waiting and running now */
+    public synchronized int size() { return waiting.size() + running; }
+    /** @return Most commands waiting and running at once so far */
+    public synchronized int getPeak() { return peak; }
+    /** @return Number of commands admitted so far */
+    public synchronized long getAdmitted() { return admitted; }
+    /** @return Number of commands turned away so far */
+    public synchronized long getRejected() { return rejected; }
+    /** @return Moving average of the ms a command takes to run */
+    public synchronized double getMeanServiceTime() { return meanServiceTime / 1e6; }
+
+    public synchronized String toString() {
+        return String.format("CommandQueue %d/%d (peak %d), admitted %d, rejected %d, mean %.1f ms",
+            size(), capacity, peak, admitted, rejected, getMeanServiceTime());
+    }
+}
@@ -74,7 +74,7 @@ public class Display extends Jovp {
             Platform.runLater(()-> {
                 this.textAreaCommands.appendText("Setup:\n");
                 for (String k : args.keySet())
-                    this.textAreaCommands.appendText(String.format("\t%s = %s\n", k, args.get(k).toString()));
+                    this.textAreaCommands.appendText(String.format("\t%s = %s\n", k, valueString(args.get(k))));
              });
         return super.setup(args);
     }
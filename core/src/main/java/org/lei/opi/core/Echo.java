@@ -54,7 +54,7 @@ public class Echo extends OpiMachine {
     public Packet initialize(HashMap<String, Object> args) {
         myPrint("Initialise:\n");
         for (String k : args.keySet())
-            myPrint(String.format("\t%s = %s\n", k, args.get(k).toString()));
+            myPrint(String.format("\t%s = %s\n", k, valueString(args.get(k))));
 
       return new Packet(String.format(CONNECTED_TO_HOST, settings.ip, settings.port));
     };
@@ -79,7 +79,7 @@ public class Echo extends OpiMachine {
     public Packet setup(HashMap<String, Object> args) {
        this.textArea.appendText("Setup:\n");
        for (String k : args.keySet())
-            myPrint(String.format("\t%s = %s\n", k, args.get(k).toString()));
+            myPrint(String.format("\t%s = %s\n", k, valueString(args.get(k))));
 
         return new Packet(args);
     }
@@ -94,7 +94,7 @@ public class Echo extends OpiMachine {
     public Packet present(HashMap<String, Object> args) {
         myPrint("Present:\n");
         for (String k : args.keySet())
-            myPrint(String.format("\t%s = %s\n", k, args.get(k).toString()));
+            myPrint(String.format("\t%s = %s\n", k, valueString(args.get(k))));
 
         return new Packet(args);
     }
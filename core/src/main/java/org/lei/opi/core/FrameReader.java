@@ -0,0 +1,170 @@
+package org.lei.opi.core;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+import org.lei.opi.core.OpiListener.Framing;
+
+/**
+ * Reads the replies of a real machine for an {@link OpiMachine} off a blocking channel, as many bytes as have arrived
+ * at a time rather than one at a time, and splits them into messages (see {@link Framing}).
+ *
+ * The buffer is kept from one message to the next, so it holds whatever of the next message has already arrived.
+ * It grows if a single \n terminated message is longer than it; a length framed message longer than it is read
+ * straight into its own array.
+ *
+ * A stream (as of a {@link SharedMemoryLink}) is read without the lock of {@link java.nio.channels.Channels#newChannel},
+ * as a virtual thread that waits for bytes holding a monitor keeps its carrier from the others.
+ *
+ * @since 3.0.0
+ */
+final class FrameReader implements Closeable {
+
+    /** Initial size of the read buffer. It grows if a single line is longer than this. */
+    private static final int BUFFER_SIZE = 8192;
+
+    /** The connection to the real machine */
+    private final ReadableByteChannel channel;
+    /** Bytes read from the channel that have not yet been taken as a message, in read mode between calls */
+    private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE).flip();
+
+    FrameReader(ReadableByteChannel channel) {
+        this.channel = channel;
+    }
+
+    /** @param in Stream to read from, straight into the buffer */
+    FrameReader(InputStream in) {
+        this(new ReadableByteChannel() {
+            private volatile boolean open = true;
+
+            @Override
+            public int read(ByteBuffer dst) throws IOException {
+                int n = in.read(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+                if (n > 0)
+                    dst.position(dst.position() + n);
+                return n;
+            }
+
+            @Override
+            public boolean isOpen() { return open; }
+
+            @Override
+            public void close() throws IOException {
+                open = false;
+                in.close();
+            }
+        });
+    }
+
+    /**
+     * Carry on reading from in (eg a {@link SharedMemoryLink}) between two messages.
+     * Any bytes already read from the channel are read first, so nothing sent before the switch is lost.
+     *
+     * @param in Where to read from now
+     *
+     * @return A reader of in that starts with what is left in this one
+     */
+    FrameReader handOver(InputStream in) {
+        FrameReader next = new FrameReader(in);
+        if (buffer.hasRemaining()) {
+            next.buffer = ByteBuffer.allocate(Math.max(BUFFER_SIZE, buffer.remaining()));
+            next.buffer.put(buffer).flip();
+        }
+        return next;
+    }
+
+    /**
+     * @return The rest of the channel as a stream, for {@link SharedMemoryLink#closeWhenEnded} once the reader has moved
+     *         to a link. Like the reader it takes no lock, unlike {@link java.nio.channels.Channels#newInputStream}.
+     */
+    InputStream rest() {
+        return new InputStream() {
+            private final ByteBuffer one = ByteBuffer.allocate(1);
+
+            @Override
+            public int read() throws IOException {
+                one.clear();
+                int n;
+                while ((n = channel.read(one)) == 0)
+                    ;
+                return n < 0 ? -1 : one.get(0) & 0xff;
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
+            }
+        };
+    }
+
+    /**
+     * Receive a UTF-8 \n terminated string (Not the modified UTF-8 of DataInput/Output)
+     * @return The message without its \n
+     * @throws IOException If the channel cannot be read or ends before the \n, or the line is longer than {@link Framing#MAX_FRAME}
+     */
+    String readLine() throws IOException {
+        int scanned = 0;    // bytes after position already known not to be \n
+        for (;;) {
+            byte[] bytes = buffer.array();
+            int start = buffer.position();
+            for (int i = start + scanned ; i < buffer.limit() ; i++)
+                if (bytes[i] == '\n') {
+                    buffer.position(i + 1);
+                    return new String(bytes, start, i - start, StandardCharsets.UTF_8);
+                }
+            scanned = buffer.remaining();
+            Framing.checkLine(scanned);
+            fill(scanned + 1);
+        }
+    }
+
+    /**
+     * Receive a message preceded by its 4 byte length
+     * @return The message, still encoded
+     * @throws IOException If the channel cannot be read or ends before the message does, or the length is corrupt
+     *                     (negative or more than {@link Framing#MAX_FRAME})
+     */
+    byte[] readFrame() throws IOException {
+        fill(4);
+        int length = Framing.checkLength(buffer.getInt());
+        byte[] message = new byte[length];
+        int buffered = Math.min(length, buffer.remaining());
+        buffer.get(message, 0, buffered);
+        ByteBuffer rest = ByteBuffer.wrap(message, buffered, length - buffered);
+        while (rest.hasRemaining())
+            if (channel.read(rest) < 0)
+                throw new EOFException();
+        return message;
+    }
+
+    /**
+     * Read from the channel until the buffer holds at least need bytes, growing it if need be.
+     * @param need Number of bytes wanted in the buffer
+     * @throws IOException If the channel cannot be read or ends first
+     */
+    private void fill(int need) throws IOException {
+        while (buffer.remaining() < need) {
+            if (buffer.capacity() < need) {
+                ByteBuffer bigger = ByteBuffer.allocate(Math.max(2 * buffer.capacity(), need));
+                bigger.put(buffer);
+                buffer = bigger;
+            } else
+                buffer.compact();
+            int n = channel.read(buffer);
+            buffer.flip();
+            if (n < 0)
+                throw new EOFException();
+        }
+    }
+
+    /** Close the channel */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,189 @@
+package org.lei.opi.core;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.lei.opi.core.OpiListener.Encoding;
+import org.lei.opi.core.OpiListener.Framing;
+import org.lei.opi.core.definitions.Packet;
+
+/**
+ * Both directions of a blocking connection, reading and writing whole messages
+ * in the connection's current {@link Framing} and {@link Encoding}.
+ *
+ * Bytes are read in bulk into a buffer and messages are cut out of it, so a
+ * {@link Framing#LINE} message is found with one scan and a {@link Framing#LENGTH}
+ * message with no scan at all. As nothing is decoded ahead of the current message
+ * the framing can be switched between any two messages.
+ * Packets are written with a {@link PacketWriter} into one buffer that is reused for every reply.
+ * The streams themselves can be switched too, once a {@link SharedMemoryLink} is agreed at initialize.
+ *
+ * @since 3.0.0
+ */
+class FrameStream {
+
+    /** Initial size of the read buffer. It grows if a single message is longer than this. */
+    private static final int BUFFER_SIZE = 8192;
+
+    private volatile InputStream in;
+    private volatile OutputStream out;
+    /** Held while writing to {@link out} (and while switching it) */
+    private final Object writeLock = new Object();
+
+    /** Bytes read from {@link in}: those in [start, end) are not yet consumed */
+    private byte[] buffer = new byte[BUFFER_SIZE];
+    private int start = 0;
+    private int end = 0;
+
+    /** Each Packet is framed in here and then written with one call. Guarded by {@link writeLock}. */
+    private ByteBuffer outgoing = ByteBuffer.allocate(BUFFER_SIZE);
+
+    /** How messages are delimited. Starts as LINE, and is changed once agreed at initialize. */
+    private volatile Framing framing = Framing.LINE;
+    /** How messages are encoded. Starts as JSON, and is changed once agreed at initialize. */
+    private volatile Encoding encoding = Encoding.JSON;
+
+    FrameStream(InputStream in, OutputStream out) {
+        this.in = in;
+        this.out = out;
+    }
+
+    Framing getFraming() { return framing; }
+    void setFraming(Framing framing) { this.framing = framing; }
+    Encoding getEncoding() { return encoding; }
+    void setEncoding(Encoding encoding) { this.encoding = encoding; }
+
+    /**
+     * Read the next message.
+     *
+     * @return The message (without any delimiter or header) still encoded, or null if the stream ended first
+     *
+     * @throws IOException If the stream cannot be read, or ends part way through a message,
+     *                     or the message is longer than {@link Framing#MAX_FRAME}
+     */
+    byte[] read() throws IOException {
+        if (framing == Framing.LENGTH) {
+            if (!fill(4))
+                return null;
+            int length = Framing.checkLength(((buffer[start] & 0xff) << 24) | ((buffer[start + 1] & 0xff) << 16)
+                       | ((buffer[start + 2] & 0xff) << 8) | (buffer[start + 3] & 0xff));
+            if (!fill(4 + length))
+                throw new EOFException("Stream ended in a frame of " + length + " bytes");
+            start += 4;
+            return take(length);
+        }
+
+        int scanned = start;
+        for (;;) {
+            for (int i = scanned ; i < end ; i++) {
+                if (buffer[i] == '\n') {
+                    int stop = (i > start && buffer[i - 1] == '\r') ? i - 1 : i;
+                    byte[] message = Arrays.copyOfRange(buffer, start, stop);
+                    start = i + 1;
+                    return message;
+                }
+            }
+            scanned = end - start;
+            Framing.checkLine(scanned);
+            if (!fill(end - start + 1))
+                return end > start ? take(end - start) : null;   // last line may have no \n
+            scanned += start;
+        }
+    }
+
+    /**
+     * Write a JSON message as one frame and flush it.
+     * Safe to call from several threads at once.
+     *
+     * @param message The message to send
+     *
+     * @throws IOException If the stream cannot be written
+     */
+    void write(String message) throws IOException {
+        write(framing.encode(message));
+    }
+
+    /**
+     * Write a Packet as one frame in the current encoding and flush it.
+     * Safe to call from several threads at once.
+     *
+     * @param p The Packet to send
+     *
+     * @throws IOException If the stream cannot be written
+     */
+    void write(Packet p) throws IOException {
+        synchronized (writeLock) {
+            outgoing.clear();
+            outgoing = PacketWriter.write(p, framing, encoding, outgoing);
+            out.write(outgoing.array(), 0, outgoing.position());
+            out.flush();
+        }
+    }
+
+    private void write(byte[] frame) throws IOException {
+        synchronized (writeLock) {
+            out.write(frame);
+            out.flush();
+        }
+    }
+
+    /**
+     * Carry on with both directions on other streams, eg those of a {@link SharedMemoryLink}.
+     * Call it from the reading thread between two messages: any bytes already read from the old stream are dropped.
+     *
+     * @param in Where to read from now
+     * @param out Where to write to now
+     *
+     * @return The old input stream, which nothing here reads any more
+     */
+    InputStream switchTo(InputStream in, OutputStream out) {
+        synchronized (writeLock) {
+            InputStream old = this.in;
+            this.in = in;
+            this.out = out;
+            start = 0;
+            end = 0;
+            return old;
+        }
+    }
+
+    /**
+     * Make sure there are at least n unconsumed bytes in the buffer, reading as needed.
+     *
+     * @return false if the stream ended first
+     */
+    private boolean fill(int n) throws IOException {
+        if (end - start >= n)
+            return true;
+        if (buffer.length - start < n) {  // move unconsumed bytes to the front, growing if needed
+            byte[] b = buffer.length < n ? new byte[Math.max(n, 2 * buffer.length)] : buffer;
+            System.arraycopy(buffer, start, b, 0, end - start);
+            buffer = b;
+            end -= start;
+            start = 0;
+        }
+        while (end - start < n) {
+            int count = in.read(buffer, end, buffer.length - end);
+            if (count < 0)
+                return false;
+            end += count;
+        }
+        return true;
+    }
+
+    /** Consume n bytes as a message. */
+    private byte[] take(int n) {
+        byte[] message = Arrays.copyOfRange(buffer, start, start + n);
+        start += n;
+        return message;
+    }
+
+    void close() throws IOException {
+        in.close();
+        out.close();
+    }
+}
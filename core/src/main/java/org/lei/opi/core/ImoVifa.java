@@ -93,7 +93,7 @@ public class ImoVifa extends Jovp {
         StringBuffer sb = new StringBuffer();
         sb.append("Setup:\n");
         for (String k : args.keySet())
-            sb.append(String.format("\t%s = %s\n", k, args.get(k).toString()));
+            sb.append(String.format("\t%s = %s\n", k, valueString(args.get(k))));
         output(sb.toString());
         
         return super.setup(args);
@@ -1,13 +1,20 @@
 package org.lei.opi.core;
 
 import java.io.IOException;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.HashMap;
 
 import org.lei.opi.core.OpiListener.Command;
+import org.lei.opi.core.OpiListener.Encoding;
+import org.lei.opi.core.OpiListener.Framing;
 import org.lei.opi.core.definitions.Packet;
 import org.lei.opi.core.definitions.Parameter;
 
+import com.google.gson.JsonObject;
+
 import es.optocom.jovp.definitions.ViewMode;
 
 /**
@@ -32,6 +39,9 @@ public abstract class Jovp extends OpiMachine {
         public String deviceNumberCameraLeft;   // for eye tracking if present
         public String deviceNumberCameraRight;  // for eye tracking if present
         public int eyeStreamPort; // Port on which eye images will be streamed (if any, -1 if none)
+        public boolean binary;    // ask the JOVP server for compact binary messages rather than JSON
+        public String unixSocket = "";  // path of the JOVP server's Unix domain socket if it is on this computer, used instead of ip:port ("" for TCP)
+        public String sharedMemory = "";  // path of a file (eg in /dev/shm) to offer the JOVP server as a shared memory link if it is on this computer ("" for none)
 
         public void setScreen(int screen) { this.screen = screen; }
         public void setPhysicalSize(int[] psize) { this.physicalSize = psize; }
@@ -60,12 +70,54 @@ public abstract class Jovp extends OpiMachine {
     // create instance AND open connection to settings-> ip port
     public Jovp(javafx.scene.Scene parentScene, boolean createConnection) throws InstantiationException {
         this(parentScene);
-        if (!this.connect(settings.ip, settings.port))
-            throw new InstantiationException(String.format("Cannot connect to %s:%s", settings.ip, settings.port));
+        if (!this.connect())
+            throw new InstantiationException("Cannot connect to " + address());
+    }
+
+    /** Connect to the JOVP server at settings.unixSocket if it is set, else at settings.ip:settings.port */
+    private boolean connect() {
+        if (settings.unixSocket == null || settings.unixSocket.isEmpty())
+            return this.connect(settings.ip, settings.port);
+        return this.connect(Path.of(settings.unixSocket));
     }
 
+    /** @return true if the JOVP server is on this computer, so could attach to a {@link SharedMemoryLink} */
+    private boolean isLocal() {
+        if (settings.unixSocket != null && !settings.unixSocket.isEmpty())
+            return true;
+        try {
+            InetAddress a = InetAddress.getByName(settings.ip);
+            return a.isLoopbackAddress() || NetworkInterface.getByInetAddress(a) != null;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /** Where {@link connect()} connects to, for messages */
+    private String address() {
+        if (settings.unixSocket == null || settings.unixSocket.isEmpty())
+            return settings.ip + ":" + settings.port;
+        return settings.unixSocket;
+    }
+
+    /**
+     * Commands to the JOVP server are tagged with ids and replies matched by id (see {@link OpiMachine#request}),
+     * so a query can be sent while a present is outstanding.
+     *
+     * @return true
+     *
+     * @since 3.0.0
+     */
+    @Override
+    public boolean isPipelined() { return true; }
+
     /**
-    * opiInitialise: send initialization code to JOVP on the machine and get results
+    * opiInitialise: send initialization code to JOVP on the machine and get results.
+    * Also asks for {@link Framing#LENGTH} framing for the rest of the connection,
+    * and {@link Encoding#BINARY} if settings.binary is true,
+    * which a JOVP server that does not know about them will ignore.
+    * If an earlier session closed the connection to JOVP, it is opened again first
+    * (eg for the next client of a {@link OpiListener.Mode#PERSISTENT} listener).
     * 
     * @param args A map of name:value pairs IGNORED
     * 
@@ -76,9 +128,17 @@ public abstract class Jovp extends OpiMachine {
     */
     public Packet initialize(HashMap<String, Object> args) {
         try {
+            if (this.isClosed() && !this.connect())
+                throw new IOException("Cannot connect to " + address());
             settings.command = Command.INITIALIZE.toString();
-            this.send(OpiListener.gson.toJson(settings));
-            Packet p = this.receive();
+            JsonObject init = OpiListener.gson.toJsonTree(settings).getAsJsonObject();
+            init.addProperty(OpiListener.FRAMING, Framing.LENGTH.name().toLowerCase());
+            if (settings.binary)
+                init.addProperty(OpiListener.ENCODING, Encoding.BINARY.name().toLowerCase());
+            if (settings.sharedMemory != null && !settings.sharedMemory.isEmpty() && isLocal())
+                this.offerSharedMemory(init, Path.of(settings.sharedMemory));
+            Packet p = this.request(init);
+            this.settleSharedMemory(p);
             return Packet.checkReturnElements(p, this.opiMethods, "initialize");
         } catch (IOException e) {
             return Packet.error(COULD_NOT_INITIALIZE, e);
@@ -93,11 +153,10 @@ public abstract class Jovp extends OpiMachine {
      * @since 0.0.1
      */
     public Packet query() {
-        if (!this.socket.isConnected()) return Packet.error(DISCONNECTED_FROM_HOST);
+        if (!this.isConnected()) return Packet.error(DISCONNECTED_FROM_HOST);
         try {
             String q = toJson(Command.QUERY);
-            this.send(q);
-            Packet rec = this.receive();
+            Packet rec = this.request(q);
             return Packet.checkReturnElements(rec, this.opiMethods, "query");
         } catch (ClassCastException | IllegalArgumentException | IOException e) {
             return Packet.error(COULD_NOT_QUERY, e);
@@ -107,6 +166,8 @@ public abstract class Jovp extends OpiMachine {
     /**
      * opiSetup: Change device background and overall settings
      * All of the @Parameters here should be fields in the jovp.Setup class.
+     * args are checked unless {@link OpiMachine#processPairs} already has (see {@link OpiMachine#checkOnce}),
+     * then sent to JOVP with the defaults filled in, and the reply passed on as it came.
      * 
      * @param args pairs of argument name and value
      * 
@@ -130,13 +191,12 @@ public abstract class Jovp extends OpiMachine {
     @Parameter(name = "fixRotation", className = Double.class, desc = "Angles of rotation of fixation target (degrees). Only useful if sx != sy specified.", optional = true, min = 0, max = 360, defaultValue = "0")
     @Parameter(name = "tracking", className = Integer.class, desc = "Whether to correct stimulus location based on eye position.", optional = true, min = 0, max = 1, defaultValue = "0")
     public Packet setup(HashMap<String, Object> args) {
-        if (!this.socket.isConnected()) return Packet.error(DISCONNECTED_FROM_HOST);
+        if (!this.isConnected()) return Packet.error(DISCONNECTED_FROM_HOST);
         try {
-            Packet p = validateArgs(args, this.opiMethods.get("setup").parameters(), "setup");
-                if (p.getError()) 
-                    return(p);
-            this.send(p.getMsg());
-            return Packet.checkReturnElements(this.receive(), this.opiMethods, "setup");
+            Packet p = checkOnce(args, "setup");
+            if (p != null)
+                return(p);
+            return Packet.checkReturnElements(this.request(args), this.opiMethods, "setup");
         } catch (IOException e) {
           return Packet.error(COULD_NOT_SETUP, e);
         }
@@ -145,6 +205,7 @@ public abstract class Jovp extends OpiMachine {
     /**
      * opiPresent: Present OPI stimulus in perimeter
      * All of the @Parameters should be the fields of the jovp.Present class.  
+     * args are checked and sent as for {@link setup}.
      *
      * @param args pairs of argument name and value
      * 
@@ -179,14 +240,12 @@ public abstract class Jovp extends OpiMachine {
     @Parameter(name = "fullFoV", className = Double.class, desc = "If !0 fullFoV scales image to full field of view and sx/sy are ignored.", isList = true, optional = true, defaultValue = "[0]")
     @Parameter(name = "optotype", className = es.optocom.jovp.definitions.Optotype.class, desc = "If shape == OPTOTYPE, the letter A to Z to use", isList = true, optional = true, defaultValue = "[E]")
     public Packet present(HashMap<String, Object> args) {
-        if (!this.socket.isConnected()) return Packet.error(DISCONNECTED_FROM_HOST);
+        if (!this.isConnected()) return Packet.error(DISCONNECTED_FROM_HOST);
         try {
-            Packet p = validateArgs(args, this.opiMethods.get("present").parameters(), "present");
-            if (p.getError()) 
+            Packet p = checkOnce(args, "present");
+            if (p != null)
                 return(p);
-            //this.send(OpiListener.gson.toJson(args));
-            this.send(p.getMsg());
-            return Packet.checkReturnElements(this.receive(), this.opiMethods, "present");
+            return Packet.checkReturnElements(this.request(args), this.opiMethods, "present");
         } catch (IOException e) {
             return Packet.error(COULD_NOT_PRESENT, e);
         }
@@ -202,7 +261,7 @@ public abstract class Jovp extends OpiMachine {
     * @since 0.0.1
     */
     public Packet close() {
-        if (!this.socket.isConnected()) return Packet.error(DISCONNECTED_FROM_HOST);
+        if (!this.isConnected()) return Packet.error(DISCONNECTED_FROM_HOST);
        
         try {
             this.send(toJson(Command.CLOSE));   // this will close the server, so no messages coming back
@@ -213,10 +272,29 @@ public abstract class Jovp extends OpiMachine {
         return new Packet(true, DISCONNECTED_FROM_HOST);
     }
 
+    /**
+    * opiCancel: ask the JOVP server to stop the present that is running.
+    * The cancel has its own id so its reply overtakes that of the present (see {@link #isPipelined}),
+    * which then comes back as an error.
+    *
+    * @return A JSON object with return messages
+    *
+    * @since 3.0.0
+    */
+    @Override
+    public Packet cancel() {
+        if (!this.isConnected()) return Packet.error(DISCONNECTED_FROM_HOST);
+        try {
+            return this.request(toJson(Command.CANCEL));
+        } catch (IOException e) {
+            return Packet.error(COULD_NOT_CANCEL, e);
+        }
+    }
+
     /**
     * Get an array of double values from a suitable list
     * 
-    * @param list list of objects that can be coerced into doubles
+    * @param list list of objects that can be coerced into doubles, or a double[] (which is returned as it is)
     * 
     * @return an array of doubles
     * 
@@ -225,6 +303,8 @@ public abstract class Jovp extends OpiMachine {
     * @since 0.0.1
     */
     public static double[] toDoubleArray(Object list) throws ClassCastException {
+        if (list instanceof double[] a)
+            return a;
         return ((ArrayList<?>) list).stream().mapToDouble(Double.class::cast).toArray();
     }
 }  
\ No newline at end of file
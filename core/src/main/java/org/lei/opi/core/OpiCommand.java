@@ -0,0 +1,183 @@
+package org.lei.opi.core;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+
+import org.lei.opi.core.OpiListener.Command;
+import org.lei.opi.core.OpiListener.Encoding;
+import org.lei.opi.core.OpiListener.Framing;
+
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+/**
+ * A command from a client, decoded in one pass with a {@link JsonReader}.
+ *
+ * The transport level names are pulled out into typed fields as they stream past:
+ * "command" into {@link command}, "id" into {@link id}, "framing" into {@link framing}
+ * and "encoding" into {@link encoding}.
+ * Everything else (and "command", which machines forward) goes into {@link pairs} with the
+ * same shapes Gson would give: Double, String, Boolean, ArrayList and maps for objects,
+ * except that a list of numbers is a double[] and a list of lists of numbers a double[][], so they are not boxed.
+ *
+ * @param command The command, or null if "command" is missing, not a string or not one of {@link Command}
+ * @param id The id to echo in the reply (numbers as written), or null
+ * @param framing The framing asked for, or null if none or not one of {@link Framing}
+ * @param encoding The encoding asked for, or null if none or not one of {@link Encoding}
+ * @param pairs The name:value pairs for the machine
+ *
+ * @since 3.0.0
+ */
+public record OpiCommand(Command command, String id, Framing framing, Encoding encoding, HashMap<String, Object> pairs) {
+
+    /**
+     * Decode a JSON object.
+     *
+     * @param json A JSON object
+     *
+     * @return The command
+     *
+     * @throws JsonSyntaxException If json is not a single JSON object
+     */
+    public static OpiCommand decode(String json) throws JsonSyntaxException {
+        Command command = null;
+        String id = null;
+        Framing framing = null;
+        Encoding encoding = null;
+        HashMap<String, Object> pairs = new HashMap<String, Object>();
+
+        try (JsonReader reader = new JsonReader(new StringReader(json))) {
+            reader.setLenient(true);  // as Gson.fromJson
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                switch (name) {
+                    case "command" -> {
+                        Object value = readValue(reader);
+                        pairs.put(name, value);
+                        if (value instanceof String s)
+                            command = match(Command.values(), s);
+                    }
+                    case OpiListener.ID -> {
+                        JsonToken t = reader.peek();
+                        if (t == JsonToken.STRING || t == JsonToken.NUMBER)
+                            id = reader.nextString();   // numbers as written, eg 7 not 7.0
+                        else {
+                            Object value = readValue(reader);
+                            id = value == null ? null : value.toString();
+                        }
+                    }
+                    case OpiListener.FRAMING -> {
+                        Object value = readValue(reader);
+                        if (value instanceof String s)
+                            framing = match(Framing.values(), s);
+                    }
+                    case OpiListener.ENCODING -> {
+                        Object value = readValue(reader);
+                        if (value instanceof String s)
+                            encoding = match(Encoding.values(), s);
+                    }
+                    default -> pairs.put(name, readValue(reader));
+                }
+            }
+            reader.endObject();
+            if (reader.peek() != JsonToken.END_DOCUMENT)
+                throw new JsonSyntaxException("JSON document was not fully consumed.");
+        } catch (IOException | IllegalStateException | NumberFormatException e) {
+            throw new JsonSyntaxException(e);
+        }
+
+        return new OpiCommand(command, id, framing, encoding, pairs);
+    }
+
+    /**
+     * Make a command from pairs that have already been decoded, taking the transport names out of them.
+     *
+     * @param pairs All of the name:value pairs in a message. The transport names (except "command") are removed.
+     *
+     * @return The command
+     */
+    static OpiCommand of(HashMap<String, Object> pairs) {
+        Object id = pairs.remove(OpiListener.ID);
+        Object framing = pairs.remove(OpiListener.FRAMING);
+        Object encoding = pairs.remove(OpiListener.ENCODING);
+        if (id instanceof Double d && d == Math.rint(d))
+            id = d.longValue();   // as written, eg 7 not 7.0
+        return new OpiCommand(
+            pairs.get("command") instanceof String s ? match(Command.values(), s) : null,
+            id == null ? null : id.toString(),
+            framing instanceof String s ? match(Framing.values(), s) : null,
+            encoding instanceof String s ? match(Encoding.values(), s) : null,
+            pairs);
+    }
+
+    /** Read the next value as a Double, String, Boolean, null, list (see {@link readArray}) or map. */
+    private static Object readValue(JsonReader reader) throws IOException {
+        switch (reader.peek()) {
+            case BEGIN_ARRAY:
+                reader.beginArray();
+                Object list = readArray(reader);
+                reader.endArray();
+                return list;
+            case BEGIN_OBJECT:
+                LinkedHashMap<String, Object> map = new LinkedHashMap<String, Object>();
+                reader.beginObject();
+                while (reader.hasNext())
+                    map.put(reader.nextName(), readValue(reader));
+                reader.endObject();
+                return map;
+            case STRING:
+                return reader.nextString();
+            case NUMBER:
+                return reader.nextDouble();
+            case BOOLEAN:
+                return reader.nextBoolean();
+            case NULL:
+                reader.nextNull();
+                return null;
+            default:
+                throw new IllegalStateException("Unexpected " + reader.peek());
+        }
+    }
+
+    /**
+     * Read the elements of an array: all numbers as a double[], all lists of numbers as a double[][],
+     * and anything else (or nothing) as an ArrayList, as Gson would.
+     */
+    private static Object readArray(JsonReader reader) throws IOException {
+        ArrayList<Object> list = new ArrayList<Object>();
+        if (reader.peek() == JsonToken.NUMBER) {
+            double[] a = new double[8];
+            int n = 0;
+            while (reader.peek() == JsonToken.NUMBER) {
+                if (n == a.length)
+                    a = Arrays.copyOf(a, 2 * n);
+                a[n++] = reader.nextDouble();
+            }
+            if (!reader.hasNext())
+                return Arrays.copyOf(a, n);
+            for (int i = 0 ; i < n ; i++)   // not all numbers
+                list.add(a[i]);
+        }
+        boolean rows = reader.hasNext() && list.isEmpty();
+        while (reader.hasNext()) {
+            Object value = readValue(reader);
+            rows &= value instanceof double[];
+            list.add(value);
+        }
+        return rows ? list.toArray(new double[list.size()][]) : list;
+    }
+
+    /** The constant of e whose name is s ignoring case, or null */
+    private static <E extends Enum<E>> E match(E[] values, String s) {
+        for (E e : values)
+            if (e.name().equalsIgnoreCase(s))
+                return e;
+        return null;
+    }
+}
@@ -1,18 +1,43 @@
 package org.lei.opi.core;
 
-import java.io.BufferedReader;
-import java.io.PrintWriter;
+import java.io.Closeable;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.net.Inet4Address;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.NetworkInterface;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Arrays;
 import java.util.Enumeration;
 import java.util.HashMap;
-import java.util.stream.Stream;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 import org.lei.opi.core.definitions.Packet;
 import org.lei.opi.core.definitions.PacketDeserializer;
@@ -32,6 +57,57 @@ import com.google.gson.reflect.TypeToken;
  * does match this pattern it is parsed into name:value pairs and these are passed onto 
  * this.machine.processPairs().
  *
+ * By default ({@link Mode#SINGLE}) it serves one client and then dies.
+ * In {@link Mode#PERSISTENT} it serves one client at a time with the same OpiMachine,
+ * going back to accept the next client when one closes, so later sessions start warm.
+ * In {@link Mode#MULTIPLEX} a single Selector serves many concurrent clients,
+ * each with its own OpiMachine created by a machine factory (see {@link OpiSession}).
+ * In {@link Mode#VIRTUAL} each client is served by its own virtual thread, again
+ * with its own OpiMachine, so sessions that spend most of their time blocked
+ * (eg waiting for a response in present) are cheap.
+ *
+ * A command may carry an optional "id" which is echoed in the Packet that answers it.
+ * If the machine is {@link OpiMachine#isPipelined pipelined}, commands with an id are
+ * processed concurrently so that, for example, a query need not wait for an outstanding
+ * present; the client matches replies to commands by id rather than by order.
+ * Commands without an id (and close) are always processed in order.
+ *
+ * A cancel is acted on as soon as it is read rather than in turn, so that it can stop a present
+ * that is running ({@link OpiMachine#cancel}). To make that possible a present that is not
+ * pipelined runs on its own thread while the connection keeps reading; any other command
+ * waits for it to finish, so replies stay in order.
+ *
+ * Messages are \n terminated JSON ({@link Framing#LINE}) unless the client asks for
+ * {@link Framing#LENGTH} with a "framing" name in its initialize command. If the machine
+ * initializes successfully the reply (still a line) carries the agreed framing, and both
+ * directions use it from the next message on. Clients that never ask keep JSON lines.
+ * A client that asks for LENGTH framing may also ask for {@link Encoding#BINARY} with an
+ * "encoding" name, after which messages in both directions are compact binary rather than JSON.
+ *
+ * A client may send a subscribe command (acted on as soon as it is read) to have events pushed to it
+ * while it waits, for example the onset and offset of a stimulus in OPI-JOVP. An event is a Packet
+ * with an "event" name and a msg holding at least its "time" in microseconds since the epoch
+ * (see {@link publish} and {@link eventTime}). Events are sent between replies on the same connection,
+ * and "events": false in a later subscribe stops them.
+ *
+ * Clients connect over TCP to {@link port}, or, if the listener was given a path, over a Unix domain
+ * socket at that path. The latter is for a client on the same computer (eg the Monitor and OPI-JOVP
+ * on one rig): it skips the TCP/IP stack and uses no ephemeral ports. Everything else is the same.
+ *
+ * A client on the same computer may go further and offer a {@link SharedMemoryLink} with "ring" (the path
+ * of the file it created) and "ringToken" in its initialize. If the machine initializes and the file holds
+ * that token, the reply carries the "ring" and both directions move to it from the next message on, while the
+ * socket is left open only to notice either side going away. Otherwise (eg the client is on another computer,
+ * or in {@link Mode#MULTIPLEX}) the reply has no "ring" and the connection carries on as before.
+ *
+ * Every connection has a bounded {@link CommandQueue} of the commands it has sent that are not yet
+ * answered. A command that arrives when it is full is answered at once with an error Packet whose
+ * "retryAfter" says how many ms to wait before sending it again (see {@link setQueueCapacity}).
+ *
+ * Unless turned off with {@link setWarmUp}, the first listener in a JVM runs a {@link WarmUp} after it opens
+ * its socket and before it accepts a client, so that the first presentations are not slowed by the JIT.
+ * A client that connects meanwhile waits in the backlog.
+ *
  * @since 0.2.0
  */
 public class OpiListener extends Thread {
@@ -52,63 +128,339 @@ public class OpiListener extends Thread {
       /** Present OPI static, kinetic, or temporal stimulus */
       PRESENT,
       /** Close OPI connection */
-      CLOSE
+      CLOSE,
+      /** Stop the present that is running (acted on as soon as it is read, see {@link OpiListener}) */
+      CANCEL,
+      /** Start (or stop) pushing events on this connection (acted on as soon as it is read, see {@link OpiListener}) */
+      SUBSCRIBE
+    }
+
+  /**
+   * How connections are served.
+   *
+   * @since 3.0.0
+   */
+    public enum Mode {
+      /** Accept one connection, serve it on this thread, and then die */
+      SINGLE,
+      /** Serve many concurrent connections from one Selector, each with its own OpiMachine */
+      MULTIPLEX,
+      /** Serve each connection on its own virtual thread with its own OpiMachine */
+      VIRTUAL,
+      /** Serve one connection after another on this thread, all with the same OpiMachine, until closed */
+      PERSISTENT
+    }
+
+  /**
+   * How messages are delimited on a connection.
+   *
+   * @since 3.0.0
+   */
+    public enum Framing {
+      /** UTF-8 JSON terminated by \n (any \n in the JSON is removed) */
+      LINE,
+      /** 4 byte big-endian length of the UTF-8 JSON that follows */
+      LENGTH;
+
+      /** The most bytes a message can have in either framing, without its \n or header: {@value MAX_FRAME} */
+      public static final int MAX_FRAME = 1 << 24;
+      /** {@value BAD_LENGTH} */
+      static final String BAD_LENGTH = "Bad frame length %d (at most %d)";
+      /** {@value LINE_TOO_LONG} */
+      static final String LINE_TOO_LONG = "No \\n in the first %d bytes of a line (at most %d)";
+
+      /**
+       * Check the length read from the header of a {@link LENGTH} frame.
+       *
+       * @param length The length from the header
+       *
+       * @return length
+       *
+       * @throws IOException If length is negative or more than {@link MAX_FRAME}, so the header is corrupt
+       */
+      static int checkLength(int length) throws IOException {
+          if (length < 0 || length > MAX_FRAME)
+              throw new IOException(String.format(BAD_LENGTH, length, MAX_FRAME));
+          return length;
+      }
+
+      /**
+       * Check that a {@link LINE} message that has no \n yet can still be one.
+       *
+       * @param length The bytes of the line so far
+       *
+       * @throws IOException If length is more than {@link MAX_FRAME}
+       */
+      static void checkLine(int length) throws IOException {
+          if (length > MAX_FRAME)
+              throw new IOException(String.format(LINE_TOO_LONG, length, MAX_FRAME));
+      }
+
+      /**
+       * Encode message as one frame.
+       *
+       * @param message The message to send
+       *
+       * @return The bytes to write
+       */
+      public byte[] encode(String message) {
+          if (this == LINE)
+              return (message.replace("\n", "") + "\n").getBytes(StandardCharsets.UTF_8);
+          return encode(message.getBytes(StandardCharsets.UTF_8));
+      }
+
+      /**
+       * Encode an already encoded message as one frame.
+       *
+       * @param message The message to send, which for LINE must not contain a \n
+       *
+       * @return The bytes to write
+       */
+      public byte[] encode(byte[] message) {
+          byte[] frame;
+          if (this == LINE) {
+              frame = Arrays.copyOf(message, message.length + 1);
+              frame[message.length] = '\n';
+              return frame;
+          }
+          frame = new byte[4 + message.length];
+          frame[0] = (byte)(message.length >>> 24);
+          frame[1] = (byte)(message.length >>> 16);
+          frame[2] = (byte)(message.length >>> 8);
+          frame[3] = (byte)message.length;
+          System.arraycopy(message, 0, frame, 4, message.length);
+          return frame;
+      }
+    }
+
+  /**
+   * How messages are encoded on a connection.
+   *
+   * @since 3.0.0
+   */
+    public enum Encoding {
+      /** UTF-8 JSON */
+      JSON,
+      /** CBOR with well known names sent as small integers (see {@link BinaryCodec}). Needs {@link Framing#LENGTH}. */
+      BINARY
     }
   
     /** For exception messages: {@value NO_COMMAND_FIELD} */
     public static final String NO_COMMAND_FIELD = "Json message does not contain field 'command'.";
     /** For exception messages: {@value BAD_COMMAND_FIELD} {@link Command} */
     public static final String BAD_COMMAND_FIELD = "value of 'command' name in Json message is not one of Command'.";
+    /** For exception messages: {@value BAD_JSON} */
+    public static final String BAD_JSON = "Cannot get hashmap of pairs from JSON in process()";
     /** For exception messages: {@value NO_OPI_MACHINE} */
     public static final String NO_OPI_MACHINE = "null OpiMachine passed to OpiClient.";
-    /** Charset is {@value CHARSET_NAME} */
-    private static final String CHARSET_NAME = "UTF8";
     /** {@value LISTENER_FAILED} */
     private static final String LISTENER_FAILED = "Listener failed.";
     /** {@value CLOSE_FAILED} */
     private static final String CLOSE_FAILED = "Cannot close the socket.";
+    /** {@value CANNOT_CREATE_MACHINE} */
+    static final String CANNOT_CREATE_MACHINE = "Cannot create an OpiMachine for a new connection from %s. Closing it.";
+    /** Number of pending connections the OS will queue for multi-session modes: {@value BACKLOG} */
+    private static final int BACKLOG = 1024;
+    /** Name of the optional correlation id in commands and Packets: {@value ID} */
+    public static final String ID = "id";
+    /** Name of the optional framing request in initialize and its answer in Packets: {@value FRAMING} */
+    public static final String FRAMING = "framing";
+    /** Name of the optional encoding request in initialize and its answer in Packets: {@value ENCODING} */
+    public static final String ENCODING = "encoding";
+    /** Name of the retry-after hint (in ms) in Packets that refuse a command because the server is busy: {@value RETRY_AFTER} */
+    public static final String RETRY_AFTER = "retryAfter";
+    /** Name of the event in Packets pushed to subscribed clients: {@value EVENT} */
+    public static final String EVENT = "event";
+    /** Name of the optional shared memory link request in initialize and its answer in Packets: {@value RING} */
+    public static final String RING = "ring";
+    /** Name of the token (a long as a string) that goes with {@link RING} in initialize: {@value RING_TOKEN} */
+    public static final String RING_TOKEN = "ringToken";
+    /** Name of the optional on/off switch in subscribe: {@value EVENTS} */
+    public static final String EVENTS = "events";
+    /** {@value SUBSCRIBED} */
+    static final String SUBSCRIBED = "SUBSCRIBE successful: events will be pushed on this connection";
+    /** {@value UNSUBSCRIBED} */
+    static final String UNSUBSCRIBED = "SUBSCRIBE successful: no more events will be pushed on this connection";
     /** {@value CLOSE_FAILED} */
     private static final String CANNOT_OBTAIN_ADDRESS = "Cannot obtain public address.";
 
-    /** to parse JSONs with fromJson method */
-    public static final GsonBuilder gsonBuilder = new GsonBuilder();
+    /** to parse JSONs with fromJson method: has the Packet adapters, and a listener may register its own and make {@link gson} again */
+    public static final GsonBuilder gsonBuilder = new GsonBuilder()
+        .registerTypeAdapter(Packet.class, new PacketSerializer())
+        .registerTypeAdapter(Packet.class, new PacketDeserializer());
 
-    public static Gson gson = new Gson();
+    /** Made from {@link gsonBuilder}, so it reads and writes Packets before any listener has been made */
+    public static Gson gson = gsonBuilder.create();
 
     /** Given a JSON string, return name:value pairs */
     public static HashMap<String, Object> jsonToPairs(String jsonStr) throws JsonSyntaxException {
         return gson.fromJson(jsonStr, new TypeToken<HashMap<String, Object>>() {}.getType());
     }
 
+    /**
+     * Run a command, settle the resulting Packet (see {@link Packet#settle}) and put the transport level names into it: 
+     * the id always, and the framing and encoding only if the command was a successful initialize.
+     * An encoding is only agreed along with {@link Framing#LENGTH}, as binary messages cannot be lines.
+     *
+     * @param command The decoded command
+     * @param run Runs the command
+     *
+     * @return The Packet from run, or an error if its payload cannot be serialized
+     *
+     * @since 3.0.0
+     */
+    public static Packet withTransport(OpiCommand command, Function<OpiCommand, Packet> run) {
+        Packet p = run.apply(command).settle().setId(command.id());
+        if (p.getError() || command.command() != Command.INITIALIZE)
+            return p;
+        if (command.framing() != null)
+            p.setFraming(command.framing());
+        if (command.encoding() != null && command.framing() == Framing.LENGTH)
+            p.setEncoding(command.encoding());
+        return p;
+    }
+
     /** Connection address */
     private InetAddress address;
     /** Connection port */
     protected int port;
-    /** Socket server */
-    private ServerSocket server;
-        /** Reader for incoming messages on the socket */
-    BufferedReader incoming;
-        /** Writer for outgoing messages to the socket */
-    PrintWriter outgoing;
+    /** Path of the Unix domain socket to listen on instead of {@link port} (else null) */
+    private final Path unixPath;
+    /** Socket server: a ServerSocket, or a ServerSocketChannel for {@link unixPath} */
+    private Closeable server;
+        /** Incoming and outgoing messages on the socket */
+    FrameStream stream;
     /** Whether it is connected to a client */
     protected boolean connected;
     /** The OpiMachine object that commands will be passed to */
     private OpiMachine machine;
 
+    /** How connections are served */
+    private final Mode mode;
+    /** Creates an OpiMachine for each new connection in {@link Mode#MULTIPLEX} */
+    private final Supplier<OpiMachine> machineFactory;
+    /** Selector for the server channel and all sessions in {@link Mode#MULTIPLEX} */
+    private volatile Selector selector;
+    /** Threads that run OpiMachine commands for sessions in {@link Mode#MULTIPLEX} */
+    private ExecutorService workers;
+    /** Sessions currently connected in {@link Mode#MULTIPLEX} */
+    private final Set<OpiSession> sessions = ConcurrentHashMap.newKeySet();
+    /** Connections (Sockets, or SocketChannels for {@link unixPath}) currently open in {@link Mode#VIRTUAL} or {@link Mode#PERSISTENT} */
+    private final Set<Closeable> sockets = ConcurrentHashMap.newKeySet();
+    /** False once {@link closeListener} has been called in {@link Mode#MULTIPLEX}, {@link Mode#VIRTUAL} or {@link Mode#PERSISTENT} */
+    private volatile boolean listening;
+    /** Capacity of the {@link CommandQueue} of each new connection */
+    private volatile int queueCapacity = CommandQueue.CAPACITY;
+    /** Whether listeners made from now on warm up the JIT before accepting a client (see {@link WarmUp}). Set -Dopi.warmUp=false to start with it off. */
+    private static volatile boolean warmUp = !"false".equalsIgnoreCase(System.getProperty("opi.warmUp"));
+    /** Set by the first listener in this JVM to warm up (later ones need not) */
+    private static final AtomicBoolean warmedUp = new AtomicBoolean(false);
+    /** How the warm-up went, once the first listener to warm up has finished it */
+    private static volatile WarmUp.Report warmUpReport = null;
+    /** Whether this listener warms up (if none has yet): {@link warmUp} when it was made */
+    private final boolean warmsUp = warmUp;
+    /** Number of commands refused because a connection's queue was full */
+    private final LongAdder overloads = new LongAdder();
+    /** Where to send events: one for each connection that has subscribed */
+    private final Set<Consumer<Packet>> subscribers = ConcurrentHashMap.newKeySet();
+    /** Sends events to {@link subscribers} in order, off the thread that published them */
+    private final ExecutorService publisher = Executors.newSingleThreadExecutor(Thread.ofVirtual().name("opi-events").factory());
+
+    /** {@link System#nanoTime} when this class was loaded, for {@link eventTime} */
+    private static final long ORIGIN_NANOS = System.nanoTime();
+    /** The wall clock at {@link ORIGIN_NANOS}, in microseconds since the epoch */
+    private static final long ORIGIN_MICROS = ChronoUnit.MICROS.between(Instant.EPOCH, Instant.now());
+
     /**
      * Start the OPI manager with an opiMachine that is already chosen/constructed
      *
      * @since 0.2.0
      */
     public OpiListener(int port, OpiMachine machine) {
-        gsonBuilder.registerTypeAdapter(Packet.class, new PacketSerializer());
-        gsonBuilder.registerTypeAdapter(Packet.class, new PacketDeserializer());
-        gson = gsonBuilder.create();  
+        this(port, null, machine, null, Mode.SINGLE);
+    }
+
+    /**
+     * Start the OPI manager with an opiMachine that is already chosen/constructed.
+     * In {@link Mode#PERSISTENT} the machine serves one connection after another
+     * until {@link closeListener} is called.
+     *
+     * @param port Port on which to listen, or 0 for one the system chooses (see {@link getPort})
+     * @param machine The OpiMachine that commands will be passed to
+     * @param mode {@link Mode#SINGLE} or {@link Mode#PERSISTENT}
+     *
+     * @throws IllegalArgumentException If mode needs a machine for each connection
+     *
+     * @since 3.0.0
+     */
+    public OpiListener(int port, OpiMachine machine, Mode mode) {
+        this(port, null, machine, null, oneMachine(mode));
+    }
+
+    /**
+     * Start the OPI manager so that every connection gets a new OpiMachine from machineFactory.
+     *
+     * @param port Port on which to listen, or 0 for one the system chooses (see {@link getPort})
+     * @param machineFactory Called once per accepted connection to create the OpiMachine for it
+     * @param mode How connections are served
+     *
+     * @since 3.0.0
+     */
+    public OpiListener(int port, Supplier<OpiMachine> machineFactory, Mode mode) {
+        this(port, null, null, machineFactory, mode);
+    }
 
+    /**
+     * As {@link OpiListener(int, OpiMachine, Mode)} but listening on a Unix domain socket for clients on this computer.
+     *
+     * @param unixPath Path of the socket. Any file already there is replaced, and it is deleted when the listener stops.
+     * @param machine The OpiMachine that commands will be passed to
+     * @param mode {@link Mode#SINGLE} or {@link Mode#PERSISTENT}
+     *
+     * @throws IllegalArgumentException If mode needs a machine for each connection
+     *
+     * @since 3.0.0
+     */
+    public OpiListener(Path unixPath, OpiMachine machine, Mode mode) {
+        this(0, unixPath, machine, null, oneMachine(mode));
+    }
+
+    /**
+     * As {@link OpiListener(int, Supplier, Mode)} but listening on a Unix domain socket for clients on this computer.
+     *
+     * @param unixPath Path of the socket. Any file already there is replaced, and it is deleted when the listener stops.
+     * @param machineFactory Called once per accepted connection to create the OpiMachine for it
+     * @param mode How connections are served
+     *
+     * @since 3.0.0
+     */
+    public OpiListener(Path unixPath, Supplier<OpiMachine> machineFactory, Mode mode) {
+        this(0, unixPath, null, machineFactory, mode);
+    }
+
+    /** Check mode serves all connections with one machine */
+    private static Mode oneMachine(Mode mode) {
+        if (mode != Mode.SINGLE && mode != Mode.PERSISTENT)
+            throw new IllegalArgumentException(mode + " needs a machine factory, not a machine");
+        return mode;
+    }
+
+    /** @throws RuntimeException If the server socket cannot be opened */
+    private OpiListener(int port, Path unixPath, OpiMachine machine, Supplier<OpiMachine> machineFactory, Mode mode) {
         this.machine = machine; 
+        this.machineFactory = machineFactory;
+        this.mode = mode;
         this.port = port; 
+        this.unixPath = unixPath;
         this.address = obtainPublicAddress(); // run on localhost
         this.connected = false; // true when connection established
+        this.listening = true;  // until closeListener()
+        try {
+            openServer();   // so a client can connect as soon as this returns
+        } catch (IOException e) {
+            publisher.shutdown();
+            throw new RuntimeException(LISTENER_FAILED, e);
+        }
         this.start(); // kick off this thread
     }
   
@@ -124,86 +476,703 @@ public class OpiListener extends Thread {
      * @since 0.1.0
      */
       public Packet process(String jsonStr) {
-              // Parse JSON to hashmap with pairs of name:values
-          HashMap<String, Object> pairs;
+          return process(jsonStr, this.machine);
+      }
+
+    /**
+     * Process incoming Json commands using the given machine.
+     *
+     * @param jsonStr A JSON object that at least contains the name 'command'.
+     * @param machine The OpiMachine that will process the command
+     * 
+     * @return Packet with JSON string inside
+     * 
+     * @since 3.0.0
+     */
+      public Packet process(String jsonStr, OpiMachine machine) {
+          OpiCommand command;
           try {
-              pairs = jsonToPairs(jsonStr);
+              command = OpiCommand.decode(jsonStr);
           }  catch (JsonSyntaxException e) {
-              return Packet.error("Cannot get hashmap of pairs from JSON in process()", e);
+              return Packet.error(BAD_JSON, e);
           }
-   
-              // Get command
-          if (!pairs.containsKey("command")) // needs a command
+          return process(command, machine);
+      }
+
+    /**
+     * Process a decoded command using the given machine,
+     * echoing any id from the command in the returned Packet (see {@link withTransport}).
+     * Subclasses that do not use an OpiMachine override this.
+     *
+     * @param command The decoded command, which should contain the name 'command'.
+     * @param machine The OpiMachine that will process the command
+     * 
+     * @return Packet with JSON string inside
+     * 
+     * @since 3.0.0
+     */
+      public Packet process(OpiCommand command, OpiMachine machine) {
+          return withTransport(command, (c) -> processCommand(c, machine));
+      }
+
+      private Packet processCommand(OpiCommand command, OpiMachine machine) {
+          if (!command.pairs().containsKey("command")) // needs a command
               return Packet.error(NO_COMMAND_FIELD);
-          String cmd;
-          try {
-              cmd = (String) pairs.get("command");
-          } catch (ClassCastException e) {
-              return Packet.error(BAD_COMMAND_FIELD);
-          }
-   
-              // Check it is a valid command
-          if (!Stream.of(Command.values()).anyMatch((e) -> e.name().equalsIgnoreCase(cmd)))
+          if (command.command() == null)  // not a string, or not one of Command
               return Packet.error(BAD_COMMAND_FIELD);
    
           if (machine != null)
-              return this.machine.processPairs(pairs);
+              return machine.processPairs(command.command(), command.pairs());
           else
               return Packet.error(NO_OPI_MACHINE);
       }
 
+    /**
+     * Process command with machine, either on this thread or,
+     * if {@link dispatchPipelined} allows, on a new one.
+     *
+     * @param command A decoded command from the client
+     * @param machine The OpiMachine that will process the command
+     * @param reply Where to send the Packet if the command is run on a new thread
+     *
+     * @return The Packet answering the command, or null if it has been handed to a new thread
+     *
+     * @since 3.0.0
+     */
+    Packet handle(OpiCommand command, OpiMachine machine, Consumer<Packet> reply) {
+        if (dispatchPipelined(command, machine, reply))
+            return null;
+        return process(command, machine);
+    }
+
+    /**
+     * Decode a message from a client.
+     *
+     * @param message A message from the client (without its framing)
+     * @param encoding How message is encoded
+     *
+     * @return The command
+     *
+     * @throws JsonSyntaxException If message cannot be decoded
+     */
+    static OpiCommand decode(byte[] message, Encoding encoding) throws JsonSyntaxException {
+        if (encoding == Encoding.BINARY)
+            return BinaryCodec.decodeCommand(message);
+        return OpiCommand.decode(new String(message, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * The reply to a command that a connection's queue has no room for:
+     * an error Packet with the command's id and a retry-after hint.
+     *
+     * @param id The id of the command (null for none)
+     * @param queue The connection's (full) queue
+     *
+     * @return The Packet to send
+     *
+     * @since 3.0.0
+     */
+    Packet overload(String id, CommandQueue queue) {
+        overloads.increment();
+        return queue.overload(id);
+    }
+
+    /**
+     * Start or stop pushing events to a connection: stop if the command has "events": false, else start.
+     *
+     * @param command The subscribe command
+     * @param sink Sends a Packet on the connection (the same object each time for one connection)
+     *
+     * @return The Packet answering the command
+     *
+     * @since 3.0.0
+     */
+    Packet subscribe(OpiCommand command, Consumer<Packet> sink) {
+        boolean on = !Boolean.FALSE.equals(command.pairs().get(EVENTS));
+        if (on)
+            subscribers.add(sink);
+        else
+            subscribers.remove(sink);
+        return new Packet(on ? SUBSCRIBED : UNSUBSCRIBED).setId(command.id());
+    }
+
+    /** Stop pushing events to a connection that has gone away */
+    void unsubscribe(Consumer<Packet> sink) { subscribers.remove(sink); }
+
+    /**
+     * @return true if any connection has subscribed to events
+     *
+     * @since 3.0.0
+     */
+    public boolean hasSubscribers() { return !subscribers.isEmpty(); }
+
+    /**
+     * Push an event (see {@link Packet#event}) to every connection that has subscribed.
+     * Returns at once: the event is sent from another thread, after any events published before it,
+     * so it is safe to call from a thread that must not block (eg the psychoEngine's).
+     * The event is settled (see {@link Packet#settle}) before this returns.
+     *
+     * @param event The event
+     *
+     * @since 3.0.0
+     */
+    protected void publish(Packet event) {
+        if (subscribers.isEmpty())
+            return;
+        Packet settled = event.settle();
+        try {
+            publisher.execute(() -> {
+                for (Consumer<Packet> sink : subscribers)
+                    sink.accept(settled);
+            });
+        } catch (RejectedExecutionException ignored) { ; }  // the listener has closed since subscribers was looked at
+    }
+
+    /**
+     * A timestamp for an event: microseconds since the epoch, but from a monotonic clock with
+     * the resolution of {@link System#nanoTime}. Microseconds keep it exact as a double (eg in R).
+     *
+     * @return The time now
+     *
+     * @since 3.0.0
+     */
+    public static long eventTime() {
+        return ORIGIN_MICROS + (System.nanoTime() - ORIGIN_NANOS) / 1000;
+    }
+
+    /** A new queue for a connection, of the capacity set with {@link setQueueCapacity} */
+    CommandQueue newQueue() { return new CommandQueue(queueCapacity); }
+
+    /**
+     * If machine is pipelined and command carries an id (and is not a close, or a framing, encoding or ring request),
+     * process it on a new virtual thread and hand the result to reply.
+     * Otherwise do nothing so that the caller processes the message in order.
+     *
+     * @param command The decoded command
+     * @param machine The OpiMachine that will process the command
+     * @param reply Where to send the Packet answering the command (called on the new thread)
+     *
+     * @return true if the command has been dispatched, false if the caller should process it
+     *
+     * @since 3.0.0
+     */
+    boolean dispatchPipelined(OpiCommand command, OpiMachine machine, Consumer<Packet> reply) {
+        if (machine == null || !machine.isPipelined())
+            return false;
+        if (command.id() == null || command.framing() != null || command.encoding() != null || command.command() == Command.CLOSE
+         || command.pairs().containsKey(RING))
+            return false;
+
+        Thread.ofVirtual().start(() -> reply.accept(process(command, machine)));
+        return true;
+    }
 
     /** 
-     * Run a socket server that only accepts one connection and then dies.
+     * Run a socket server that, in {@link Mode#SINGLE}, only accepts one connection and then dies.
      * Applies process() to every incoming message, sending the result back on the same connection.
      * 
      * Will run forever until process() returns a Packet with close == true.
+     * In {@link Mode#PERSISTENT} it then accepts the next connection, until {@link closeListener} is called.
+     * The other modes serve many connections at once (see {@link Mode}).
      *
      * Runs in its own thread */
     @Override
     public void run() {
-        Socket socket;
         try {
-            server = new ServerSocket(this.port); //, 0, this.address);
-            socket = server.accept();
-            this.connected = true;
-            incoming = new BufferedReader(new InputStreamReader(socket.getInputStream(), CHARSET_NAME));
-            outgoing = new PrintWriter(socket.getOutputStream());
-            String inputLine;
-            while (this.connected && (inputLine = incoming.readLine()) != null) {
-                    Packet pack = process(inputLine);
-                    send(gson.toJson(pack));
-                    if (pack.getClose()) break; // if close requested, break loop
+            switch (mode) {
+                case SINGLE, PERSISTENT -> runSingle();
+                case MULTIPLEX -> runMultiplex();
+                case VIRTUAL -> runVirtual();
             }
+        } finally {
+            if (unixPath != null)
+                try { Files.deleteIfExists(unixPath); } catch (IOException ignored) { ; }
+        }
+    }
+
+    /**
+     * Open {@link server}: on {@link port}, or at {@link unixPath} if there is one.
+     * It is a ServerSocketChannel in {@link Mode#MULTIPLEX} or for {@link unixPath}, else a ServerSocket.
+     * If {@link port} is 0 it becomes the port the system chose.
+     *
+     * @throws IOException If the socket cannot be opened
+     */
+    private void openServer() throws IOException {
+        int backlog = mode == Mode.SINGLE || mode == Mode.PERSISTENT ? 0 : BACKLOG;   // 0 for the OS default
+        if (unixPath == null && mode != Mode.MULTIPLEX) {
+            ServerSocket socket = new ServerSocket(this.port, backlog);
+            this.port = socket.getLocalPort();
+            server = socket;
+            return;
+        }
+        if (unixPath == null) {
+            ServerSocketChannel channel = ServerSocketChannel.open();
+            channel.bind(new InetSocketAddress(this.port), backlog);
+            this.port = ((InetSocketAddress) channel.getLocalAddress()).getPort();
+            server = channel;
+            return;
+        }
+        Files.deleteIfExists(unixPath);   // left behind by a listener that did not stop cleanly
+        ServerSocketChannel channel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        channel.bind(UnixDomainSocketAddress.of(unixPath), backlog);
+        server = channel;
+    }
+
+    /**
+     * Run a {@link WarmUp}, if it is on and no listener in this JVM has yet, keeping its report for {@link getWarmUpReport}.
+     * A warm-up that fails (or has errors) is reported on System.err, as real messages would likely fail the same way,
+     * but the listener still serves clients.
+     */
+    private void warmUp() {
+        if (!warmsUp || !warmedUp.compareAndSet(false, true))
+            return;
+        try {
+            warmUpReport = WarmUp.run(WarmUp.ROUNDS, this::warmUp);
+            if (warmUpReport.errors() > 0)
+                System.err.println(warmUpReport);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Called during the {@link WarmUp} with the validated pairs of each synthetic setup and present,
+     * so that a listener that does more with a command than pass it to an OpiMachine can warm that up too.
+     * It must not act on the pairs (eg show anything).
+     *
+     * @param command SETUP or PRESENT
+     * @param pairs The validated name:value pairs, as a machine would be given them
+     *
+     * @since 3.0.0
+     */
+    protected void warmUp(Command command, HashMap<String, Object> pairs) { ; }
+
+    /** Wait for the next client to connect to {@link server}, returning a Socket or (for {@link unixPath}) a SocketChannel */
+    private Closeable nextConnection() throws IOException {
+        if (server instanceof ServerSocket s)
+            return s.accept();
+        return ((ServerSocketChannel) server).accept();
+    }
+
+    /** Both directions of a connection from {@link nextConnection} */
+    private static FrameStream frameStream(Closeable connection) throws IOException {
+        if (connection instanceof Socket socket)
+            return new FrameStream(socket.getInputStream(), socket.getOutputStream());
+        SocketChannel channel = (SocketChannel) connection;
+        return new FrameStream(Channels.newInputStream(channel), Channels.newOutputStream(channel));
+    }
+
+    /** Where a connection (Socket or SocketChannel) comes from, for messages */
+    static String remoteAddress(Closeable connection) {
+        try {
+            if (connection instanceof Socket socket)
+                return String.valueOf(socket.getRemoteSocketAddress());
+            if (connection instanceof SocketChannel channel)
+                return String.valueOf(channel.getRemoteAddress());
+        } catch (IOException ignored) { ; }
+        return String.valueOf(connection);
+    }
+
+    /**
+     * Serve one connection at a time on this thread with {@link machine}:
+     * exactly one in {@link Mode#SINGLE}, or one after another until {@link closeListener} in {@link Mode#PERSISTENT}.
+     */
+    private void runSingle() {
+        try {
+            warmUp();
+            do {
+                Closeable socket = nextConnection();
+                this.connected = true;
+                sockets.add(socket);
+                try (socket) {
+                    serveSingle(socket);
+                } catch (IOException e) {
+                    if (mode == Mode.SINGLE)
+                        throw e;
+                    // else the client has gone away, so wait for the next one
+                } finally {
+                    sockets.remove(socket);
+                }
+            } while (mode == Mode.PERSISTENT && listening);
             server.close();
-        } catch (SocketException ignored) {
+        } catch (SocketException | ClosedChannelException ignored) {
           ;
         } catch (IOException e) {
           throw new RuntimeException(LISTENER_FAILED, e);
+        } finally {
+            this.connected = false;
         }
     }
+
+    /**
+     * Apply process() to every message on socket, sending the result back, 
+     * until the client goes away or a Packet with close == true is sent.
+     *
+     * @param socket Connection to the client (a Socket or a SocketChannel)
+     *
+     * @throws IOException If socket cannot be read or written
+     */
+    private void serveSingle(Closeable socket) throws IOException {
+        stream = frameStream(socket);
+        serve(stream, machine, () -> this.connected || mode == Mode.PERSISTENT);
+    }
   
     /**
+     * Accept connections on this thread and serve each one on a new virtual thread
+     * until {@link closeListener} is called.
+     */
+    private void runVirtual() {
+        Thread.Builder builder = Thread.ofVirtual().name("opi-session-", 0);
+        try {
+            warmUp();
+            while (listening) {
+                Closeable socket = nextConnection();
+                sockets.add(socket);
+                this.connected = true;
+                builder.start(() -> serve(socket));
+            }
+        } catch (SocketException | ClosedChannelException ignored) {
+          ;
+        } catch (IOException e) {
+          throw new RuntimeException(LISTENER_FAILED, e);
+        } finally {
+            for (Closeable s : sockets)
+                try { s.close(); } catch (IOException ignored) { ; }
+        }
+    }
+
+    /**
+     * Create an OpiMachine for the connection and then apply process() with it to every message 
+     * on socket, sending the result back, until the client goes away or a Packet with close == true is sent.
+     * Runs on the session's own (virtual) thread.
+     *
+     * @param socket Connection to the client (a Socket or a SocketChannel)
+     */
+    private void serve(Closeable socket) {
+        try (socket) {
+            OpiMachine machine;
+            try {
+                machine = machineFactory.get();
+            } catch (RuntimeException e) {
+                System.out.println(String.format(CANNOT_CREATE_MACHINE, remoteAddress(socket)));
+                e.printStackTrace();
+                return;
+            }
+
+            serve(frameStream(socket), machine, () -> listening);
+        } catch (IOException ignored) {
+          ;   // client has gone away
+        } finally {
+            sockets.remove(socket);
+            this.connected = !sockets.isEmpty();
+        }
+    }
+
+    /**
+     * Apply process() with machine to every message on s, sending the result back,
+     * until the client goes away, open is false when a message is due, or a Packet with close == true is sent.
+     *
+     * Commands are admitted to a {@link CommandQueue} first, and refused with an overload if it is full.
+     * A cancel or subscribe is processed as soon as it is read. A present that is not pipelined runs on its own
+     * thread so that a cancel can be read while it runs, and the next command waits for it.
+     * If the client goes away (or open turns false) while that present runs, it is cancelled and waited for
+     * before returning, so that it cannot overlap the next client's commands.
+     *
+     * @param s Connection to the client
+     * @param machine The OpiMachine that commands will be passed to
+     * @param open Whether to keep reading
+     *
+     * @throws IOException If s cannot be read or written
+     */
+    private void serve(FrameStream s, OpiMachine machine, BooleanSupplier open) throws IOException {
+        CommandQueue queue = newQueue();
+        Consumer<Packet> events = (p) -> {
+            try { s.write(p); } catch (IOException ignored) { ; }
+        };
+        Thread present = null;
+        SharedMemoryLink link = null;
+        byte[] message;
+        try {
+            while (open.getAsBoolean() && (message = s.read()) != null) {
+                OpiCommand command;
+                try {
+                    command = decode(message, s.getEncoding());
+                }  catch (JsonSyntaxException e) {
+                    await(present);
+                    s.write(Packet.error(BAD_JSON, e));
+                    continue;
+                }
+                if (command.command() == Command.CANCEL) {
+                    s.write(process(command, machine));
+                    continue;
+                }
+                if (command.command() == Command.SUBSCRIBE) {
+                    s.write(subscribe(command, events));
+                    continue;
+                }
+                await(present);
+                present = null;
+
+                if (!queue.admit()) {
+                    s.write(overload(command.id(), queue));
+                    continue;
+                }
+                long started = System.nanoTime();
+                Consumer<Packet> reply = (p) -> {
+                    queue.done(started);
+                    try { s.write(p); } catch (IOException ignored) { ; }
+                };
+                if (dispatchPipelined(command, machine, reply))
+                    continue;
+                if (command.command() == Command.PRESENT) {
+                    present = Thread.ofVirtual().start(() -> reply.accept(process(command, machine)));
+                    continue;
+                }
+                Packet pack = process(command, machine);
+                queue.done(started);
+                SharedMemoryLink agreed = link == null ? attach(command, pack) : null;
+                reply(s, pack);
+                if (agreed != null) {
+                    link = agreed;
+                    link.closeWhenEnded(s.switchTo(link.getInputStream(), link.getOutputStream()));
+                }
+                if (pack.getClose()) break; // if close requested, break loop
+            }
+        } finally {
+                // the client has gone, so stop its present before the next client is served
+            if (present != null && present.isAlive())
+                process(OpiCommand.decode("{\"command\":\"cancel\"}"), machine);
+            await(present);
+            unsubscribe(events);
+            if (link != null)
+                link.close();
+        }
+    }
+
+    /**
+     * Attach to the shared memory link offered in a successful initialize, if there is one, and record it in pack.
+     *
+     * @param command The command that was processed
+     * @param pack The reply to it
+     *
+     * @return The link, or null if none was offered or it cannot be attached (the connection stays as it is)
+     */
+    private static SharedMemoryLink attach(OpiCommand command, Packet pack) {
+        if (pack.getError() || command.command() != Command.INITIALIZE || !(command.pairs().get(RING) instanceof String path))
+            return null;
+        try {
+            SharedMemoryLink link = SharedMemoryLink.attach(Path.of(path), Long.parseLong(String.valueOf(command.pairs().get(RING_TOKEN))));
+            pack.setRing(path);
+            return link;
+        } catch (IOException | RuntimeException e) {
+            return null;   // eg the client is on another computer
+        }
+    }
+
+    /** Wait for a present running on its own thread (if any) to finish */
+    private static void await(Thread present) {
+        if (present == null)
+            return;
+        try {
+            present.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Send pack on s in the current framing and encoding, and then switch s to any framing and encoding agreed in pack.
+     *
+     * @param s The connection
+     * @param pack The reply to a command
+     *
+     * @throws IOException If s cannot be written
+     */
+    private static void reply(FrameStream s, Packet pack) throws IOException {
+        s.write(pack);
+        if (pack.getFraming() != null)
+            s.setFraming(pack.getFraming());
+        if (pack.getEncoding() != null)
+            s.setEncoding(pack.getEncoding());
+    }
+
+    /**
+     * Serve any number of connections from one Selector.
+     * Accepting and all socket reads and writes happen on this thread;
+     * commands are run on {@link workers} (see {@link OpiSession}).
+     */
+    private void runMultiplex() {
+        workers = Executors.newCachedThreadPool();
+        try (ServerSocketChannel serverChannel = (ServerSocketChannel) server) {
+            selector = Selector.open();
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            warmUp();
+
+            while (listening) {
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid())
+                        continue;
+                    if (key.isAcceptable()) {
+                        accept(serverChannel.accept());
+                        continue;
+                    }
+                    OpiSession session = (OpiSession) key.attachment();
+                    try {
+                        if (key.isReadable())
+                            session.onReadable();
+                        if (key.isValid() && key.isWritable())
+                            session.onWritable();
+                    } catch (IOException e) {
+                        session.close();    // lost this client, but keep serving the others
+                    }
+                }
+            }
+        } catch (ClosedSelectorException ignored) {
+          ;
+        } catch (IOException e) {
+          throw new RuntimeException(LISTENER_FAILED, e);
+        } finally {
+            for (OpiSession s : sessions)
+                s.close();
+            workers.shutdownNow();
+            try {
+                if (selector != null)
+                    selector.close();
+            } catch (IOException ignored) { ; }
+        }
+    }
+
+    /**
+     * Register a newly accepted connection with the selector.
+     * Its OpiMachine is created by the session on a worker thread so that accepting stays fast.
+     *
+     * @param channel The new connection (null if the accept was spurious)
+     *
+     * @throws IOException If the channel cannot be registered
+     */
+    private void accept(SocketChannel channel) throws IOException {
+        if (channel == null)
+            return;
+
+        channel.configureBlocking(false);
+        OpiSession session = new OpiSession(this, channel, machineFactory);
+        session.setKey(channel.register(selector, SelectionKey.OP_READ, session));
+        sessions.add(session);
+        this.connected = true;
+    }
+
+    /** Run a task on the worker threads */
+    void execute(Runnable task) { workers.execute(task); }
+
+    /** Forget a session that has been closed */
+    void removeSession(OpiSession session) {
+        sessions.remove(session);
+        this.connected = !sessions.isEmpty();
+    }
+
+    /**
+     * Get the number of connected sessions.
+     *
+     * @return number of sessions
+     *
+     * @since 3.0.0
+     */
+    public int getSessionCount() { return sessions.size() + sockets.size(); }
+
+    /**
+     * Set how many commands each new connection may have waiting and running at once
+     * before further commands are refused with a retry-after hint (see {@link CommandQueue}).
+     *
+     * @param capacity Capacity of the queue of each connection accepted from now on
      *
-     * Send message.
-     * Strip any internal newlines as \n terminates a message.
+     * @throws IllegalArgumentException If capacity is less than 1
+     *
+     * @since 3.0.0
+     */
+    public void setQueueCapacity(int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("Queue capacity must be at least 1, not " + capacity);
+        this.queueCapacity = capacity;
+    }
+
+    /**
+     * Turn the {@link WarmUp} before the first client is accepted on or off for listeners made from now on.
+     * It is on by default (unless the system property opi.warmUp is false), and runs once per JVM.
+     *
+     * @param on Whether to warm up
+     *
+     * @since 3.0.0
+     */
+    public static void setWarmUp(boolean on) {
+        warmUp = on;
+    }
+
+    /**
+     * Get how the {@link WarmUp} went
+     *
+     * @return Its report, or null if no listener in this JVM has finished one
+     *
+     * @since 3.0.0
+     */
+    public static WarmUp.Report getWarmUpReport() { return warmUpReport; }
+
+    /**
+     * Get the number of commands that have been refused because their connection's queue was full.
+     *
+     * @return number of overload replies sent
+     *
+     * @since 3.0.0
+     */
+    public long getOverloadCount() { return overloads.sum(); }
+
+    /**
+     *
+     * Send message in the connection's current {@link Framing}.
+     * For LINE, strip any internal newlines as \n terminates a message.
      *
      * @param message  The message to deliver
      *
      * @since 0.0.1
      */
     public void send(String message) {
-      outgoing.write(message.replace("\n", "") + "\n");
-      outgoing.flush();
+      try {
+        stream.write(message);
+      } catch (IOException ignored) { ; } // client has gone away
     }
   
     /**
-     * Signal stop listening and wait
+     * Signal stop listening and wait. Events are no longer pushed to subscribers,
+     * and the thread that pushed them stops once it has sent those already published.
      *
      * @since 0.0.1
      */
     public void closeListener() {
-      if (this.connected) {
+      subscribers.clear();
+      publisher.shutdown();
+      if (mode == Mode.MULTIPLEX) {
+        listening = false;
+        if (selector != null)
+          selector.wakeup();
+      } else if (mode == Mode.VIRTUAL) {
+        listening = false;
+        try {
+          if (server != null)
+            server.close();   // stops accept(), run() then closes the sessions
+        } catch (IOException ignored) { ; }
+      } else if (mode == Mode.PERSISTENT) {
+        listening = false;
+        try {
+          if (server != null)
+            server.close();   // stops accept()
+        } catch (IOException ignored) { ; }
+        for (Closeable s : sockets)
+          try { s.close(); } catch (IOException ignored) { ; }   // ends the current session, if any
+      } else if (this.connected) {
         this.connected = false;  // should trigger close after loop finishes
       } else {
           // server is just waiting to accept a connection, better kill it
@@ -222,6 +1191,8 @@ public class OpiListener extends Thread {
     }
   
     public String toString() {
+      if (unixPath != null)
+        return "OpiListener server listening at " + unixPath;
       return "OpiListener server listening at " + getIP() + ":" + getPort();
     }
   
@@ -244,13 +1215,22 @@ public class OpiListener extends Thread {
     public String getIP() { return address.getHostAddress(); }
   
     /**
-     * Get local port
+     * Get local port. The socket is bound before the constructor returns, so this is where a client can connect.
      *
-     * @return the local port
+     * @return the local port (the one the system chose if the listener was given 0)
      *
      * @since 0.0.1
      */
     public int getPort() { return port; }
+
+    /**
+     * Get the path of the Unix domain socket listened on
+     *
+     * @return the path, or null if listening on {@link getPort}
+     *
+     * @since 3.0.0
+     */
+    public Path getUnixPath() { return unixPath; }
   
     /** get network address for public access */
     public static InetAddress obtainPublicAddress() {
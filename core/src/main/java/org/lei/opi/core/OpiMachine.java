@@ -4,36 +4,62 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.DataInputStream;
-import java.io.PrintWriter;
+import java.io.InterruptedIOException;
+import java.io.StringWriter;
+import java.io.DataOutputStream;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.UnresolvedAddressException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Optional;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 import java.util.function.Consumer;
 
 import java.lang.annotation.Annotation;
 
 import org.lei.opi.core.OpiListener.Command;
+import org.lei.opi.core.OpiListener.Encoding;
+import org.lei.opi.core.OpiListener.Framing;
 import org.lei.opi.core.definitions.Packet;
 import org.lei.opi.core.definitions.Parameter;
+import org.lei.opi.core.definitions.ReturnFields;
 import org.lei.opi.core.definitions.ReturnMsg;
 import org.lei.opi.core.definitions.VFCanvas;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
-import com.google.gson.JsonSyntaxException;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonWriter;
 import java.lang.reflect.Type;
 
 import javafx.scene.Scene;
@@ -103,6 +129,10 @@ public abstract class OpiMachine {
     static final String COULD_NOT_PRESENT = "Could not present on the Machine";
     /** {@value COULD_NOT_PRESENT} */
     static final String COULD_NOT_CLOSE = "Could not close the Machine";
+    /** {@value COULD_NOT_CANCEL} */
+    static final String COULD_NOT_CANCEL = "Could not cancel the present on the Machine";
+    /** {@value CANNOT_CANCEL} */
+    static final String CANNOT_CANCEL = "%s cannot cancel a present part way through.";
     /** {@value COULD_NOT_DISCONNECT} */
     static final String COULD_NOT_DISCONNECT = "Could not disconnect from Machine";
     /** {@value OPI_SETUP_FAILED} */
@@ -113,6 +143,8 @@ public abstract class OpiMachine {
     static final String CONNECTED_TO_HOST = "Connected to host at %s:%s";
     /** {@value DISCONNECTED_FROM_HOST} */
     static final String DISCONNECTED_FROM_HOST = "Disconnected from Machine";
+    /** {@value UNMATCHED_REPLY} */
+    static final String UNMATCHED_REPLY = "Dropping a reply from the Machine with id %s as no request is waiting for it.";
   
     /** {@value SETTINGS_FILE} located in System.getProperty("user.dir") */
     static final String SETTINGS_FILE = "opi_settings.json";
@@ -123,7 +155,7 @@ public abstract class OpiMachine {
     /** {@value GUI_MACHINE_NAME} */
     public static final String GUI_MACHINE_NAME = "this";
   
-    private static Gson gson = new Gson();
+    static Gson gson = new Gson();
 
     /** Scene to which we will return when this object is junked */
     protected Scene parentScene;  // return here when btnClose is clicked on our GUI
@@ -139,8 +171,26 @@ public abstract class OpiMachine {
 
     /** Connection to the real machine */
     protected Socket socket;
-    protected DataInputStream incoming;
-    protected PrintWriter outgoing;
+    /** Connection to the real machine if it is over a Unix domain socket (see {@link connect(Path)}), else null */
+    protected SocketChannel channel;
+    /** Shared memory link to the real machine offered in initialize (see {@link offerSharedMemory}), else null */
+    protected SharedMemoryLink ring;
+    /** Replies from the real machine, read off {@link socket}, {@link channel} or {@link ring} */
+    protected volatile FrameReader incoming;
+    protected volatile DataOutputStream outgoing;
+    /** Held while writing to {@link outgoing} */
+    private final Object sendLock = new Object();
+    /** How messages to and from the real machine are delimited. Changed by a reply that carries a framing. */
+    protected volatile Framing framing = Framing.LINE;
+    /** How messages to and from the real machine are encoded. Changed by a reply that carries an encoding. */
+    protected volatile Encoding encoding = Encoding.JSON;
+
+    /** Requests sent by {@link request} still waiting for a reply, keyed by id in the order they were sent */
+    private final LinkedHashMap<String, CompletableFuture<Packet>> inFlight = new LinkedHashMap<String, CompletableFuture<Packet>>();
+    /** Source of ids for {@link request} */
+    private final AtomicLong nextId = new AtomicLong(0);
+    /** Thread reading replies for {@link request} off the socket (null until the first request) */
+    private Thread replyReader = null;
 
     /** 
      * The beginnings of machine specific settings. 
@@ -230,10 +280,121 @@ public abstract class OpiMachine {
      * 
      * @param method An invokable method for one of the 5 OPI commands
      * @param parameters The @Parameter notations for that method (including all superclasses)
+     * @param returnMsgs The @ReturnMsg notations for that method (including all superclasses)
+     * @param returnFields The names of returnMsgs, for checking replies (see {@link Packet#checkReturnElements})
      */
-    public record MethodData(Method method, HashSet<Parameter> parameters, HashSet<ReturnMsg> returnMsgs) {};
-        /** The methods of the OpiMachine */
+    public record MethodData(Method method, HashSet<Parameter> parameters, HashSet<ReturnMsg> returnMsgs, ReturnFields returnFields) {
+        public MethodData(Method method, HashSet<Parameter> parameters, HashSet<ReturnMsg> returnMsgs) {
+            this(method, parameters, returnMsgs, new ReturnFields(returnMsgs));
+        }
+    };
+        /** The methods of the OpiMachine, shared with every machine of its class: replace an entry rather than change its sets */
     public HashMap<String, MethodData> opiMethods;
+        /** The parameters of each of {@link opiMethods} compiled for {@link checkArgs} (see {@link compileValidators}) */
+    private Map<String, ParameterValidator[]> validators;
+
+    /**
+     * How {@link processPairs} calls one of {@link opiMethods}.
+     *
+     * @param funcName The name of the method (and of its command)
+     * @param call The method as a function of the machine and the pairs, or null if it cannot be called that way
+     */
+    private record Dispatch(String funcName, BiFunction<OpiMachine, HashMap<String, Object>, Packet> call) {}
+
+        /** Each {@link Command} by the name of its method */
+    private static final HashMap<String, Command> COMMANDS = new HashMap<String, Command>();
+    static {
+        for (Command c : Command.values())
+            COMMANDS.put(c.name().toLowerCase(Locale.ROOT), c);
+    }
+        /** The methods of {@link opiMethods} by command, from the {@link Metadata} of the class */
+    private final EnumMap<Command, Dispatch> dispatch;
+
+    /**
+     * What the constructor would otherwise work out by reflection for every machine,
+     * worked out once for each class of machine and shared by all its machines (see {@link metadata}).
+     *
+     * @param opiMethods The OPI methods of the class with their annotations, including those of its superclasses
+     * @param dispatch The functions for the methods by command
+     * @param enums The constants of the enums used by the @Parameter annotations of the methods
+     * @param validators The @Parameter annotations of each method compiled for {@link checkArgs}
+     * @param connecting The (Scene, boolean) constructor, that also connects to the machine, or null if the class has none
+     *
+     * @since 3.0.0
+     */
+    record Metadata(Map<String, MethodData> opiMethods, EnumMap<Command, Dispatch> dispatch,
+                    Map<String, Map<String, Enum<?>>> enums, Map<String, ParameterValidator[]> validators,
+                    Constructor<? extends OpiMachine> connecting) {}
+
+        /** The {@link Metadata} of each class of machine, made the first time a machine of the class is */
+    private static final ClassValue<Metadata> METADATA = new ClassValue<Metadata>() {
+        @Override
+        protected Metadata computeValue(Class<?> c) {
+            return makeMetadata(c.asSubclass(OpiMachine.class));
+        }
+    };
+
+    /**
+     * @param c A class of machine
+     * @return Its {@link Metadata}, made the first time it is asked for
+     *
+     * @since 3.0.0
+     */
+    static Metadata metadata(Class<? extends OpiMachine> c) { return METADATA.get(c); }
+
+    /**
+     * @param machineName One of {@link MACHINES} (or the simple name of another machine in this package)
+     * @return The class of the machine
+     * @throws ClassNotFoundException If there is no machine of that name
+     *
+     * @since 3.0.0
+     */
+    public static Class<? extends OpiMachine> machineClass(String machineName) throws ClassNotFoundException {
+        Class<?> c = Class.forName(OpiMachine.class.getPackageName() + "." + machineName);
+        if (!OpiMachine.class.isAssignableFrom(c))
+            throw new ClassNotFoundException(machineName + " is not an OpiMachine");
+        return c.asSubclass(OpiMachine.class);
+    }
+
+    /**
+     * Make the {@link Metadata} of each of {@link MACHINES} now (eg at start-up),
+     * so that choosing one later, or making one for each session, does no reflection.
+     * Machines whose classes cannot be loaded are left to fail when they are made.
+     *
+     * @since 3.0.0
+     */
+    public static void warmMetadata() {
+        for (String machineName : MACHINES)
+            try {
+                metadata(machineClass(machineName));
+            } catch (ClassNotFoundException | LinkageError e) {
+                ;   // reported when it is chosen
+            }
+    }
+
+    /**
+     * Make a machine of the class named, connected to the real machine, with the constructor in the {@link Metadata} of the class.
+     *
+     * @param machineName One of {@link MACHINES}
+     * @param parentScene The Scene to return to when the machine is closed, or null
+     *
+     * @return The machine
+     *
+     * @throws ClassNotFoundException If there is no machine of that name
+     * @throws NoSuchMethodException If it has no (Scene, boolean) constructor
+     * @throws IllegalAccessException If the constructor cannot be called
+     * @throws InstantiationException If the class is abstract
+     * @throws InvocationTargetException If the constructor fails (eg cannot connect)
+     *
+     * @since 3.0.0
+     */
+    public static OpiMachine create(String machineName, Scene parentScene) throws ClassNotFoundException, NoSuchMethodException, IllegalAccessException, InstantiationException, InvocationTargetException {
+        Class<? extends OpiMachine> c = machineClass(machineName);
+        Constructor<? extends OpiMachine> ctor = metadata(c).connecting();
+        if (ctor == null)
+            throw new NoSuchMethodException(c.getName() + ".<init>(Scene, boolean)");
+        return ctor.newInstance(parentScene, true);
+    }
 
     /**
      * Return all @Parameter or @ReturnMsg annotations for method `method` in the 
@@ -260,11 +421,25 @@ public abstract class OpiMachine {
         return(annotations);
     }   
 
-        /** Enum class : enum values defined in the implementing class */
-    public HashMap<String, List<String>> enums; 
+        /** Enum class : the constants of the enum by their lower case names, for the enums used by the implementing class (shared by its machines, so it cannot be changed) */
+    public Map<String, Map<String, Enum<?>>> enums; 
+
+    /** The constants of each enum class by their lower case names, in the order they are declared */
+    private static final ConcurrentHashMap<Class<?>, Map<String, Enum<?>>> enumTables = new ConcurrentHashMap<Class<?>, Map<String, Enum<?>>>();
+
+    /** @return The constants of enum class e by their lower case names, made the first time any machine uses e */
+    static Map<String, Enum<?>> enumTable(Class<?> e) {
+        return enumTables.computeIfAbsent(e, c -> {
+            LinkedHashMap<String, Enum<?>> table = new LinkedHashMap<String, Enum<?>>();
+            for (Object o : c.getEnumConstants())
+                table.put(((Enum<?>) o).name().toLowerCase(Locale.ROOT), (Enum<?>) o);
+            return Collections.unmodifiableMap(table);
+        });
+    }
   
     /**
-     * Set the information about the 5 OPI methods in opiMethods
+     * Set the information about the OPI methods (one for each {@link Command}) in opiMethods
+     * from the {@link Metadata} of the class, worked out the first time a machine of the class is made.
      * 
      * @param parentScene the parent Scene to which the GUI will return when this machine is closed.
      *
@@ -276,34 +451,109 @@ public abstract class OpiMachine {
     public OpiMachine(Scene parentScene) {
         this.parentScene = parentScene;
         this.socket = null;
-      
+
+        Metadata metadata = metadata(this.getClass());
+        opiMethods = new HashMap<String, MethodData>(metadata.opiMethods());
+        dispatch = metadata.dispatch();
+        enums = metadata.enums();
+        validators = metadata.validators();
+    }
+
+    /**
+     * Work out the {@link Metadata} of a class of machine: its OPI methods (one for each {@link Command}),
+     * with their @Parameter and @ReturnMsg annotations, and all that is made from them.
+     *
+     * @param c The class of machine
+     *
+     * @return Its metadata
+     */
+    private static Metadata makeMetadata(Class<? extends OpiMachine> c) {
         // Select the OPI commands which must also be the method names in the implementing class.
-        String[] commands = Arrays.stream(OpiListener.Command.values())
-          .map(Enum::name).map(String::toLowerCase).toArray(String[]::new);
-      
-        Method[] methods = Arrays.stream(this.getClass().getMethods())
-          .filter((Method m) -> Arrays.stream(commands).anyMatch(m.getName()::equals)).toArray(Method[]::new);
+        Method[] methods = Arrays.stream(c.getMethods())
+          .filter((Method m) -> COMMANDS.containsKey(m.getName())).toArray(Method[]::new);
       
         // Get OpiMachine and machine-dependent parameters through annotations
-        opiMethods = new HashMap<String, MethodData>();
+        HashMap<String, MethodData> opiMethods = new HashMap<String, MethodData>();
+        EnumMap<Command, Dispatch> dispatch = new EnumMap<Command, Dispatch>(Command.class);
         for (Method method : methods) {
-            HashSet<Parameter> ps = (HashSet<Parameter>)getAllAnnotations(this.getClass(), method, Parameter.class);
-            HashSet<ReturnMsg> rms = (HashSet<ReturnMsg>)getAllAnnotations(this.getClass(), method, ReturnMsg.class);
+            HashSet<Parameter> ps = (HashSet<Parameter>)getAllAnnotations(c, method, Parameter.class);
+            HashSet<ReturnMsg> rms = (HashSet<ReturnMsg>)getAllAnnotations(c, method, ReturnMsg.class);
 
-            //HashSet<Parameter> params = getAllParameterAnnotations(this.getClass(), method, Parameter.getAnnotationsByType(Parameter.class));
             opiMethods.put(method.getName(), new MethodData(method, ps, rms));
+            dispatch.put(COMMANDS.get(method.getName()), new Dispatch(method.getName(), call(method)));
         }
 
-            // gather all the ENUMS used in Parameter annotations for all methods in this class
-        enums = new HashMap<String, List<String>>();    
-        HashSet<Class<?>> enumClasses = new HashSet<Class<?>>();
-        for (String methodName : opiMethods.keySet())
-            for (Parameter p : opiMethods.get(methodName).parameters())
+        Map<String, Map<String, Enum<?>>> enums = gatherEnums(opiMethods);
+        Constructor<? extends OpiMachine> connecting;
+        try {
+            connecting = c.getConstructor(Scene.class, boolean.class);
+        } catch (NoSuchMethodException e) {
+            connecting = null;
+        }
+        return new Metadata(Collections.unmodifiableMap(opiMethods), dispatch, enums,
+            Collections.unmodifiableMap(compile(opiMethods, enums)), connecting);
+    }
+
+    /**
+     * Make a function for one of the OPI methods that takes the machine and the pairs of the command,
+     * ignoring the pairs if the method has no arguments. The function is a class made by {@link LambdaMetafactory},
+     * as for a method reference, so that calling it costs no more than calling the method.
+     * A method that cannot be called that way is reported on System.err.
+     *
+     * @param method A public method of the machine
+     *
+     * @return The function, or null if method does not take (only) the pairs or return a Packet
+     */
+    @SuppressWarnings("unchecked")
+    private static BiFunction<OpiMachine, HashMap<String, Object>, Packet> call(Method method) {
+        Class<?> c = method.getDeclaringClass();
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(c, MethodHandles.lookup()); // eg a public method of a class that is not public
+            MethodHandle handle = lookup.unreflect(method);
+            if (method.getParameterCount() == 0) {
+                Function<OpiMachine, Packet> f = (Function<OpiMachine, Packet>) LambdaMetafactory.metafactory(lookup, "apply",
+                    MethodType.methodType(Function.class), MethodType.methodType(Object.class, Object.class),
+                    handle, MethodType.methodType(Packet.class, c)).getTarget().invoke();
+                return (machine, pairs) -> f.apply(machine);
+            }
+            return (BiFunction<OpiMachine, HashMap<String, Object>, Packet>) LambdaMetafactory.metafactory(lookup, "apply",
+                MethodType.methodType(BiFunction.class), MethodType.methodType(Object.class, Object.class, Object.class),
+                handle, MethodType.methodType(Packet.class, c, HashMap.class)).getTarget().invoke();
+        } catch (Throwable e) {  // eg LambdaConversionException or IllegalAccessException
+            System.err.println(String.format("%s cannot be called by processPairs", method));
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Gather the {@link enums} used by the @Parameter annotations of {@link opiMethods} and compile the annotations
+     * of each method into {@link ParameterValidator}s, so that {@link checkArgs} need not work them out again for every command.
+     * Call it again if the parameters in opiMethods are changed.
+     *
+     * @since 3.0.0
+     */
+    void compileValidators() {
+        enums = gatherEnums(opiMethods);
+        validators = compile(opiMethods, enums);
+    }
+
+    /** @return The enums used in the @Parameter annotations of all the methods, by class name (unmodifiable) */
+    private static Map<String, Map<String, Enum<?>>> gatherEnums(Map<String, MethodData> opiMethods) {
+        HashMap<String, Map<String, Enum<?>>> enums = new HashMap<String, Map<String, Enum<?>>>();
+        for (MethodData m : opiMethods.values())
+            for (Parameter p : m.parameters())
                 if (p.className().isEnum())
-                    enumClasses.add(p.className());
+                    enums.put(p.className().getName(), enumTable(p.className()));
+        return Collections.unmodifiableMap(enums);
+    }
 
-        for (Class<?> e : enumClasses)
-            enums.put(e.getName(), Stream.of(e.getEnumConstants()).map(Enum.class::cast).map(c -> c.name().toLowerCase()).toList());
+    /** @return The validators for the parameters of each method, by method name */
+    private static HashMap<String, ParameterValidator[]> compile(Map<String, MethodData> opiMethods, Map<String, Map<String, Enum<?>>> enums) {
+        HashMap<String, ParameterValidator[]> validators = new HashMap<String, ParameterValidator[]>();
+        for (String methodName : opiMethods.keySet())
+            validators.put(methodName, ParameterValidator.compile(opiMethods.get(methodName).parameters(), enums));
+        return validators;
     }
 
     /*
@@ -314,81 +564,327 @@ public abstract class OpiMachine {
      */
     public boolean connect(String ip, int port) {
         try {
-            this.socket = new Socket(ip, port);
-            this.incoming = new DataInputStream(socket.getInputStream());
-            this.outgoing = new PrintWriter(socket.getOutputStream());
+            this.channel = null;
+            this.ring = null;
+            SocketChannel tcp = SocketChannel.open(new InetSocketAddress(ip, port));
+            this.socket = tcp.socket();
+            this.incoming = new FrameReader(tcp);
+            this.outgoing = new DataOutputStream(socket.getOutputStream());
+            this.framing = Framing.LINE;
+            this.encoding = Encoding.JSON;
+        } catch (IOException | UnresolvedAddressException e) {
+            e.printStackTrace();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Establish a connection to a machine on this computer over the Unix domain socket at path
+     * (see {@link OpiListener(Path, OpiMachine, OpiListener.Mode)}). Messages are the same as over TCP.
+     *
+     * @param path Path of the socket the machine listens on
+     * @return true if successful false otherwise
+     * @since 3.0.0
+     */
+    public boolean connect(Path path) {
+        try {
+            this.socket = null;
+            this.ring = null;
+            this.channel = SocketChannel.open(UnixDomainSocketAddress.of(path));
+            this.incoming = new FrameReader(channel);
+            this.outgoing = new DataOutputStream(Channels.newOutputStream(channel));
+            this.framing = Framing.LINE;
+            this.encoding = Encoding.JSON;
         } catch (IOException e) {
-            System.out.println(e.getStackTrace());
+            e.printStackTrace();
             return false;
         }
         return true;
     }
+
+    /**
+     * Offer the real machine a {@link SharedMemoryLink} for the rest of the connection, by adding "ring" and
+     * "ringToken" to an initialize before it is sent. If the reply carries the ring both directions move to it
+     * (see {@link receive}); pass the reply to {@link settleSharedMemory} either way.
+     * Only worth it if the machine is on this computer: one elsewhere cannot attach and the connection stays as it is.
+     *
+     * @param jo The initialize command
+     * @param path Where to create the file for the link (eg in /dev/shm)
+     * @return true if the link was offered, false if it could not be created
+     * @since 3.0.0
+     */
+    protected boolean offerSharedMemory(JsonObject jo, Path path) {
+        try {
+            ring = SharedMemoryLink.create(path, SharedMemoryLink.CAPACITY);
+        } catch (IOException | RuntimeException e) {
+            ring = null;
+            return false;
+        }
+        jo.addProperty(OpiListener.RING, path.toString());
+        jo.addProperty(OpiListener.RING_TOKEN, Long.toString(ring.getToken()));
+        return true;
+    }
+
+    /**
+     * Drop the {@link SharedMemoryLink} offered with {@link offerSharedMemory} if the reply to the initialize did not take it up.
+     *
+     * @param reply The reply to the initialize
+     * @since 3.0.0
+     */
+    protected void settleSharedMemory(Packet reply) {
+        if (ring != null && reply.getRing() == null) {
+            ring.close();
+            ring = null;
+        }
+    }
+
+    /** @return true if a connection to the real machine has been made (over TCP or a Unix domain socket) */
+    protected boolean isConnected() {
+        return channel != null ? channel.isConnected() : socket != null && socket.isConnected();
+    }
+
+    /** @return true if there is no connection to the real machine, or it has been closed */
+    protected boolean isClosed() {
+        return channel != null ? !channel.isOpen() : socket == null || socket.isClosed();
+    }
       
     /**
-     * Send JSON message to socket
-     * Strip any internal \n in the string as a \n terminates the message.
+     * Send JSON message to socket in the current {@link framing} and {@link encoding}.
+     * For LINE, strip any internal \n in the string as a \n terminates the message.
      *
      * @param message The message to send
      * @throws IOException If socket cannot be accessed
      * @since 0.2.0
      */
     void send(String message) throws IOException {
-        String m = message.replace("\n", "") + "\n";
-        outgoing.write(m);
-        outgoing.flush();
+        if (encoding == Encoding.BINARY)
+            send(JsonParser.parseString(message).getAsJsonObject());
+        else
+            write(framing.encode(message));
     }
-     
+
     /**
-    * Receive Packet as a UTF-8 \n terminated JSON string from server
-    * @return The message received in a Packet
-    * @throws IOException If socket cannot be accessed
-    * @since 0.2.0
-    */
-    Packet receive() throws IOException {
-        String str = this.readline();
-        return OpiListener.gson.fromJson(str, Packet.class);
+     * Send a JSON object to socket in the current {@link framing} and {@link encoding}.
+     *
+     * @param jo The message to send
+     * @throws IOException If socket cannot be accessed
+     * @since 3.0.0
+     */
+    void send(JsonObject jo) throws IOException {
+        if (encoding == Encoding.BINARY)
+            write(framing.encode(BinaryCodec.encode(jo)));
+        else
+            write(framing.encode(jo.toString()));
     }
 
     /**
-    * Receive a UTF-8 \n terminated string from server (Not the modified UTF-8 of DataInput/Output)
+     * Send the pairs of a command, and an id, to socket in the current {@link framing} and {@link encoding}.
+     * As JSON they are written straight to the message; as binary they go through one JsonObject, as {@link BinaryCodec} needs.
+     *
+     * @param pairs The name:value pairs of the command
+     * @param id The id for the machine to put on its reply
+     * @throws IOException If socket cannot be accessed
+     * @since 3.0.0
+     */
+    void send(Map<String, Object> pairs, String id) throws IOException {
+        if (encoding == Encoding.BINARY) {
+            JsonObject jo = OpiListener.gson.toJsonTree(pairs).getAsJsonObject();
+            jo.addProperty(OpiListener.ID, id);
+            write(framing.encode(BinaryCodec.encode(jo)));
+        } else
+            write(framing.encode(toJson(pairs, id)));
+    }
+
+    /**
+     * @param pairs The name:value pairs of a command
+     * @param id The id to add to them
+     * @return The JSON of the pairs and id, written in one pass
+     * @throws IOException Not from a StringWriter
+     * @since 3.0.0
+     */
+    static String toJson(Map<String, Object> pairs, String id) throws IOException {
+        StringWriter sw = new StringWriter();
+        JsonWriter writer = OpiListener.gson.newJsonWriter(sw);
+        writer.beginObject();
+        for (Map.Entry<String, Object> e : pairs.entrySet()) {
+            writer.name(e.getKey());
+            Object v = e.getValue();
+            OpiListener.gson.toJson(v, v == null ? Object.class : v.getClass(), writer);
+        }
+        writer.name(OpiListener.ID).value(id);
+        writer.endObject();
+        return sw.toString();
+    }
+
+    private void write(byte[] frame) throws IOException {
+        synchronized (sendLock) {
+            outgoing.write(frame);
+            outgoing.flush();
+        }
+    }
+
+    /**
+     * Whether this machine can have several commands in flight at once.
+     * If true, {@link OpiListener} may call the OPI methods concurrently for commands that carry an id,
+     * so the implementation must be thread safe (eg by talking to the real machine via {@link request}).
+     *
+     * @return false unless overridden
+     * @since 3.0.0
+     */
+    public boolean isPipelined() { return false; }
+
+    /**
+     * Send a JSON object to the machine tagged with a fresh id and wait for the reply with the same id.
+     * Several threads may have requests outstanding at once; replies are matched by id, not by order.
+     * A reply without an id (from a machine that does not echo them) answers the oldest request.
+     *
+     * @param message A JSON object to send
+     * @return The reply from the machine
+     * @throws IOException If socket cannot be accessed
+     * @since 3.0.0
+     */
+    Packet request(String message) throws IOException {
+        return request(JsonParser.parseString(message).getAsJsonObject());
+    }
+
+    /**
+     * As {@link request(String)} but for a message that is already a JsonObject (to which the id is added).
+     *
+     * @param jo A JSON object to send
+     * @return The reply from the machine
+     * @throws IOException If socket cannot be accessed
+     * @since 3.0.0
+     */
+    Packet request(JsonObject jo) throws IOException {
+        return request((id) -> {
+            jo.addProperty(OpiListener.ID, id);
+            send(jo);
+        });
+    }
+
+    /**
+     * As {@link request(String)} for a command whose pairs have been checked (eg by {@link processPairs}).
+     * The pairs are serialised once, straight into the message with the id added,
+     * rather than into the msg of a Packet that is then parsed back into a JsonObject.
+     *
+     * @param pairs The name:value pairs of the command, including "command"
+     * @return The reply from the machine, as it came
+     * @throws IOException If socket cannot be accessed
+     * @since 3.0.0
+     */
+    Packet request(Map<String, Object> pairs) throws IOException {
+        return request((id) -> send(pairs, id));
+    }
+
+    /** Sends a message tagged with the id it is given */
+    private interface Tagged {
+        void send(String id) throws IOException;
+    }
+
+    private Packet request(Tagged message) throws IOException {
+        String id = Long.toString(nextId.incrementAndGet());
+
+        CompletableFuture<Packet> reply = new CompletableFuture<Packet>();
+        synchronized (inFlight) {
+            inFlight.put(id, reply);
+        }
+        startReplyReader();
+        try {
+            message.send(id);
+            return reply.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for reply " + id);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+        } finally {
+            synchronized (inFlight) {
+                inFlight.remove(id);
+            }
+        }
+    }
+
+    /**
+     * Start the thread that hands replies to waiting {@link request}s, if it is not running.
+     * When the socket fails the thread fails all outstanding requests and stops.
+     */
+    private synchronized void startReplyReader() {
+        if (replyReader != null)
+            return;
+        replyReader = Thread.ofVirtual().name("opi-replies").start(() -> {
+            try {
+                for (;;) {
+                    Packet p = receive();
+                    CompletableFuture<Packet> waiting = null;
+                    synchronized (inFlight) {
+                        if (p.getId() != null)
+                            waiting = inFlight.remove(p.getId());
+                        else if (!inFlight.isEmpty()) {
+                            Iterator<CompletableFuture<Packet>> oldest = inFlight.values().iterator();
+                            waiting = oldest.next();
+                            oldest.remove();
+                        }
+                    }
+                    if (waiting != null)
+                        waiting.complete(p);
+                    else
+                        System.out.println(String.format(UNMATCHED_REPLY, p.getId()));
+                }
+            } catch (IOException | RuntimeException e) {
+                synchronized (this) {
+                    replyReader = null;
+                }
+                synchronized (inFlight) {
+                    inFlight.values().forEach((f) -> f.completeExceptionally(e));
+                    inFlight.clear();
+                }
+            }
+        });
+    }
+     
+    /**
+    * Receive Packet from server in the current {@link framing} and {@link encoding}.
+    * If the Packet agrees a new framing, encoding or shared memory link, switch to it before the next message is read or sent.
     * @return The message received in a Packet
     * @throws IOException If socket cannot be accessed
-    * @since 3.0.0
+    * @since 0.2.0
     */
-    String readline() throws IOException {
-        byte bs[] = new byte[4];
-        StringBuffer str = new StringBuffer(128);
-        bs[0] = incoming.readByte();
-        while (bs[0] != '\n') {
-            if (bs[0] < 128)
-                str.append((char)bs[0]);
-            else if (bs[0] < 2048) {
-                bs[1] = incoming.readByte();
-                str.append(new String(Arrays.copyOfRange(bs, 0, 2), "UTF-8"));
-            } else if (bs[0] < 65535) {
-                bs[1] = incoming.readByte();
-                bs[2] = incoming.readByte();
-                str.append(new String(Arrays.copyOfRange(bs, 0, 3), "UTF-8"));
-            } else {
-                bs[1] = incoming.readByte();
-                bs[2] = incoming.readByte();
-                bs[3] = incoming.readByte();
-                str.append(new String(Arrays.copyOfRange(bs, 0, 4), "UTF-8"));
+    Packet receive() throws IOException {
+        Packet p;
+        if (encoding == Encoding.BINARY)
+            p = BinaryCodec.decodePacket(incoming.readFrame());
+        else if (framing == Framing.LENGTH)
+            p = OpiListener.gson.fromJson(new String(incoming.readFrame(), StandardCharsets.UTF_8), Packet.class);
+        else
+            p = OpiListener.gson.fromJson(incoming.readLine(), Packet.class);
+        if (p.getFraming() != null)
+            framing = p.getFraming();
+        if (p.getEncoding() != null)
+            encoding = p.getEncoding();
+        if (p.getRing() != null && ring != null)
+            synchronized (sendLock) {
+                ring.closeWhenEnded(incoming.rest());
+                incoming = incoming.handOver(ring.getInputStream());
+                outgoing = new DataOutputStream(ring.getOutputStream());
             }
-            bs[0] = incoming.readByte();
-        }
-        return(str.toString());
+        return p;
     }
-     
+
     /**
     * Close socket
     * @throws IOException If client cannot be closed
     * @since 0.2.0
     */
     void closeSocket() throws IOException {
+        if (ring != null)
+            ring.close();
         incoming.close();
         outgoing.close();
-        socket.close();
+        if (channel != null)
+            channel.close();
+        else
+            socket.close();
     }
   
     /*
@@ -421,67 +917,147 @@ public abstract class OpiMachine {
      * @since 0.0.1
      */
     public Packet processPairs(HashMap<String, Object> pairs) {
+        return processPairs(COMMANDS.get((String) pairs.get("command")), pairs);
+    }
+
+    /**
+     * Check that pairs has the right parameters for command, then call the method for it.
+     * The method is found in a table made when the machine was, and called through the function made for it by {@link call}.
+     *
+     * @param command The command, as decoded by {@link OpiCommand} (or null if it is not one)
+     * @param pairs A list of name:value pairs for the command
+     * 
+     * @return Json object like OpiManger.ok() or OpiManager.error()
+     * 
+     * @since 3.0.0
+     */
+    public Packet processPairs(Command command, HashMap<String, Object> pairs) {
         /*
          * Processing consist of the following four steps:
-         *    (1) Find the function which is the value of the JSON name "command"
+         *    (1) Find the function for the command
          *    (2) Check that the params for the function are in the JSON (via the @Parameter Annotation)
          *    (3) Then execute corresponding method
          */
 
         // (1) find the command function
-        String funcName = (String) pairs.get("command");
-        MethodData methodData = opiMethods.get(funcName);
-        if (methodData == null)
-            return Packet.error(String.format(BAD_COMMAND, funcName, this.getClass()));
+        Dispatch d = command == null ? null : dispatch.get(command);
+        if (d == null)
+            return Packet.error(String.format(BAD_COMMAND, pairs.get("command"), this.getClass()));
 
         // (2) Check and add optional-default params
-        if (methodData.parameters != null) {
-            Packet p = validateArgs(pairs, methodData.parameters(), funcName);
-            if (!p.getError())
-                pairs = (HashMap<String, Object>)gson.fromJson(p.getMsg(), new TypeToken<HashMap<String, Object>>() {}.getType());
-            else    
+        MethodData methodData = opiMethods.get(d.funcName());
+        if (methodData != null && methodData.parameters() != null) {
+            Packet p = checkArgs(pairs, methodData.parameters(), d.funcName());
+            if (p != null)
                 return(p);
         }
 
         // (3) execute method
+        if (d.call() == null)
+            return Packet.error(String.format(INVOCATION_FAILED, d.funcName(), this.getClass()));
+        Checked outer = CHECKED.get();     // the method may call processPairs (eg of a machine it passes the command on to)
+        CHECKED.set(new Checked(pairs, d.funcName()));
         try {
-            Packet result = methodData.parameters().size() == 0
-              ? (Packet) methodData.method.invoke(this)
-              : (Packet) methodData.method.invoke(this, pairs);
-            return result;
-        } catch (IllegalAccessException | IllegalArgumentException | InvocationTargetException e) {
-            return Packet.error(String.format(INVOCATION_FAILED, funcName, this.getClass()), e);
+            return d.call().apply(this, pairs);
+        } catch (Throwable e) {   // as Method.invoke reported it, including checked exceptions the method declares
+            return Packet.error(String.format(INVOCATION_FAILED, d.funcName(), this.getClass()), new InvocationTargetException(e));
+        } finally {
+            if (outer != null)
+                CHECKED.set(outer);
+            else
+                CHECKED.remove();
         }
     }
+
+    /**
+     * The pairs that {@link processPairs} has checked, and the method it is calling with them.
+     *
+     * @param pairs The pairs, by identity
+     * @param funcName The name of the method
+     */
+    private record Checked(HashMap<String, Object> pairs, String funcName) {}
+
+        /** What {@link processPairs} is calling on this thread, if anything, so that the method need not check its pairs again */
+    private static final ThreadLocal<Checked> CHECKED = new ThreadLocal<Checked>();
+
+    /**
+     * Check the pairs for one of {@link opiMethods} with {@link checkArgs}, unless they are the pairs
+     * {@link processPairs} has already checked and is calling the method with.
+     * A method that checks its own pairs (in case it is called directly) can then leave the pairs of a command as they are.
+     *
+     * @param pairs The pairs the method was called with
+     * @param funcName The name of the method
+     *
+     * @return null if pairs is valid, or an error packet
+     *
+     * @since 3.0.0
+     */
+    Packet checkOnce(HashMap<String, Object> pairs, String funcName) {
+        Checked c = CHECKED.get();
+        if (c != null && c.pairs() == pairs && c.funcName().equals(funcName))
+            return null;
+        return checkArgs(pairs, opiMethods.get(funcName).parameters(), funcName);
+    }
     
+    /** The parsed default of each parameter, before padding, so that each defaultValue is only parsed once */
+    private static final ConcurrentHashMap<Parameter, Object> parsedDefaults = new ConcurrentHashMap<Parameter, Object>();
+
     /**
     * Build a java object from the default JSON string param
     * If the object is a list and it is shorter than `length`, add element 0 to the end until it is long enough.
+    * The default is parsed the first time it is needed; after that each call returns a fresh copy of it.
     *
     * @param param Parameter for which to get the default
     * @param length The length of a List or ListList that should be created, replicating the single default if necessary.
     */
     public static Object buildDefault(Parameter param, int length) throws ClassNotFoundException {
+        Object singleValue = parsedDefaults.get(param);
+        if (singleValue == null) {
+            singleValue = parseDefault(param);
+            parsedDefaults.putIfAbsent(param, singleValue);
+        }
+        return copyDefault(singleValue, length);
+    }
+
+    /** Parse the default JSON string of param as its type (an ArrayList for lists) */
+    private static Object parseDefault(Parameter param) {
         Type t = TypeToken.get(param.className()).getType();
         if (param.isList()) {
             t = TypeToken.getParameterized(ArrayList.class, param.className()).getType();
         } else if (param.isListList()) {
-            t = TypeToken.getParameterized(ArrayList.class, ArrayList.class, param.className()).getType();
+            t = TypeToken.getParameterized(ArrayList.class, TypeToken.getParameterized(ArrayList.class, param.className()).getType()).getType();
         }
 
-        Object singleValue;
         if (param.className() == String.class && param.defaultValue().length() == 0) // allow empty string as a default
-            singleValue = new String();
+            return new String();
         else
-            singleValue = OpiListener.gson.fromJson(param.defaultValue(), t);
+            return OpiListener.gson.fromJson(param.defaultValue(), t);
+    }
 
-        if (param.isList() || param.isListList()) {
-            ArrayList<Object> a = (ArrayList<Object>)singleValue;
-            while (a.size() < length) 
-                a.add(a.get(0));
-            return a;
-        } else 
-            return singleValue;
+    /**
+    * Copy a default so the copy can be changed without changing the cached default.
+    * Lists (and the lists in them) are copied, and ArrayLists padded with element 0 up to length; everything else is immutable and shared.
+    *
+    * @param value A default as parsed from JSON
+    * @param length The length of a list, replicating element 0 if necessary
+    */
+    static Object copyDefault(Object value, int length) {
+        if (value instanceof double[] a)
+            return a.clone();
+        if (value instanceof double[][] rows) {
+            double[][] copy = new double[rows.length][];
+            for (int i = 0 ; i < rows.length ; i++)
+                copy[i] = rows[i].clone();
+            return copy;
+        }
+        if (!(value instanceof ArrayList<?> list))
+            return value;
+        ArrayList<Object> a = new ArrayList<Object>(Math.max(length, list.size()));
+        for (Object o : list)
+            a.add(copyDefault(o, 0));
+        while (a.size() < length)
+            a.add(copyDefault(list.get(0), 0));
+        return a;
     }
 
     /** 
@@ -501,86 +1077,36 @@ public abstract class OpiMachine {
     * @since 0.2.0
     */
     public Packet validateArgs(HashMap<String, Object> pairs, HashSet<Parameter> parameters, String funcName) {
-        for (Parameter param : parameters) {
-                // mandatory parameter not received
-            if (!pairs.containsKey(param.name()) && !param.optional())
-              return Packet.error(String.format(MISSING_PARAMETER, param.name(), funcName, this.getClass()));
-                // Optional parameter not here, add it in and go to next param
-                // (Note stim.length gets turned into a double by fromJSON)
-            if (!pairs.containsKey(param.name()) && param.optional()) {
-                try {
-                    Object defaultVal = OpiMachine.buildDefault(param, 
-                        pairs.containsKey("stim.length") ?  (int)Math.round((Double)pairs.get("stim.length")) : 1);
-                    pairs.put(param.name(), defaultVal);
-                } catch (JsonSyntaxException e){
-                    return Packet.error(String.format(BAD_DEFAULT, param.name(), funcName, this.getClass()));
-                } catch (ClassNotFoundException e) {
-                    return Packet.error(String.format(BAD_TYPE, param.name(), funcName, this.getClass()));
-                }
-                continue;
-            }
+        Packet error = checkArgs(pairs, parameters, funcName);
+        return error != null ? error : new Packet(pairs);
+    }
 
-                // Ok we've got a value; let's validate it
-            Object valueObj = pairs.get(param.name());
-
-                // things are lists when they should be check length of lists and list of lists
-            if ((param.isListList() || param.isList()) && (!(valueObj instanceof ArrayList) || ((ArrayList<?>) valueObj).size() == 0))
-                return Packet.error(String.format(NOT_LIST, param.name(), funcName, this.getClass()));
-            if (!(param.isListList() || param.isList()) && (valueObj instanceof ArrayList))
-                return Packet.error(String.format(YES_LIST, param.name(), funcName, this.getClass()));
-            if (param.isListList() &&
-                ((ArrayList<?>) valueObj).stream().anyMatch(val -> !(val instanceof ArrayList) || ((ArrayList<?>) val).size() == 0))
-                    return Packet.error(String.format(NOT_LIST_OF_LIST, param.name(), funcName, this.getClass()));
-
-                // For convenience, let's stick all types (list, listlist, not) into a simple list.
-                // so we can just iterate over it to check each element.
-            List<Object> pList;
-            if (param.isListList())
-                pList = (((ArrayList<?>) valueObj).stream().map(Object.class::cast)
-                                                           .toList()).stream()
-                                                                .map(vector -> (ArrayList<?>) vector)
-                                                                .flatMap(List::stream)
-                                                                .map(Object.class::cast)
-                                                                .toList();
-            else if (param.isList()) 
-                pList = ((ArrayList<?>) valueObj).stream().map(Object.class::cast).toList();
-            else
-                pList = Arrays.asList(valueObj);
-
-                // if param is an enum type, check all are valid
-                // Note added default params are already Enums so just need to check supplied strings
-            if (enums.containsKey(param.className().getName())) { // validate enums
-                List<String> enumVals = enums.get(param.className().getName());
-                Optional<Object> badOnes = pList.stream()
-                                           .filter(p -> !(p.getClass().isEnum()))
-                                           .filter(p -> !(p instanceof String) || !enumVals.stream().anyMatch(ss -> ss.contains(((String) p).toLowerCase())))
-                                           .findAny();
-                if (badOnes.isPresent())
-                    return Packet.error(String.format(NOT_IN_ENUM, param.name(), param.className(), funcName, this.getClass()));
-            } else if (param.className() == Double.class ||  param.className() == Integer.class) { // validate numbers
-                try {
-                    double minVal = Math.round(1e10 * param.min()) / 1e10; // avoid weird rounding problems
-                    double maxVal = Math.round(1e10 * param.max()) / 1e10;
-                    Optional<Double> result = pList.stream()
-                        .map((Object o) -> (Double)(((Number.class.cast(o)).doubleValue())))
-                        .filter((Double v) -> v.doubleValue() < minVal || v.doubleValue() > maxVal)
-                        .findAny();
-                    if (result.isPresent())
-                        return Packet.error(String.format(OUT_OF_RANGE, param.name(), funcName, this.getClass(), minVal, maxVal, result.get()));
-                } catch (ClassCastException e) {
-                    if (param.className() == Double.class)
-                        return Packet.error(String.format(NOT_A_DOUBLE, param.name(), funcName, this.getClass()));
-                    else
-                        return Packet.error(String.format(NOT_AN_INTEGER, param.name(), funcName, this.getClass()));
-                }
-            } else { // assume param is a String, then validate
-              Optional<Object> result = pList.stream().filter(v -> !(v instanceof String)).findAny();
-              if (result.isPresent())
-                return Packet.error(String.format(NOT_A_STRING, param.name(), funcName, this.getClass()));
-            }
-          }
-          return new Packet(pairs);
+    /** 
+    * As {@link validateArgs}, but pairs is updated in place and not serialized into a Packet.
+    * Values and defaults are left in the same form as values decoded by {@link OpiCommand#decode} (eg numbers as Double, lists of them as double[]),
+    * except that the names of enum values are replaced by their constants (eg "left" by ViewEye.LEFT).
+    * The parameters of one of {@link opiMethods} are checked by the validators compiled for it in {@link compileValidators}.
+    *
+    * @param pairs Hashmap with parameter names as keys and values as Objects. 
+    * @param params @Parameter annotations for the method that is using pairs
+    * @param funcName Function name for errors
+    *
+    * @return null if pairs is valid, or an error packet
+    *
+    * @since 3.0.0
+    */
+    Packet checkArgs(HashMap<String, Object> pairs, HashSet<Parameter> parameters, String funcName) {
+        MethodData methodData = opiMethods.get(funcName);
+        ParameterValidator[] checks = methodData != null && methodData.parameters() == parameters
+            ? validators.get(funcName)
+            : ParameterValidator.compile(parameters, enums);   // not the parameters of one of opiMethods
+        for (ParameterValidator check : checks) {
+            Packet error = check.check(pairs, funcName, this.getClass());
+            if (error != null)
+                return error;
         }
+        return null;
+    }
   
     /**
      * opiInitialise: initialize OPI.
@@ -640,6 +1166,19 @@ public abstract class OpiMachine {
      * @since 0.0.1
      */
     public abstract Packet close();
+
+    /**
+     * opiCancel: Stop a present that is running, which then returns at once with an error.
+     * {@link OpiListener} runs this as soon as it reads a cancel, even while a present is in progress.
+     * Machines that cannot stop a presentation part way through keep this default.
+     *
+     * @return A Packet containing a JSON object
+     *
+     * @since 3.0.0
+     */
+    public Packet cancel() {
+        return Packet.error(String.format(CANNOT_CANCEL, this.getClass().getSimpleName()));
+    }
   
     /**
      * build a JSON string to send the message to OPI server
@@ -772,6 +1311,15 @@ public abstract class OpiMachine {
             });
     }
             
+    /** @return value as it is shown to users, with lists of numbers (double[] and double[][]) written out */
+    protected static String valueString(Object value) {
+        if (value instanceof double[] a)
+            return Arrays.toString(a);
+        if (value instanceof double[][] rows)
+            return Arrays.deepToString(rows);
+        return String.valueOf(value);
+    }
+
     /**
      * Update both the textArea with the present details
      * and the canvas with stimulus value and location.
@@ -782,7 +1330,7 @@ public abstract class OpiMachine {
         StringBuffer sb = new StringBuffer();
         sb.append("Present:\n");
         for (String k : args.keySet())
-            sb.append(String.format("\t%s = %s\n", k, args.get(k).toString()));
+            sb.append(String.format("\t%s = %s\n", k, valueString(args.get(k))));
         output(sb.toString());
 
         if (this.parentScene == null)
@@ -794,33 +1342,30 @@ public abstract class OpiMachine {
                 return;
             }
 
-            List<Double> xList, yList, lList;
-            List<String> eList;
-
-            if (args.get("x") instanceof ArrayList) {
-                xList = (List<Double>)args.get("x");
-                yList = (List<Double>)args.get("y");
-                lList = (List<Double>)args.get("lum");
-            } else {
-                xList = Arrays.asList((Double)args.get("x"));
-                yList = Arrays.asList((Double)args.get("y"));
-                lList = Arrays.asList((Double)args.get("lum"));
+            double[] xList, yList, lList;
+            List<?> eList;
+
+            if (args.get("x") instanceof Double) {
+                xList = new double[] {(Double)args.get("x")};
+                yList = new double[] {(Double)args.get("y")};
+                lList = new double[] {(Double)args.get("lum")};
+            } else {    // double[] or ArrayList
+                xList = CommandCodec.toDoubles(args.get("x"));
+                yList = CommandCodec.toDoubles(args.get("y"));
+                lList = CommandCodec.toDoubles(args.get("lum"));
             }
             if (args.containsKey("eye"))
-                eList = (List<String>)args.get("eye");
-            else {
-                eList = new ArrayList<String>();
-                for (int i = 0 ; i < xList.size() ; i++)
-                    eList.add("mono");
-            }
+                eList = (List<?>)args.get("eye");    // ViewEye constants, as checkArgs leaves them
+            else
+                eList = Collections.nCopies(xList.length, "mono");
 
             try {
-                for (int i = 0 ; i < xList.size(); i++) {
-                    CanvasTriple ct = new CanvasTriple(xList.get(i), yList.get(i), Long.toString(Math.round(lList.get(i))));
+                for (int i = 0 ; i < xList.length; i++) {
+                    CanvasTriple ct = new CanvasTriple(xList[i], yList[i], Long.toString(Math.round(lList[i])));
                     if (this.viewModeIsMono)
                         updateCanvas.get("mono").accept(ct);
                     else
-                        updateCanvas.get(eList.get(i).toLowerCase()).accept(ct);
+                        updateCanvas.get(eList.get(i).toString().toLowerCase()).accept(ct);
                 }
             } catch (Exception e) { 
                 System.out.println("Display present() canvas troubles");
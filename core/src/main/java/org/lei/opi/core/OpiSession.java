@@ -0,0 +1,287 @@
+package org.lei.opi.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import org.lei.opi.core.OpiListener.Command;
+import org.lei.opi.core.OpiListener.Encoding;
+import org.lei.opi.core.OpiListener.Framing;
+import org.lei.opi.core.definitions.Packet;
+
+import com.google.gson.JsonSyntaxException;
+
+/**
+ * One client connection served by an {@link OpiListener} in {@link OpiListener.Mode#MULTIPLEX} mode.
+ *
+ * Each session owns its own {@link OpiMachine} so that commands from different clients never share
+ * machine state. Bytes are read from the (non-blocking) channel by the listener's selector thread,
+ * split into messages and decoded here (see {@link Framing}), and then processed in order on one of the
+ * listener's worker threads so that a long `present` does not stall the other sessions.
+ * Commands wait in a bounded {@link CommandQueue}; one that arrives when it is full is answered
+ * by the selector thread straight away with an overload error rather than queued.
+ * A cancel does not wait its turn: it is run on another worker at once, so it can stop a running present.
+ * A subscribe is answered by the selector thread at once, and any events are then queued like replies.
+ * Replies are put straight into one direct buffer with a {@link PacketWriter}
+ * and written from it by the selector thread when the channel is writable.
+ * A client that sends faster than it reads its replies (eg is refused with overloads) is not read from
+ * while more than {@link HIGH_WATER} bytes wait for it, and one that lets {@link MAX_OUTGOING} pile up is closed.
+ *
+ * @since 3.0.0
+ */
+class OpiSession {
+
+    /** Initial size of the read buffer. It grows if a single message is longer than this. */
+    private static final int BUFFER_SIZE = 8192;
+    /** Bytes of replies waiting for the client above which its channel is not read: {@value HIGH_WATER} */
+    static final int HIGH_WATER = 1 << 20;
+    /** Bytes of replies waiting for the client below which reading starts again: {@value LOW_WATER} */
+    static final int LOW_WATER = HIGH_WATER / 2;
+    /** Bytes of replies (and events, which do not wait for reads) waiting for the client above which it is closed: {@value MAX_OUTGOING} */
+    static final int MAX_OUTGOING = 16 * HIGH_WATER;
+
+    /** The listener that owns this session */
+    private final OpiListener listener;
+    /** The connection to the client */
+    final SocketChannel channel;
+    /** Creates {@link machine} when the first message arrives */
+    private final Supplier<OpiMachine> machineFactory;
+    /** The OpiMachine that commands from this client are passed to */
+    private volatile OpiMachine machine = null;
+    /** Key of {@link channel} registered on the listener's Selector */
+    private SelectionKey key;
+
+    /** Bytes read from the channel that have not yet been consumed as a message */
+    private ByteBuffer incoming = ByteBuffer.allocate(BUFFER_SIZE);
+    /** Number of bytes at the start of {@link incoming} already known not to contain a \n */
+    private int scanned = 0;
+    /** How messages are delimited in both directions. Changed once agreed at initialize. */
+    private volatile Framing framing = Framing.LINE;
+    /** How messages are encoded in both directions. Changed once agreed at initialize. */
+    private volatile Encoding encoding = Encoding.JSON;
+
+    /** Commands waiting to be processed (in order of arrival) and commands being processed */
+    private final CommandQueue pending;
+    /** True while a worker thread is draining {@link pending} */
+    private boolean busy = false;
+
+    /** Replies waiting to be written to the channel, in write mode. Guarded by {@link outgoingLock}. */
+    private ByteBuffer outgoing = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final Object outgoingLock = new Object();
+    /** True once a Packet with close == true has been queued: close after it is written */
+    private volatile boolean closing = false;
+    /** Sends events to this client if it subscribes */
+    private final Consumer<Packet> events = (p) -> send(p, false);
+
+    OpiSession(OpiListener listener, SocketChannel channel, Supplier<OpiMachine> machineFactory) {
+        this.listener = listener;
+        this.channel = channel;
+        this.machineFactory = machineFactory;
+        this.pending = listener.newQueue();
+    }
+
+    void setKey(SelectionKey key) { this.key = key; }
+
+    /**
+     * Called by the selector thread when the channel has bytes to read.
+     * Hand every complete message over for processing.
+     *
+     * @throws IOException If the channel cannot be read
+     */
+    void onReadable() throws IOException {
+        if (channel.read(incoming) < 0) {
+            close();
+            return;
+        }
+
+        byte[] message;
+        while ((message = nextMessage()) != null)
+            submit(message);
+
+        if (!incoming.hasRemaining()) { // one message is bigger than the buffer
+            ByteBuffer bigger = ByteBuffer.allocate(2 * incoming.capacity());
+            incoming.flip();
+            bigger.put(incoming);
+            incoming = bigger;
+        }
+    }
+
+    /**
+     * Called by the selector thread when the channel can take more bytes.
+     * Write as many queued replies as the channel will accept.
+     *
+     * @throws IOException If the channel cannot be written
+     */
+    void onWritable() throws IOException {
+        synchronized (outgoingLock) {
+            outgoing.flip();
+            channel.write(outgoing);
+            boolean more = outgoing.hasRemaining();
+            outgoing.compact();
+            if (more) {   // channel is full, wait for the next OP_WRITE
+                if (outgoing.position() < LOW_WATER)
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return;
+            }
+            if (closing)
+                close();
+            else
+                key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * Take the next message out of {@link incoming}.
+     *
+     * @return The message without its \n or length header, or null if there is not a complete message yet.
+     *
+     * @throws IOException If a length header is corrupt, or a line is longer than {@link Framing#MAX_FRAME}
+     */
+    private byte[] nextMessage() throws IOException {
+        byte[] bytes = incoming.array();
+        int end = incoming.position();
+        if (framing == Framing.LENGTH) {
+            if (end < 4)
+                return null;
+            int length = Framing.checkLength(incoming.getInt(0));
+            if (end < 4 + length)
+                return null;
+            byte[] message = Arrays.copyOfRange(bytes, 4, 4 + length);
+            incoming.flip().position(4 + length);
+            incoming.compact();
+            return message;
+        }
+        for (int i = scanned ; i < end ; i++) {
+            if (bytes[i] == '\n') {
+                byte[] message = Arrays.copyOfRange(bytes, 0, i);
+                incoming.flip().position(i + 1);
+                incoming.compact();
+                scanned = 0;
+                return message;
+            }
+        }
+        scanned = end;
+        Framing.checkLine(end);
+        return null;
+    }
+
+    /**
+     * Decode a message, queue it and make sure a worker is processing the queue.
+     * Only one worker at a time drains a session so replies are in the same order as the requests.
+     * If the queue is full, refuse the command at once. A cancel or subscribe is not queued but run straight away.
+     *
+     * @param message A message from the client, still encoded
+     */
+    private void submit(byte[] message) {
+        OpiCommand command;
+        try {
+            command = OpiListener.decode(message, encoding);
+        } catch (JsonSyntaxException e) {
+            send(Packet.error(OpiListener.BAD_JSON, e), false);
+            return;
+        }
+        if (command.command() == Command.CANCEL) {
+            listener.execute(() -> send(listener.process(command, machine), false));
+            return;
+        }
+        if (command.command() == Command.SUBSCRIBE) {
+            send(listener.subscribe(command, events), false);
+            return;
+        }
+        Packet refused = null;
+        synchronized (pending) {
+            if (!pending.offer(command))
+                refused = listener.overload(command.id(), pending);
+            else if (busy)
+                return;
+            else
+                busy = true;
+        }
+        if (refused != null)
+            send(refused, false);   // not holding pending, which is never taken inside outgoingLock
+        else
+            listener.execute(this::drain);
+    }
+
+    /** Process queued messages until there are none left or the machine asks to close. */
+    private void drain() {
+        if (machine == null) {
+            try {
+                machine = machineFactory.get();
+            } catch (RuntimeException e) {
+                System.out.println(String.format(OpiListener.CANNOT_CREATE_MACHINE, OpiListener.remoteAddress(channel)));
+                e.printStackTrace();
+                send(Packet.error(OpiListener.NO_OPI_MACHINE, e), true);
+                return;
+            }
+        }
+        for (;;) {
+            OpiCommand command;
+            synchronized (pending) {
+                command = closing ? null : pending.poll();
+                if (command == null) {
+                    busy = false;
+                    return;
+                }
+            }
+            long started = System.nanoTime();
+            Packet pack = listener.handle(command, machine, (p) -> {
+                pending.done(started);
+                send(p, false);
+            });
+            if (pack == null)
+                continue;
+            pending.done(started);
+            send(pack, pack.getClose());
+        }
+    }
+
+    /**
+     * Queue a Packet for the client in the session's framing and encoding and ask the selector thread to write it.
+     * If p agrees a new framing or encoding the session switches to it before p goes, so the client's next message is read right.
+     * Above {@link HIGH_WATER} bytes waiting the channel is not read until {@link onWritable} has drained them,
+     * and above {@link MAX_OUTGOING} the session is closed.
+     *
+     * @param p The Packet to deliver
+     * @param closeAfter If true, close the session once the message has been written
+     */
+    void send(Packet p, boolean closeAfter) {
+        int waiting;
+        synchronized (outgoingLock) {
+            outgoing = PacketWriter.write(p, framing, encoding, outgoing);
+            if (p.getFraming() != null)
+                framing = p.getFraming();
+            if (p.getEncoding() != null)
+                encoding = p.getEncoding();
+            closing |= closeAfter;
+            waiting = outgoing.position();
+        }
+        if (waiting > MAX_OUTGOING) {   // the client is not reading at all
+            close();
+            return;
+        }
+        try {
+            key.interestOps(waiting > HIGH_WATER ? SelectionKey.OP_WRITE : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            key.selector().wakeup();
+        } catch (CancelledKeyException ignored) { ; } // client has gone away
+    }
+
+    /** Close the connection and forget the session. */
+    void close() {
+        synchronized (pending) {
+            closing = true;
+            pending.clear();
+        }
+        listener.unsubscribe(events);
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException ignored) { ; }
+        listener.removeSession(this);
+    }
+}
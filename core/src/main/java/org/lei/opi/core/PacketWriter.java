@@ -0,0 +1,229 @@
+package org.lei.opi.core;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.lei.opi.core.OpiListener.Encoding;
+import org.lei.opi.core.OpiListener.Framing;
+import org.lei.opi.core.definitions.Packet;
+
+/**
+ * Writes a Packet as one frame straight into a ByteBuffer that the caller keeps and reuses.
+ *
+ * For {@link Encoding#JSON} this gives the same bytes as {@link Framing#encode(String)} of
+ * {@code gson.toJson(p)} with the {@link org.lei.opi.core.definitions.PacketSerializer}, but
+ * without making them: msg is made by Gson once (see {@link Packet#getMsg}) and copied
+ * in as UTF-8 rather than parsed and serialized again, the other fields are written directly,
+ * and the frame's length is filled in afterwards. Once the buffer is big enough for the
+ * largest reply a connection sends, writing a Packet allocates nothing.
+ *
+ * @since 3.0.0
+ */
+final class PacketWriter {
+
+    private static final byte[] ID = bytes("{\"id\":");
+    private static final byte[] FRAMING = bytes("\"framing\":\"");
+    private static final byte[] ENCODING = bytes("\"encoding\":\"");
+    private static final byte[] RETRY_AFTER = bytes("\"retryAfter\":");
+    private static final byte[] EVENT = bytes("\"event\":");
+    private static final byte[] RING = bytes("\"ring\":");
+    private static final byte[] ERROR = bytes("\"error\":");
+    private static final byte[] CLOSE = bytes(",\"close\":");
+    private static final byte[] MSG = bytes(",\"msg\":");
+    private static final byte[] TRUE = bytes("true");
+    private static final byte[] FALSE = bytes("false");
+    private static final byte[] HEX = bytes("0123456789abcdef");
+
+    /** Bytes the fixed parts of a Packet can take, plus the longest long */
+    private static final int OVERHEAD = 128;
+
+    private PacketWriter() { ; }
+
+    /**
+     * Put p at the end of buf as one frame.
+     *
+     * @param p The Packet to send
+     * @param framing How to delimit it
+     * @param encoding How to encode it
+     * @param buf Where to put it, in write mode (ie its position is where the frame starts)
+     *
+     * @return buf, or if buf did not have room a bigger buffer of the same kind holding what buf held and then the frame
+     */
+    static ByteBuffer write(Packet p, Framing framing, Encoding encoding, ByteBuffer buf) {
+        if (encoding == Encoding.BINARY) {
+            byte[] b = BinaryCodec.encode(p);
+            buf = ensure(buf, 4 + b.length);
+            if (framing == Framing.LENGTH)
+                buf.putInt(b.length);
+            buf.put(b);
+            if (framing == Framing.LINE)
+                buf.put((byte)'\n');
+            return buf;
+        }
+
+        String id = p.getId();
+        String event = p.getEvent();
+        String ring = p.getRing();
+        String msg = p.getMsg();
+        buf = ensure(buf, OVERHEAD + 6 * (id == null ? 0 : id.length()) + 6 * (event == null ? 0 : event.length())
+                        + 6 * (ring == null ? 0 : ring.length()) + 3 * msg.length());
+
+        int start = buf.position();
+        if (framing == Framing.LENGTH)
+            buf.position(start + 4);   // filled in at the end
+
+        if (id != null) {
+            buf.put(ID);
+            string(buf, id);
+            buf.put((byte)',');
+        } else {
+            buf.put((byte)'{');
+        }
+        if (p.getFraming() != null) {
+            buf.put(FRAMING);
+            lower(buf, p.getFraming().name());
+            buf.put((byte)'"').put((byte)',');
+        }
+        if (p.getEncoding() != null) {
+            buf.put(ENCODING);
+            lower(buf, p.getEncoding().name());
+            buf.put((byte)'"').put((byte)',');
+        }
+        if (p.getRetryAfter() != null) {
+            buf.put(RETRY_AFTER);
+            number(buf, p.getRetryAfter());
+            buf.put((byte)',');
+        }
+        if (event != null) {
+            buf.put(EVENT);
+            string(buf, event);
+            buf.put((byte)',');
+        }
+        if (ring != null) {
+            buf.put(RING);
+            string(buf, ring);
+            buf.put((byte)',');
+        }
+        buf.put(ERROR).put(p.getError() ? TRUE : FALSE);
+        buf.put(CLOSE).put(p.getClose() ? TRUE : FALSE);
+        buf.put(MSG);
+        utf8(buf, msg, framing == Framing.LINE);
+        buf.put((byte)'}');
+
+        if (framing == Framing.LENGTH)
+            buf.putInt(start, buf.position() - start - 4);
+        else
+            buf.put((byte)'\n');
+        return buf;
+    }
+
+    /** buf if it has room for n more bytes, else a copy of it at least twice as big */
+    private static ByteBuffer ensure(ByteBuffer buf, int n) {
+        if (buf.remaining() >= n)
+            return buf;
+        int size = Math.max(2 * buf.capacity(), buf.position() + n);
+        ByteBuffer bigger = buf.isDirect() ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+        buf.flip();
+        return bigger.put(buf);
+    }
+
+    /** Put the already valid JSON s as UTF-8, leaving out any \n if they would end a line early */
+    private static void utf8(ByteBuffer buf, String s, boolean noNewlines) {
+        int n = s.length();
+        for (int i = 0 ; i < n ; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                if (c != '\n' || !noNewlines)
+                    buf.put((byte)c);
+            } else {
+                i = utf8(buf, s, i);
+            }
+        }
+    }
+
+    /**
+     * Put the character at s[i] as UTF-8, along with s[i + 1] if they are a surrogate pair.
+     *
+     * @return The index of the last character put
+     */
+    private static int utf8(ByteBuffer buf, String s, int i) {
+        char c = s.charAt(i);
+        if (c < 0x80) {
+            buf.put((byte)c);
+        } else if (c < 0x800) {
+            buf.put((byte)(0xc0 | (c >> 6)));
+            buf.put((byte)(0x80 | (c & 0x3f)));
+        } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+            int cp = Character.toCodePoint(c, s.charAt(++i));
+            buf.put((byte)(0xf0 | (cp >> 18)));
+            buf.put((byte)(0x80 | ((cp >> 12) & 0x3f)));
+            buf.put((byte)(0x80 | ((cp >> 6) & 0x3f)));
+            buf.put((byte)(0x80 | (cp & 0x3f)));
+        } else if (Character.isSurrogate(c)) {
+            buf.put((byte)'?');   // unpaired, as String.getBytes
+        } else {
+            buf.put((byte)(0xe0 | (c >> 12)));
+            buf.put((byte)(0x80 | ((c >> 6) & 0x3f)));
+            buf.put((byte)(0x80 | (c & 0x3f)));
+        }
+        return i;
+    }
+
+    /** Put s as a JSON string, escaped as Gson does (including its HTML-safe escapes) */
+    private static void string(ByteBuffer buf, String s) {
+        buf.put((byte)'"');
+        int n = s.length();
+        for (int i = 0 ; i < n ; i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"' -> buf.put((byte)'\\').put((byte)'"');
+                case '\\' -> buf.put((byte)'\\').put((byte)'\\');
+                case '\t' -> buf.put((byte)'\\').put((byte)'t');
+                case '\b' -> buf.put((byte)'\\').put((byte)'b');
+                case '\n' -> buf.put((byte)'\\').put((byte)'n');
+                case '\r' -> buf.put((byte)'\\').put((byte)'r');
+                case '\f' -> buf.put((byte)'\\').put((byte)'f');
+                case '<', '>', '&', '=', '\'', '\u2028', '\u2029' -> unicode(buf, c);
+                default -> {
+                    if (c < 0x20)
+                        unicode(buf, c);
+                    else
+                        i = utf8(buf, s, i);
+                }
+            }
+        }
+        buf.put((byte)'"');
+    }
+
+    /** Put c as \\uXXXX */
+    private static void unicode(ByteBuffer buf, char c) {
+        buf.put((byte)'\\').put((byte)'u');
+        for (int shift = 12 ; shift >= 0 ; shift -= 4)
+            buf.put(HEX[(c >> shift) & 0xf]);
+    }
+
+    /** Put the name of an enum constant in lower case */
+    private static void lower(ByteBuffer buf, String name) {
+        for (int i = 0 ; i < name.length() ; i++)
+            buf.put((byte)Character.toLowerCase(name.charAt(i)));
+    }
+
+    /** Put x in decimal */
+    private static void number(ByteBuffer buf, long x) {
+        if (x < 0) {
+            buf.put((byte)'-');
+            if (x == Long.MIN_VALUE) {
+                buf.put(bytes("9223372036854775808"));
+                return;
+            }
+            x = -x;
+        }
+        long div = 1;
+        while (div <= x / 10)
+            div *= 10;
+        for ( ; div > 0 ; div /= 10)
+            buf.put((byte)('0' + (x / div) % 10));
+    }
+
+    private static byte[] bytes(String s) { return s.getBytes(StandardCharsets.UTF_8); }
+}
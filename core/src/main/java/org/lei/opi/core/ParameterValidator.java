@@ -0,0 +1,301 @@
+package org.lei.opi.core;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.lei.opi.core.definitions.Packet;
+import org.lei.opi.core.definitions.Parameter;
+
+import com.google.gson.JsonSyntaxException;
+
+/**
+ * The checks for one {@link Parameter} of an OPI method, worked out once when the OpiMachine is made
+ * rather than from the annotation for every command (see {@link OpiMachine#checkArgs}).
+ *
+ * A value that is missing is an error, or if the parameter is optional its default is added.
+ * A value that is there must have the right shape (a single value, a non-empty list, or a non-empty list
+ * of non-empty lists), and then each element is checked by the subclass for the parameter's type:
+ * {@link Range} for numbers, {@link OneOf} for enums and {@link Text} for anything else.
+ * The name of an enum value is replaced in pairs by its constant, so the machine need not look it up again.
+ * Lists of numbers may be double[] (and lists of them double[][]), as {@link OpiCommand#decode} gives them, as well as ArrayLists.
+ * Checking a value that is valid allocates nothing.
+ *
+ * @since 3.0.0
+ */
+abstract class ParameterValidator {
+
+    /** What shape a value must have */
+    private enum Shape { VALUE, LIST, LIST_OF_LISTS }
+
+    protected final Parameter param;
+    private final String name;
+    private final boolean optional;
+    private final Shape shape;
+
+    /** Defaults with at most this many elements are kept in {@link #defaults} */
+    private static final int MAX_CACHED_LENGTH = 64;
+
+    /** The default as added to pairs, by length */
+    private final ConcurrentHashMap<Integer, Object> defaults = new ConcurrentHashMap<Integer, Object>();
+
+    private ParameterValidator(Parameter param) {
+        this.param = param;
+        this.name = param.name();
+        this.optional = param.optional();
+        this.shape = param.isListList() ? Shape.LIST_OF_LISTS : param.isList() ? Shape.LIST : Shape.VALUE;
+    }
+
+    /**
+     * Compile the checks for a method's parameters.
+     *
+     * @param parameters The @Parameter annotations of the method
+     * @param enums The constants of each enum class used by the machine by their lower case names, by class name
+     *
+     * @return One validator for each parameter
+     */
+    static ParameterValidator[] compile(HashSet<Parameter> parameters, Map<String, Map<String, Enum<?>>> enums) {
+        ParameterValidator[] validators = new ParameterValidator[parameters.size()];
+        int i = 0;
+        for (Parameter p : parameters) {
+            if (enums.containsKey(p.className().getName()))
+                validators[i++] = new OneOf(p, enums.get(p.className().getName()));
+            else if (p.className() == Double.class || p.className() == Integer.class)
+                validators[i++] = new Range(p);
+            else
+                validators[i++] = new Text(p);
+        }
+        return validators;
+    }
+
+    /**
+     * Check this parameter in pairs, adding its default if it is optional and missing.
+     *
+     * @param pairs The name:value pairs of a command
+     * @param funcName Function name for errors
+     * @param machine Class of the machine for errors
+     *
+     * @return null if the value is valid (or a default was added), else an error Packet
+     */
+    Packet check(HashMap<String, Object> pairs, String funcName, Class<?> machine) {
+        Object value = pairs.get(name);
+        if (value == null && !pairs.containsKey(name)) {
+            if (!optional)
+                return Packet.error(String.format(OpiMachine.MISSING_PARAMETER, name, funcName, machine));
+            return addDefault(pairs, funcName, machine);
+        }
+
+        switch (shape) {
+            case VALUE -> {
+                if (value instanceof ArrayList || value instanceof double[] || value instanceof double[][])
+                    return Packet.error(String.format(OpiMachine.YES_LIST, name, funcName, machine));
+                Object v = element(value);
+                if (v == null)
+                    return error(value, funcName, machine);
+                if (v != value)
+                    pairs.put(name, v);
+                return null;
+            }
+            case LIST -> {
+                if (value instanceof double[] a && a.length > 0)
+                    return numbers(a, funcName, machine);
+                if (!(value instanceof ArrayList<?> list) || list.size() == 0)
+                    return Packet.error(String.format(OpiMachine.NOT_LIST, name, funcName, machine));
+                return elements(list, funcName, machine);
+            }
+            default -> {
+                if (value instanceof double[][] rows && rows.length > 0) {
+                    for (double[] row : rows)
+                        if (row.length == 0)
+                            return Packet.error(String.format(OpiMachine.NOT_LIST_OF_LIST, name, funcName, machine));
+                    for (double[] row : rows) {
+                        Packet error = numbers(row, funcName, machine);
+                        if (error != null)
+                            return error;
+                    }
+                    return null;
+                }
+                if (!(value instanceof ArrayList<?> list) || list.size() == 0)
+                    return Packet.error(String.format(OpiMachine.NOT_LIST, name, funcName, machine));
+                for (int i = 0 ; i < list.size() ; i++)
+                    if (!(list.get(i) instanceof ArrayList<?> inner && inner.size() > 0 || list.get(i) instanceof double[] a && a.length > 0))
+                        return Packet.error(String.format(OpiMachine.NOT_LIST_OF_LIST, name, funcName, machine));
+                for (int i = 0 ; i < list.size() ; i++) {
+                    Packet error = list.get(i) instanceof double[] a
+                        ? numbers(a, funcName, machine)
+                        : elements((ArrayList<?>) list.get(i), funcName, machine);
+                    if (error != null)
+                        return error;
+                }
+                return null;
+            }
+        }
+    }
+
+    /** Check each element of list, replacing those that {@link #element} changes */
+    @SuppressWarnings("unchecked")
+    private Packet elements(ArrayList<?> list, String funcName, Class<?> machine) {
+        for (int i = 0 ; i < list.size() ; i++) {
+            Object value = list.get(i);
+            Object v = element(value);
+            if (v == null)
+                return error(value, funcName, machine);
+            if (v != value)
+                ((ArrayList<Object>) list).set(i, v);
+        }
+        return null;
+    }
+
+    /** Check each element of a list of numbers (only {@link Range} takes numbers, so the others fail on the first) */
+    protected Packet numbers(double[] values, String funcName, Class<?> machine) {
+        for (double v : values)
+            if (element(v) == null)
+                return error(v, funcName, machine);
+        return null;
+    }
+
+    /**
+     * Add the default (with as many elements as "stim.length" says, for lists) in the same form as checked values.
+     * The default for each length is only built once and a copy of it is added, as the machine may change the lists in pairs.
+     */
+    private Packet addDefault(HashMap<String, Object> pairs, String funcName, Class<?> machine) {
+        int length = pairs.containsKey("stim.length") ? (int)Math.round((Double)pairs.get("stim.length")) : 1;
+        Object value = defaults.get(length);
+        if (value == null) {
+            try {
+                value = OpiMachine.buildDefault(param, length);  // a copy, so it can be converted in place
+            } catch (JsonSyntaxException e) {
+                return Packet.error(String.format(OpiMachine.BAD_DEFAULT, name, funcName, machine));
+            } catch (ClassNotFoundException e) {
+                return Packet.error(String.format(OpiMachine.BAD_TYPE, name, funcName, machine));
+            }
+            value = checkedDefault(value, funcName, machine);
+            if (value == null)
+                return Packet.error(String.format(OpiMachine.BAD_DEFAULT, name, funcName, machine));
+            if (length > MAX_CACHED_LENGTH) {
+                pairs.put(name, value);
+                return null;
+            }
+            defaults.put(length, value);
+        }
+        pairs.put(name, OpiMachine.copyDefault(value, 0));
+        return null;
+    }
+
+    /**
+     * Put a default, as {@link OpiMachine#buildDefault} makes it (parsed as the type of the parameter),
+     * in the form that values of this parameter have once they are checked.
+     *
+     * @return The default, or null if it is not valid
+     */
+    protected Object checkedDefault(Object value, String funcName, Class<?> machine) { return value; }
+
+    /**
+     * Check one element of the value.
+     *
+     * @return The element as it should be in pairs (usually value itself), or null if it is not valid
+     */
+    protected abstract Object element(Object value);
+
+    /** @return The error for an element that is not valid */
+    protected abstract Packet error(Object value, String funcName, Class<?> machine);
+
+    /** A Double or Integer parameter: each element must be a number in [min, max]. */
+    private static final class Range extends ParameterValidator {
+        private final double min;
+        private final double max;
+
+        Range(Parameter param) {
+            super(param);
+            this.min = Math.round(1e10 * param.min()) / 1e10;  // avoid weird rounding problems
+            this.max = Math.round(1e10 * param.max()) / 1e10;
+        }
+
+        @Override
+        protected Object element(Object value) {
+            if (!(value instanceof Number n))
+                return null;
+            double v = n.doubleValue();
+            return v >= min && v <= max ? value : null;     // so NaN is not valid
+        }
+
+        @Override
+        protected Packet numbers(double[] values, String funcName, Class<?> machine) {
+            for (double v : values)
+                if (!(v >= min && v <= max))    // so NaN is not valid
+                    return Packet.error(String.format(OpiMachine.OUT_OF_RANGE, param.name(), funcName, machine, min, max, v));
+            return null;
+        }
+
+        /** Numbers (Integer too) as Double, lists of them as double[] and lists of those as double[][], as they are decoded */
+        @Override
+        protected Object checkedDefault(Object value, String funcName, Class<?> machine) {
+            if (value instanceof Number n)
+                return n.doubleValue();
+            if (!(value instanceof ArrayList<?> list) || list.isEmpty())
+                return value;
+            return list.get(0) instanceof ArrayList ? CommandCodec.toDoubleLists(list) : CommandCodec.toDoubles(list);
+        }
+
+        @Override
+        protected Packet error(Object value, String funcName, Class<?> machine) {
+            if (!(value instanceof Number n))
+                return Packet.error(String.format(param.className() == Double.class ? OpiMachine.NOT_A_DOUBLE : OpiMachine.NOT_AN_INTEGER,
+                    param.name(), funcName, machine));
+            return Packet.error(String.format(OpiMachine.OUT_OF_RANGE, param.name(), funcName, machine, min, max, n.doubleValue()));
+        }
+    }
+
+    /** An enum parameter: each element must be the name of one of its constants, in any case, or the constant itself. */
+    private static final class OneOf extends ParameterValidator {
+        private final Class<?> type;
+        private final HashMap<String, Enum<?>> constants;
+
+        OneOf(Parameter param, Map<String, Enum<?>> constants) {
+            super(param);
+            this.type = param.className();
+            this.constants = new HashMap<String, Enum<?>>(constants);
+            for (Enum<?> e : constants.values())    // names as they are sent in lower case or as declared need no toLowerCase
+                this.constants.put(e.name(), e);
+        }
+
+        /** Names to constants, as for values that are there */
+        @Override
+        protected Object checkedDefault(Object value, String funcName, Class<?> machine) {
+            HashMap<String, Object> checked = new HashMap<String, Object>();
+            checked.put(param.name(), value);
+            return check(checked, funcName, machine) == null ? checked.get(param.name()) : null;
+        }
+
+        @Override
+        protected Object element(Object value) {
+            if (type.isInstance(value))
+                return value;
+            if (!(value instanceof String s))
+                return null;
+            Enum<?> e = constants.get(s);
+            return e != null ? e : constants.get(s.toLowerCase(Locale.ROOT));
+        }
+
+        @Override
+        protected Packet error(Object value, String funcName, Class<?> machine) {
+            return Packet.error(String.format(OpiMachine.NOT_IN_ENUM, param.name(), param.className(), funcName, machine));
+        }
+    }
+
+    /** Any other parameter: each element must be a String. */
+    private static final class Text extends ParameterValidator {
+        Text(Parameter param) { super(param); }
+
+        @Override
+        protected Object element(Object value) { return value instanceof String ? value : null; }
+
+        @Override
+        protected Packet error(Object value, String funcName, Class<?> machine) {
+            return Packet.error(String.format(OpiMachine.NOT_A_STRING, param.name(), funcName, machine));
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package org.lei.opi.core;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A connection between two processes on the same computer through a memory-mapped file
+ * that holds two single-producer/single-consumer rings of bytes, one for each direction.
+ * It is used through an InputStream and an OutputStream like a socket, so framing, encoding
+ * and everything above them are the same as on any other connection.
+ *
+ * The client {@link create}s the file and asks for it with "ring" in its initialize
+ * (see {@link OpiListener}). The server {@link attach}es only if it finds the same token in the
+ * file, so a server on another computer never agrees and the connection stays on TCP.
+ * The socket the initialize came on stays open and the link is closed when it ends
+ * (see {@link closeWhenEnded}), so each side still learns if the other goes away.
+ *
+ * Waiting for bytes (or for space) spins for {@link SPINS} rounds and then parks for a time that doubles
+ * up to {@link MAX_PARK} ns, as a thread cannot be woken from another process. On a single processor
+ * it parks straight away, as the other side cannot run while this one spins, so the link only pays off
+ * where each side has a core to itself.
+ *
+ * @since 3.0.0
+ */
+public final class SharedMemoryLink implements Closeable {
+
+    /** Default bytes in each ring: {@value CAPACITY} */
+    public static final int CAPACITY = 1 << 16;
+    /** {@value CLOSED_LINK} */
+    static final String CLOSED_LINK = "Shared memory link is closed.";
+    /** {@value NOT_A_LINK} */
+    static final String NOT_A_LINK = "%s is not the shared memory link that was offered.";
+
+    /** First long in the file: "OPIRING1" */
+    private static final long MAGIC = 0x4f504952494e4731L;
+    /** Rounds of busy spinning before parking */
+    private static final int SPINS = Runtime.getRuntime().availableProcessors() > 1 ? 2000 : 0;
+    /** Longest park in ns */
+    private static final long MAX_PARK = 100_000;
+
+        // Layout of the file: a header, then the two rings. Counters are on their own cache lines.
+    private static final int MAGIC_AT = 0;
+    private static final int CAPACITY_AT = 8;
+    private static final int TOKEN_AT = 16;
+    private static final int HEADER = 64;
+        // Layout of each ring: head counts bytes written, tail bytes read, and closed is non-zero once closed
+    private static final int HEAD = 0;
+    private static final int TAIL = 64;
+    private static final int CLOSED = 128;
+    private static final int DATA = 192;
+
+    /** Ordered access to the longs in the file */
+    private static final VarHandle LONG = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    private final Path path;
+    /** True for the side that created (and will delete) the file */
+    private final boolean owner;
+    private final MappedByteBuffer map;
+    private final int capacity;
+    private final long token;
+    /** Offset of the ring read by this side */
+    private final int inRing;
+    /** Offset of the ring written by this side */
+    private final int outRing;
+
+    private final InputStream in = new RingInputStream();
+    private final OutputStream out = new RingOutputStream();
+
+    private SharedMemoryLink(Path path, boolean owner, MappedByteBuffer map, int capacity, long token) {
+        this.path = path;
+        this.owner = owner;
+        this.map = map;
+        this.capacity = capacity;
+        this.token = token;
+        int first = HEADER;
+        int second = HEADER + DATA + capacity;
+        this.inRing = owner ? second : first;    // the client writes the first ring and the server the second
+        this.outRing = owner ? first : second;
+    }
+
+    /**
+     * Create the file for a new link (client side), replacing any file at path.
+     *
+     * @param path Where to put the file (eg in /dev/shm)
+     * @param capacity Bytes in each ring: a power of two
+     *
+     * @return The link, which is only usable once the other side has {@link attach}ed
+     *
+     * @throws IOException If the file cannot be created and mapped
+     * @throws IllegalArgumentException If capacity is not a power of two
+     */
+    public static SharedMemoryLink create(Path path, int capacity) throws IOException {
+        if (capacity < 8 || Integer.bitCount(capacity) != 1)
+            throw new IllegalArgumentException("Shared memory link capacity must be a power of two, not " + capacity);
+        MappedByteBuffer map;
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                                               StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            map = ch.map(FileChannel.MapMode.READ_WRITE, 0, HEADER + 2L * (DATA + capacity));
+        }
+        long token = ThreadLocalRandom.current().nextLong();
+        LONG.set(map, CAPACITY_AT, (long) capacity);
+        LONG.set(map, TOKEN_AT, token);
+        LONG.setRelease(map, MAGIC_AT, MAGIC);
+        return new SharedMemoryLink(path, true, map, capacity, token);
+    }
+
+    /**
+     * Attach to a link created by the other side (server side).
+     *
+     * @param path The file given by the client
+     * @param token The token given by the client
+     *
+     * @return The link
+     *
+     * @throws IOException If there is no such file, or it does not hold a link with this token (eg it was made on another computer)
+     *                     and a capacity that is a power of two
+     */
+    public static SharedMemoryLink attach(Path path, long token) throws IOException {
+        MappedByteBuffer map;
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            if (ch.size() < HEADER)
+                throw new IOException(String.format(NOT_A_LINK, path));
+            map = ch.map(FileChannel.MapMode.READ_WRITE, 0, ch.size());
+        }
+        long capacity = (long) LONG.get(map, CAPACITY_AT);
+        if ((long) LONG.getAcquire(map, MAGIC_AT) != MAGIC || (long) LONG.get(map, TOKEN_AT) != token
+         || capacity < 8 || capacity > Integer.MAX_VALUE || Long.bitCount(capacity) != 1    // as create checks: the rings index by masking
+         || map.capacity() != HEADER + 2L * (DATA + capacity))
+            throw new IOException(String.format(NOT_A_LINK, path));
+        return new SharedMemoryLink(path, false, map, (int) capacity, token);
+    }
+
+    public Path getPath() { return path; }
+    /** @return The number the server must give to {@link attach} */
+    public long getToken() { return token; }
+    /** @return Bytes from the other side */
+    public InputStream getInputStream() { return in; }
+    /** @return Bytes to the other side (each write returns once they are all in the ring) */
+    public OutputStream getOutputStream() { return out; }
+
+    /** @return true once either side has closed the link */
+    public boolean isClosed() { return closed(inRing) || closed(outRing); }
+
+    /**
+     * Close both directions: the other side reads to the end of what was sent and then gets end of stream.
+     * The side that created the file deletes it.
+     */
+    @Override
+    public void close() {
+        LONG.setRelease(map, outRing + CLOSED, 1L);
+        LONG.setRelease(map, inRing + CLOSED, 1L);
+        if (owner)
+            try { Files.deleteIfExists(path); } catch (IOException ignored) { ; }
+    }
+
+    /**
+     * Close the link when a stream ends, eg the socket the link was agreed on, so that
+     * a side that goes away without closing the link (say it crashed) is noticed.
+     * Anything read from the stream is ignored.
+     *
+     * @param socket A stream that nothing else reads any more
+     */
+    public void closeWhenEnded(InputStream socket) {
+        Thread.ofVirtual().name("opi-link-watch").start(() -> {
+            try {
+                while (socket.read() >= 0)
+                    ;
+            } catch (IOException ignored) { ; }
+            close();
+        });
+    }
+
+    private boolean closed(int ring) { return (long) LONG.getAcquire(map, ring + CLOSED) != 0; }
+
+    /** Wait a little: spin for the first {@link SPINS} rounds, then park for longer and longer */
+    private static void pause(int round) {
+        if (round < SPINS)
+            Thread.onSpinWait();
+        else
+            LockSupport.parkNanos(Math.min(MAX_PARK, 1000L << Math.min(10, round - SPINS)));
+    }
+
+    private class RingInputStream extends InputStream {
+        private final byte[] one = new byte[1];
+
+        @Override
+        public int read() throws IOException {
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            long tail = (long) LONG.getOpaque(map, inRing + TAIL);
+            long head;
+            for (int round = 0 ; (head = (long) LONG.getAcquire(map, inRing + HEAD)) == tail ; round++) {
+                if (isClosed())
+                    return -1;
+                pause(round);
+            }
+            int n = (int) Math.min(len, head - tail);
+            int at = (int) (tail & (capacity - 1));
+            int first = Math.min(n, capacity - at);
+            map.get(inRing + DATA + at, b, off, first);
+            if (first < n)
+                map.get(inRing + DATA, b, off + first, n - first);
+            LONG.setRelease(map, inRing + TAIL, tail + n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return (int) ((long) LONG.getAcquire(map, inRing + HEAD) - (long) LONG.getOpaque(map, inRing + TAIL));
+        }
+    }
+
+    private class RingOutputStream extends OutputStream {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                long head = (long) LONG.getOpaque(map, outRing + HEAD);
+                long tail;
+                for (int round = 0 ; head - (tail = (long) LONG.getAcquire(map, outRing + TAIL)) == capacity ; round++) {
+                    if (isClosed())
+                        throw new IOException(CLOSED_LINK);
+                    pause(round);
+                }
+                if (isClosed())
+                    throw new IOException(CLOSED_LINK);
+                int n = (int) Math.min(len, capacity - (head - tail));
+                int at = (int) (head & (capacity - 1));
+                int first = Math.min(n, capacity - at);
+                map.put(outRing + DATA + at, b, off, first);
+                if (first < n)
+                    map.put(outRing + DATA, b, off + first, n - first);
+                LONG.setRelease(map, outRing + HEAD, head + n);
+                off += n;
+                len -= n;
+            }
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package org.lei.opi.core;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+import org.lei.opi.core.OpiListener.Command;
+import org.lei.opi.core.OpiListener.Encoding;
+import org.lei.opi.core.OpiListener.Framing;
+import org.lei.opi.core.definitions.Packet;
+
+import com.google.gson.JsonParser;
+
+/**
+ * Drives synthetic setup, present and query messages through the paths a real one takes,
+ * so that the JIT has compiled them before the first client arrives rather than during its first presentations.
+ *
+ * Each message is decoded (as JSON and as binary in turn), validated and dispatched by reflection
+ * ({@link OpiMachine#processPairs}) to a {@link StandIn} machine that has the parameters of {@link Jovp}
+ * but talks to nothing, and its reply is written with a {@link PacketWriter}, read back and checked
+ * as a client would. A listener can do more with the validated pairs in {@link OpiListener#warmUp}
+ * (eg OPI-JOVP builds its Stimulus objects from them).
+ *
+ * A listener runs this once per JVM before its first accept (see {@link OpiListener#setWarmUp}).
+ *
+ * @since 3.0.0
+ */
+public final class WarmUp {
+
+    /** Default number of rounds of setup, present and query: {@value ROUNDS} */
+    public static final int ROUNDS = 2000;
+    /** {@value REPORT} */
+    static final String REPORT = "Warm-up: %d rounds of setup/present/query in %d ms, %.1f us a round cold and %.1f us warm (%d errors)";
+    /** Number of final rounds averaged for the warm time */
+    private static final int WARM_ROUNDS = 100;
+
+    private static final String SETUP = "{\"command\":\"setup\",\"id\":\"warm-up\",\"eye\":\"both\",\"bgLum\":10,\"bgCol\":[1,1,1],\"fixShape\":\"maltese\",\"fixLum\":20}";
+    private static final String PRESENT = "{\"command\":\"present\",\"id\":\"warm-up\",\"stim.length\":2,\"eye\":[\"left\",\"left\"],"
+        + "\"x\":[3,-3],\"y\":[3,-9],\"sx\":[0.43,0.43],\"sy\":[0.43,0.43],\"t\":[200,0],\"w\":1500,\"lum\":[100,31.4],\"color1\":[[1,1,1],[1,1,1]]}";
+    private static final String QUERY = "{\"command\":\"query\",\"id\":\"warm-up\"}";
+
+    /**
+     * How the warm-up went.
+     *
+     * @param rounds Rounds run
+     * @param errors Synthetic messages that were answered with an error (should be 0)
+     * @param cold us the first round took
+     * @param warm Mean us the last rounds took
+     * @param millis ms the whole warm-up took
+     */
+    public record Report(int rounds, int errors, double cold, double warm, long millis) {
+        @Override
+        public String toString() { return String.format(REPORT, rounds, millis, cold, warm, errors); }
+    }
+
+    /** A machine with the parameters of {@link Jovp} that answers at once without talking to anything. */
+    static class StandIn extends OpiMachine {
+        private final Settings settings = new Settings();
+        private final BiConsumer<Command, HashMap<String, Object>> also;
+
+        /** @param also Called with each setup and present command's validated pairs */
+        StandIn(BiConsumer<Command, HashMap<String, Object>> also) {
+            super(null);
+            this.also = also;
+            Map<String, MethodData> jovp = metadata(Jovp.class).opiMethods();
+            for (MethodData m : opiMethods.values().toArray(MethodData[]::new))
+                if (jovp.containsKey(m.method().getName()))     // else keep its own (eg cancel)
+                    opiMethods.put(m.method().getName(), new MethodData(m.method(), jovp.get(m.method().getName()).parameters(), m.returnMsgs()));
+            compileValidators();
+        }
+
+        public Settings getSettings() { return settings; }
+        public Packet initialize(HashMap<String, Object> args) { return new Packet(String.format(CONNECTED_TO_HOST, "warm-up", 0)); }
+        public Packet query() { return new Packet(Map.of("warm-up", true)); }
+        public Packet close() { return new Packet(true, "warm-up"); }
+
+        public Packet setup(HashMap<String, Object> args) {
+            also.accept(Command.SETUP, args);
+            return new Packet(args);
+        }
+
+        public Packet present(HashMap<String, Object> args) {
+            also.accept(Command.PRESENT, args);
+            LinkedHashMap<String, Object> response = new LinkedHashMap<String, Object>();
+            response.put("seen", true);
+            response.put("time", 321.0);
+            for (String name : new String[] {"eyexStart", "eyeyStart", "eyedStart", "eyetStart", "eyexEnd", "eyeyEnd", "eyedEnd", "eyetEnd"})
+                response.put(name, 0.0);
+            return new Packet(response);
+        }
+
+        @Override
+        void initialize() { ; }
+    }
+
+    private WarmUp() { ; }
+
+    /**
+     * Run the warm-up.
+     *
+     * @param rounds Rounds of setup, present and query to run
+     * @param also Called with each setup and present command's validated pairs (eg to build what a real machine would)
+     *
+     * @return How it went
+     */
+    public static Report run(int rounds, BiConsumer<Command, HashMap<String, Object>> also) {
+        StandIn machine = new StandIn(also);
+        String[] names = {"setup", "present", "query"};
+        byte[][] json = new byte[names.length][];
+        byte[][] binary = new byte[names.length][];
+        String[] messages = {SETUP, PRESENT, QUERY};
+        for (int i = 0 ; i < messages.length ; i++) {
+            json[i] = messages[i].getBytes(StandardCharsets.UTF_8);
+            binary[i] = BinaryCodec.encode(JsonParser.parseString(messages[i]).getAsJsonObject());
+        }
+
+        ByteBuffer buf = ByteBuffer.allocate(8192);
+        int errors = 0;
+        double cold = 0;
+        double warm = 0;
+        int warmRounds = Math.min(WARM_ROUNDS, Math.max(1, rounds / 10));
+        long start = System.nanoTime();
+        for (int round = 0 ; round < rounds ; round++) {
+            long t0 = System.nanoTime();
+            Encoding encoding = round % 2 == 0 ? Encoding.JSON : Encoding.BINARY;
+            for (int i = 0 ; i < names.length ; i++) {
+                OpiCommand command = OpiListener.decode(encoding == Encoding.JSON ? json[i] : binary[i], encoding);
+                Packet reply = OpiListener.withTransport(command, (c) -> machine.processPairs(c.command(), c.pairs()));
+
+                buf.clear();
+                buf = PacketWriter.write(reply, Framing.LENGTH, encoding, buf);
+                byte[] frame = Arrays.copyOfRange(buf.array(), 4, buf.position());
+                Packet back = encoding == Encoding.JSON
+                    ? OpiListener.gson.fromJson(new String(frame, StandardCharsets.UTF_8), Packet.class)
+                    : BinaryCodec.decodePacket(frame);
+                if (Packet.checkReturnElements(back, machine.opiMethods, names[i]).getError())
+                    errors++;
+            }
+            long t = System.nanoTime() - t0;
+            if (round == 0)
+                cold = t / 1e3;
+            if (round >= rounds - warmRounds)
+                warm += t / 1e3 / warmRounds;
+        }
+        return new Report(rounds, errors, cold, warm, (System.nanoTime() - start) / 1_000_000);
+    }
+}
@@ -1,12 +1,16 @@
 package org.lei.opi.core.definitions;
 
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
-import java.util.HashSet;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonWriter;
 
 import org.lei.opi.core.OpiListener;
 import org.lei.opi.core.OpiMachine;
@@ -19,13 +23,36 @@ public class Packet {
     private boolean close;
     /** true if this message packet contains an error msg */
     private boolean error;
-    /** A valid JSON string */
-    private String msg;
+    /** What msg is made from: any object Gson can serialize (eg a JsonElement decoded from a reply being passed on) */
+    private Object payload;
+    /** A valid JSON string, made from payload the first time it is asked for (see {@link getMsg}) */
+    private String msg = null;
+    /** The id of the command this packet answers, if the command had one (else null) */
+    private String id = null;
+    /** The framing agreed for the rest of the connection by a successful initialize (else null) */
+    private OpiListener.Framing framing = null;
+    /** The encoding agreed for the rest of the connection by a successful initialize (else null) */
+    private OpiListener.Encoding encoding = null;
+    /** For an error that is only because the server is busy, how many ms to wait before trying again (else null) */
+    private Long retryAfter = null;
+    /** The name of the event if this packet was pushed to a subscribed client rather than answering a command (else null) */
+    private String event = null;
+    /** The shared memory link agreed for the rest of the connection by a successful initialize (else null) */
+    private String ring = null;
 
+    /**
+     * The payload o is kept as it is and only serialized when it is sent (or msg is asked for),
+     * so it should not be changed once it is in a Packet until the Packet is settled (see {@link settle}).
+     * Every reply to a command is settled before it is sent (see {@link OpiListener#withTransport}).
+     *
+     * @param error true if o describes an error
+     * @param close true if the socket should be closed that receives this message
+     * @param o The payload
+     */
     public Packet(boolean error, boolean close, Object o) { 
         this.error = error; 
         this.close = close; 
-        this.msg = OpiListener.gson.toJson(o);
+        this.payload = o;
     }
 
     public Packet(Object obj) { this(false, false, obj);}
@@ -33,9 +60,143 @@ public class Packet {
 
     public boolean getClose() { return this.close; }
     public boolean getError() { return this.error; }
-    public String  getMsg() { return this.msg; }
+    /** @return The payload as a JSON string, made the first time it is asked for */
+    public String  getMsg() {
+        String m = this.msg;
+        if (m == null)
+            this.msg = m = OpiListener.gson.toJson(payload);
+        return m;
+    }
+    public String  getId() { return this.id; }
+    public OpiListener.Framing getFraming() { return this.framing; }
+    public OpiListener.Encoding getEncoding() { return this.encoding; }
+    public Long getRetryAfter() { return this.retryAfter; }
+    public String getEvent() { return this.event; }
+    public String getRing() { return this.ring; }
+
+    /**
+     * Tag this packet with the id of the command it answers so that clients
+     * with several commands in flight can match it up.
+     *
+     * @param id The id from the command (null for none)
+     *
+     * @return This packet
+     *
+     * @since 3.0.0
+     */
+    public Packet setId(String id) { this.id = id; return this; }
+
+    /**
+     * Record that sender and receiver switch to framing after this packet.
+     *
+     * @param framing The agreed framing (null for no change)
+     *
+     * @return This packet
+     *
+     * @since 3.0.0
+     */
+    public Packet setFraming(OpiListener.Framing framing) { this.framing = framing; return this; }
+
+    /**
+     * Record that sender and receiver switch to encoding after this packet.
+     *
+     * @param encoding The agreed encoding (null for no change)
+     *
+     * @return This packet
+     *
+     * @since 3.0.0
+     */
+    public Packet setEncoding(OpiListener.Encoding encoding) { this.encoding = encoding; return this; }
 
-    public String toString() { return String.format("Packet\n\tError: %s\n\tClose: %s\n\tMsg: %s\n", error, close, getMsg()); }
+    /**
+     * Mark this (error) packet as a refusal because the server is busy, with a hint of when to send the command again.
+     *
+     * @param retryAfter ms to wait before trying again (null for not busy)
+     *
+     * @return This packet
+     *
+     * @since 3.0.0
+     */
+    public Packet setRetryAfter(Long retryAfter) { this.retryAfter = retryAfter; return this; }
+
+    /**
+     * Mark this packet as an event pushed to a subscribed client rather than the answer to a command.
+     *
+     * @param event The name of the event (null for not an event)
+     *
+     * @return This packet
+     *
+     * @since 3.0.0
+     */
+    public Packet setEvent(String event) { this.event = event; return this; }
+
+    /**
+     * Record that sender and receiver switch to the {@link org.lei.opi.core.SharedMemoryLink} in the file ring after this packet.
+     *
+     * @param ring The path of the agreed link (null for no change)
+     *
+     * @return This packet
+     *
+     * @since 3.0.0
+     */
+    public Packet setRing(String ring) { this.ring = ring; return this; }
+
+    /** {@value UNSERIALIZABLE} */
+    static final String UNSERIALIZABLE = "Cannot make the result into JSON";
+
+    /**
+     * Make the payload into the JsonElement it will be sent as now, rather than when the Packet is written.
+     * A payload that cannot be serialized (eg one holding NaN) then becomes an error while there is still a reply to send,
+     * and the payload can be changed afterwards (eg a map of the pairs of the command it answers) without the change being sent.
+     * A payload that is already a JsonElement or a String is left as it is.
+     *
+     * @return This packet, or an error Packet (closing if this one does) describing why the payload cannot be serialized
+     *
+     * @since 3.0.0
+     */
+    public Packet settle() {
+        if (payload == null || payload instanceof JsonElement || payload instanceof String)
+            return this;
+        try {
+            payload = OpiListener.gson.toJsonTree(payload);
+            return this;
+        } catch (RuntimeException e) {
+            Packet p = error(UNSERIALIZABLE, e);
+            p.close = close;
+            return p;
+        }
+    }
+
+    /**
+     * Write msg as the next value of out: the JSON already made if there is one,
+     * else the payload serialized straight into out (without making msg).
+     *
+     * @param out Where the Packet is being written
+     *
+     * @throws IOException If out cannot be written
+     *
+     * @since 3.0.0
+     */
+    public void writeMsg(JsonWriter out) throws IOException {
+        String m = this.msg;
+        if (m != null)
+            out.jsonValue(m);
+        else if (payload == null)
+            out.nullValue();
+        else
+            OpiListener.gson.toJson(payload, payload.getClass(), out);
+    }
+
+    /**
+     * @return msg as a JsonElement: the one it was decoded from if it was, else the payload made into one without a JSON string in between
+     *
+     * @since 3.0.0
+     */
+    public JsonElement getMsgElement() {
+        return payload instanceof JsonElement e ? e : OpiListener.gson.toJsonTree(payload);
+    }
+
+    public String toString() { return String.format("Packet\n\tId: %s\n\tError: %s\n\tClose: %s\n\tMsg: %s\n", id, error, close, getMsg()); }
 
     /**
      * Create a Packet with error=true
@@ -69,9 +230,31 @@ public class Packet {
     }
 
 
+    /**
+     * Create an event Packet whose msg is an object holding time and then details.
+     * 
+     * @param name Name of the event (eg "onset")
+     * @param time When it happened, in microseconds since the epoch (see {@link OpiListener#eventTime})
+     * @param details Other name:value pairs describing the event (may be empty)
+     * 
+     * @return Packet
+     * 
+     * @since 3.0.0
+     */
+    public static Packet event(String name, long time, Map<String, Object> details) {
+        LinkedHashMap<String, Object> msg = new LinkedHashMap<String, Object>();
+        msg.put("time", time);
+        msg.putAll(details);
+        return new Packet(msg).setEvent(name);
+    }
+
+    /** {@value MISSING_RETURN} */
+    static final String MISSING_RETURN = "Missing return field: %s for command %s in %s";
+
     /**
      * Create a Packet containing msg if it contains all of the ReturnMsg keys 
      * for `commandName` of `machineClass`.
+     * The keys are those worked out for the method in advance (see {@link ReturnFields}), and msg is scanned for them, not parsed.
      *
      * @param msg A valid JSON string representing an Object (presumably a OpiMachine subclass that gave rise to `methods`  )
      * @param methods The opiMethods hashmap from the OpiMachine class that is creating the packet
@@ -81,21 +264,14 @@ public class Packet {
      */
     public static Packet checkReturnElements(String msg, HashMap<String, OpiMachine.MethodData> methods, String commandName) {
         assert(methods.containsKey(commandName));
-        HashSet<ReturnMsg> rms = methods.get(commandName).returnMsgs();
-
-        JsonElement je = OpiListener.gson.fromJson(msg, JsonElement.class);
-
-        if (je.isJsonPrimitive() && rms.size() == 0) {
-            return new Packet(false, false, msg);
-        }
-
-        assert(je.isJsonObject());
-        JsonObject jo = je.getAsJsonObject();
-        for (ReturnMsg rm : rms) {
-            if (!jo.has(rm.name()))
-                return new Packet(true, false, 
-                    "Missing return field: " + rm.name() + " for command " + commandName + " in " + msg.getClass().getName());
+        String missing;
+        try {
+            missing = methods.get(commandName).returnFields().missingIn(msg);
+        } catch (IOException e) {
+            throw new JsonParseException(e);
         }
+        if (missing != null)
+            return new Packet(true, false, String.format(MISSING_RETURN, missing, commandName, msg.getClass().getName()));
         return new Packet(false, false, msg);
     }
 
@@ -106,6 +282,8 @@ public class Packet {
     /**
      * Create if Packet.msg contains all of the ReturnMsg keys 
      * for `commandName` of `machineClass`.
+     * A reply from a machine is checked against the msg it was decoded to, and other payloads against their keys
+     * if they are maps, so only a payload that is neither is serialized (once, see {@link getMsg}) to be scanned.
      *
      * @param packet A packet to check
      * @param methods The opiMethods hashmap from the OpiMachine class that is creating the packet
@@ -117,10 +295,22 @@ public class Packet {
         if (packet.getError())
             return packet;
 
-        Packet p = checkReturnElements(packet.getMsg(), methods, commandName);
-        if (!p.getError())
+        ReturnFields fields = methods.get(commandName).returnFields();
+        String missing;
+        if (fields.size() == 0)
+            missing = null;
+        else if (packet.payload instanceof JsonObject jo)
+            missing = fields.missingIn(jo);
+        else if (packet.payload instanceof Map<?, ?> map)
+            missing = fields.missingIn(map);
+        else
+            try {
+                missing = fields.missingIn(packet.getMsg());
+            } catch (IOException e) {
+                throw new JsonParseException(e);
+            }
+        if (missing == null)
             return packet;
-        else 
-            return p;
+        return new Packet(true, false, String.format(MISSING_RETURN, missing, commandName, String.class.getName()));
     }
-}
\ No newline at end of file
+}
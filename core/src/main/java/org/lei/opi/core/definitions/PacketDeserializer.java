@@ -3,6 +3,9 @@ package org.lei.opi.core.definitions;
 import com.google.gson.JsonParseException;
 
 import java.lang.reflect.Type;
+import java.util.Locale;
+
+import org.lei.opi.core.OpiListener;
 
 import com.google.gson.JsonDeserializationContext;
 import com.google.gson.JsonDeserializer;
@@ -16,8 +19,21 @@ public class PacketDeserializer implements JsonDeserializer<Packet> {
         boolean error = jsonObject.get("error").getAsBoolean();
         boolean close = jsonObject.get("close").getAsBoolean();
 
-        Object msg = jsonObject.get("msg");
+        Object msg = jsonObject.get("msg");    // kept as it is, so only serialized again if it is sent on
 
-        return new Packet(error, close, msg);
+        Packet p = new Packet(error, close, msg);
+        if (jsonObject.has("id"))
+            p.setId(jsonObject.get("id").getAsString());
+        if (jsonObject.has("framing"))
+            p.setFraming(OpiListener.Framing.valueOf(jsonObject.get("framing").getAsString().toUpperCase(Locale.ROOT)));
+        if (jsonObject.has("encoding"))
+            p.setEncoding(OpiListener.Encoding.valueOf(jsonObject.get("encoding").getAsString().toUpperCase(Locale.ROOT)));
+        if (jsonObject.has("retryAfter"))
+            p.setRetryAfter(jsonObject.get("retryAfter").getAsLong());
+        if (jsonObject.has("event"))
+            p.setEvent(jsonObject.get("event").getAsString());
+        if (jsonObject.has("ring"))
+            p.setRing(jsonObject.get("ring").getAsString());
+        return p;
     }
 }
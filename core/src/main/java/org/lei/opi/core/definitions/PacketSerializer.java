@@ -1,28 +1,56 @@
 package org.lei.opi.core.definitions;
 
-import java.lang.reflect.Type;
+import java.io.IOException;
+import java.util.Locale;
 
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
-import com.google.gson.JsonSerializationContext;
-import com.google.gson.JsonSerializer;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 
-public class PacketSerializer implements JsonSerializer<Packet> {
+/**
+ * Writes a Packet as it goes, with its payload serialized straight into the envelope (see {@link Packet#writeMsg})
+ * rather than made into msg and parsed back. Reading is left to {@link PacketDeserializer}.
+ */
+public class PacketSerializer extends TypeAdapter<Packet> {
     public PacketSerializer() {
         super();
     }
 
     @Override
-    public JsonElement serialize(final Packet p, final Type type, final JsonSerializationContext context) {
-        final JsonObject jsonObject = new JsonObject();
+    public void write(final JsonWriter out, final Packet p) throws IOException {
+        if (p == null) {
+            out.nullValue();
+            return;
+        }
+        out.beginObject();
+        if (p.getId() != null)
+            out.name("id").value(p.getId());
+        if (p.getFraming() != null)
+            out.name("framing").value(p.getFraming().name().toLowerCase(Locale.ROOT));
+        if (p.getEncoding() != null)
+            out.name("encoding").value(p.getEncoding().name().toLowerCase(Locale.ROOT));
+        if (p.getRetryAfter() != null)
+            out.name("retryAfter").value(p.getRetryAfter());
+        if (p.getEvent() != null)
+            out.name("event").value(p.getEvent());
+        if (p.getRing() != null)
+            out.name("ring").value(p.getRing());
 
-        jsonObject.add("error", context.serialize(p.getError()));
-        jsonObject.add("close", context.serialize(p.getClose()));
-        JsonElement je = JsonParser.parseString(p.getMsg());
-        jsonObject.add("msg", context.serialize(je));
+        out.name("error").value(p.getError());
+        out.name("close").value(p.getClose());
+        out.name("msg");
+        p.writeMsg(out);
+        out.endObject();
+    }
 
-        return jsonObject;
+    @Override
+    public Packet read(final JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        return new PacketDeserializer().deserialize(JsonParser.parseReader(in), Packet.class, null);
     }
-    
-}
\ No newline at end of file
+}
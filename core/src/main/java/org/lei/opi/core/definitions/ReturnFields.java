@@ -0,0 +1,108 @@
+package org.lei.opi.core.definitions;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+/**
+ * The names of the @ReturnMsg annotations of one OPI method, worked out once with the method
+ * (see {@link org.lei.opi.core.OpiMachine.MethodData}) so that each reply can be checked for them
+ * without parsing it into a tree (see {@link Packet#checkReturnElements}).
+ *
+ * Each name has a bit of a long, so a method can have up to 64 of them. A reply that is JSON is scanned
+ * name by name, skipping the values, and the bits of the names found are or-ed together.
+ *
+ * @since 3.0.0
+ */
+public final class ReturnFields {
+    /** {@value TOO_MANY} */
+    static final String TOO_MANY = "A method can have at most 64 @ReturnMsg names, not %d.";
+
+    /** The names, in the order the first missing one is reported */
+    private final String[] names;
+    /** The bit of each name */
+    private final HashMap<String, Long> bits = new HashMap<String, Long>();
+    /** The bits of all the names */
+    private final long all;
+
+    /**
+     * @param returnMsgs The @ReturnMsg annotations of a method
+     * @throws IllegalArgumentException If they have more than 64 names
+     */
+    public ReturnFields(Set<ReturnMsg> returnMsgs) {
+        ArrayList<String> distinct = new ArrayList<String>();
+        for (ReturnMsg rm : returnMsgs)
+            if (!bits.containsKey(rm.name())) {
+                if (distinct.size() == Long.SIZE)
+                    throw new IllegalArgumentException(String.format(TOO_MANY, returnMsgs.size()));
+                bits.put(rm.name(), 1L << distinct.size());
+                distinct.add(rm.name());
+            }
+        names = distinct.toArray(String[]::new);
+        all = names.length == Long.SIZE ? -1L : (1L << names.length) - 1;
+    }
+
+    /** @return The number of names */
+    public int size() { return names.length; }
+
+    /** @return The first name whose bit is not in found, or null if found has them all */
+    private String missing(long found) {
+        long missing = all & ~found;
+        return missing == 0 ? null : names[Long.numberOfTrailingZeros(missing)];
+    }
+
+    /**
+     * @param jo A reply already decoded
+     * @return The first name that is not a member of jo, or null if none is missing
+     */
+    public String missingIn(JsonObject jo) {
+        for (String name : names)
+            if (!jo.has(name))
+                return name;
+        return null;
+    }
+
+    /**
+     * @param map A reply as name:value pairs
+     * @return The first name that is not a key of map, or null if none is missing
+     */
+    public String missingIn(Map<?, ?> map) {
+        for (String name : names)
+            if (!map.containsKey(name))
+                return name;
+        return null;
+    }
+
+    /**
+     * Scan the names of a JSON object, skipping their values.
+     *
+     * @param json A reply as JSON
+     * @return The first name that json does not have, or null if none is missing.
+     *         Any JSON will do for a method without names; otherwise a JSON value that is not an object is missing them all.
+     * @throws IOException If json is not JSON (read leniently, so NaN and Infinity are numbers)
+     */
+    public String missingIn(String json) throws IOException {
+        if (names.length == 0)
+            return null;
+        JsonReader reader = new JsonReader(new StringReader(json));
+        reader.setLenient(true);    // as JsonParser, that read replies before, is: eg NaN from a machine is a value
+        if (reader.peek() != JsonToken.BEGIN_OBJECT)
+            return names[0];
+        long found = 0;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            Long bit = bits.get(reader.nextName());
+            if (bit != null && (found |= bit) == all)
+                return null;   // the rest need not be read
+            reader.skipValue();
+        }
+        return missing(found);
+    }
+}
@@ -0,0 +1,433 @@
+package org.lei.opi.core;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import org.lei.opi.core.OpiListener.Framing;
+import org.lei.opi.core.definitions.Packet;
+import org.lei.opi.core.definitions.Parameter;
+import org.lei.opi.core.definitions.ReturnFields;
+import org.lei.opi.core.definitions.ReturnMsg;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.reflect.TypeToken;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Timings and allocations of the fast paths against what they replaced. These print what they measure
+ * and check nothing about it, as that depends on the machine and what else it is doing: the tests of
+ * each class check its behaviour.
+ *
+ * Tagged benchmark, so a build leaves them out. Run them with {@code mvn test -Pbenchmark}.
+ *
+ * @since 3.0.0
+ */
+@Tag("benchmark")
+public class Benchmarks {
+
+    /** Print the bytes allocated per reply to a present on a FrameStream, against the Gson path it replaces. */
+    @Test
+    public void packetWriterAllocation() throws IOException {
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().threadId();
+        OutputStream sink = OutputStream.nullOutputStream();
+        FrameStream s = new FrameStream(null, sink);
+        Packet p = TestBinaryEncoding.response();
+        int reps = 100000;
+
+        for (int warm = 0 ; warm < 3 ; warm++) {
+            long a0 = mx.getThreadAllocatedBytes(thread);
+            for (int i = 0 ; i < reps ; i++) {
+                sink.write(Framing.LINE.encode(OpiListener.gson.toJson(p)));
+                sink.flush();
+            }
+            long a1 = mx.getThreadAllocatedBytes(thread);
+            for (int i = 0 ; i < reps ; i++)
+                s.write(p);
+            long a2 = mx.getThreadAllocatedBytes(thread);
+            if (warm == 2)
+                System.out.println(String.format("bytes allocated per Response written: Gson %.0f, PacketWriter %.1f",
+                    (a1 - a0) / (double) reps, (a2 - a1) / (double) reps));
+        }
+    }
+
+    /** Print the bytes allocated checking a present with all its parameters (so that no defaults are made). */
+    @Test
+    public void checkArgsAllocation() {
+        OpiMachine machine = new WarmUp.StandIn((c, pairs) -> { ; });
+        HashMap<String, Object> full = OpiListener.jsonToPairs(TestParameterValidator.PRESENT);
+        machine.checkArgs(full, machine.opiMethods.get("present").parameters(), "present");   // add the defaults once
+
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().threadId();
+        int reps = 10000;
+        for (int warm = 0 ; warm < 3 ; warm++) {
+            long a0 = mx.getThreadAllocatedBytes(thread);
+            for (int i = 0 ; i < reps ; i++)
+                machine.checkArgs(full, machine.opiMethods.get("present").parameters(), "present");
+            long a1 = mx.getThreadAllocatedBytes(thread);
+            if (warm == 2)
+                System.out.println(String.format("checkArgs(present): %.1f bytes a call", (a1 - a0) / (double) reps));
+        }
+    }
+
+    /**
+     * Print the cost of the defaults for the present R sends, against parsing each default from its JSON as every present used to.
+     * Both are timed over the same pairs, from which the defaults are removed again for each call.
+     */
+    @Test
+    public void defaults() {
+        OpiMachine machine = new WarmUp.StandIn((c, pairs) -> { ; });
+        HashMap<String, Object> pairs = OpiListener.jsonToPairs(TestDefaults.PRESENT);
+        List<Parameter> optional = machine.opiMethods.get("present").parameters().stream().filter(p -> p.optional()).toList();
+
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().threadId();
+        int reps = 5000;
+        for (int warm = 0 ; warm < 3 ; warm++) {
+            long t0 = System.nanoTime(), a0 = mx.getThreadAllocatedBytes(thread);
+            for (int i = 0 ; i < reps ; i++) {
+                for (Parameter p : optional)
+                    pairs.remove(p.name());
+                machine.checkArgs(pairs, machine.opiMethods.get("present").parameters(), "present");
+            }
+            long t1 = System.nanoTime(), a1 = mx.getThreadAllocatedBytes(thread);
+            for (int i = 0 ; i < reps ; i++)
+                for (Parameter p : optional)
+                    pairs.put(p.name(), parse(p, 2));
+            long t2 = System.nanoTime(), a2 = mx.getThreadAllocatedBytes(thread);
+            if (warm == 2)
+                System.out.println(String.format("%d defaults a present: cached %.2f us %d bytes, parsed %.2f us %d bytes",
+                    optional.size(), (t1 - t0) / 1e3 / reps, (a1 - a0) / reps, (t2 - t1) / 1e3 / reps, (a2 - a1) / reps));
+        }
+    }
+
+    /** Print the time to make a machine now, against working out its annotations and validators as the constructor of every machine used to */
+    @Test
+    @SuppressWarnings("unchecked")
+    public void metadata() {
+        int reps = 2000;
+        for (int warm = 0 ; warm < 3 ; warm++) {
+            long t0 = System.nanoTime();
+            for (int i = 0 ; i < reps ; i++)
+                new TestMetadata.Plain();
+            long t1 = System.nanoTime();
+            for (int i = 0 ; i < reps ; i++)
+                for (OpiMachine.MethodData m : OpiMachine.metadata(TestMetadata.Plain.class).opiMethods().values()) {
+                    HashSet<Parameter> ps = (HashSet<Parameter>) OpiMachine.getAllAnnotations(TestMetadata.Plain.class, m.method(), Parameter.class);
+                    OpiMachine.getAllAnnotations(TestMetadata.Plain.class, m.method(), ReturnMsg.class);
+                    ParameterValidator.compile(ps, Map.of());
+                }
+            long t2 = System.nanoTime();
+            if (warm == 2)
+                System.out.println(String.format("Metadata: a machine made in %.2f us, its metadata worked out in %.2f us",
+                    (t1 - t0) / 1e3 / reps, (t2 - t1) / 1e3 / reps));
+        }
+    }
+
+    /** Print the time to make the JSON a Jovp sends for a present, in one pass against through the msg of a Packet */
+    @Test
+    public void passThrough() throws IOException {
+        HashMap<String, Object> pairs = TestPassThrough.checked();
+        int reps = 20000;
+        for (int warm = 0 ; warm < 3 ; warm++) {
+            long t0 = System.nanoTime();
+            for (int i = 0 ; i < reps ; i++)
+                OpiMachine.toJson(pairs, "7");
+            long t1 = System.nanoTime();
+            for (int i = 0 ; i < reps ; i++)
+                TestPassThrough.viaPacket(pairs, "7").toString();
+            long t2 = System.nanoTime();
+            if (warm == 2)
+                System.out.println(String.format("Present of 2 sent on: %.2f us in one pass, %.2f us through a Packet",
+                    (t1 - t0) / 1e3 / reps, (t2 - t1) / 1e3 / reps));
+        }
+    }
+
+    /** Print the time to send and to pass on Response and Query sized Packets, against serializing msg when the Packet is made */
+    @Test
+    public void lazyPacket() {
+        int reps = 20000;
+        for (LinkedHashMap<String, Object> payload : List.of(TestLazyPacket.response(), TestLazyPacket.query())) {
+            String name = payload.containsKey("seen") ? "Response" : "Query";
+            String json = OpiListener.gson.toJson(new Packet(payload).setId("9"));
+            for (int warm = 0 ; warm < 3 ; warm++) {
+                long t0 = System.nanoTime();
+                for (int i = 0 ; i < reps ; i++)
+                    OpiListener.gson.toJson(new Packet(payload).setId("9"));
+                long t1 = System.nanoTime();
+                for (int i = 0 ; i < reps ; i++)
+                    eager(OpiListener.gson.toJson(payload), "9");
+                long t2 = System.nanoTime();
+                for (int i = 0 ; i < reps ; i++)
+                    OpiListener.gson.toJson(OpiListener.gson.fromJson(json, Packet.class));
+                long t3 = System.nanoTime();
+                for (int i = 0 ; i < reps ; i++) {
+                    JsonObject jo = JsonParser.parseString(json).getAsJsonObject();
+                    eager(OpiListener.gson.toJson(jo.get("msg")), "9");      // as the PacketDeserializer made msg again
+                }
+                long t4 = System.nanoTime();
+                if (warm == 2)
+                    System.out.println(String.format("%-8s %4d bytes: sent %.2f us (was %.2f us), read and sent on %.2f us (was %.2f us)",
+                        name, json.length(), (t1 - t0) / 1e3 / reps, (t2 - t1) / 1e3 / reps, (t3 - t2) / 1e3 / reps, (t4 - t3) / 1e3 / reps));
+            }
+        }
+    }
+
+    /** The JSON a Packet was sent as before, given the msg made when it was: msg parsed into the envelope and written again */
+    private static String eager(String msg, String id) {
+        JsonObject jo = new JsonObject();
+        jo.addProperty("id", id);
+        jo.addProperty("error", false);
+        jo.addProperty("close", false);
+        jo.add("msg", JsonParser.parseString(msg));
+        return OpiListener.gson.toJson(jo);
+    }
+
+    /** Print the time to check Response and Query sized replies for their returns, against parsing them into a tree as before */
+    @Test
+    public void returnFields() throws IOException {
+        HashMap<String, OpiMachine.MethodData> methods = TestReturnFields.methods();
+        int reps = 50000;
+        String[][] replies = {
+            {"present", "Response", TestBinaryEncoding.response().getMsg()},
+            {"query", "Query", new Packet(TestLazyPacket.query()).getMsg()}
+        };
+        for (String[] r : replies) {
+            ReturnFields fields = methods.get(r[0]).returnFields();
+            for (int warm = 0 ; warm < 3 ; warm++) {
+                long t0 = System.nanoTime();
+                for (int i = 0 ; i < reps ; i++)
+                    fields.missingIn(r[2]);
+                long t1 = System.nanoTime();
+                for (int i = 0 ; i < reps ; i++) {
+                    JsonObject jo = JsonParser.parseString(r[2]).getAsJsonObject();
+                    for (ReturnMsg rm : methods.get(r[0]).returnMsgs())
+                        if (!jo.has(rm.name()))
+                            break;
+                }
+                long t2 = System.nanoTime();
+                if (warm == 2)
+                    System.out.println(String.format("%-8s %4d bytes checked: scanned %.2f us, parsed %.2f us",
+                        r[1], r[2].length(), (t1 - t0) / 1e3 / reps, (t2 - t1) / 1e3 / reps));
+            }
+        }
+    }
+
+    /** Print the mean time for a query to go to a listener and back, over loopback TCP and over a Unix domain socket. */
+    @Test
+    public void unixSocket() throws IOException, InterruptedException {
+        Path path = Files.createTempDirectory("opi").resolve("benchmark.sock");
+        OpiListener tcp = new OpiListener(0, new TestUnixSocket.QuietEcho());
+        OpiListener unix = new OpiListener(path, new TestUnixSocket.QuietEcho(), OpiListener.Mode.SINGLE);
+
+        OpiMachine overTcp = new TestUnixSocket.QuietEcho();
+        OpiMachine overUnix = new TestUnixSocket.QuietEcho();
+        overTcp.connect("localhost", tcp.getPort());
+        overUnix.connect(path);
+
+        int reps = 5000;
+        for (int warm = 0 ; warm < 3 ; warm++) {
+            double t = roundTrip(overTcp, reps);
+            double u = roundTrip(overUnix, reps);
+            if (warm == 2)
+                System.out.println(String.format("query round trip: loopback TCP %.1f us, Unix domain socket %.1f us", t, u));
+        }
+
+        for (OpiMachine client : new OpiMachine[] {overTcp, overUnix}) {
+            client.request("{\"command\":\"close\"}");
+            client.closeSocket();
+        }
+        tcp.join(5000);
+        unix.join(5000);
+    }
+
+    /** Print the mean time for a query to go to a listener and back, over loopback TCP and over a shared memory link. */
+    @Test
+    public void sharedMemory() throws IOException, InterruptedException {
+        Path path = Files.createTempDirectory("opi").resolve("benchmark.ring");
+        OpiListener tcp = new OpiListener(0, new TestSharedMemory.RingEcho());
+        OpiListener ring = new OpiListener(0, new TestSharedMemory.RingEcho());
+
+        OpiMachine overTcp = new TestSharedMemory.RingEcho();
+        OpiMachine overRing = new TestSharedMemory.RingEcho();
+        overTcp.connect("localhost", tcp.getPort());
+        overRing.connect("localhost", ring.getPort());
+        TestSharedMemory.initialize(overRing, path);
+
+        int reps = 5000;
+        for (int warm = 0 ; warm < 3 ; warm++) {
+            double t = roundTrip(overTcp, reps);
+            double r = roundTrip(overRing, reps);
+            if (warm == 2)
+                System.out.println(String.format("query round trip: loopback TCP %.1f us, shared memory %.1f us", t, r));
+        }
+
+        for (OpiMachine client : new OpiMachine[] {overTcp, overRing}) {
+            client.request("{\"command\":\"close\"}");
+            client.closeSocket();
+        }
+        tcp.join(5000);
+        ring.join(5000);
+    }
+
+    /** Mean us for reps queries, one after another */
+    private static double roundTrip(OpiMachine client, int reps) throws IOException {
+        long t0 = System.nanoTime();
+        for (int i = 0 ; i < reps ; i++)
+            client.request("{\"command\":\"query\"}");
+        return (System.nanoTime() - t0) / 1e3 / reps;
+    }
+
+    /** Print bytes and encode/decode times for both encodings of a present of n stimuli and a Response. */
+    @Test
+    public void binaryEncoding() {
+        int reps = 20000;
+        for (int n : new int[] {1, 10}) {
+            JsonObject jo = TestBinaryEncoding.present(n);
+            String json = jo.toString();
+            byte[] binary = BinaryCodec.encode(jo);
+            System.out.println(String.format("present of %2d: JSON %5d bytes, binary %5d bytes", n, json.getBytes(StandardCharsets.UTF_8).length, binary.length));
+
+            for (int warm = 0 ; warm < 2 ; warm++) {
+                long t0 = System.nanoTime();
+                for (int i = 0 ; i < reps ; i++) jo.toString().getBytes(StandardCharsets.UTF_8);
+                long t1 = System.nanoTime();
+                for (int i = 0 ; i < reps ; i++) BinaryCodec.encode(jo);
+                long t2 = System.nanoTime();
+                for (int i = 0 ; i < reps ; i++) OpiCommand.decode(json);
+                long t3 = System.nanoTime();
+                for (int i = 0 ; i < reps ; i++) BinaryCodec.decodeCommand(binary);
+                long t4 = System.nanoTime();
+                if (warm == 1)
+                    System.out.println(String.format("    encode: JSON %6.2f us, binary %6.2f us.  decode: JSON %6.2f us, binary %6.2f us",
+                        (t1 - t0) / 1e3 / reps, (t2 - t1) / 1e3 / reps, (t3 - t2) / 1e3 / reps, (t4 - t3) / 1e3 / reps));
+            }
+        }
+
+        Packet p = TestBinaryEncoding.response();
+        String json = OpiListener.gson.toJson(p);
+        byte[] binary = BinaryCodec.encode(p);
+        System.out.println(String.format("Response    : JSON %5d bytes, binary %5d bytes", json.getBytes(StandardCharsets.UTF_8).length, binary.length));
+        for (int warm = 0 ; warm < 2 ; warm++) {
+            long t0 = System.nanoTime();
+            for (int i = 0 ; i < reps ; i++) OpiListener.gson.toJson(p).getBytes(StandardCharsets.UTF_8);
+            long t1 = System.nanoTime();
+            for (int i = 0 ; i < reps ; i++) BinaryCodec.encode(p);
+            long t2 = System.nanoTime();
+            for (int i = 0 ; i < reps ; i++) OpiListener.gson.fromJson(json, Packet.class);
+            long t3 = System.nanoTime();
+            for (int i = 0 ; i < reps ; i++) BinaryCodec.decodePacket(binary);
+            long t4 = System.nanoTime();
+            if (warm == 1)
+                System.out.println(String.format("    encode: JSON %6.2f us, binary %6.2f us.  decode: JSON %6.2f us, binary %6.2f us",
+                    (t1 - t0) / 1e3 / reps, (t2 - t1) / 1e3 / reps, (t3 - t2) / 1e3 / reps, (t4 - t3) / 1e3 / reps));
+        }
+    }
+
+    /** Print the time for many concurrent Echo sessions in each multi-session mode, and for successive sessions through a persistent listener */
+    @Test
+    public void listenerModes() throws IOException, InterruptedException {
+        int clients = TestListenerModes.CLIENTS, presents = TestListenerModes.PRESENTS;
+        for (OpiListener.Mode mode : new OpiListener.Mode[] {OpiListener.Mode.MULTIPLEX, OpiListener.Mode.VIRTUAL}) {
+            OpiListener listener = new OpiListener(0, () -> new Echo(null), mode);
+            CountDownLatch go = new CountDownLatch(1);
+            List<TestListenerModes.Client> sessions = TestListenerModes.connect(listener.getPort(), go);
+            long start = System.nanoTime();
+            go.countDown();
+            for (TestListenerModes.Client c : sessions)
+                c.join();
+            long elapsed = System.nanoTime() - start;
+            System.out.println(String.format("%s: %d sessions x %d presents in %.1f ms", mode, clients, presents, elapsed / 1e6));
+            System.out.println(String.format("Connect time: first %.3f ms, last %.3f ms",
+                sessions.get(0).connectNanos / 1e6, sessions.get(clients - 1).connectNanos / 1e6));
+            listener.closeListener();
+        }
+
+        OpiListener listener = new OpiListener(0, new Echo(null), OpiListener.Mode.PERSISTENT);
+        for (int i = 0 ; i < 5 ; i++) {
+            long start = System.nanoTime();
+            TestListenerModes.Client c = new TestListenerModes.Client(listener.getPort(), i, new CountDownLatch(1), new CountDownLatch(0));
+            c.start();
+            c.join();
+            System.out.println(String.format("PERSISTENT: session %d of %d presents in %.1f ms", i, presents, (System.nanoTime() - start) / 1e6));
+        }
+        listener.closeListener();
+    }
+
+    /** Print the time to read Query sized replies, against a byte at a time as OpiMachine did before */
+    @Test
+    public void frameReader() throws IOException {
+        int reps = 20000;
+        byte[] line = (OpiListener.gson.toJson(new Packet(TestLazyPacket.query()).setId("12")) + "\n").getBytes(StandardCharsets.UTF_8);
+        byte[] bytes = new byte[line.length * reps];
+        for (int i = 0 ; i < reps ; i++)
+            System.arraycopy(line, 0, bytes, i * line.length, line.length);
+
+        for (int warm = 0 ; warm < 3 ; warm++) {
+            FrameReader reader = new FrameReader(TestFrameReader.chunks(bytes, 65536));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new ByteArrayInputStream(bytes)));
+            long t0 = System.nanoTime();
+            for (int i = 0 ; i < reps ; i++)
+                reader.readLine();
+            long t1 = System.nanoTime();
+            for (int i = 0 ; i < reps ; i++)
+                readline(in);
+            long t2 = System.nanoTime();
+            if (warm == 2)
+                System.out.println(String.format("Query of %d bytes read: %.2f us from a buffer, %.2f us a byte at a time",
+                    line.length, (t1 - t0) / 1e3 / reps, (t2 - t1) / 1e3 / reps));
+        }
+    }
+
+    /** How OpiMachine read a line before (its multi-byte branches never ran as a signed byte is never over 127) */
+    private static String readline(DataInputStream incoming) throws IOException {
+        byte bs[] = new byte[4];
+        StringBuffer str = new StringBuffer(128);
+        bs[0] = incoming.readByte();
+        while (bs[0] != '\n') {
+            if (bs[0] < 128)
+                str.append((char)bs[0]);
+            else if (bs[0] < 2048) {
+                bs[1] = incoming.readByte();
+                str.append(new String(Arrays.copyOfRange(bs, 0, 2), "UTF-8"));
+            }
+            bs[0] = incoming.readByte();
+        }
+        return(str.toString());
+    }
+
+    /** A default as every present made it before they were cached */
+    @SuppressWarnings("unchecked")
+    private static Object parse(Parameter param, int length) {
+        Type t = TypeToken.get(param.className()).getType();
+        if (param.isList())
+            t = TypeToken.getParameterized(ArrayList.class, param.className()).getType();
+        else if (param.isListList())
+            t = TypeToken.getParameterized(ArrayList.class, TypeToken.getParameterized(ArrayList.class, param.className()).getType()).getType();
+        Object value = param.defaultValue().length() == 0 ? "" : OpiListener.gson.fromJson(param.defaultValue(), t);
+        if (value instanceof ArrayList<?> a)
+            while (a.size() < length)
+                ((ArrayList<Object>) a).add(a.get(0));
+        return OpiMachine.gson.fromJson(OpiMachine.gson.toJsonTree(value), Object.class);
+    }
+}
@@ -0,0 +1,167 @@
+package org.lei.opi.core;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.lei.opi.core.OpiListener.Encoding;
+import org.lei.opi.core.OpiListener.Framing;
+import org.lei.opi.core.definitions.Packet;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/**
+ * The binary encoding gives the same commands and Packets as JSON, can be agreed at initialize,
+ * and is smaller than JSON for a JOVP present and its Response.
+ *
+ * @since 3.0.0
+ */
+public class TestBinaryEncoding {
+
+    /** A present of n stimuli with all of the JOVP present parameters, as Jovp.present sends it */
+    static JsonObject present(int n) {
+        JsonObject jo = new JsonObject();
+        jo.addProperty("command", "present");
+        jo.addProperty("id", "42");
+        jo.addProperty("stim.length", n);
+        jo.addProperty("w", 1500);
+        String[][] enums = {{"eye", "LEFT"}, {"shape", "CIRCLE"}, {"type", "FLAT"}, {"envType", "NONE"},
+                            {"optotype", "E"}, {"imageFilename", "x.jpg"}};
+        for (String[] e : enums) {
+            JsonArray a = new JsonArray();
+            for (int i = 0 ; i < n ; i++)
+                a.add(e[1]);
+            jo.add(e[0], a);
+        }
+        String[] doubles = {"x", "y", "sx", "sy", "t", "lum", "rotation", "contrast", "phase", "frequency",
+                            "envSdx", "envSdy", "envRotation", "defocus", "texRotation", "fullFoV"};
+        for (int d = 0 ; d < doubles.length ; d++) {
+            JsonArray a = new JsonArray();
+            for (int i = 0 ; i < n ; i++)
+                a.add(d < 4 ? -27.0 + 6.0 * i + 0.1 * d : d * 10.0 + i);  // locations with fractions, the rest whole
+            jo.add(doubles[d], a);
+        }
+        for (String c : new String[] {"color1", "color2"}) {
+            JsonArray a = new JsonArray();
+            for (int i = 0 ; i < n ; i++) {
+                JsonArray rgb = new JsonArray();
+                rgb.add(1); rgb.add(0.5); rgb.add(0.25);
+                a.add(rgb);
+            }
+            jo.add(c, a);
+        }
+        return jo;
+    }
+
+    /** A Packet holding a JOVP Response as OpiJovp sends it */
+    static Packet response() {
+        String r = "{\"seen\":true,\"time\":312,\"eyexStart\":-3,\"eyeyStart\":12,\"eyedStart\":80,\"eyetStart\":-6," +
+                   "\"eyexEnd\":4,\"eyeyEnd\":-1,\"eyedEnd\":79,\"eyetEnd\":2}";
+        return new Packet(JsonParser.parseString(r)).setId("42");
+    }
+
+    @Test
+    public void sameAsJson() {
+        JsonObject jo = present(5);
+        jo.addProperty("unknown name", -1e-300);
+        jo.addProperty("decimals", -0.125);
+        jo.addProperty("float", 0.0078125);   // 2^-7, a 32 bit float
+        jo.add("nested", JsonParser.parseString("{\"a\":[true,false,null],\"b\":-123456789012}"));
+        OpiCommand json = OpiCommand.decode(jo.toString());
+        OpiCommand binary = BinaryCodec.decodeCommand(BinaryCodec.encode(jo));
+
+        Assertions.assertEquals(json.command(), binary.command());
+        Assertions.assertEquals(json.id(), binary.id());
+        Assertions.assertEquals(OpiListener.gson.toJsonTree(json.pairs()), OpiListener.gson.toJsonTree(binary.pairs()));
+        Assertions.assertEquals("42", binary.id());
+
+        Packet p = response();
+        Packet q = BinaryCodec.decodePacket(BinaryCodec.encode(p));
+        Assertions.assertEquals(JsonParser.parseString(p.getMsg()), JsonParser.parseString(q.getMsg()));
+        Assertions.assertEquals(p.getId(), q.getId());
+        Assertions.assertEquals(p.getError(), q.getError());
+        Assertions.assertEquals(p.getClose(), q.getClose());
+
+        p = Packet.error("Bad\nthing é").setFraming(Framing.LENGTH).setEncoding(Encoding.BINARY);
+        q = BinaryCodec.decodePacket(BinaryCodec.encode(p));
+        Assertions.assertEquals(p.getMsg(), q.getMsg());
+        Assertions.assertTrue(q.getError());
+        Assertions.assertEquals(Encoding.BINARY, q.getEncoding());
+
+        byte[] b = BinaryCodec.encode(jo);
+        Assertions.assertThrows(com.google.gson.JsonSyntaxException.class, () -> BinaryCodec.decodeCommand(java.util.Arrays.copyOf(b, b.length - 1)));
+        Assertions.assertThrows(com.google.gson.JsonSyntaxException.class, () -> BinaryCodec.decodeCommand(new byte[] {(byte)0x9f}));
+    }
+
+    @Test
+    public void longs() {
+        long big = (1L << 53) + 1;     // not a double
+        Packet p = new Packet(JsonParser.parseString("{\"big\":" + big + ",\"min\":" + Long.MIN_VALUE + ",\"huge\":1e300,\"beyond\":18446744073709551617}"));
+        JsonObject msg = JsonParser.parseString(BinaryCodec.decodePacket(BinaryCodec.encode(p)).getMsg()).getAsJsonObject();
+        Assertions.assertEquals(big, msg.get("big").getAsLong());
+        Assertions.assertEquals(Long.MIN_VALUE, msg.get("min").getAsLong());
+        Assertions.assertEquals(1e300, msg.get("huge").getAsDouble());
+        Assertions.assertEquals(18446744073709551617.0, msg.get("beyond").getAsDouble());   // beyond a long, as the double it is
+
+        JsonObject jo = new JsonObject();
+        jo.addProperty("big", big);
+        Packet q = BinaryCodec.decodePacket(BinaryCodec.encode(new Packet(jo)));
+        Assertions.assertEquals(big, JsonParser.parseString(q.getMsg()).getAsJsonObject().get("big").getAsLong());
+    }
+
+    /** The binary form of a present and of a Response is smaller than their JSON (their speed is measured in {@link Benchmarks}) */
+    @Test
+    public void smaller() {
+        for (int n : new int[] {1, 10}) {
+            JsonObject jo = present(n);
+            Assertions.assertTrue(BinaryCodec.encode(jo).length < jo.toString().getBytes(StandardCharsets.UTF_8).length);
+        }
+        Packet p = response();
+        Assertions.assertTrue(BinaryCodec.encode(p).length < OpiListener.gson.toJson(p).getBytes(StandardCharsets.UTF_8).length / 2);
+    }
+
+    @Test
+    public void binarySingle() throws IOException {
+        OpiListener listener = new OpiListener(0, new TestFraming.InitEcho());
+        negotiate(listener.getPort());
+        listener.closeListener();
+    }
+
+    @Test
+    public void binaryMultiplex() throws IOException {
+        OpiListener listener = new OpiListener(0, () -> new TestFraming.InitEcho(), OpiListener.Mode.MULTIPLEX);
+        negotiate(listener.getPort());
+        listener.closeListener();
+    }
+
+    @Test
+    public void binaryVirtual() throws IOException {
+        OpiListener listener = new OpiListener(0, () -> new TestFraming.InitEcho(), OpiListener.Mode.VIRTUAL);
+        negotiate(listener.getPort());
+        listener.closeListener();
+    }
+
+    /** Agree binary with an OpiMachine as the client, and then present through it */
+    private void negotiate(int port) throws IOException {
+        OpiMachine client = new TestFraming.InitEcho();
+        Assertions.assertTrue(client.connect("localhost", port));
+
+        JsonObject init = JsonParser.parseString("{\"command\":\"initialize\",\"ip\":\"localhost\",\"port\":50000,\"framing\":\"length\",\"encoding\":\"binary\"}").getAsJsonObject();
+        Packet p = client.request(init);
+        Assertions.assertFalse(p.getError(), p.getMsg());
+        Assertions.assertEquals(Encoding.BINARY, client.encoding);
+
+        p = client.request(present(3));
+        Assertions.assertFalse(p.getError(), p.getMsg());
+        JsonObject echoed = JsonParser.parseString(p.getMsg()).getAsJsonObject();
+        Assertions.assertEquals(0.5, echoed.getAsJsonArray("color2").get(2).getAsJsonArray().get(1).getAsDouble());
+        Assertions.assertEquals("CIRCLE", echoed.getAsJsonArray("shape").get(0).getAsString());
+
+        client.send("{\"command\":\"close\"}");
+        client.closeSocket();
+    }
+}
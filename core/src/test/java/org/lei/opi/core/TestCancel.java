@@ -0,0 +1,140 @@
+package org.lei.opi.core;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.lei.opi.core.definitions.Packet;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/**
+ * A cancel sent while a present is running is answered at once, and the present
+ * then returns with a cancelled error rather than running to the end.
+ *
+ * @since 3.0.0
+ */
+public class TestCancel {
+
+    /** An Echo whose present waits (up to 5 s) until it is cancelled, and counts down started once it is waiting. */
+    static class CancelEcho extends Echo {
+        private final CountDownLatch started;
+        private volatile CountDownLatch latch;
+        /** Whether the last present was cancelled */
+        volatile boolean cancelled = false;
+
+        CancelEcho(CountDownLatch started) {
+            super(null);
+            this.started = started;
+        }
+
+        @Override
+        public Packet present(HashMap<String, Object> args) {
+            latch = new CountDownLatch(1);
+            started.countDown();
+            try {
+                cancelled = latch.await(5, TimeUnit.SECONDS);
+                if (cancelled)
+                    return Packet.error("PRESENT was cancelled");
+            } catch (InterruptedException ignored) { ; }
+            return super.present(args);
+        }
+
+        @Override
+        public Packet cancel() {
+            CountDownLatch l = latch;
+            if (l == null || l.getCount() == 0)
+                return Packet.error("Nothing to cancel");
+            l.countDown();
+            return new Packet("CANCEL successful");
+        }
+    }
+
+    @Test
+    public void cancelSingle() throws IOException, InterruptedException {
+        CountDownLatch started = new CountDownLatch(1);
+        OpiListener listener = new OpiListener(0, new CancelEcho(started));
+        cancel(listener.getPort(), started);
+        listener.closeListener();
+    }
+
+    @Test
+    public void cancelMultiplex() throws IOException, InterruptedException {
+        CountDownLatch started = new CountDownLatch(1);
+        OpiListener listener = new OpiListener(0, () -> new CancelEcho(started), OpiListener.Mode.MULTIPLEX);
+        cancel(listener.getPort(), started);
+        listener.closeListener();
+    }
+
+    /** A client that goes away while its present runs has it cancelled before the next client is served */
+    @Test
+    public void cancelOnDisconnect() throws IOException, InterruptedException {
+        CountDownLatch started = new CountDownLatch(1);
+        CancelEcho echo = new CancelEcho(started);
+        OpiListener listener = new OpiListener(0, echo, OpiListener.Mode.PERSISTENT);
+        try (Socket socket = new Socket("localhost", listener.getPort())) {
+            BufferedWriter out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+            out.write("{\"command\":\"present\"}\n");
+            out.flush();
+            Assertions.assertTrue(started.await(5, TimeUnit.SECONDS));
+        }
+
+        try (Socket socket = new Socket("localhost", listener.getPort())) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            BufferedWriter out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+            out.write("{\"command\":\"query\"}\n");
+            out.flush();
+            Assertions.assertFalse(OpiListener.gson.fromJson(in.readLine(), Packet.class).getError());
+            Assertions.assertTrue(echo.cancelled);    // not still running, nor run to the end
+        }
+        listener.closeListener();
+    }
+
+    @Test
+    public void notCancellable() {
+        Packet p = new Echo(null).cancel();
+        Assertions.assertTrue(p.getError());
+    }
+
+    private void cancel(int port, CountDownLatch started) throws IOException, InterruptedException {
+        try (Socket socket = new Socket("localhost", port)) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            BufferedWriter out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+
+            out.write("{\"command\":\"present\"}\n");
+            out.flush();
+            Assertions.assertTrue(started.await(5, TimeUnit.SECONDS));
+            out.write("{\"command\":\"cancel\"}\n");
+            out.flush();
+
+                // the two replies can come in either order
+            Packet cancelled = OpiListener.gson.fromJson(in.readLine(), Packet.class);
+            Packet present = OpiListener.gson.fromJson(in.readLine(), Packet.class);
+            if (cancelled.getMsg().contains("PRESENT")) {
+                Packet p = cancelled;
+                cancelled = present;
+                present = p;
+            }
+            Assertions.assertFalse(cancelled.getError());
+            Assertions.assertTrue(present.getError());    // cancelled, not run to the end
+            Assertions.assertEquals("PRESENT was cancelled", present.getMsg().replace("\"", ""));
+
+                // the next command waits for the present as usual
+            out.write("{\"command\":\"query\"}\n");
+            out.flush();
+            Assertions.assertFalse(OpiListener.gson.fromJson(in.readLine(), Packet.class).getError());
+
+            out.write("{\"command\":\"close\"}\n");
+            out.flush();
+            Assertions.assertTrue(OpiListener.gson.fromJson(in.readLine(), Packet.class).getClose());
+        }
+    }
+}
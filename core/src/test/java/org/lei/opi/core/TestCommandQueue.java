@@ -0,0 +1,141 @@
+package org.lei.opi.core;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.lei.opi.core.definitions.Packet;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/**
+ * A connection's CommandQueue holds a bounded number of commands, and a client that
+ * floods the server gets overload errors with a retry-after hint straight away.
+ *
+ * @since 3.0.0
+ */
+public class TestCommandQueue {
+
+    /** A pipelined Echo whose presents wait (up to 5 s) until gate is opened, so none can finish before the test lets it */
+    static class GatedEcho extends Echo {
+        private final CountDownLatch gate;
+
+        GatedEcho(CountDownLatch gate) {
+            super(null);
+            this.gate = gate;
+        }
+
+        @Override
+        public boolean isPipelined() { return true; }
+
+        @Override
+        public Packet present(HashMap<String, Object> args) {
+            try { gate.await(5, TimeUnit.SECONDS); } catch (InterruptedException ignored) { ; }
+            return super.present(args);
+        }
+    }
+
+    @Test
+    public void bounded() {
+        CommandQueue q = new CommandQueue(3);
+        OpiCommand query = OpiCommand.decode("{\"command\":\"query\"}");
+        Assertions.assertTrue(q.offer(query));
+        Assertions.assertTrue(q.admit());
+        Assertions.assertTrue(q.offer(query));
+        Assertions.assertFalse(q.offer(query));
+        Assertions.assertFalse(q.admit());
+        Assertions.assertEquals(3, q.size());
+
+        long started = System.nanoTime();
+        Assertions.assertEquals(query, q.poll());
+        Assertions.assertEquals(3, q.size());   // still running
+        q.done(started);
+        Assertions.assertEquals(2, q.size());
+        Assertions.assertTrue(q.offer(query));
+
+        Assertions.assertEquals(4, q.getAdmitted());
+        Assertions.assertEquals(2, q.getRejected());
+        Assertions.assertEquals(3, q.getPeak());
+
+        Packet p = q.overload("7");
+        Assertions.assertTrue(p.getError());
+        Assertions.assertEquals("7", p.getId());
+        Assertions.assertTrue(p.getRetryAfter() >= CommandQueue.MIN_RETRY_AFTER);
+
+        Packet r = OpiListener.gson.fromJson(OpiListener.gson.toJson(p), Packet.class);
+        Assertions.assertEquals(p.getRetryAfter(), r.getRetryAfter());
+        r = BinaryCodec.decodePacket(BinaryCodec.encode(p));
+        Assertions.assertEquals(p.getRetryAfter(), r.getRetryAfter());
+
+            // a command answered twice is a bug, not something to count away
+        CommandQueue once = new CommandQueue(1);
+        Assertions.assertTrue(once.admit());
+        once.done(started);
+        if (CommandQueue.class.desiredAssertionStatus())
+            Assertions.assertThrows(AssertionError.class, () -> once.done(started));
+    }
+
+    @Test
+    public void floodSingle() throws IOException {
+        CountDownLatch gate = new CountDownLatch(1);
+        OpiListener listener = new OpiListener(0, new GatedEcho(gate));
+        listener.setQueueCapacity(4);
+        flood(listener.getPort(), 4, gate);
+        Assertions.assertTrue(listener.getOverloadCount() > 0);
+        listener.closeListener();
+    }
+
+    @Test
+    public void floodMultiplex() throws IOException {
+        CountDownLatch gate = new CountDownLatch(1);
+        OpiListener listener = new OpiListener(0, () -> new GatedEcho(gate), OpiListener.Mode.MULTIPLEX);
+        listener.setQueueCapacity(4);
+        flood(listener.getPort(), 4, gate);
+        Assertions.assertTrue(listener.getOverloadCount() > 0);
+        listener.closeListener();
+    }
+
+    /**
+     * Send 20 presents with ids at once. Only capacity of them are run; the rest come back as overloads
+     * with a retry-after hint before any present replies, as none can finish until gate is opened.
+     */
+    private void flood(int port, int capacity, CountDownLatch gate) throws IOException {
+        int n = 20;
+        try (Socket socket = new Socket("localhost", port)) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            BufferedWriter out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+
+            for (int i = 0 ; i < n ; i++)
+                out.write("{\"command\":\"present\",\"id\":" + i + "}\n");
+            out.flush();
+
+            HashSet<String> ids = new HashSet<String>();
+            for (int i = 0 ; i < n - capacity ; i++) {
+                Packet p = OpiListener.gson.fromJson(in.readLine(), Packet.class);
+                Assertions.assertTrue(ids.add(p.getId()));
+                Assertions.assertNotNull(p.getRetryAfter());    // an overload, not a present
+                Assertions.assertTrue(p.getError());
+            }
+            gate.countDown();
+            for (int i = 0 ; i < capacity ; i++) {
+                Packet p = OpiListener.gson.fromJson(in.readLine(), Packet.class);
+                Assertions.assertTrue(ids.add(p.getId()));
+                Assertions.assertNull(p.getRetryAfter());
+                Assertions.assertFalse(p.getError());
+            }
+
+            out.write("{\"command\":\"close\"}\n");
+            out.flush();
+            Assertions.assertTrue(OpiListener.gson.fromJson(in.readLine(), Packet.class).getClose());
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package org.lei.opi.core;
+
+import java.lang.reflect.RecordComponent;
+import java.util.HashMap;
+import java.util.Objects;
+
+import org.lei.opi.core.definitions.Packet;
+
+import es.optocom.jovp.definitions.EnvelopeType;
+import es.optocom.jovp.definitions.ModelType;
+import es.optocom.jovp.definitions.ViewEye;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/**
+ * The records generated from the @Parameter annotations of {@link Jovp} decode the same values and defaults
+ * as {@link OpiMachine#checkArgs} leaves in the pairs, and check ranges as checkArgs does.
+ *
+ * @since 3.0.0
+ */
+public class TestCommands {
+
+    private static final String PRESENT = "{\"command\":\"present\",\"stim.length\":2,\"eye\":[\"left\",\"RIGHT\"],"
+        + "\"x\":[3,-3],\"y\":[3,-9],\"sx\":[0.43,0.43],\"sy\":[0.43,0.43],\"t\":[200,0],\"w\":1500,\"lum\":[100,31.4],\"color1\":[[1,1,1],[1,0,0]]}";
+
+    @Test
+    public void fromPairs() {
+        JovpCommands.Present p = JovpCommands.Present.fromPairs(OpiListener.jsonToPairs(PRESENT));
+        Assertions.assertEquals(2, p.stimLength());
+        Assertions.assertArrayEquals(new ViewEye[] {ViewEye.LEFT, ViewEye.RIGHT}, p.eye());
+        Assertions.assertArrayEquals(new double[] {3, -3}, p.x());
+        Assertions.assertEquals(1500.0, p.w());
+        Assertions.assertArrayEquals(new double[] {1, 0, 0}, p.color1()[1]);
+            // defaults, one for each of stim.length
+        Assertions.assertArrayEquals(new ModelType[] {ModelType.CIRCLE, ModelType.CIRCLE}, p.shape());
+        Assertions.assertArrayEquals(new EnvelopeType[] {EnvelopeType.NONE, EnvelopeType.NONE}, p.envType());
+        Assertions.assertArrayEquals(new String[] {"x.jpg", "x.jpg"}, p.imageFilename());
+        Assertions.assertEquals(2, p.color2().length);
+        Assertions.assertNull(p.check());
+
+        HashMap<String, Object> pairs = OpiListener.jsonToPairs(PRESENT);
+        pairs.remove("x");
+        Assertions.assertThrows(IllegalArgumentException.class, () -> JovpCommands.Present.fromPairs(pairs));
+    }
+
+    /** The defaults in the records are those checkArgs adds */
+    @Test
+    public void sameDefaults() throws ReflectiveOperationException {
+        OpiMachine machine = new WarmUp.StandIn((c, pairs) -> { ; });
+        HashMap<String, Object> pairs = OpiListener.jsonToPairs("{\"command\":\"setup\",\"eye\":\"both\"}");
+        Assertions.assertNull(machine.checkArgs(pairs, machine.opiMethods.get("setup").parameters(), "setup"));
+        JovpCommands.Setup checked = JovpCommands.Setup.fromPairs(pairs);
+        JovpCommands.Setup defaulted = JovpCommands.Setup.fromPairs(OpiListener.jsonToPairs("{\"command\":\"setup\",\"eye\":\"both\"}"));
+        for (RecordComponent c : JovpCommands.Setup.class.getRecordComponents())
+            Assertions.assertTrue(Objects.deepEquals(c.getAccessor().invoke(checked), c.getAccessor().invoke(defaulted)), c.getName());
+        Assertions.assertEquals(ModelType.MALTESE, defaulted.fixShape());
+        Assertions.assertArrayEquals(new double[] {0, 1, 0}, defaulted.fixCol());
+        Assertions.assertEquals("", defaulted.bgImageFilename());
+    }
+
+    @Test
+    public void check() {
+        HashMap<String, Object> pairs = OpiListener.jsonToPairs(PRESENT.replace("\"x\":[3,-3]", "\"x\":[3,91]"));
+        Packet error = JovpCommands.Present.fromPairs(pairs).check();
+        Assertions.assertEquals(Packet.error(String.format(OpiMachine.OUT_OF_RANGE, "x", "present", Jovp.class, -90.0, 90.0, 91.0)).getMsg(), error.getMsg());
+
+        pairs = OpiListener.jsonToPairs(PRESENT.replace("\"lum\":[100,31.4]", "\"lum\":[]"));
+        error = JovpCommands.Present.fromPairs(pairs).check();
+        Assertions.assertEquals(Packet.error(String.format(OpiMachine.NOT_LIST, "lum", "present", Jovp.class)).getMsg(), error.getMsg());
+    }
+}
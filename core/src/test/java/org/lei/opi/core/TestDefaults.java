@@ -0,0 +1,70 @@
+package org.lei.opi.core;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.lei.opi.core.definitions.Parameter;
+
+import es.optocom.jovp.definitions.EnvelopeType;
+import es.optocom.jovp.definitions.ModelType;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Defaults are parsed once, by parameter, and each command gets its own copy in checked form.
+ * What adding them to a present costs is measured in {@link Benchmarks}.
+ *
+ * @since 3.0.0
+ */
+public class TestDefaults {
+
+    /** What R sends for a present when the caller only gives x, y, lum, t and w: the parameters that are not optional. */
+    static final String PRESENT = "{\"command\":\"present\",\"stim.length\":2,\"eye\":[\"left\",\"left\"],"
+        + "\"x\":[3,-3],\"y\":[3,-9],\"sx\":[0.43,0.43],\"sy\":[0.43,0.43],\"t\":[200,200],\"w\":1500,\"lum\":[100,31.4],\"color1\":[[1,1,1],[1,1,1]]}";
+
+    private final OpiMachine machine = new WarmUp.StandIn((c, pairs) -> { ; });
+
+    private Parameter parameter(String name) {
+        return machine.opiMethods.get("present").parameters().stream().filter(p -> p.name().equals(name)).findFirst().get();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void copies() throws ClassNotFoundException {
+        Parameter color2 = parameter("color2");
+        ArrayList<ArrayList<Double>> a = (ArrayList<ArrayList<Double>>) OpiMachine.buildDefault(color2, 3);
+        Assertions.assertEquals(3, a.size());
+        Assertions.assertEquals(a.get(0), a.get(2));
+        a.get(0).set(0, -1.0);      // changes neither the padding nor the next default
+        Assertions.assertFalse(a.get(2).contains(-1.0));
+        Assertions.assertEquals(3, ((ArrayList<?>) OpiMachine.buildDefault(color2, 3)).size());
+        Assertions.assertFalse(((ArrayList<?>) ((ArrayList<?>) OpiMachine.buildDefault(color2, 1)).get(0)).contains(-1.0));
+
+        HashMap<String, Object> first = check(PRESENT);
+        ((ArrayList<Object>) first.get("imageFilename")).set(0, "changed");
+        HashMap<String, Object> second = check(PRESENT);
+        Assertions.assertEquals(List.of("x.jpg", "x.jpg"), second.get("imageFilename"));
+        Assertions.assertEquals(List.of("x.jpg"), check(PRESENT.replace("\"stim.length\":2", "\"stim.length\":1")).get("imageFilename"));
+    }
+
+    /** Defaults are in the form values that are sent have once checked */
+    @Test
+    public void checked() {
+        HashMap<String, Object> present = check(PRESENT);
+        Assertions.assertArrayEquals(new double[] {1, 1}, (double[]) present.get("contrast"));
+        Assertions.assertEquals(List.of(EnvelopeType.NONE, EnvelopeType.NONE), present.get("envType"));
+
+        HashMap<String, Object> setup = OpiListener.jsonToPairs("{\"command\":\"setup\",\"eye\":\"both\"}");
+        Assertions.assertNull(machine.checkArgs(setup, machine.opiMethods.get("setup").parameters(), "setup"));
+        Assertions.assertEquals(0.0, setup.get("tracking"));      // an Integer parameter, as a number sent for it is decoded
+        Assertions.assertEquals(ModelType.MALTESE, setup.get("fixShape"));
+    }
+
+    private HashMap<String, Object> check(String json) {
+        HashMap<String, Object> pairs = OpiListener.jsonToPairs(json);
+        Assertions.assertNull(machine.checkArgs(pairs, machine.opiMethods.get("present").parameters(), "present"));
+        return pairs;
+    }
+}
@@ -0,0 +1,49 @@
+package org.lei.opi.core;
+
+import java.util.HashMap;
+
+import org.lei.opi.core.OpiListener.Command;
+import org.lei.opi.core.definitions.Packet;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/**
+ * {@link OpiMachine#processPairs} calls the method for each command through the table made with the machine,
+ * with or without the pairs, and reports a method that fails as it did when methods were called by reflection.
+ *
+ * @since 3.0.0
+ */
+public class TestDispatch {
+
+    @Test
+    public void commands() {
+        OpiMachine machine = new WarmUp.StandIn((c, pairs) -> { ; });
+        Packet query = machine.processPairs(Command.QUERY, OpiListener.jsonToPairs("{\"command\":\"query\"}"));
+        Assertions.assertFalse(query.getError());
+        Assertions.assertTrue(query.getMsg().contains("warm-up"));
+
+        HashMap<String, Object> setup = OpiListener.jsonToPairs("{\"command\":\"setup\",\"eye\":\"both\"}");
+        Assertions.assertFalse(machine.processPairs(setup).getError());
+        Assertions.assertTrue(setup.containsKey("fixShape"));  // checked before it was called
+
+            // by name, only the name of a method will do
+        Assertions.assertEquals(Packet.error(String.format(OpiMachine.BAD_COMMAND, "Query", machine.getClass())).getMsg(),
+            machine.processPairs(OpiListener.jsonToPairs("{\"command\":\"Query\"}")).getMsg());
+        Assertions.assertEquals(Packet.error(String.format(OpiMachine.BAD_COMMAND, null, machine.getClass())).getMsg(),
+            machine.processPairs(new HashMap<String, Object>()).getMsg());
+    }
+
+    @Test
+    public void failures() {
+        OpiMachine machine = new WarmUp.StandIn((c, pairs) -> { ; }) {
+            @Override
+            public Packet query() { throw new IllegalStateException("no query"); }
+        };
+        Packet p = machine.processPairs(Command.QUERY, OpiListener.jsonToPairs("{\"command\":\"query\"}"));
+        Assertions.assertTrue(p.getError());
+        String description = Packet.error(String.format(OpiMachine.INVOCATION_FAILED, "query", machine.getClass())).getMsg();
+        Assertions.assertTrue(p.getMsg().startsWith(description.substring(0, description.length() - 1)));   // then the stack trace
+        Assertions.assertTrue(p.getMsg().contains("no query"));
+    }
+}
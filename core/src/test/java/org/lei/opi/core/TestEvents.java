@@ -0,0 +1,112 @@
+package org.lei.opi.core;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import org.lei.opi.core.definitions.Packet;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/**
+ * A client that subscribes gets events pushed on its connection, with a timestamp,
+ * until it unsubscribes or the listener closes; a client that does not subscribe gets none.
+ *
+ * @since 3.0.0
+ */
+public class TestEvents {
+
+    @Test
+    public void eventsSingle() throws IOException {
+        OpiListener listener = new OpiListener(0, new Echo(null));
+        events(listener);
+        listener.closeListener();
+    }
+
+    @Test
+    public void eventsMultiplex() throws IOException {
+        OpiListener listener = new OpiListener(0, () -> new Echo(null), OpiListener.Mode.MULTIPLEX);
+        events(listener);
+        listener.closeListener();
+    }
+
+    @Test
+    public void closed() throws IOException {
+        OpiListener listener = new OpiListener(0, () -> new Echo(null), OpiListener.Mode.MULTIPLEX);
+        try (Socket socket = new Socket("localhost", listener.getPort())) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            BufferedWriter out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+            out.write("{\"command\":\"subscribe\"}\n");
+            out.flush();
+            Assertions.assertFalse(OpiListener.gson.fromJson(in.readLine(), Packet.class).getError());
+            Assertions.assertTrue(listener.hasSubscribers());
+
+            listener.closeListener();
+            Assertions.assertFalse(listener.hasSubscribers());
+            listener.publish(Packet.event("onset", OpiListener.eventTime(), Map.of()));   // nowhere to go, and no error
+        }
+    }
+
+    @Test
+    public void encodings() {
+        Packet p = Packet.event("onset", OpiListener.eventTime(), Map.of("eye", "LEFT")).setId("1");
+        Packet q = OpiListener.gson.fromJson(OpiListener.gson.toJson(p), Packet.class);
+        Assertions.assertEquals("onset", q.getEvent());
+        Assertions.assertEquals("1", q.getId());
+        q = BinaryCodec.decodePacket(BinaryCodec.encode(p));
+        Assertions.assertEquals("onset", q.getEvent());
+        Assertions.assertNull(OpiListener.gson.fromJson(OpiListener.gson.toJson(new Packet("x")), Packet.class).getEvent());
+
+            // a monotonic clock close to the wall clock
+        long t0 = OpiListener.eventTime();
+        long t1 = OpiListener.eventTime();
+        Assertions.assertTrue(t1 >= t0);
+        Assertions.assertTrue(Math.abs(t0 / 1000 - System.currentTimeMillis()) < 1000);
+    }
+
+    private void events(OpiListener listener) throws IOException {
+        try (Socket socket = new Socket("localhost", listener.getPort())) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            BufferedWriter out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+
+            Assertions.assertFalse(listener.hasSubscribers());
+            out.write("{\"command\":\"subscribe\",\"id\":\"s\"}\n");
+            out.flush();
+            Packet p = OpiListener.gson.fromJson(in.readLine(), Packet.class);
+            Assertions.assertFalse(p.getError());
+            Assertions.assertEquals("s", p.getId());
+            Assertions.assertTrue(listener.hasSubscribers());
+
+            long t = OpiListener.eventTime();
+            listener.publish(Packet.event("onset", t, Map.of("eye", "LEFT")));
+            listener.publish(Packet.event("offset", t + 1, Map.of()));
+            p = OpiListener.gson.fromJson(in.readLine(), Packet.class);
+            Assertions.assertEquals("onset", p.getEvent());
+            Assertions.assertEquals(t, OpiListener.gson.fromJson(p.getMsg(), Map.class).get("time") instanceof Number n ? n.longValue() : -1);
+            Assertions.assertEquals("offset", OpiListener.gson.fromJson(in.readLine(), Packet.class).getEvent());
+
+            out.write("{\"command\":\"subscribe\",\"events\":false}\n");
+            out.flush();
+            Assertions.assertNull(OpiListener.gson.fromJson(in.readLine(), Packet.class).getEvent());
+            Assertions.assertFalse(listener.hasSubscribers());
+            listener.publish(Packet.event("onset", t, Map.of()));
+
+                // the next thing read is the reply to query, not an event
+            out.write("{\"command\":\"query\"}\n");
+            out.flush();
+            p = OpiListener.gson.fromJson(in.readLine(), Packet.class);
+            Assertions.assertNull(p.getEvent());
+            Assertions.assertFalse(p.getError());
+
+            out.write("{\"command\":\"close\"}\n");
+            out.flush();
+            Assertions.assertTrue(OpiListener.gson.fromJson(in.readLine(), Packet.class).getClose());
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package org.lei.opi.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Replies from a real machine are read by a {@link FrameReader} as many bytes at a time as have arrived,
+ * and split into \n terminated or length framed messages, whatever the reads split them into.
+ * How that compares with reading a byte at a time is measured in {@link Benchmarks}.
+ *
+ * @since 3.0.0
+ */
+public class TestFrameReader {
+
+    /** A channel over bytes that gives at most chunk of them each read */
+    static ReadableByteChannel chunks(byte[] bytes, int chunk) {
+        return new ReadableByteChannel() {
+            int next = 0;
+            boolean open = true;
+
+            public int read(ByteBuffer dst) {
+                if (next == bytes.length)
+                    return -1;
+                int n = Math.min(chunk, Math.min(dst.remaining(), bytes.length - next));
+                dst.put(bytes, next, n);
+                next += n;
+                return n;
+            }
+            public boolean isOpen() { return open; }
+            public void close() { open = false; }
+        };
+    }
+
+    private static byte[] frame(byte[] message) {
+        return ByteBuffer.allocate(4 + message.length).putInt(message.length).put(message).array();
+    }
+
+    @Test
+    public void lines() throws IOException {
+        String[] lines = {"{\"msg\":\"café 中 😀\"}", "", "x".repeat(20000) + "é", "last"};
+        byte[] bytes = (String.join("\n", lines) + "\n").getBytes(StandardCharsets.UTF_8);
+        for (int chunk : new int[] {1, 2, 3, 7, 4096, bytes.length}) {
+            FrameReader reader = new FrameReader(chunks(bytes, chunk));
+            for (String line : lines)
+                Assertions.assertEquals(line, reader.readLine());
+            Assertions.assertThrows(EOFException.class, () -> reader.readLine());
+        }
+        FrameReader stream = new FrameReader(new ByteArrayInputStream(bytes));   // as from a shared memory link
+        for (String line : lines)
+            Assertions.assertEquals(line, stream.readLine());
+        FrameReader partial = new FrameReader(chunks("no end".getBytes(StandardCharsets.UTF_8), 2));
+        Assertions.assertThrows(EOFException.class, () -> partial.readLine());
+    }
+
+    @Test
+    public void frames() throws IOException {
+        byte[] small = "{\"error\":false}".getBytes(StandardCharsets.UTF_8);
+        byte[] large = new byte[30000];
+        Arrays.fill(large, (byte) 'y');
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        stream.write(frame(small));
+        stream.write(frame(large));
+        stream.write(frame(new byte[0]));
+        stream.write("after\n".getBytes(StandardCharsets.UTF_8));   // as when the framing changes back
+        byte[] bytes = stream.toByteArray();
+        for (int chunk : new int[] {1, 3, 5000, bytes.length}) {
+            FrameReader reader = new FrameReader(chunks(bytes, chunk));
+            Assertions.assertArrayEquals(small, reader.readFrame());
+            Assertions.assertArrayEquals(large, reader.readFrame());
+            Assertions.assertArrayEquals(new byte[0], reader.readFrame());
+            Assertions.assertEquals("after", reader.readLine());
+        }
+        Assertions.assertThrows(EOFException.class, () -> new FrameReader(chunks(Arrays.copyOf(frame(large), 100), 64)).readFrame());
+        Assertions.assertThrows(IOException.class, () -> new FrameReader(chunks(new byte[] {-1, 0, 0, 0}, 4)).readFrame());
+    }
+
+    /** A corrupt length header or a line without end is refused, not read into an array of that size */
+    @Test
+    public void oversized() {
+        Assertions.assertThrows(IOException.class, () -> new FrameReader(chunks(new byte[] {0x7f, -1, -1, -1, '{', '}'}, 6)).readFrame());
+        byte[] endless = new byte[OpiListener.Framing.MAX_FRAME + 2];
+        Arrays.fill(endless, (byte) 'x');
+        Assertions.assertThrows(IOException.class, () -> new FrameReader(chunks(endless, 65536)).readLine());
+    }
+
+    /** Bytes already read when the reader moves to a shared memory link are read before the link's */
+    @Test
+    public void handOver() throws IOException {
+        FrameReader socket = new FrameReader(chunks("{\"ring\":\"r\"}\n{\"seen\":true}\n".getBytes(StandardCharsets.UTF_8), 1000));
+        Assertions.assertEquals("{\"ring\":\"r\"}", socket.readLine());
+        FrameReader ring = socket.handOver(new ByteArrayInputStream("{\"seen\":false}\n".getBytes(StandardCharsets.UTF_8)));
+        Assertions.assertEquals("{\"seen\":true}", ring.readLine());
+        Assertions.assertEquals("{\"seen\":false}", ring.readLine());
+        Assertions.assertThrows(EOFException.class, () -> ring.readLine());
+    }
+}
@@ -0,0 +1,120 @@
+package org.lei.opi.core;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+
+import org.lei.opi.core.OpiListener.Framing;
+import org.lei.opi.core.definitions.Packet;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Negotiate length-prefixed framing at initialize with an Echo machine in each listener mode.
+ *
+ * @since 3.0.0
+ */
+public class TestFraming {
+
+    /** An Echo that can initialize without a settings file */
+    static class InitEcho extends Echo {
+        InitEcho() { super(null); }
+
+        @Override
+        public Packet initialize(HashMap<String, Object> args) { return new Packet("Initialized"); }
+    }
+
+    @Test
+    public void lengthFramingSingle() throws IOException {
+        OpiListener listener = new OpiListener(0, new InitEcho());
+        negotiate(listener.getPort());
+        listener.closeListener();
+    }
+
+    @Test
+    public void lengthFramingMultiplex() throws IOException {
+        OpiListener listener = new OpiListener(0, () -> new InitEcho(), OpiListener.Mode.MULTIPLEX);
+        negotiate(listener.getPort());
+        listener.closeListener();
+    }
+
+    @Test
+    public void lengthFramingVirtual() throws IOException {
+        OpiListener listener = new OpiListener(0, () -> new InitEcho(), OpiListener.Mode.VIRTUAL);
+        negotiate(listener.getPort());
+        listener.closeListener();
+    }
+
+    /** A corrupt length header or a line without end is refused, not read into an array of that size */
+    @Test
+    public void oversized() throws IOException {
+        FrameStream frames = new FrameStream(new ByteArrayInputStream(new byte[] {0x7f, -1, -1, -1, '{', '}'}), new ByteArrayOutputStream());
+        frames.setFraming(Framing.LENGTH);
+        Assertions.assertThrows(IOException.class, () -> frames.read());
+        FrameStream lines = new FrameStream(new InputStream() {
+            public int read() { return 'x'; }
+            public int read(byte[] b, int off, int len) { java.util.Arrays.fill(b, off, off + len, (byte) 'x'); return len; }
+        }, new ByteArrayOutputStream());
+        Assertions.assertThrows(IOException.class, () -> lines.read());
+
+            // a session that is sent one is closed, and the listener carries on
+        OpiListener listener = new OpiListener(0, () -> new InitEcho(), OpiListener.Mode.MULTIPLEX);
+        try (Socket socket = new Socket("localhost", listener.getPort())) {
+            OutputStream out = socket.getOutputStream();
+            out.write(Framing.LINE.encode("{\"command\":\"initialize\",\"ip\":\"localhost\",\"port\":50000,\"framing\":\"length\"}"));
+            out.flush();
+            InputStream in = socket.getInputStream();
+            for (int b = in.read() ; b != '\n' ; b = in.read())
+                ;
+            out.write(new byte[] {0x7f, -1, -1, -1, '{', '}'});
+            out.flush();
+            Assertions.assertEquals(-1, in.read());
+        }
+        negotiate(listener.getPort());
+        listener.closeListener();
+    }
+
+    /** A frame is read with one readInt and one readFully */
+    private static Packet readFrame(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return OpiListener.gson.fromJson(new String(bytes, StandardCharsets.UTF_8), Packet.class);
+    }
+
+    private void negotiate(int port) throws IOException {
+        try (Socket socket = new Socket("localhost", port)) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            OutputStream out = socket.getOutputStream();
+
+                // the answer to initialize is still a line
+            out.write(Framing.LINE.encode("{\"command\":\"initialize\",\"ip\":\"localhost\",\"port\":50000,\"framing\":\"length\"}"));
+            out.flush();
+            StringBuilder line = new StringBuilder();
+            for (int b = in.read() ; b != '\n' ; b = in.read())
+                line.append((char)b);
+            Packet init = OpiListener.gson.fromJson(line.toString(), Packet.class);
+            System.out.println(init);
+            Assertions.assertFalse(init.getError());
+            Assertions.assertEquals(Framing.LENGTH, init.getFraming());
+
+                // after that, frames both ways. Newlines inside the JSON are fine.
+            out.write(Framing.LENGTH.encode("{\"command\":\n\"present\",\"id\":7,\"tag\":\"é\"}"));
+            out.flush();
+            Packet present = readFrame(in);
+            Assertions.assertEquals("7", present.getId());
+            Assertions.assertTrue(present.getMsg().contains("é"), present.getMsg());
+
+            out.write(Framing.LENGTH.encode("{\"command\":\"close\"}"));
+            out.flush();
+            Assertions.assertTrue(readFrame(in).getClose());
+        }
+    }
+}
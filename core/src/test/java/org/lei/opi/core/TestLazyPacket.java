@@ -0,0 +1,114 @@
+package org.lei.opi.core;
+
+import java.util.LinkedHashMap;
+
+import org.lei.opi.core.definitions.Packet;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/**
+ * A Packet keeps its payload and serializes it once: straight into the envelope when it is sent,
+ * or into msg the first time that is asked for. A Packet read from JSON or binary keeps the msg it was decoded to.
+ * What that saves is measured in {@link Benchmarks}.
+ *
+ * @since 3.0.0
+ */
+public class TestLazyPacket {
+
+    /** A payload with the fields of a JOVP Response */
+    static LinkedHashMap<String, Object> response() {
+        LinkedHashMap<String, Object> r = new LinkedHashMap<String, Object>();
+        r.put("seen", true);
+        r.put("time", 312L);
+        for (String name : new String[] {"eyexStart", "eyeyStart", "eyedStart", "eyetStart", "eyexEnd", "eyeyEnd", "eyedEnd", "eyetEnd"})
+            r.put(name, -3.25);
+        return r;
+    }
+
+    /** A payload with the fields of a JOVP Query, its monitor included */
+    static LinkedHashMap<String, Object> query() {
+        LinkedHashMap<String, Object> monitor = new LinkedHashMap<String, Object>();
+        monitor.put("name", "DELL U2723QE");
+        monitor.put("widthMM", 597);
+        monitor.put("heightMM", 336);
+        monitor.put("widthPixels", 3840);
+        monitor.put("heightPixels", 2160);
+        monitor.put("refreshRate", 60);
+        monitor.put("colorDepth", new int[] {8, 8, 8});
+        monitor.put("pixelWidth", 0.1554);
+        monitor.put("pixelHeight", 0.1555);
+        monitor.put("pixelAspect", 1.0);
+
+        LinkedHashMap<String, Object> q = new LinkedHashMap<String, Object>();
+        q.put("distance", 500);
+        q.put("fov", new double[] {62.3, 37.1});
+        q.put("viewMode", "MONO");
+        q.put("input", "MOUSE");
+        q.put("pseudoGray", false);
+        q.put("fullScreen", true);
+        q.put("tracking", false);
+        q.put("maxLum", 235.6);
+        q.put("maxPixel", 255);
+        q.put("lumPrecision", 0.92);
+        q.put("invGammaFile", "/home/opi/gammas/dell_u2723qe_2024_06_11.json");
+        q.put("monitor", monitor);
+        q.put("webcam", "none");
+        for (String name : new String[] {"leftEyex", "leftEyey", "leftEyed", "rightEyex", "rightEyey", "rightEyed"})
+            q.put(name, 0.0);
+        return q;
+    }
+
+    @Test
+    public void once() {
+        Packet p = new Packet(response()).setId("3");
+        String msg = p.getMsg();
+        Assertions.assertSame(msg, p.getMsg());
+        Assertions.assertEquals(JsonParser.parseString(msg), p.getMsgElement());
+        Assertions.assertEquals(envelope(p), OpiListener.gson.toJson(p));
+        Assertions.assertEquals(OpiListener.gson.toJson(new Packet(response()).setId("3")), OpiListener.gson.toJson(p));
+
+        Packet q = OpiListener.gson.fromJson(OpiListener.gson.toJson(new Packet(query())), Packet.class);
+        Assertions.assertSame(q.getMsgElement(), q.getMsgElement());    // the msg it was read as
+        Assertions.assertEquals(JsonParser.parseString(new Packet(query()).getMsg()), q.getMsgElement());
+        Packet b = BinaryCodec.decodePacket(BinaryCodec.encode(new Packet(query())));
+        Assertions.assertEquals(q.getMsgElement(), b.getMsgElement());
+        Assertions.assertEquals(JsonParser.parseString(OpiListener.gson.toJson(q)), JsonParser.parseString(OpiListener.gson.toJson(b)));   // binary has 1 for 1.0
+
+        Assertions.assertEquals("null", new Packet(null).getMsg());
+        Assertions.assertFalse(OpiListener.gson.toJson(new Packet(null)).contains("msg"));
+    }
+
+    @Test
+    public void settled() {
+            // a reply is made into JSON when the command is answered, not when it is written
+        LinkedHashMap<String, Object> args = response();
+        OpiCommand command = OpiCommand.decode("{\"command\":\"present\",\"id\":\"4\"}");
+        Packet p = OpiListener.withTransport(command, (c) -> new Packet(args));
+        args.put("seen", false);
+        Assertions.assertEquals(JsonParser.parseString(new Packet(response()).getMsg()), JsonParser.parseString(p.getMsg()));
+
+            // so one that cannot be is an error reply, not an exception where it is written
+        args.put("eyexStart", Double.NaN);
+        Packet nan = OpiListener.withTransport(command, (c) -> new Packet(true, args));
+        Assertions.assertTrue(nan.getError());
+        Assertions.assertTrue(nan.getClose());
+        Assertions.assertEquals("4", nan.getId());
+        Assertions.assertTrue(nan.getMsg().startsWith("\"Cannot make the result into JSON"), nan.getMsg());
+        Assertions.assertThrows(IllegalArgumentException.class, () -> OpiListener.gson.toJson(new Packet(args)));
+    }
+
+    /** How the PacketSerializer wrote a Packet before: msg made when the Packet was, parsed, and written again in the envelope */
+    private static String envelope(Packet p) {
+        JsonObject jo = new JsonObject();
+        if (p.getId() != null)
+            jo.addProperty("id", p.getId());
+        jo.addProperty("error", p.getError());
+        jo.addProperty("close", p.getClose());
+        jo.add("msg", JsonParser.parseString(p.getMsg()));
+        return OpiListener.gson.toJson(jo);
+    }
+}
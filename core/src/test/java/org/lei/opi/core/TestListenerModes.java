@@ -0,0 +1,167 @@
+package org.lei.opi.core;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Drive many concurrent Echo sessions through one OpiListener in each of the multi-session modes,
+ * and successive sessions through a persistent one.
+ *
+ * @since 3.0.0
+ */
+public class TestListenerModes {
+
+    /** Number of concurrent clients */
+    static final int CLIENTS = 60;
+    /** Number of presents each client sends */
+    static final int PRESENTS = 20;
+
+    /** A client that connects, waits for all the others, then sends presents and a close. */
+    static class Client extends Thread {
+        final int port;
+        final int index;
+        final CountDownLatch connected;
+        final CountDownLatch go;
+        /** How long the connect took (for {@link Benchmarks#listenerModes}) */
+        long connectNanos;
+        String failure = null;
+
+        Client(int port, int index, CountDownLatch connected, CountDownLatch go) {
+            this.port = port;
+            this.index = index;
+            this.connected = connected;
+            this.go = go;
+        }
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            try (Socket socket = new Socket("localhost", port)) {
+                connectNanos = System.nanoTime() - start;
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                BufferedWriter out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+                connected.countDown();
+                go.await();
+
+                for (int i = 0 ; i < PRESENTS ; i++) {
+                    String tag = String.format("client%d_%d", index, i);
+                    out.write(String.format("{\"command\":\"present\",\"tag\":\"%s\"}\n", tag));
+                    out.flush();
+                    String reply = in.readLine();
+                    if (reply == null || !reply.contains(tag) || !reply.contains("\"error\":false")) {
+                        failure = "Client " + index + " got " + reply + " for " + tag;
+                        return;
+                    }
+                }
+
+                out.write("{\"command\":\"close\"}\n");
+                out.flush();
+                String reply = in.readLine();
+                if (reply == null || !reply.contains("\"close\":true"))
+                    failure = "Client " + index + " got " + reply + " for close";
+            } catch (IOException | InterruptedException e) {
+                failure = "Client " + index + " " + e;
+            }
+        }
+    }
+
+    @Test
+    public void multiplexEchoSessions() throws InterruptedException {
+        manyEchoSessions(OpiListener.Mode.MULTIPLEX);
+    }
+
+    @Test
+    public void virtualEchoSessions() throws InterruptedException {
+        manyEchoSessions(OpiListener.Mode.VIRTUAL);
+    }
+
+    @Test
+    public void persistentEchoSessions() throws IOException, InterruptedException {
+        OpiListener listener = new OpiListener(0, new Echo(null), OpiListener.Mode.PERSISTENT);
+        int port = listener.getPort();
+
+            // one client after another, each closing its session, all served by the same listener and machine
+        for (int i = 0 ; i < 5 ; i++) {
+            Client c = new Client(port, i, new CountDownLatch(1), new CountDownLatch(0));
+            c.start();
+            c.join();
+            Assertions.assertNull(c.failure, c.failure);
+            Assertions.assertTrue(listener.isAlive());
+        }
+
+            // a client that goes away without a close does not stop the listener either
+        new Socket("localhost", port).close();
+        Client c = new Client(port, 5, new CountDownLatch(1), new CountDownLatch(0));
+        c.start();
+        c.join();
+        Assertions.assertNull(c.failure, c.failure);
+
+        listener.closeListener();
+        Assertions.assertFalse(listener.isAlive());
+    }
+
+    private void manyEchoSessions(OpiListener.Mode mode) throws InterruptedException {
+        AtomicInteger machinesCreated = new AtomicInteger(0);
+        OpiListener listener = new OpiListener(0, () -> {
+            machinesCreated.incrementAndGet();
+            return new Echo(null);
+        }, mode);
+
+        CountDownLatch go = new CountDownLatch(1);
+        List<Client> clients = connect(listener.getPort(), go);
+
+            // all clients are connected at once
+        for (int tries = 0 ; listener.getSessionCount() < CLIENTS && tries < 100 ; tries++)
+            Thread.sleep(10);
+        Assertions.assertEquals(CLIENTS, listener.getSessionCount());
+
+        go.countDown();
+        for (Client c : clients)
+            c.join();
+
+        for (Client c : clients)
+            Assertions.assertNull(c.failure, c.failure);
+            // each with its own machine
+        Assertions.assertEquals(CLIENTS, machinesCreated.get());
+
+        for (int tries = 0 ; listener.getSessionCount() > 0 && tries < 100 ; tries++)
+            Thread.sleep(10);
+        Assertions.assertEquals(0, listener.getSessionCount());
+
+        listener.closeListener();
+    }
+
+    /**
+     * Start {@link CLIENTS} clients of the listener on port and wait until they have all connected.
+     *
+     * @param port Port the listener is on
+     * @param go Counted down to let the clients send their presents
+     *
+     * @return The clients
+     *
+     * @throws InterruptedException If interrupted while the clients connect
+     */
+    static List<Client> connect(int port, CountDownLatch go) throws InterruptedException {
+        CountDownLatch connected = new CountDownLatch(CLIENTS);
+        List<Client> clients = new ArrayList<Client>();
+        for (int i = 0 ; i < CLIENTS ; i++) {
+            Client c = new Client(port, i, connected, go);
+            clients.add(c);
+            c.start();
+        }
+        connected.await();
+        return clients;
+    }
+}
@@ -0,0 +1,66 @@
+package org.lei.opi.core;
+
+import java.util.HashMap;
+
+import org.lei.opi.core.OpiListener.Command;
+import org.lei.opi.core.definitions.Packet;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/**
+ * The methods, annotations, handles and validators of a class of machine are worked out once, in its {@link OpiMachine.Metadata},
+ * and every machine of the class shares them, so that making another machine (eg one per session) does no reflection.
+ * What that saves is measured in {@link Benchmarks}.
+ *
+ * @since 3.0.0
+ */
+public class TestMetadata {
+
+    @Test
+    public void shared() {
+        OpiMachine a = new WarmUp.StandIn((c, pairs) -> { ; });
+        OpiMachine b = new WarmUp.StandIn((c, pairs) -> { ; });
+        Assertions.assertSame(OpiMachine.metadata(WarmUp.StandIn.class), OpiMachine.metadata(a.getClass()));
+        Assertions.assertSame(a.opiMethods.get("present").method(), b.opiMethods.get("present").method());
+        Assertions.assertFalse(a.opiMethods == b.opiMethods);   // each machine can replace its own entries
+
+            // the stand-in takes the parameters of Jovp without changing those of Jovp or of its own class
+        Assertions.assertSame(OpiMachine.metadata(Jovp.class).opiMethods().get("present").parameters(), a.opiMethods.get("present").parameters());
+        Assertions.assertTrue(OpiMachine.metadata(WarmUp.StandIn.class).opiMethods().get("present").parameters().isEmpty());
+
+        Assertions.assertFalse(a.processPairs(Command.QUERY, new HashMap<String, Object>()).getError());
+        HashMap<String, Object> setup = OpiListener.jsonToPairs("{\"command\":\"setup\",\"eye\":\"both\"}");
+        Assertions.assertFalse(b.processPairs(Command.SETUP, setup).getError());
+        Assertions.assertTrue(setup.containsKey("fixShape"));
+
+            // and none of them can change what the others share
+        Assertions.assertThrows(UnsupportedOperationException.class, () -> OpiMachine.metadata(Jovp.class).enums().clear());
+        Assertions.assertThrows(UnsupportedOperationException.class, () -> a.enums.clear());
+        Assertions.assertThrows(UnsupportedOperationException.class, () -> a.enums.values().iterator().next().clear());
+        Assertions.assertThrows(UnsupportedOperationException.class, () -> OpiMachine.metadata(Jovp.class).opiMethods().clear());
+    }
+
+    @Test
+    public void byName() throws ReflectiveOperationException {
+        Assertions.assertEquals(Echo.class, OpiMachine.machineClass("Echo"));
+        Assertions.assertThrows(ClassNotFoundException.class, () -> OpiMachine.machineClass("Nothing"));
+        Assertions.assertThrows(ClassNotFoundException.class, () -> OpiMachine.machineClass("OpiListener"));
+        Assertions.assertNotNull(OpiMachine.metadata(Echo.class).connecting());
+        Assertions.assertNull(OpiMachine.metadata(WarmUp.StandIn.class).connecting());
+        OpiMachine.warmMetadata();
+        Assertions.assertSame(OpiMachine.metadata(Echo.class), OpiMachine.metadata(OpiMachine.machineClass("Echo")));
+    }
+
+    /** A machine with the methods and annotations of OpiMachine and nothing else */
+    static class Plain extends OpiMachine {
+        Plain() { super(null); }
+        public Settings getSettings() { return null; }
+        public Packet initialize(HashMap<String, Object> args) { return null; }
+        public Packet query() { return null; }
+        public Packet setup(HashMap<String, Object> args) { return null; }
+        public Packet present(HashMap<String, Object> args) { return null; }
+        public Packet close() { return null; }
+        void initialize() { ; }
+    }
+}
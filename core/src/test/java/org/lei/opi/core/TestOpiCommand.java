@@ -0,0 +1,51 @@
+package org.lei.opi.core;
+
+import java.util.HashMap;
+
+import org.lei.opi.core.OpiListener.Command;
+import org.lei.opi.core.OpiListener.Framing;
+
+import com.google.gson.JsonSyntaxException;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/**
+ * OpiCommand.decode gives the same pairs as jsonToPairs, with the transport names pulled out
+ * and lists of numbers as double arrays.
+ *
+ * @since 3.0.0
+ */
+public class TestOpiCommand {
+
+    @Test
+    public void sameAsGson() {
+        String s = "{\"command\":\"present\",\"id\":12,\"stim.length\":2,\"eye\":[\"LEFT\",\"RIGHT\"]," +
+                   "\"x\":[-3,3.5],\"color1\":[[1,1,1],[0,0.5,1]],\"w\":1500,\"flag\":true,\"nothing\":null}";
+        OpiCommand c = OpiCommand.decode(s);
+        HashMap<String, Object> pairs = OpiListener.jsonToPairs(s);
+        pairs.remove("id");
+
+        Assertions.assertEquals(Command.PRESENT, c.command());
+        Assertions.assertEquals("12", c.id());
+        Assertions.assertNull(c.framing());
+        Assertions.assertEquals(OpiListener.gson.toJsonTree(pairs), OpiListener.gson.toJsonTree(c.pairs()));
+        Assertions.assertArrayEquals(new double[] {-3, 3.5}, (double[]) c.pairs().get("x"));
+        Assertions.assertArrayEquals(new double[] {0, 0.5, 1}, ((double[][]) c.pairs().get("color1"))[1]);
+    }
+
+    @Test
+    public void transportNames() {
+        OpiCommand c = OpiCommand.decode("{\"command\":\"Initialize\",\"id\":\"a\",\"framing\":\"LENGTH\"}");
+        Assertions.assertEquals(Command.INITIALIZE, c.command());
+        Assertions.assertEquals("a", c.id());
+        Assertions.assertEquals(Framing.LENGTH, c.framing());
+        Assertions.assertFalse(c.pairs().containsKey("id"));
+        Assertions.assertFalse(c.pairs().containsKey("framing"));
+
+        Assertions.assertNull(OpiCommand.decode("{\"command\":\"dance\"}").command());
+        Assertions.assertNull(OpiCommand.decode("{\"command\":3}").command());
+        Assertions.assertThrows(JsonSyntaxException.class, () -> OpiCommand.decode("{\"command\":\"query\"} x"));
+        Assertions.assertThrows(JsonSyntaxException.class, () -> OpiCommand.decode(""));
+    }
+}
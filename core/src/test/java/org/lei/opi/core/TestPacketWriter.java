@@ -0,0 +1,61 @@
+package org.lei.opi.core;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.lei.opi.core.OpiListener.Encoding;
+import org.lei.opi.core.OpiListener.Framing;
+import org.lei.opi.core.definitions.Packet;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/**
+ * PacketWriter gives the same bytes as Gson and the PacketSerializer.
+ * What it allocates per reply is measured in {@link Benchmarks}.
+ *
+ * @since 3.0.0
+ */
+public class TestPacketWriter {
+
+    private static byte[] written(Packet p, Framing framing, Encoding encoding, int size) {
+        ByteBuffer b = PacketWriter.write(p, framing, encoding, ByteBuffer.allocate(size));
+        return Arrays.copyOf(b.array(), b.position());
+    }
+
+    @Test
+    public void sameAsGson() {
+        Packet[] packets = {
+            TestBinaryEncoding.response(),
+            new Packet(true, "Bye"),
+            Packet.error("Bad <thing> & 'quotes' = \"é\"   😀 \t\n"),
+            new Packet("Initialized").setId("a\"b\\c\u0001<>").setFraming(Framing.LENGTH).setEncoding(Encoding.JSON).setRing("/dev/shm/opi.ring"),
+            Packet.error("Busy").setId("7").setRetryAfter(1234L),
+            new Packet(new double[] {1.5, -2, 1e-300}),
+            Packet.event("onset", 1760000000123456L, Map.of("eye", "LEFT")).setId("p<1>")
+        };
+        for (Packet p : packets)
+            for (Framing f : Framing.values()) {
+                byte[] gson = f.encode(OpiListener.gson.toJson(p));
+                Assertions.assertArrayEquals(gson, written(p, f, Encoding.JSON, 8192), p.toString());
+                Assertions.assertArrayEquals(gson, written(p, f, Encoding.JSON, 4), p.toString());  // grows
+            }
+
+        Packet p = TestBinaryEncoding.response();
+        Assertions.assertArrayEquals(Framing.LENGTH.encode(BinaryCodec.encode(p)), written(p, Framing.LENGTH, Encoding.BINARY, 4));
+
+            // several frames one after another, as a session queues them
+        ByteBuffer b = ByteBuffer.allocateDirect(16);
+        for (Packet q : packets)
+            b = PacketWriter.write(q, Framing.LENGTH, Encoding.JSON, b);
+        Assertions.assertTrue(b.isDirect());
+        b.flip();
+        for (Packet q : packets) {
+            byte[] frame = new byte[b.getInt()];
+            b.get(frame);
+            Assertions.assertArrayEquals(Framing.LENGTH.encode(OpiListener.gson.toJson(q)), Framing.LENGTH.encode(frame));
+        }
+        Assertions.assertFalse(b.hasRemaining());
+    }
+}
@@ -0,0 +1,112 @@
+package org.lei.opi.core;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.lei.opi.core.definitions.Packet;
+
+import es.optocom.jovp.definitions.EnvelopeType;
+import es.optocom.jovp.definitions.ModelType;
+import es.optocom.jovp.definitions.TextureType;
+import es.optocom.jovp.definitions.ViewEye;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/**
+ * The validators compiled for the parameters of {@link Jovp} give the same errors as the checks they replace,
+ * add defaults for missing optional parameters, and replace the names of enum values by their constants.
+ * What checking a valid present allocates is measured in {@link Benchmarks}.
+ *
+ * @since 3.0.0
+ */
+public class TestParameterValidator {
+
+    static final String PRESENT = "{\"command\":\"present\",\"stim.length\":2,\"eye\":[\"left\",\"RIGHT\"],"
+        + "\"x\":[3,-3],\"y\":[3,-9],\"sx\":[0.43,0.43],\"sy\":[0.43,0.43],\"t\":[200,0],\"w\":1500,\"lum\":[100,31.4],\"color1\":[[1,1,1],[1,1,1]]}";
+
+    private final OpiMachine machine = new WarmUp.StandIn((c, pairs) -> { ; });
+
+    /** @return The error message from checking present with PRESENT with name set to value (or removed if null), or null if it is valid */
+    private String check(String name, Object value) {
+        HashMap<String, Object> pairs = OpiListener.jsonToPairs(PRESENT);
+        if (value == null)
+            pairs.remove(name);
+        else
+            pairs.put(name, value);
+        Packet error = machine.checkArgs(pairs, machine.opiMethods.get("present").parameters(), "present");
+        return error == null ? null : error.getMsg();
+    }
+
+    private String expected(String format, Object... args) {
+        Object[] all = new Object[args.length + 2];
+        System.arraycopy(args, 0, all, 0, args.length);
+        all[args.length] = "present";
+        all[args.length + 1] = machine.getClass();
+        return message(String.format(format, all));
+    }
+
+    /** @return msg as it is in an error Packet */
+    private static String message(String msg) { return Packet.error(msg).getMsg(); }
+
+    private static ArrayList<Object> list(Object... values) { return new ArrayList<Object>(List.of(values)); }
+
+    @Test
+    public void valid() {
+        Assertions.assertNull(check("x", list(3.0, -3.0)));
+        Assertions.assertNull(check("eye", list("Left", "both")));    // in any case
+        Assertions.assertNull(check("w", 0.0));
+    }
+
+    @Test
+    public void errors() {
+        Assertions.assertEquals(expected(OpiMachine.MISSING_PARAMETER, "x"), check("x", null));
+        Assertions.assertEquals(expected(OpiMachine.YES_LIST, "w"), check("w", list(1500.0)));
+        Assertions.assertEquals(expected(OpiMachine.NOT_LIST, "x"), check("x", 3.0));
+        Assertions.assertEquals(expected(OpiMachine.NOT_LIST, "x"), check("x", list()));
+        Assertions.assertEquals(expected(OpiMachine.NOT_LIST_OF_LIST, "color1"), check("color1", list(1.0)));
+        Assertions.assertEquals(message(String.format(OpiMachine.OUT_OF_RANGE, "x", "present", machine.getClass(), -90.0, 90.0, 91.0)),
+            check("x", list(3.0, 91.0)));
+        Assertions.assertEquals(expected(OpiMachine.NOT_A_DOUBLE, "w"), check("w", "long"));
+        Assertions.assertEquals(message(String.format(OpiMachine.NOT_IN_ENUM, "eye", es.optocom.jovp.definitions.ViewEye.class, "present", machine.getClass())),
+            check("eye", list("left", "sideways")));
+        Assertions.assertEquals(message(String.format(OpiMachine.NOT_IN_ENUM, "eye", es.optocom.jovp.definitions.ViewEye.class, "present", machine.getClass())),
+            check("eye", list("le", "both")));   // only the whole name
+        Assertions.assertEquals(expected(OpiMachine.NOT_A_STRING, "imageFilename"), check("imageFilename", list(1.0)));
+    }
+
+    /** NaN (which binary can carry) is in no range, as a single value or in a list */
+    @Test
+    public void nan() {
+        String w = check("w", Double.NaN);
+        Assertions.assertNotNull(w);
+        Assertions.assertTrue(w.contains("It is NaN."), w);
+        Assertions.assertEquals(message(String.format(OpiMachine.OUT_OF_RANGE, "x", "present", machine.getClass(), -90.0, 90.0, Double.NaN)),
+            check("x", new double[] {3.0, Double.NaN}));
+        Assertions.assertNotNull(check("x", list(3.0, Double.NaN)));
+    }
+
+    @Test
+    public void defaults() {
+        HashMap<String, Object> pairs = OpiListener.jsonToPairs(PRESENT);
+        Assertions.assertNull(machine.checkArgs(pairs, machine.opiMethods.get("present").parameters(), "present"));
+        Assertions.assertEquals(List.of(EnvelopeType.NONE, EnvelopeType.NONE), pairs.get("envType"));   // one for each of stim.length
+        Assertions.assertEquals(List.of("x.jpg", "x.jpg"), pairs.get("imageFilename"));
+    }
+
+    /** Names of enum values are replaced by their constants */
+    @Test
+    public void constants() {
+        HashMap<String, Object> pairs = OpiListener.jsonToPairs(PRESENT);
+        Assertions.assertNull(machine.checkArgs(pairs, machine.opiMethods.get("present").parameters(), "present"));
+        Assertions.assertEquals(List.of(ViewEye.LEFT, ViewEye.RIGHT), pairs.get("eye"));
+        Assertions.assertNull(machine.checkArgs(pairs, machine.opiMethods.get("present").parameters(), "present"));   // checked again
+
+        pairs = OpiListener.jsonToPairs("{\"command\":\"setup\",\"eye\":\"bOtH\",\"fixType\":\"sine\"}");
+        Assertions.assertNull(machine.checkArgs(pairs, machine.opiMethods.get("setup").parameters(), "setup"));
+        Assertions.assertEquals(ViewEye.BOTH, pairs.get("eye"));
+        Assertions.assertEquals(TextureType.SINE, pairs.get("fixType"));
+        Assertions.assertEquals(ModelType.MALTESE, pairs.get("fixShape"));
+    }
+}
@@ -0,0 +1,129 @@
+package org.lei.opi.core;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import org.lei.opi.core.OpiListener.Command;
+import org.lei.opi.core.OpiListener.Encoding;
+import org.lei.opi.core.definitions.Packet;
+import org.lei.opi.core.definitions.Parameter;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/**
+ * A present is checked once, by {@link OpiMachine#processPairs}, and its pairs are then sent on to the machine
+ * by {@link OpiMachine#request(java.util.Map)} in one pass, as JSON or binary, as {@link Jovp} does.
+ * The machine gets the same command it got when the pairs went through the msg of a Packet first.
+ *
+ * @since 3.0.0
+ */
+public class TestPassThrough {
+
+    private static final String PRESENT = "{\"command\":\"present\",\"stim.length\":2,\"eye\":[\"left\",\"left\"],"
+        + "\"x\":[3,-3],\"y\":[3,-9],\"sx\":[0.43,0.43],\"sy\":[0.43,0.43],\"t\":[200,200],\"w\":1500,\"lum\":[100,31.4],\"color1\":[[1,1,1],[1,0.5,1]]}";
+
+    /** A stand-in whose present checks its pairs as Jovp does, counting the checks */
+    static class Checking extends WarmUp.StandIn {
+        int checks = 0;
+
+        Checking() { super((c, pairs) -> { ; }); }
+
+        @Override
+        Packet checkArgs(HashMap<String, Object> pairs, HashSet<Parameter> parameters, String funcName) {
+            checks++;
+            return super.checkArgs(pairs, parameters, funcName);
+        }
+
+        @Override
+        public Packet present(HashMap<String, Object> args) {
+            Packet p = checkOnce(args, "present");
+            return p != null ? p : new Packet(args);
+        }
+    }
+
+    @Test
+    public void checkedOnce() {
+        Checking machine = new Checking();
+        HashMap<String, Object> pairs = OpiListener.jsonToPairs(PRESENT);
+        Assertions.assertFalse(machine.processPairs(Command.PRESENT, pairs).getError());
+        Assertions.assertTrue(pairs.containsKey("envType"));
+        Assertions.assertEquals(1, machine.checks);
+
+            // called directly, the pairs are checked
+        HashMap<String, Object> direct = OpiListener.jsonToPairs(PRESENT);
+        Assertions.assertNull(machine.checkOnce(direct, "present"));
+        Assertions.assertTrue(direct.containsKey("envType"));
+        Assertions.assertEquals(2, machine.checks);
+        direct.remove("x");
+        Assertions.assertTrue(machine.present(direct).getError());
+            // and pairs checked for one method are not taken as checked for another
+        Assertions.assertNotNull(machine.checkOnce(pairs, "setup"));
+    }
+
+    /** A present that passes a command to another machine before it checks its own pairs is still only checked once */
+    @Test
+    public void nested() {
+        Checking inner = new Checking();
+        Checking machine = new Checking() {
+            @Override
+            public Packet present(HashMap<String, Object> args) {
+                Assertions.assertFalse(inner.processPairs(Command.SETUP, OpiListener.jsonToPairs("{\"command\":\"setup\",\"eye\":\"both\"}")).getError());
+                return super.present(args);
+            }
+        };
+        Assertions.assertFalse(machine.processPairs(Command.PRESENT, OpiListener.jsonToPairs(PRESENT)).getError());
+        Assertions.assertEquals(1, machine.checks);
+        Assertions.assertEquals(1, inner.checks);
+    }
+
+    @Test
+    public void sameAsPacket() throws IOException {
+        OpiListener listener = new OpiListener(0, new TestFraming.InitEcho());
+        OpiMachine client = new TestFraming.InitEcho();
+        Assertions.assertTrue(client.connect("localhost", listener.getPort()));
+
+        HashMap<String, Object> pairs = checked();
+        for (Encoding encoding : Encoding.values()) {
+            if (encoding == Encoding.BINARY) {
+                JsonObject init = JsonParser.parseString("{\"command\":\"initialize\",\"ip\":\"localhost\",\"port\":50000,\"framing\":\"length\",\"encoding\":\"binary\"}").getAsJsonObject();
+                Assertions.assertFalse(client.request(init).getError());
+            }
+            Assertions.assertEquals(encoding, client.encoding);
+            Packet forwarded = client.request(pairs);
+            Packet viaPacket = client.request(new Packet(pairs).getMsg());
+            Assertions.assertFalse(forwarded.getError(), forwarded.getMsg());
+            Assertions.assertEquals(JsonParser.parseString(viaPacket.getMsg()), JsonParser.parseString(forwarded.getMsg()));
+        }
+
+        client.send("{\"command\":\"close\"}");
+        client.closeSocket();
+        listener.closeListener();
+    }
+
+    /** @return The pairs of {@link PRESENT} as a Jovp gets them from processPairs */
+    static HashMap<String, Object> checked() {
+        OpiMachine machine = new WarmUp.StandIn((c, pairs) -> { ; });
+        HashMap<String, Object> pairs = OpiCommand.decode(PRESENT).pairs();
+        Assertions.assertNull(machine.checkArgs(pairs, machine.opiMethods.get("present").parameters(), "present"));
+        return pairs;
+    }
+
+    /** The JSON made in one pass is what went through the msg of a Packet */
+    @Test
+    public void sameJson() throws IOException {
+        HashMap<String, Object> pairs = checked();
+        Assertions.assertEquals(JsonParser.parseString(OpiMachine.toJson(pairs, "7")), viaPacket(pairs, "7"));
+    }
+
+    /** What Jovp sent before: the pairs made into a Packet, its msg parsed and the id added */
+    static JsonObject viaPacket(HashMap<String, Object> pairs, String id) {
+        JsonObject jo = JsonParser.parseString(new Packet(pairs).getMsg()).getAsJsonObject();
+        jo.addProperty(OpiListener.ID, id);
+        return jo;
+    }
+}
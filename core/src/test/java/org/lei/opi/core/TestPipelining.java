@@ -0,0 +1,73 @@
+package org.lei.opi.core;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+
+import org.lei.opi.core.definitions.Packet;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Commands with an id are echoed with that id, and on a pipelined machine
+ * a query sent after a slow present is answered first.
+ *
+ * @since 3.0.0
+ */
+public class TestPipelining {
+
+    /** An Echo whose present takes a while, and which allows concurrent commands. */
+    static class SlowEcho extends Echo {
+        SlowEcho() { super(null); }
+
+        @Override
+        public boolean isPipelined() { return true; }
+
+        @Override
+        public Packet present(HashMap<String, Object> args) {
+            try { Thread.sleep(300); } catch (InterruptedException ignored) { ; }
+            return super.present(args);
+        }
+    }
+
+    @Test
+    public void queryOvertakesPresent() throws IOException {
+        OpiListener listener = new OpiListener(0, new SlowEcho());
+
+        try (Socket socket = new Socket("localhost", listener.getPort())) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            BufferedWriter out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+
+            out.write("{\"command\":\"present\",\"id\":1}\n");
+            out.write("{\"command\":\"query\",\"id\":\"q\"}\n");
+            out.flush();
+
+            Packet first = OpiListener.gson.fromJson(in.readLine(), Packet.class);
+            Packet second = OpiListener.gson.fromJson(in.readLine(), Packet.class);
+            System.out.println(first);
+            System.out.println(second);
+            Assertions.assertEquals("q", first.getId());
+            Assertions.assertEquals("1", second.getId());
+            Assertions.assertFalse(second.getError());
+
+                // no id: processed in order and no id in the reply
+            out.write("{\"command\":\"query\"}\n");
+            out.flush();
+            Packet third = OpiListener.gson.fromJson(in.readLine(), Packet.class);
+            Assertions.assertNull(third.getId());
+
+            out.write("{\"command\":\"close\",\"id\":\"c\"}\n");
+            out.flush();
+            Packet last = OpiListener.gson.fromJson(in.readLine(), Packet.class);
+            Assertions.assertEquals("c", last.getId());
+            Assertions.assertTrue(last.getClose());
+        }
+        listener.closeListener();
+    }
+}
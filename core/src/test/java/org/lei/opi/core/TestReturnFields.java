@@ -0,0 +1,109 @@
+package org.lei.opi.core;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+
+import org.lei.opi.core.OpiMachine.MethodData;
+import org.lei.opi.core.definitions.Packet;
+import org.lei.opi.core.definitions.ReturnMsg;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Replies are checked for the @ReturnMsg names of their method, worked out with the method, by scanning their names
+ * (or against the msg they were decoded to) rather than by parsing them into a tree.
+ * What that saves is measured in {@link Benchmarks}.
+ *
+ * @since 3.0.0
+ */
+public class TestReturnFields {
+
+    /** The returns of an ImoVifa present */
+    @ReturnMsg(name = "seen", desc = "")
+    @ReturnMsg(name = "time", desc = "")
+    @ReturnMsg(name = "eyexStart", desc = "")
+    @ReturnMsg(name = "eyeyStart", desc = "")
+    @ReturnMsg(name = "eyedStart", desc = "")
+    @ReturnMsg(name = "eyexEnd", desc = "")
+    @ReturnMsg(name = "eyeyEnd", desc = "")
+    @ReturnMsg(name = "eyedEnd", desc = "")
+    public void present() { ; }
+
+    /** Some of the returns of a query, that come last in the reply */
+    @ReturnMsg(name = "leftEyex", desc = "")
+    @ReturnMsg(name = "leftEyey", desc = "")
+    @ReturnMsg(name = "leftEyed", desc = "")
+    @ReturnMsg(name = "rightEyex", desc = "")
+    @ReturnMsg(name = "rightEyey", desc = "")
+    @ReturnMsg(name = "rightEyed", desc = "")
+    public void query() { ; }
+
+    public void setup() { ; }
+
+    static HashMap<String, MethodData> methods() {
+        HashMap<String, MethodData> methods = new HashMap<String, MethodData>();
+        for (String name : new String[] {"present", "query", "setup"})
+            try {
+                Method m = TestReturnFields.class.getMethod(name);
+                methods.put(name, new MethodData(m, new HashSet<>(), new HashSet<ReturnMsg>(Arrays.asList(m.getAnnotationsByType(ReturnMsg.class)))));
+            } catch (NoSuchMethodException e) {
+                throw new IllegalStateException(e);
+            }
+        return methods;
+    }
+
+    private static String missing(String field, String command) {
+        return new Packet(true, false, "Missing return field: " + field + " for command " + command + " in java.lang.String").getMsg();
+    }
+
+    @Test
+    public void checks() {
+        HashMap<String, MethodData> methods = methods();
+        Assertions.assertEquals(8, methods.get("present").returnFields().size());
+
+        Packet reply = TestBinaryEncoding.response();
+        Assertions.assertSame(reply, Packet.checkReturnElements(reply, methods, "present"));
+        Packet read = OpiListener.gson.fromJson(OpiListener.gson.toJson(reply), Packet.class);
+        Assertions.assertSame(read, Packet.checkReturnElements(read, methods, "present"));     // against the JsonObject it was read as
+        Assertions.assertFalse(Packet.checkReturnElements(reply.getMsg(), methods, "present").getError());
+
+        LinkedHashMap<String, Object> map = TestLazyPacket.response();
+        Packet p = new Packet(map);
+        Assertions.assertSame(p, Packet.checkReturnElements(p, methods, "present"));
+        map.remove("eyedStart");
+        Assertions.assertEquals(missing("eyedStart", "present"), Packet.checkReturnElements(p, methods, "present").getMsg());
+
+        JsonObject jo = JsonParser.parseString(reply.getMsg()).getAsJsonObject();
+        jo.remove("eyeyEnd");
+        jo.add("nested", JsonParser.parseString("{\"eyeyEnd\":1,\"list\":[{\"eyeyEnd\":2}]}"));   // not at the top
+        Assertions.assertEquals(missing("eyeyEnd", "present"), Packet.checkReturnElements(jo.toString(), methods, "present").getMsg());
+        Assertions.assertEquals(missing("eyeyEnd", "present"), Packet.checkReturnElements(new Packet(jo), methods, "present").getMsg());
+
+            // a reply that is not an object only does for a method without returns
+        Assertions.assertTrue(Packet.checkReturnElements(new Packet("Seen"), methods, "present").getError());
+        Assertions.assertFalse(Packet.checkReturnElements(new Packet("Set up"), methods, "setup").getError());
+        Assertions.assertFalse(Packet.checkReturnElements("[1,2]", methods, "setup").getError());
+
+        Assertions.assertTrue(Packet.checkReturnElements(Packet.error("failed"), methods, "present").getError());
+    }
+
+    /** A reply is read as leniently as JsonParser read it, so one with NaN in it (as a machine can send) is not refused */
+    @Test
+    public void lenient() throws IOException {
+        HashMap<String, MethodData> methods = methods();
+        String nan = TestBinaryEncoding.response().getMsg().replace("\"time\":312", "\"time\":NaN");
+        Assertions.assertTrue(nan.contains("NaN"));
+        Assertions.assertNull(methods.get("present").returnFields().missingIn(nan));
+        Assertions.assertFalse(Packet.checkReturnElements(nan, methods, "present").getError());
+        Assertions.assertFalse(Packet.checkReturnElements(new Packet(JsonParser.parseString(nan)), methods, "present").getError());
+        Assertions.assertThrows(IOException.class, () -> methods.get("present").returnFields().missingIn("{\"seen\":"));
+    }
+}
@@ -0,0 +1,141 @@
+package org.lei.opi.core;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Random;
+
+import org.lei.opi.core.definitions.Packet;
+
+import com.google.gson.JsonObject;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * A SharedMemoryLink carries bytes both ways (including messages longer than a ring),
+ * is only attached with the right token and a ring that is a power of two, and is taken up by a listener
+ * when offered in initialize. The round trip time over it against loopback TCP is measured in {@link Benchmarks}.
+ *
+ * @since 3.0.0
+ */
+public class TestSharedMemory {
+
+    /** A quiet Echo that initializes without any settings. */
+    static class RingEcho extends TestUnixSocket.QuietEcho {
+        @Override
+        public Packet initialize(HashMap<String, Object> args) { return new Packet("Initialized"); }
+    }
+
+    @Test
+    public void roundTrip(@TempDir Path dir) throws IOException, InterruptedException {
+        Path path = dir.resolve("round.ring");
+        SharedMemoryLink client = SharedMemoryLink.create(path, 64);
+        SharedMemoryLink server = SharedMemoryLink.attach(path, client.getToken());
+
+        byte[] message = new byte[10000];   // many times the ring, so it wraps
+        new Random(1).nextBytes(message);
+        Thread writer = Thread.ofVirtual().start(() -> {
+            try (OutputStream out = client.getOutputStream()) {
+                out.write(message);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        byte[] got = new byte[message.length];
+        new DataInputStream(server.getInputStream()).readFully(got);
+        writer.join();
+        Assertions.assertArrayEquals(message, got);
+
+        server.getOutputStream().write(42);
+        Assertions.assertEquals(42, client.getInputStream().read());
+
+        client.close();
+        Assertions.assertEquals(-1, server.getInputStream().read());
+        Assertions.assertThrows(IOException.class, () -> server.getOutputStream().write(1));
+        Assertions.assertFalse(Files.exists(path));
+    }
+
+    @Test
+    public void wrongToken(@TempDir Path dir) throws IOException {
+        Path path = dir.resolve("token.ring");
+        try (SharedMemoryLink client = SharedMemoryLink.create(path, SharedMemoryLink.CAPACITY)) {
+            Assertions.assertThrows(IOException.class, () -> SharedMemoryLink.attach(path, client.getToken() + 1));
+        }
+        Assertions.assertThrows(IOException.class, () -> SharedMemoryLink.attach(path, 0));
+    }
+
+    @Test
+    public void wrongCapacity(@TempDir Path dir) throws IOException {
+        Path path = dir.resolve("capacity.ring");
+        try (SharedMemoryLink client = SharedMemoryLink.create(path, 64)) {
+                // the same link but with rings of 48 bytes, which cannot be indexed by masking
+            ByteBuffer header = ByteBuffer.wrap(Files.readAllBytes(path), 0, 64).order(ByteOrder.nativeOrder());
+            header.putLong(8, 48);
+            Path odd = dir.resolve("odd.ring");
+            byte[] file = new byte[64 + 2 * (192 + 48)];
+            System.arraycopy(header.array(), 0, file, 0, 64);
+            Files.write(odd, file);
+            IOException e = Assertions.assertThrows(IOException.class, () -> SharedMemoryLink.attach(odd, client.getToken()));
+            Assertions.assertEquals(String.format(SharedMemoryLink.NOT_A_LINK, odd), e.getMessage());
+        }
+    }
+
+    @Test
+    public void overInitialize(@TempDir Path dir) throws IOException, InterruptedException {
+        Path path = dir.resolve("single.ring");
+        OpiListener listener = new OpiListener(0, new RingEcho());
+
+        RingEcho client = new RingEcho();
+        Assertions.assertTrue(client.connect("localhost", listener.getPort()));
+        Packet reply = initialize(client, path);
+        Assertions.assertFalse(reply.getError());
+        Assertions.assertEquals(path.toString(), reply.getRing());
+        Assertions.assertNotNull(client.ring);
+
+        for (int i = 0 ; i < 100 ; i++)
+            Assertions.assertFalse(client.request("{\"command\":\"query\"}").getError());
+        Assertions.assertTrue(client.request("{\"command\":\"close\"}").getClose());
+        client.closeSocket();
+        listener.join(5000);
+        Assertions.assertFalse(listener.isAlive());
+        Assertions.assertFalse(Files.exists(path));
+    }
+
+    @Test
+    public void multiplexDeclines(@TempDir Path dir) throws IOException {
+        Path path = dir.resolve("multiplex.ring");
+        OpiListener listener = new OpiListener(0, () -> new RingEcho(), OpiListener.Mode.MULTIPLEX);
+
+        RingEcho client = new RingEcho();
+        Assertions.assertTrue(client.connect("localhost", listener.getPort()));
+        Packet reply = initialize(client, path);
+        Assertions.assertFalse(reply.getError());
+        Assertions.assertNull(reply.getRing());
+        Assertions.assertNull(client.ring);
+        Assertions.assertFalse(Files.exists(path));
+
+        Assertions.assertFalse(client.request("{\"command\":\"query\"}").getError());   // still over TCP
+        Assertions.assertTrue(client.request("{\"command\":\"close\"}").getClose());
+        client.closeSocket();
+        listener.closeListener();
+    }
+
+    /** Send an initialize offering a shared memory link at path */
+    static Packet initialize(OpiMachine client, Path path) throws IOException {
+        JsonObject init = new JsonObject();
+        init.addProperty("command", "initialize");
+        init.addProperty("ip", "localhost");
+        init.addProperty("port", 50000);
+        Assertions.assertTrue(client.offerSharedMemory(init, path));
+        Packet reply = client.request(init);
+        client.settleSharedMemory(reply);
+        return reply;
+    }
+}
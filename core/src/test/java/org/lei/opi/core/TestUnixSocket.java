@@ -0,0 +1,66 @@
+package org.lei.opi.core;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.lei.opi.core.definitions.Packet;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/**
+ * A listener can serve clients over a Unix domain socket as well as TCP, and an OpiMachine
+ * can talk to its real machine over one. The round trip time of each is measured in {@link Benchmarks}.
+ *
+ * @since 3.0.0
+ */
+public class TestUnixSocket {
+
+    /** An Echo that answers query without printing, so the round trip is all that is timed. */
+    static class QuietEcho extends Echo {
+        QuietEcho() { super(null); }
+
+        @Override
+        public Packet query() { return new Packet("Query: Nothing to report"); }
+    }
+
+    @Test
+    public void unixSingle() throws IOException, InterruptedException {
+        Path path = Files.createTempDirectory("opi").resolve("single.sock");
+        OpiListener listener = new OpiListener(path, new QuietEcho(), OpiListener.Mode.SINGLE);
+        Assertions.assertTrue(Files.exists(path));
+
+        QuietEcho client = new QuietEcho();
+        Assertions.assertTrue(client.connect(path));
+        Assertions.assertTrue(client.isConnected());
+        Assertions.assertFalse(client.request("{\"command\":\"query\"}").getError());
+        Assertions.assertTrue(client.request("{\"command\":\"close\"}").getClose());
+        client.closeSocket();
+        Assertions.assertTrue(client.isClosed());
+
+        listener.join(5000);
+        Assertions.assertFalse(listener.isAlive());
+        Assertions.assertFalse(Files.exists(path));
+    }
+
+    @Test
+    public void unixMultiplex() throws IOException {
+        Path path = Files.createTempDirectory("opi").resolve("multiplex.sock");
+        OpiListener listener = new OpiListener(path, () -> new QuietEcho(), OpiListener.Mode.MULTIPLEX);
+
+        QuietEcho[] clients = new QuietEcho[4];
+        for (int i = 0 ; i < clients.length ; i++) {
+            clients[i] = new QuietEcho();
+            Assertions.assertTrue(clients[i].connect(path));
+        }
+        for (QuietEcho client : clients)
+            Assertions.assertFalse(client.request("{\"command\":\"query\"}").getError());
+        for (QuietEcho client : clients) {
+            Assertions.assertTrue(client.request("{\"command\":\"close\"}").getClose());
+            client.closeSocket();
+        }
+        listener.closeListener();
+        Assertions.assertFalse(Files.exists(path));
+    }
+}
@@ -0,0 +1,62 @@
+package org.lei.opi.core;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.lei.opi.core.OpiListener.Command;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/**
+ * The synthetic messages of a WarmUp all pass validation (so they take the same paths as real ones),
+ * the listener's hook sees fully validated pairs, and a listener with it on runs it before serving its first client.
+ *
+ * @since 3.0.0
+ */
+public class TestWarmUp {
+
+    @Test
+    public void warmUp() {
+        AtomicInteger setups = new AtomicInteger();
+        AtomicInteger presents = new AtomicInteger();
+        WarmUp.Report report = WarmUp.run(2000, (Command command, HashMap<String, Object> pairs) -> {
+            if (command == Command.SETUP) {
+                setups.incrementAndGet();
+                Assertions.assertTrue(pairs.containsKey("fixCx"));      // a default was added
+            } else {
+                presents.incrementAndGet();
+                Assertions.assertTrue(pairs.containsKey("envType"));    // a default was added
+            }
+        });
+        System.out.println(report);
+        Assertions.assertEquals(0, report.errors());
+        Assertions.assertEquals(2000, setups.get());
+        Assertions.assertEquals(2000, presents.get());
+    }
+
+    /** As outside the tests, which turn it off (see the surefire configuration) */
+    @Test
+    public void listener() throws IOException {
+        OpiListener.setWarmUp(true);
+        OpiListener listener;
+        try {
+            listener = new OpiListener(0, new TestFraming.InitEcho());
+        } finally {
+            OpiListener.setWarmUp(false);
+        }
+        OpiMachine client = new TestFraming.InitEcho();
+        Assertions.assertTrue(client.connect("localhost", listener.getPort()));
+        Assertions.assertFalse(client.request("{\"command\":\"query\"}").getError());
+
+        WarmUp.Report report = OpiListener.getWarmUpReport();    // made before the client was accepted
+        Assertions.assertNotNull(report);
+        Assertions.assertEquals(WarmUp.ROUNDS, report.rounds());
+        Assertions.assertEquals(0, report.errors());
+
+        client.send("{\"command\":\"close\"}");
+        client.closeSocket();
+        listener.closeListener();
+    }
+}
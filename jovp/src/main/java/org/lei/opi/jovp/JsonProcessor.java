@@ -3,6 +3,7 @@ package org.lei.opi.jovp;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.stream.Stream;
 
 /**
@@ -18,7 +19,7 @@ public class JsonProcessor {
   /**
    * Get an array of integer values from a JSON list
    * 
-   * @param list list of integers from JSON
+   * @param list list of integers from JSON (an ArrayList or double[])
    * 
    * @return an array of integers
    * 
@@ -27,6 +28,8 @@ public class JsonProcessor {
    * @since 0.0.1
    */
   public static int[] toIntArray(Object list) throws ClassCastException {
+    if (list instanceof double[] a)
+      return Arrays.stream(a).mapToInt(d -> (int) d).toArray();
     return ((ArrayList<?>) list).stream().mapToDouble(Double.class::cast).mapToInt(d -> (int) d).toArray();  
   }
 
@@ -49,7 +52,7 @@ public class JsonProcessor {
   /**
    * Get an array of double values from a JSON list
    * 
-   * @param list list of doubles from JSON
+   * @param list list of doubles from JSON (an ArrayList, or a double[] which is returned as it is)
    * 
    * @return an array of doubles
    * 
@@ -58,13 +61,15 @@ public class JsonProcessor {
    * @since 0.0.1
    */
   public static double[] toDoubleArray(Object list) throws ClassCastException {
+    if (list instanceof double[] a)
+      return a;
     return ((ArrayList<?>) list).stream().mapToDouble(Double.class::cast).toArray();
   }
 
   /**
    * Get an array of 4D-array RGBA colors from a JSON list of lists
    * 
-   * @param list list of list of colors from JSON
+   * @param list list of list of colors from JSON (an ArrayList or double[][])
    * 
    * @return an array or array of RGBA colors
    * 
@@ -73,15 +78,17 @@ public class JsonProcessor {
    * @since 0.0.1
    */
   public static double[][] toColorArray(Object list) throws ClassCastException {
-    return ((ArrayList<?>) list).stream().map(l -> toDoubleArray(l))
+    Stream<?> colors = list instanceof double[][] rows ? Arrays.stream(rows) : ((ArrayList<?>) list).stream();
+    return colors.map(l -> toDoubleArray(l))
                                          .map(l -> (new double[] {l[0], l[1], l[2], 1}))
                                          .toArray(double[][]::new);
   }
 
   /**
    * Get an array of enums from a JSON list
+   * Elements that are already constants of enumClass (as OpiMachine.checkArgs leaves them) are kept as they are.
    * 
-   * @param list list of strings from JSON
+   * @param list list of strings from JSON, or of enum constants
    * 
    * @return an array of enums. Need to be recast
    * @throws SecurityException
@@ -92,8 +99,11 @@ public class JsonProcessor {
    * @since 0.0.1
    */
   public static Stream<Object> toObjectStream(Object list, Class<? extends Enum<?>> enumClass) throws NoSuchMethodException, SecurityException {
+    ArrayList<?> a = (ArrayList<?>) list;
+    if (a.stream().allMatch(enumClass::isInstance))
+      return a.stream().map(Object.class::cast);
     Method method = enumClass.getMethod("valueOf", String.class);
-    return ((ArrayList<?>) list).stream().map(String.class::cast).map(str -> mapper(method, str));
+    return a.stream().map(o -> enumClass.isInstance(o) ? o : mapper(method, (String) o));
   }
 
   /**
@@ -1,21 +1,25 @@
 package org.lei.opi.jovp;
 
 import java.io.IOException;
+import java.nio.file.Path;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
-import java.util.stream.Stream;
 
+import org.lei.opi.core.JovpCommands;
+import org.lei.opi.core.OpiCommand;
 import org.lei.opi.core.OpiListener;
+import org.lei.opi.core.OpiMachine;
 import org.lei.opi.core.definitions.Packet;
 import org.lei.opi.core.definitions.PupilRequest;
 import org.lei.opi.core.definitions.PupilResponse;
 
-import com.google.gson.JsonSyntaxException;
-
 import es.optocom.jovp.PsychoEngine;
 import es.optocom.jovp.definitions.ViewEye;
+import es.optocom.jovp.definitions.ModelType;
+import es.optocom.jovp.definitions.TextureType;
 import es.optocom.jovp.definitions.Paradigm;
 import es.optocom.jovp.definitions.ViewMode;
 import es.optocom.jovp.Controller;
@@ -46,8 +50,16 @@ Receive setup -------> Set some things                  |
                        action = SETUP                   |   null       Check if we are presenting or
                                                         |              waiting for a response.
 Receive present------> action = PRESENT                 |              If we have a response, pass back
-                       busy-wait until response is set  |              to the server (OpiJovp).
+                       wait until its response is set   |              to the server (OpiJovp).
                        (ie do not change action)        |
+                                                        |  CANCEL ---> Hide the stimulus and stop presenting
+Receive cancel-------> (read while present waits)       |
+                       action = CANCEL, once OpiLogic   |
+                       has picked up the PRESENT        |
+                       present returns cancelled error  |
+                                                        |
+Receive subscribe ---> events are pushed to the client  |  event() on onset, offset and button press,
+                       (handled by OpiListener)         |  and by buildResponse() for each eye sample
 
   
  * @since 0.0.1
@@ -72,8 +84,28 @@ public class OpiJovp extends OpiListener {
     protected static final String NO_RIGHT_BACKGROUND = "You have asked to PRESENT in the right/both eye/s but you have not called `setup` on the right/both eye/s.";
     /** {@value CLOSED} */
     private static final String CLOSED = "CLOSE successful";
+    /** {@value CANCELLED} */
+    protected static final String CANCELLED = "CANCEL successful";
+    /** {@value PRESENT_CANCELLED} */
+    protected static final String PRESENT_CANCELLED = "PRESENT was cancelled";
+    /** {@value NOTHING_TO_CANCEL} */
+    protected static final String NOTHING_TO_CANCEL = "Nothing to cancel: no PRESENT is running.";
     /** {@value UNIMPLEMENTED_FORMAT} */
     private static final String UNIMPLEMENTED_FORMAT = "%s: Parameter %s is not implemented for value %s in function %s.";
+    /** {@value ENGINE_BUSY} */
+    private static final String ENGINE_BUSY = "%sthe psychoEngine is still busy with %s. Retry after %d ms.";
+    /** Event pushed to subscribed clients when a stimulus is drawn: {@value ONSET} */
+    public static final String ONSET = "onset";
+    /** Event pushed to subscribed clients when a stimulus is hidden: {@value OFFSET} */
+    public static final String OFFSET = "offset";
+    /** Event pushed to subscribed clients when the button is pressed during a present: {@value BUTTON} */
+    public static final String BUTTON = "button";
+    /** Event pushed to subscribed clients when an eye position for the present is available: {@value EYE} */
+    public static final String EYE = "eye";
+    /** Longest time in ms that a command waits for the previous action to finish: {@value ACTION_WAIT} */
+    private static final long ACTION_WAIT = 5000;
+    /** Retry-after hint in ms when the previous action has not finished: {@value ACTION_RETRY_AFTER} */
+    private static final long ACTION_RETRY_AFTER = 500;
    
     /** Prefix for all success messages */
     private String prefix;
@@ -81,21 +113,38 @@ public class OpiJovp extends OpiListener {
     private Configuration configuration = null;
     /** The psychoEngine */
     private PsychoEngine psychoEngine;
-    /** A background array to communicate with OpiLogic. backgrounds[0] is for left eye, [1] for right */
-    private Setup[] backgrounds;
+    /** A background array to communicate with OpiLogic. backgrounds[0] is for left eye, [1] for right (package-private for tests) */
+    Setup[] backgrounds;
     /** An array of stimulus records that sit here for OpiLogic to interrogate */
     private Stimulus[] stimuli;
     /** A record to record the results after a stimulus presentation */
-    private Response response = null;
+    private volatile Response response = null;
+    /** The present that {@link #response} answers (see {@link #presentToken}) */
+    private volatile long responseToken = 0;
+    /** Notified when response is set or a present is cancelled */
+    private final Object responseLock = new Object();
+    /** True while present() is waiting for a response. Only set once its PRESENT action is in place, under actionLock */
+    private volatile boolean presenting = false;
+    /** Counts presents, so that a response (or a cancel) for one cannot answer a later one */
+    private volatile long presentToken = 0;
+    /** The present whose PRESENT OpiLogic has last picked up, so whose stimulus responses are for */
+    private volatile long shownToken = 0;
+    /** The present that cancel() has made return */
+    private volatile long cancelledToken = 0;
+    /** The id of the present in progress (null for none), which its events carry */
+    private volatile String presentId = null;
 
     /** Machine actions to trigger actions on the main thread. */
     public enum Action {
         SHOW,    // initialise obtained, configuration done, create psychoengine
         SETUP,   // psychoengine is up and running, execute setup 
         PRESENT, // begin a presentation
+        CANCEL,  // stop the presentation in progress
         CLOSE};  // all done
 
-    private Action action;  // set by calls from the server OpiListener thread and acted upon on main thread (and reset to null there)
+    private volatile Action action;  // set by calls from the server OpiListener thread and acted upon on main thread (and reset to null there)
+    /** Guards changes to action, and is notified when it goes back to null */
+    private final Object actionLock = new Object();
 
     public Configuration getConfiguration() { return configuration; }
     public Action getAction() { return action; }
@@ -103,29 +152,93 @@ public class OpiJovp extends OpiListener {
     public Stimulus getStimulus(int i) throws ArrayIndexOutOfBoundsException { return stimuli[i]; }
     public int getStimuliLength() { return stimuli.length; }
 
-    public void setResponse(Response response) { this.response = response; }
+    /**
+     * Set the response to the present whose PRESENT OpiLogic picked up last, and wake it.
+     * A response to a present that has since been cancelled answers nothing.
+     *
+     * @param response The response
+     */
+    public void setResponse(Response response) {
+        synchronized (responseLock) {
+            this.response = response;
+            this.responseToken = shownToken;
+            responseLock.notifyAll();
+        }
+    }
+
+    /** @return True if the present with token has its response */
+    private boolean answered(long token) {
+        return response != null && responseToken == token;
+    }
 
-    // Don't interrupt another action. Wait until it is finished (ie action is set to null by OPILogic)
-    // TODO replace this pair of functions with a Semaphore or Condition
-    private void setAction(Action a) {
-      while (this.action != null) {
-        try { Thread.sleep(10); } catch (InterruptedException ignored) {; }
+    // Don't interrupt another action. Wait until it is finished (ie action is set to null by OPILogic),
+    // but only for ACTION_WAIT ms: if it is still going return it so the command can be refused with busy().
+    // Returns null once a is set. A PRESENT is counted (see presentToken) and marked presenting as it is set, so a
+    // cancel() either finds nothing to cancel or finds the PRESENT in place, and waits for OpiLogic to pick it up.
+    private Action setAction(Action a) {
+      synchronized (actionLock) {
+        long deadline = System.currentTimeMillis() + ACTION_WAIT;
+        long left;
+        while (this.action != null && (left = deadline - System.currentTimeMillis()) > 0) {
+          try { actionLock.wait(left); } catch (InterruptedException ignored) {; }
+        }
+        if (this.action != null)
+          return this.action;
+        if (a == Action.PRESENT) {
+          presentToken++;
+          presenting = true;
+        }
+        this.action = a;
+        return null;
       }
-      this.action = a;
     }
-    public void setActionToNull() { action = null; }
+    public void setActionToNull() {
+      synchronized (actionLock) {
+        if (action == Action.PRESENT)
+          shownToken = presentToken;   // the responses from now on are this present's
+        action = null;
+        actionLock.notifyAll();
+      }
+    }
+
+    /**
+     * The reply to a command that could not start because the previous action has not finished.
+     *
+     * @param running The action still running, as {@link setAction} found it
+     */
+    private Packet busy(Action running) {
+        return Packet.error(String.format(ENGINE_BUSY, prefix == null ? "" : prefix, running, ACTION_RETRY_AFTER))
+            .setRetryAfter(ACTION_RETRY_AFTER);
+    }
    
     public OpiJovp(int port) { 
         super(port, null);   // do not give a machine to the OpiListener as we override the process() method here and the machine is not needed.
         this.action = null;
+        registerTypeAdapters();
+    } 
 
+    /**
+     * Listen on a Unix domain socket rather than a port, for a Monitor on the same computer
+     * (see the Jovp machine's unixSocket setting).
+     *
+     * @param unixPath Path of the socket
+     *
+     * @since 3.0.0
+     */
+    public OpiJovp(Path unixPath) {
+        super(unixPath, (OpiMachine) null, Mode.SINGLE);   // no machine, as for OpiJovp(int)
+        this.action = null;
+        registerTypeAdapters();
+    }
+
+    private void registerTypeAdapters() {
         gsonBuilder.registerTypeAdapter(Response.class, new Response());
         gsonBuilder.registerTypeAdapter(Query.class, new QuerySerializer());
         gsonBuilder.registerTypeAdapter(Query.class, new QueryDeserializer());
         gsonBuilder.registerTypeAdapter(Monitor.class, new MonitorSerializer());
         gsonBuilder.registerTypeAdapter(Monitor.class, new MonitorDeserializer());
         gson = gsonBuilder.create();
-    } 
+    }
 
     /**
      * Run the psychoEngine. Needs to be started from the main thread
@@ -159,7 +272,7 @@ public class OpiJovp extends OpiListener {
 
         if (configuration.fullScreen()) psychoEngine.setFullScreen();
 
-        this.action = null; 
+        setActionToNull();
         psychoEngine.start(configuration.input(), Paradigm.CLICKER);
 
         this.psychoEngine.cleanup();
@@ -169,40 +282,71 @@ public class OpiJovp extends OpiListener {
     * Process incoming Json commands. If it is a 'choose' command, then
     * set the private field machine to a new instance of that machine.
     * If it is another command, then process it using the machine object.
+    * Any "id" in the command is echoed in the returned Packet, and any "framing" 
+    * asked for in initialize is agreed (see {@link OpiListener#withTransport}).
     *
-    * @param jsonStr A JSON object that at least contains the name 'command'.
+    * @param command A decoded command that at least contains the name 'command'.
+    * @param machine Ignored (it is null)
     * 
     * @return JSON-formatted message with feedback
     * 
     * @since 0.1.0
     */
     @Override
-    public Packet process(String jsonStr) {
-        HashMap<String, Object> pairs;
-        try {
-            pairs = OpiListener.jsonToPairs(jsonStr);
-        } catch (JsonSyntaxException e) {
-            return Packet.error(prefix + "Bad JSON", e);
-        }
+    public Packet process(OpiCommand command, OpiMachine machine) {
+        return OpiListener.withTransport(command, this::processCommand);
+    }
 
+    /**
+     * Check the command and run it.
+     *
+     * @param command The decoded command
+     *
+     * @return JSON-formatted message with feedback
+     *
+     * @since 3.0.0
+     */
+    private Packet processCommand(OpiCommand command) {
+        HashMap<String, Object> pairs = command.pairs();
         if (!pairs.containsKey("command")) // needs a command
             return Packet.error(prefix + OpiListener.NO_COMMAND_FIELD);
-        String cmd = pairs.get("command").toString();
 
         // check it is a valid command from Command.*
-        if (!Stream.of(OpiListener.Command.values()).anyMatch((e) -> e.name().equalsIgnoreCase(cmd)))
+        if (command.command() == null)
             return Packet.error(prefix + OpiListener.BAD_COMMAND_FIELD);
 
-        return switch (OpiListener.Command.valueOf(cmd.toUpperCase())) {
+        return switch (command.command()) {
             case INITIALIZE -> initialize(pairs);
             case QUERY -> query();
             case SETUP -> setup(pairs);
-            case PRESENT -> present(pairs);
+            case PRESENT -> {
+                presentId = command.id();
+                yield present(pairs);
+            }
             case CLOSE -> close();
-            default -> Packet.error(prefix + BAD_COMMAND + cmd.toUpperCase());
+            case CANCEL -> cancel();
+            default -> Packet.error(prefix + BAD_COMMAND + command.command());
         };
     }
 
+    /**
+     * During the warm-up (see {@link org.lei.opi.core.WarmUp}) build the Setup and Stimulus objects
+     * that setup and present would, without showing them, so that those paths are compiled too.
+     * If they cannot be built, the warm-up counts it as an error and reports it.
+     *
+     * @param command SETUP or PRESENT
+     * @param pairs Validated pairs for it
+     *
+     * @since 3.0.0
+     */
+    @Override
+    protected void warmUp(Command command, HashMap<String, Object> pairs) {
+        if (command == Command.SETUP)
+            Setup.create(JovpCommands.Setup.fromPairs(pairs));
+        else if (command == Command.PRESENT)
+            Stimulus.create(JovpCommands.Present.fromPairs(pairs));
+    }
+
     /**
      * Start the psychoEngine with the SHOW action
      *
@@ -230,7 +374,9 @@ public class OpiJovp extends OpiListener {
               case STEREO -> backgrounds = new Setup[] {null, null}; 
             }
 
-            setAction(Action.SHOW);
+            Action running = setAction(Action.SHOW);
+            if (running != null)
+                return busy(running);
             
             return new Packet(INITIALIZED);
         } catch (IllegalArgumentException | ClassCastException | IOException | NullPointerException e) {
@@ -274,7 +420,7 @@ public class OpiJovp extends OpiListener {
   /**
    * Change settings of background and fixation target
    * trigger the SETUP action
-   * Check for unimplemented values of fixShape.
+   * Check the lengths and ranges of the parameters, and for unimplemented values of fixShape.
    * 
    * @param args A map of name:value pairs for parameters. Should have all the fields for Setup class.
    *
@@ -284,20 +430,24 @@ public class OpiJovp extends OpiListener {
     if (configuration == null)
         return Packet.error("JOVP is not ready yet. Try again or call opiInitialise()");
     try {
+        JovpCommands.Setup setup = JovpCommands.Setup.fromPairs(args);
+        Packet invalid = setup.check();
+        if (invalid != null)
+            return invalid;
         // Get eye for the instruction
-        ViewEye eye = ViewEye.valueOf(((String) args.get("eye")).toUpperCase());
+        ViewEye eye = setup.eye();
         if(configuration.viewMode() == ViewMode.MONO || eye == ViewEye.BOTH || eye == ViewEye.LEFT)
-            backgrounds[0] = Setup.create2(args);
+            backgrounds[0] = Setup.create(setup);
         if(configuration.viewMode() == ViewMode.STEREO && (eye == ViewEye.BOTH || eye == ViewEye.RIGHT))
-            backgrounds[1] = Setup.create2(args);
+            backgrounds[1] = Setup.create(setup);
        
-        if (args.containsKey("fixShape")) {
-            String fs = (String)args.get("fixShape");
-            if (List.of(new String[] {"HOLLOW_TRIANGLE", "HOLLOW_SQUARE", "HOLLOW_POLYGON", "ANNULUS", "OPTOTYPE", "TEXT", "MODEL"}).contains(fs.toUpperCase()))
-                return Packet.error(String.format(UNIMPLEMENTED_FORMAT, prefix, "fixShape", fs, "setup()"));
-        }
+        String fs = setup.fixShape().name();
+        if (List.of(new String[] {"HOLLOW_TRIANGLE", "HOLLOW_SQUARE", "HOLLOW_POLYGON", "ANNULUS", "OPTOTYPE", "TEXT", "MODEL"}).contains(fs))
+            return Packet.error(String.format(UNIMPLEMENTED_FORMAT, prefix, "fixShape", fs, "setup()"));
 
-        setAction(Action.SETUP);
+        Action running = setAction(Action.SETUP);
+        if (running != null)
+            return busy(running);
         return query();
     } catch (ClassCastException | IllegalArgumentException e) {
         return Packet.error(prefix + SETUP_FAILED, e);
@@ -306,67 +456,138 @@ public class OpiJovp extends OpiListener {
 
     /**
      * Present a stimulus by
-     *   (1) If 'eye' is specified, check the background relevant to that eye has been `setup`
-     *   (2) Build the array of Stimulus objects
-     *   (3) Check for unimplemented `type` and `shape`
-     *   (4) Trigger the PRESENT action in OpiLogic and spin waiting for a response.
+     *   (1) Check the lengths and ranges of the parameters
+     *   (2) If 'eye' is specified, check the background relevant to that eye has been `setup`
+     *   (3) Build the array of Stimulus objects
+     *   (4) Check for unimplemented `type` and `shape`
+     *   (5) Trigger the PRESENT action in OpiLogic and wait for a response, or for a {@link cancel}.
      *
      * @param args A map of name:value pairs for parameters
      *
      * @since 0.1.0
      */
     private Packet present(HashMap<String, Object> args) {
-        if (args.containsKey("eye")) {
-            List<ViewEye> eyes = ((List<String>)args.get("eye"))
-                .stream()
-                .map((String s) -> ViewEye.valueOf((s).toUpperCase()))
-                .toList();
-            for (ViewEye eye : eyes) {
-                if (eye == ViewEye.BOTH && backgrounds.length == 1)
-                    return Packet.error(prefix + NO_BOTH_IN_MONO);
-                if ((eye == ViewEye.BOTH || eye == ViewEye.LEFT) && backgrounds[0] == null)
-                    return Packet.error(prefix + NO_LEFT_BACKGROUND);
-                if ((eye == ViewEye.BOTH || eye == ViewEye.RIGHT) && backgrounds[1] == null)
-                    return Packet.error(prefix + NO_RIGHT_BACKGROUND);
-            }
+        JovpCommands.Present present;
+        try {
+            present = JovpCommands.Present.fromPairs(args);
+        } catch (ClassCastException | IllegalArgumentException e) {
+            return Packet.error(prefix + PRESENT_FAILED, e);
+        }
+        Packet invalid = present.check();
+        if (invalid != null)
+            return invalid;
+
+        for (ViewEye eye : present.eye()) {
+            if (eye == ViewEye.BOTH && backgrounds.length == 1)
+                return Packet.error(prefix + NO_BOTH_IN_MONO);
+            if ((eye == ViewEye.BOTH || eye == ViewEye.LEFT) && backgrounds[0] == null)
+                return Packet.error(prefix + NO_LEFT_BACKGROUND);
+            if ((eye == ViewEye.BOTH || eye == ViewEye.RIGHT) && backgrounds[1] == null)
+                return Packet.error(prefix + NO_RIGHT_BACKGROUND);
         }
 
-        if (args.containsKey("shape"))
-          for (String s : (List<String>)args.get("shape"))
-            if (List.of(new String[] {"HOLLOW_TRIANGLE", "HOLLOW_SQUARE", "HOLLOW_POLYGON", "ANNULUS", "TEXT", "MODEL"}).contains(s.toUpperCase()))
+        for (ModelType s : present.shape())
+            if (List.of(new String[] {"HOLLOW_TRIANGLE", "HOLLOW_SQUARE", "HOLLOW_POLYGON", "ANNULUS", "TEXT", "MODEL"}).contains(s.name()))
                 return Packet.error(String.format(UNIMPLEMENTED_FORMAT, prefix, "shape", s, "present()"));
 
-        if (args.containsKey("type"))
-          for (String s : (List<String>)args.get("type"))
-              if (List.of(new String[] {"TEXT"}).contains(s.toUpperCase()))
+        for (TextureType s : present.type())
+            if (s == TextureType.TEXT)
                 return Packet.error(String.format(UNIMPLEMENTED_FORMAT, prefix, "type", s, "present()"));
    
         try {
-            stimuli = Stimulus.create(args);
-            setAction(Action.PRESENT);
-                // TODO replace this with a Semaphore or Condition
-            while (response == null) {
-                Thread.sleep(100);  // wait for response
+            stimuli = Stimulus.create(present);
+            Action running = setAction(Action.PRESENT);   // also sets presenting
+            if (running != null)
+                return busy(running);
+            long token = presentToken;
+            synchronized (responseLock) {
+                try {
+                    while (!answered(token) && cancelledToken != token)
+                        responseLock.wait();
+                    if (!answered(token))   // a response that came before the cancel is still returned
+                        return Packet.error(prefix + PRESENT_CANCELLED);
+                    Packet p = new Packet(response);
+                    response = null;
+                    return p;
+                } finally {
+                    presenting = false;
+                }
             }
-            Packet p = new Packet(response);
-            response = null;
-            return p;
         } catch (Exception e) {
             return Packet.error(prefix + PRESENT_FAILED, e);
         }
     }
 
+    /**
+     * Stop the present that is running: make it return at once with an error
+     * and have OpiLogic hide its Items (the CANCEL action).
+     * OpiListener reads a cancel while a present is running, so this runs alongside present().
+     *
+     * @since 3.0.0
+     */
+    private Packet cancel() {
+        long token;
+        synchronized (actionLock) {
+            if (!presenting || answered(presentToken))
+                return Packet.error(NOTHING_TO_CANCEL);
+            token = presentToken;
+        }
+        Action running = setAction(Action.CANCEL);   // waits for OpiLogic to pick up the PRESENT, if it has not yet
+        if (running != null)
+            return busy(running);
+        synchronized (responseLock) {
+            if (!presenting || presentToken != token || answered(token))
+                return Packet.error(NOTHING_TO_CANCEL);   // it was answered while the CANCEL waited, and present() returns that
+            cancelledToken = token;
+            responseLock.notifyAll();
+        }
+        return new Packet(CANCELLED);
+    }
+
     /**
      * Stop the psychoEngine and the socket server. (ie totally kill the JOVP with CLOSE action)
+     * A present that is running is cancelled first, and any other action is left to finish rather than
+     * overwritten; if it does not finish in time the close is refused with busy() and can be sent again.
      *
      * @since 0.1.0
      */
     private Packet close() {
-        setAction(Action.CLOSE);
+        if (presenting)
+            cancel();
+        Action running = setAction(Action.CLOSE);
+        if (running != null)
+            return busy(running);
         this.closeListener();   // this kills the server thread, so set action first.
         return new Packet(true, CLOSED);
     }
 
+    /**
+     * Push an event about the present in progress to any subscribed clients (see {@link OpiListener#publish}),
+     * stamped with the time now. Does not block, so OpiLogic can call it from the psychoEngine's thread.
+     *
+     * @param name One of {@link ONSET}, {@link OFFSET}, {@link BUTTON} or {@link EYE}
+     * @param details Other name:value pairs describing the event
+     *
+     * @since 3.0.0
+     */
+    public void event(String name, Map<String, Object> details) {
+        event(name, eventTime(), details);
+    }
+
+    /**
+     * Push an event about the present in progress to any subscribed clients.
+     *
+     * @param name One of {@link ONSET}, {@link OFFSET}, {@link BUTTON} or {@link EYE}
+     * @param time When it happened, in microseconds since the epoch
+     * @param details Other name:value pairs describing the event
+     *
+     * @since 3.0.0
+     */
+    public void event(String name, long time, Map<String, Object> details) {
+        if (hasSubscribers())
+            publish(Packet.event(name, time, details).setId(presentId));
+    }
+
     /** 
      * Request details of eye position from the camera(s)
      * Response should end up on getConfiguration().webcam().cameraStreamer.responseQueue
@@ -384,11 +605,8 @@ public class OpiJovp extends OpiListener {
         else 
             req = new PupilRequest(timestamp, ViewEye.RIGHT);
 
-        try {
-            getConfiguration().webcam().cameraStreamer.requestQueue.add(req);
-        } catch (IllegalStateException e) {
-            System.out.println("CameraStreamer request queue is full. Dropping request.");
-        }
+        if (!getConfiguration().webcam().cameraStreamer.request(req))
+            System.out.println("CameraStreamer request queue is full. Answered request with no pupil.");
     }
 
     /**
@@ -441,6 +659,9 @@ public class OpiJovp extends OpiListener {
                     }
 
                         // Check response's requestTimeStamp to see which fields to update
+                    if (resp.requestTimeStamp() == startTime || resp.requestTimeStamp() == endTime)
+                        event(EYE, resp.acquisitionTimeStamp() * 1000, Map.of("start", resp.requestTimeStamp() == startTime,
+                            "x", resp.x(), "y", resp.y(), "diameter", resp.diameter()));
                     if (resp.requestTimeStamp() == startTime) {
                         result.updateEye(true, resp.x(), resp.y(), resp.diameter(), (int)(resp.acquisitionTimeStamp() - startTime));
                         gotStart = true;
@@ -465,13 +686,19 @@ public class OpiJovp extends OpiListener {
         nu.pattern.OpenCV.loadLocally();
 
         if (args.length != 1) {
-            System.out.println("Usage: java -jar opiJovp.jar [port number]");
+            System.out.println("Usage: java -jar opiJovp.jar [port number | Unix domain socket path]");
             System.exit(-1);
         }
 
         try {
-            OpiJovp opiJovp = new OpiJovp(Integer.parseInt(args[0]));
-            System.out.println("Machine address is " + opiJovp.getIP() + ":" + opiJovp.getPort());
+            OpiJovp opiJovp;
+            if (args[0].matches("\\d+")) {
+                opiJovp = new OpiJovp(Integer.parseInt(args[0]));
+                System.out.println("Machine address is " + opiJovp.getIP() + ":" + opiJovp.getPort());
+            } else {
+                opiJovp = new OpiJovp(Path.of(args[0]));
+                System.out.println("Machine address is " + opiJovp.getUnixPath());
+            }
             opiJovp.startPsychoEngine();
         } catch (NumberFormatException e) {
             e.printStackTrace();
@@ -1,8 +1,8 @@
 package org.lei.opi.jovp;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 
 import es.optocom.jovp.PsychoEngine;
 import es.optocom.jovp.PsychoLogic;
@@ -146,13 +146,13 @@ public class OpiLogic implements PsychoLogic {
         if (presenting == PresentingState.RESPONDED) return;  // ignore any extra button presses
 
         presenting = PresentingState.RESPONDED;  
+        driver.event(OpiJovp.BUTTON, Map.of());
 
             // Request the end eye position 30 ms before we got here from the camera
         buttonPressTimeStamp = System.currentTimeMillis() - 30;
         driver.requestEyePosition(currentStims.get(currentStims.size() - 1).eye(), buttonPressTimeStamp);
 
-        for (Item s : currentItems) 
-            s.show(ViewEye.NONE);
+        hide(Map.of());
         // Note: Do not build a response here in case it delays stimulus off
     }
 
@@ -174,6 +174,7 @@ public class OpiLogic implements PsychoLogic {
             case SHOW -> show(psychoEngine);
             case SETUP -> setup();
             case PRESENT -> present();
+            case CANCEL -> cancel();
             case CLOSE -> {
               psychoEngine.finish();
               System.exit(0);
@@ -238,10 +239,28 @@ public class OpiLogic implements PsychoLogic {
         presentationTime = 0;
         buttonPressTimeStamp = -1;
         presenting = PresentingState.PRESENTING;
+        driver.event(OpiJovp.ONSET, Map.of("eye", currentStims.get(0).eye()));
 
         driver.setActionToNull(); // TODO use a Condition
     }
 
+    /** Stop the presentation in progress (if any): hide its Items and forget it without building a response. */
+    private void cancel() {
+        if (currentItems != null)
+            hide(Map.of("cancelled", true));
+        presenting = PresentingState.NOT;
+        driver.setActionToNull();
+    }
+
+    /** Hide the current Items, and if they were showing tell any subscribed clients (with details) */
+    private void hide(Map<String, Object> details) {
+        boolean showing = currentItems.size() > 0 && currentItems.get(0).showing();
+        for (Item s : currentItems)
+            s.show(ViewEye.NONE);
+        if (showing)
+            driver.event(OpiJovp.OFFSET, details);
+    }
+
     /** Checks if something must be updated.
      *  There are two main states:
      *     (1) Stimulus are being presented; or
@@ -266,8 +285,7 @@ public class OpiLogic implements PsychoLogic {
                 // If presentation time is over for the last element of the array, then hide stimulus
                 // otherwise move along to next part of the stimulus
                 if (stimIndex == driver.getStimuliLength() - 1) {
-                    for (Item s : currentItems)
-                        s.show(ViewEye.NONE);
+                    hide(Map.of());
                     presenting = PresentingState.AWAITING;
                 } else {
                     stimIndex++;
@@ -401,7 +419,9 @@ public class OpiLogic implements PsychoLogic {
 
       // multiply luminance * color and then convert 
     private double[] gammaLumToColor(double luminance, double[] color) {
-      double lum[] = Arrays.stream(color).map((double c) -> c * luminance).toArray();
+      double lum[] = new double[color.length];
+      for (int i = 0 ; i < lum.length ; i++)
+        lum[i] = color[i] * luminance;
       return gammaLumToColor(lum);
     }
 }
\ No newline at end of file
@@ -1,8 +1,6 @@
 package org.lei.opi.jovp;
 
-import static org.lei.opi.jovp.JsonProcessor.toDoubleArray;
-
-import java.util.HashMap;
+import org.lei.opi.core.JovpCommands;
 
 import es.optocom.jovp.definitions.ViewEye;
 import es.optocom.jovp.definitions.ModelType;
@@ -36,30 +34,28 @@ public record Setup(ViewEye eye, double[] bgCol, double bgLum, ModelType fixShap
 
 
   /**
-   * Sets arguments create a background record from R OPI
+   * Create a background record from R OPI
    * 
-   * @param args pairs of argument name and value
+   * @param setup The setup command, decoded (see {@link JovpCommands.Setup#fromPairs})
    * 
    * @return a background record
    * 
-   * @throws ClassCastException Cast exception
-   * 
    * @since 0.0.1
    */
-  public static Setup create2(HashMap<String, Object> args) throws ClassCastException {
-    return new Setup(ViewEye.valueOf(((String) args.get("eye")).toUpperCase()),
-                     toDoubleArray(args.get("bgCol")),
-                     (double)(args.get("bgLum")),
-                     ModelType.valueOf(((String) args.get("fixShape")).toUpperCase()),
-                     TextureType.valueOf(((String) args.get("fixType")).toUpperCase()),
-                     toDoubleArray(args.get("fixCol")),
-                     (double)(args.get("fixLum")),
-                     (double) args.get("fixCx"), (double) args.get("fixCy"),
-                     (double) args.get("fixSx"), (double) args.get("fixSy"),
-                     (String) args.get("fixImageFilename"),
-                     (double) args.get("fixRotation"),
-                     (double) args.get("tracking"),
-                     (String) args.get("bgImageFilename"));
+  public static Setup create(JovpCommands.Setup setup) {
+    return new Setup(setup.eye(),
+                     setup.bgCol(),
+                     setup.bgLum(),
+                     setup.fixShape(),
+                     setup.fixType(),
+                     setup.fixCol(),
+                     setup.fixLum(),
+                     setup.fixCx(), setup.fixCy(),
+                     setup.fixSx(), setup.fixSy(),
+                     setup.fixImageFilename(),
+                     setup.fixRotation(),
+                     setup.tracking(),
+                     setup.bgImageFilename());
   }
 
   /**
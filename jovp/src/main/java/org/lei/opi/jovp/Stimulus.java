@@ -1,11 +1,6 @@
 package org.lei.opi.jovp;
 
-import static org.lei.opi.jovp.JsonProcessor.toColorArray;
-import static org.lei.opi.jovp.JsonProcessor.toDoubleArray;
-import static org.lei.opi.jovp.JsonProcessor.toStringArray;
-import static org.lei.opi.jovp.JsonProcessor.toObjectStream;
-
-import java.util.HashMap;
+import org.lei.opi.core.JovpCommands;
 
 import es.optocom.jovp.definitions.EnvelopeType;
 import es.optocom.jovp.definitions.ViewEye;
@@ -63,50 +58,35 @@ public record Stimulus(ViewEye eye, ModelType shape, TextureType type,
     /**
      * Create an array of stimulus record from R OPI of length `stim.length`
      * 
-     * @param args pairs of argument name and value
+     * @param present The present command, decoded (see {@link JovpCommands.Present#fromPairs})
      * 
      * @return a stimulus record
      * 
-     * @throws ClassCastException Cast exception
-     * @throws IllegalArgumentException If any value is bad
-     * @throws SecurityException
-     * @throws NoSuchMethodException
+     * @throws ArrayIndexOutOfBoundsException If a list is shorter than `stim.length`
      * 
      * @since 0.0.1
      */
-    public static Stimulus[] create(HashMap<String, Object> args) throws ClassCastException, IllegalArgumentException, NoSuchMethodException, SecurityException {
-        int n = Number.class.cast((Double)args.get("stim.length")).intValue() ;
+    public static Stimulus[] create(JovpCommands.Present present) throws ArrayIndexOutOfBoundsException {
+        int n = present.stimLength();
         Stimulus[] stimuli = new Stimulus[n];
-                
+        double[][] color1 = present.color1();
+        double[][] color2 = present.color2();
         for (int index = 0 ; index < n ; index++) {
             stimuli[index] = new Stimulus(
-                toObjectStream(args.get("eye"), ViewEye.class).toArray(ViewEye[]::new)[index],
-                toObjectStream(args.get("shape"), ModelType.class).toArray(ModelType[]::new)[index],
-                toObjectStream(args.get("type"), TextureType.class).toArray(TextureType[]::new)[index],
-                toDoubleArray(args.get("x"))[index], 
-                toDoubleArray(args.get("y"))[index],
-                toDoubleArray(args.get("sx"))[index], 
-                toDoubleArray(args.get("sy"))[index],
-                toDoubleArray(args.get("lum"))[index], 
-                toColorArray(args.get("color1"))[index], 
-                toColorArray(args.get("color2"))[index],
-                toDoubleArray(args.get("rotation"))[index], 
-                toDoubleArray(args.get("contrast"))[index],
-                toDoubleArray(args.get("phase"))[index], 
-                toDoubleArray(args.get("frequency"))[index],
-                toDoubleArray(args.get("defocus"))[index], 
-                toDoubleArray(args.get("texRotation"))[index],
-                toDoubleArray(args.get("t"))[index], 
-                (double)args.get("w"),
-                toStringArray(args.get("imageFilename"))[index],
-                toDoubleArray(args.get("fullFoV"))[index],
-                toObjectStream(args.get("optotype"), Optotype.class).toArray(Optotype[]::new)[index],
-                toObjectStream(args.get("envType"), EnvelopeType.class).toArray(EnvelopeType[]::new)[index],
-                toDoubleArray(args.get("envSdx"))[index],
-                toDoubleArray(args.get("envSdy"))[index],
-                toDoubleArray(args.get("envRotation"))[index]
+                present.eye()[index], present.shape()[index], present.type()[index],
+                present.x()[index], present.y()[index], present.sx()[index], present.sy()[index],
+                present.lum()[index], rgba(color1[index]), rgba(color2[index]),
+                present.rotation()[index], present.contrast()[index], present.phase()[index], present.frequency()[index],
+                present.defocus()[index], present.texRotation()[index], present.t()[index], present.w(),
+                present.imageFilename()[index], present.fullFoV()[index], present.optotype()[index],
+                present.envType()[index], present.envSdx()[index], present.envSdy()[index], present.envRotation()[index]
             );
         }
         return stimuli;
     }
+
+    /** @return An RGBA color (opaque) from an RGB one */
+    private static double[] rgba(double[] rgb) {
+        return new double[] {rgb[0], rgb[1], rgb[2], 1};
+    }
 } 
\ No newline at end of file
@@ -0,0 +1,145 @@
+package org.lei.opi.jovp;
+
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.lei.opi.core.JovpCommands;
+import org.lei.opi.core.OpiCommand;
+import org.lei.opi.core.OpiListener.Command;
+import org.lei.opi.core.WarmUp;
+import org.lei.opi.core.definitions.Packet;
+import org.lei.opi.jovp.OpiJovp.Action;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * The handshake between OpiJovp's present and cancel and OpiLogic, with the test playing OpiLogic:
+ * it waits for each action as OpiLogic's frame loop would, carries it out (getAction, setActionToNull)
+ * and sets responses (setResponse) when it chooses, so each interleaving is made to happen in turn.
+ *
+ * @since 3.0.0
+ */
+public class JovpCancelTest {
+
+  /** Longest wait in ms for anything in a test */
+  private static final long WAIT = 5000;
+
+  private OpiJovp jovp;
+  /** Validated setup and present pairs, as the listener would pass them on */
+  private HashMap<String, Object> setup, present;
+
+  @BeforeEach
+  public void setUp() {
+    WarmUp.run(1, (command, pairs) -> {
+      if (command == Command.SETUP)
+        setup = new HashMap<String, Object>(pairs);
+      else if (command == Command.PRESENT)
+        present = new HashMap<String, Object>(pairs);
+    });
+    jovp = new OpiJovp(0);
+    Setup background = Setup.create(JovpCommands.Setup.fromPairs(setup));
+    jovp.backgrounds = new Setup[] {background, background};
+  }
+
+  @AfterEach
+  public void tearDown() {
+    jovp.closeListener();
+  }
+
+  /** A present answered by OpiLogic returns its response, and a cancel after that finds nothing to cancel */
+  @Test
+  public void answered() throws Exception {
+    CompletableFuture<Packet> p = present();
+    take(Action.PRESENT);
+    jovp.setResponse(new Response(true, 222));
+    Packet reply = p.get(WAIT, TimeUnit.MILLISECONDS);
+    Assertions.assertFalse(reply.getError(), reply.getMsg());
+    Assertions.assertTrue(reply.getMsg().contains("\"time\":222"), reply.getMsg());
+
+    Assertions.assertTrue(cancel().getMsg().contains(OpiJovp.NOTHING_TO_CANCEL));
+    Assertions.assertNull(jovp.getAction());
+  }
+
+  /**
+   * A cancel sent before OpiLogic has picked up the PRESENT waits for it to, so the CANCEL comes after it;
+   * a response OpiLogic sets for the cancelled present then does not answer the next one.
+   */
+  @Test
+  public void cancelBeforePickUp() throws Exception {
+    CompletableFuture<Packet> p = present();
+    awaitAction(Action.PRESENT);
+    CompletableFuture<Packet> c = CompletableFuture.supplyAsync(this::cancel);
+
+    take(Action.PRESENT);    // would time out if the cancel had taken the action first
+    take(Action.CANCEL);
+    Assertions.assertTrue(c.get(WAIT, TimeUnit.MILLISECONDS).getMsg().contains(OpiJovp.CANCELLED));
+    Packet reply = p.get(WAIT, TimeUnit.MILLISECONDS);
+    Assertions.assertTrue(reply.getError());
+    Assertions.assertTrue(reply.getMsg().contains(OpiJovp.PRESENT_CANCELLED));
+
+    CompletableFuture<Packet> next = present();
+    awaitAction(Action.PRESENT);
+    jovp.setResponse(new Response(true, 111));     // late, from the cancelled present
+    take(Action.PRESENT);
+    jovp.setResponse(new Response(false, 0));
+    reply = next.get(WAIT, TimeUnit.MILLISECONDS);
+    Assertions.assertFalse(reply.getError(), reply.getMsg());
+    Assertions.assertTrue(reply.getMsg().contains("\"seen\":false"), reply.getMsg());   // not the late one
+  }
+
+  /** A response set before a cancel takes effect is not thrown away: the present returns it and the cancel finds nothing to cancel */
+  @Test
+  public void responseBeforeCancel() throws Exception {
+    CompletableFuture<Packet> p = present();
+    take(Action.PRESENT);
+    jovp.setResponse(new Response(true, 333));
+    Packet cancel = cancel();
+    if (jovp.getAction() == Action.CANCEL)   // placed as the present returned, and OpiLogic would hide nothing
+      take(Action.CANCEL);
+
+    Assertions.assertTrue(cancel.getMsg().contains(OpiJovp.NOTHING_TO_CANCEL), cancel.getMsg());
+    Packet reply = p.get(WAIT, TimeUnit.MILLISECONDS);
+    Assertions.assertFalse(reply.getError(), reply.getMsg());
+    Assertions.assertTrue(reply.getMsg().contains("\"time\":333"), reply.getMsg());
+  }
+
+  /** A cancel with no present running is refused without setting an action */
+  @Test
+  public void nothingToCancel() {
+    Assertions.assertTrue(cancel().getMsg().contains(OpiJovp.NOTHING_TO_CANCEL));
+    Assertions.assertNull(jovp.getAction());
+  }
+
+  /** Send a present, as the listener would, on its own thread as it waits for the response */
+  private CompletableFuture<Packet> present() {
+    HashMap<String, Object> pairs = new HashMap<String, Object>(present);
+    return CompletableFuture.supplyAsync(() -> jovp.process(new OpiCommand(Command.PRESENT, "p", null, null, pairs), null));
+  }
+
+  /** Send a cancel, as the listener would while a present runs */
+  private Packet cancel() {
+    HashMap<String, Object> pairs = new HashMap<String, Object>();
+    pairs.put("command", "cancel");
+    return jovp.process(new OpiCommand(Command.CANCEL, null, null, null, pairs), null);
+  }
+
+  /** Wait, as OpiLogic's frame loop does, until action a is set */
+  private void awaitAction(Action a) {
+    long deadline = System.currentTimeMillis() + WAIT;
+    while (jovp.getAction() != a) {
+      if (System.currentTimeMillis() > deadline)
+        Assertions.fail("No " + a + " action, but " + jovp.getAction());
+      Thread.yield();
+    }
+  }
+
+  /** Carry out action a as OpiLogic does once it is set (without showing anything) */
+  private void take(Action a) {
+    awaitAction(a);
+    jovp.setActionToNull();
+  }
+}
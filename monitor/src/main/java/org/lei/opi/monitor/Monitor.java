@@ -11,11 +11,13 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.stream.Collectors;
 import java.util.Optional;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
 import java.io.IOException;
 import java.io.FileNotFoundException;
+import java.nio.file.Path;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Constructor;
 
 import javafx.application.Application;
 import javafx.application.Platform;
@@ -136,8 +138,7 @@ public class Monitor extends Application {
         this.currentSettingsObject = OpiMachine.fillSettings(className);
         while (this.currentSettingsObject == null && !className.equals("OpiMachine")) {
             try {
-                Class<?> cls = Class.forName("org.lei.opi.core." + className);
-                className = cls.getSuperclass().getSimpleName();
+                className = OpiMachine.machineClass(className).getSuperclass().getSimpleName();
                 this.currentSettingsObject = OpiMachine.fillSettings(className);
             } catch (ClassNotFoundException e) {
                 System.out.println("Something is wrong - cannot find a Settings nested class for " + machineName);
@@ -415,10 +416,11 @@ public class Monitor extends Application {
         }
     }
 
+    /**
+     * Make the machine named and connect it, with what {@link OpiMachine#warmMetadata} has already worked out for its class.
+     */
     public static OpiMachine createOpiMachine(String machineName, Scene parentScene) throws ClassNotFoundException, NoSuchMethodException, IllegalAccessException, InstantiationException, InvocationTargetException {
-        Class<?> cls = Class.forName("org.lei.opi.core." + machineName);
-        Constructor<?> ctor = cls.getConstructor(new Class[] {Scene.class, boolean.class});
-        return (OpiMachine)ctor.newInstance(parentScene, true);
+        return OpiMachine.create(machineName, parentScene);
     }
 
     /**
@@ -531,10 +533,15 @@ public class Monitor extends Application {
     }
 
     private static void usage() {
-        System.err.println("Usage: Monitor [--cli <port number> <machine name> | --mGUI <machine name>] [--setting <name> <value> ...]");
+        System.err.println("Usage: Monitor [--cli <port number | socket path> <machine name> [--mode <mode>] | --mGUI <machine name>] [--setting <name> <value> ...]");
         System.err.println("       eg java ... Monitor --cli 50001 Echo --setting port 50002 ip localhost");
         System.err.println("       With no arguments, opens interactive GUI.");
         System.err.println("       --cli runs in command line mode with no GUI.");
+        System.err.println("             Given a path rather than a port number it listens on a Unix domain socket at that path");
+        System.err.println("             (for a client on the same computer).");
+        System.err.println("       --mode is one of " + Arrays.toString(OpiListener.Mode.values()) + " (default SINGLE).");
+        System.err.println("              MULTIPLEX serves many clients at once, each with its own machine.");
+        System.err.println("              PERSISTENT serves one client after another with the same machine.");
         System.err.println("       --mGUI clicks the 'Connect' button on the interactive GUI page (using 'this' port in settings file).");
         System.exit(-1);
     }
@@ -559,9 +566,25 @@ public class Monitor extends Application {
         }
 
         String port = args[i + 1];
+        Path unixPath = port.matches("\\d+") ? null : Path.of(port);   // not a port number: listen on a Unix domain socket
         String machine = args[i + 2];
         String ip = OpiListener.obtainPublicAddress().getHostAddress();  // localhost ip address
 
+        OpiListener.Mode mode = OpiListener.Mode.SINGLE;
+        int j = Arrays.asList(args).indexOf("--mode");
+        if (j > -1) {
+            if (j + 1 > args.length - 1) {
+                System.err.println("Missing mode");
+                usage();
+            }
+            try {
+                mode = OpiListener.Mode.valueOf(args[j + 1].toUpperCase());
+            } catch (IllegalArgumentException e) {
+                System.err.println("Unknown mode " + args[j + 1]);
+                usage();
+            }
+        }
+
             // get the supplied machine and create its object
         OpiMachine opiMachine = null;
         try {
@@ -591,8 +614,32 @@ public class Monitor extends Application {
         
             // Finally kick off a thread that will listen for commands from the client
             // and wait for it to finish
-        OpiListener listener = new OpiListener(Integer.parseInt(port), opiMachine);
-        System.out.println("Ready for OPI commands for " + machine + " on port " + port + " at " + ip);
+        OpiListener listener;
+        if (mode == OpiListener.Mode.SINGLE || mode == OpiListener.Mode.PERSISTENT) {
+            listener = unixPath == null
+                ? new OpiListener(Integer.parseInt(port), opiMachine, mode)
+                : new OpiListener(unixPath, opiMachine, mode);
+        } else {
+                // the machine already created goes to the first connection
+            AtomicReference<OpiMachine> spare = new AtomicReference<OpiMachine>(opiMachine);
+            Supplier<OpiMachine> factory = () -> {
+                OpiMachine m = spare.getAndSet(null);
+                if (m != null)
+                    return m;
+                try {
+                    return Monitor.createOpiMachine(machine, null);
+                } catch (ClassNotFoundException | NoSuchMethodException | IllegalAccessException | InstantiationException | InvocationTargetException e) {
+                    throw new RuntimeException("Cannot create an instance of " + machine, e);
+                }
+            };
+            listener = unixPath == null
+                ? new OpiListener(Integer.parseInt(port), factory, mode)
+                : new OpiListener(unixPath, factory, mode);
+        }
+        if (unixPath == null)
+            System.out.println("Ready for OPI commands for " + machine + " on port " + port + " at " + ip);
+        else
+            System.out.println("Ready for OPI commands for " + machine + " on " + unixPath);
         try {
             listener.join();
         } catch (InterruptedException e) {
@@ -637,10 +684,19 @@ public class Monitor extends Application {
         if (Arrays.asList(args).contains("--cli")) {
             runCommandLineMode(args);
         } else if (Arrays.asList(args).contains("--mGUI")) {
+            warmMachines();
             runMGuiMode(args);
         } else {
             System.out.println("Interactive GUI mode");
+            warmMachines();
             launch(); 
         }
     }
+
+    /** Work out the methods and parameters of every machine while the GUI starts, so that choosing one does no reflection. */
+    private static void warmMachines() {
+        Thread t = new Thread(OpiMachine::warmMetadata, "warm machines");
+        t.setDaemon(true);
+        t.start();
+    }
 }
\ No newline at end of file
@@ -0,0 +1,287 @@
+package org.lei.opi.processor;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.tools.Diagnostic;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+
+/**
+ * Generates, for each OpiMachine that declares @Parameter annotations, a class {@code <Machine>Commands}
+ * with a record for each of its commands that has parameters (including those the machine inherits).
+ * Each record has a component of the natural Java type for each parameter (eg {@code double[]} for
+ * a list of Double, an enum constant for an enum) and
+ * <ul>
+ *   <li>{@code fromPairs} to decode pairs from the listener (using the default of any optional parameter that is missing), and</li>
+ *   <li>{@code check} to check the lengths and ranges that the types cannot.</li>
+ * </ul>
+ * Defaults are parsed here, so a default that does not fit its parameter is a compile error.
+ *
+ * The annotations are read by name rather than as classes, as they are defined in core, which this processes.
+ *
+ * @since 3.0.0
+ */
+@SupportedAnnotationTypes({CommandProcessor.PARAMETER, CommandProcessor.PARAMETERS})
+public class CommandProcessor extends AbstractProcessor {
+
+    static final String PARAMETER = "org.lei.opi.core.definitions.Parameter";
+    static final String PARAMETERS = "org.lei.opi.core.definitions.Parameters";
+
+    /** What Java type a parameter's values have */
+    enum Kind { DOUBLE, INT, TEXT, ENUM }
+
+    /**
+     * One @Parameter of a command.
+     *
+     * @param name Name in JSON
+     * @param field Name of the record component
+     * @param kind Type of each value
+     * @param enumType Qualified name of the enum (if kind is ENUM)
+     * @param list Whether it is a list
+     * @param listList Whether it is a list of lists
+     * @param optional Whether it is optional
+     * @param min Least value (rounded as OpiMachine.checkArgs does), or -Infinity if the annotation does not give a range
+     * @param max Greatest value (rounded as OpiMachine.checkArgs does), or Infinity if the annotation does not give a range
+     * @param desc Description
+     * @param defaultValue Default, parsed (if optional)
+     */
+    record Param(String name, String field, Kind kind, String enumType, boolean list, boolean listList,
+                 boolean optional, double min, double max, String desc, JsonElement defaultValue) { }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() { return SourceVersion.latestSupported(); }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment round) {
+        Set<TypeElement> machines = new LinkedHashSet<TypeElement>();
+        for (TypeElement annotation : annotations)
+            for (Element e : round.getElementsAnnotatedWith(annotation))
+                if (e.getKind() == ElementKind.METHOD)
+                    machines.add((TypeElement) e.getEnclosingElement());
+
+        for (TypeElement machine : machines) {
+            Map<String, List<Param>> commands = commands(machine);
+            if (commands == null)
+                continue;   // an error has been reported
+            String pkg = processingEnv.getElementUtils().getPackageOf(machine).getQualifiedName().toString();
+            String name = machine.getSimpleName() + "Commands";
+            try (Writer w = processingEnv.getFiler().createSourceFile(pkg.isEmpty() ? name : pkg + "." + name, machine).openWriter()) {
+                w.write(new CommandWriter(pkg, machine.getSimpleName().toString(), name, commands).source());
+            } catch (IOException e) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Cannot write " + name + ": " + e.getMessage(), machine);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gather the parameters of each command of machine, from its own methods first and then from those of its superclasses
+     * (a parameter of a superclass is only added if the machine does not have one of the same name).
+     *
+     * @return Parameters by method name, or null if any is in error
+     */
+    private Map<String, List<Param>> commands(TypeElement machine) {
+        Map<String, LinkedHashMap<String, Param>> byName = new LinkedHashMap<String, LinkedHashMap<String, Param>>();
+        boolean ok = true;
+        for (TypeElement c = machine ; c != null ; c = superclass(c))
+            for (Element e : c.getEnclosedElements()) {
+                if (e.getKind() != ElementKind.METHOD)
+                    continue;
+                for (AnnotationMirror a : parameterMirrors((ExecutableElement) e)) {
+                    Param p = param(e, a);
+                    if (p == null) {
+                        ok = false;
+                        continue;
+                    }
+                    byName.computeIfAbsent(e.getSimpleName().toString(), k -> new LinkedHashMap<String, Param>()).putIfAbsent(p.name(), p);
+                }
+            }
+
+        Map<String, List<Param>> commands = new LinkedHashMap<String, List<Param>>();
+        for (Map.Entry<String, LinkedHashMap<String, Param>> e : byName.entrySet()) {
+            if (e.getValue().size() > Long.SIZE) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                    String.format("%s has more than %d parameters.", e.getKey(), Long.SIZE), machine);
+                ok = false;
+            }
+            commands.put(e.getKey(), new ArrayList<Param>(e.getValue().values()));
+        }
+        return ok ? commands : null;
+    }
+
+    private static TypeElement superclass(TypeElement c) {
+        TypeMirror s = c.getSuperclass();
+        return s.getKind() == TypeKind.DECLARED ? (TypeElement) ((DeclaredType) s).asElement() : null;
+    }
+
+    /** @return The @Parameter annotations on method, whether repeated (in their container) or not */
+    private List<AnnotationMirror> parameterMirrors(ExecutableElement method) {
+        List<AnnotationMirror> found = new ArrayList<AnnotationMirror>();
+        for (AnnotationMirror a : method.getAnnotationMirrors()) {
+            String type = ((TypeElement) a.getAnnotationType().asElement()).getQualifiedName().toString();
+            if (type.equals(PARAMETER))
+                found.add(a);
+            else if (type.equals(PARAMETERS))
+                for (AnnotationValue v : (List<? extends AnnotationValue>) value(a, "value").getValue())
+                    found.add((AnnotationMirror) v.getValue());
+        }
+        return found;
+    }
+
+    /** @return The value of element name of annotation a, or its default */
+    private AnnotationValue value(AnnotationMirror a, String name) {
+        for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> e : processingEnv.getElementUtils().getElementValuesWithDefaults(a).entrySet())
+            if (e.getKey().getSimpleName().contentEquals(name))
+                return e.getValue();
+        throw new IllegalArgumentException(name);
+    }
+
+    /** @return The Param for annotation a on method, or null (having reported an error) if its className cannot be found or its default does not fit it */
+    private Param param(Element method, AnnotationMirror a) {
+        String name = (String) value(a, "name").getValue();
+        if (!(value(a, "className").getValue() instanceof TypeMirror className)) {   // eg "<error>" if the class cannot be found
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                String.format("The className of '%s' is not a class that can be found.", name), method, a);
+            return null;
+        }
+        boolean list = (Boolean) value(a, "isList").getValue();
+        boolean listList = (Boolean) value(a, "isListList").getValue();
+        boolean optional = (Boolean) value(a, "optional").getValue();
+        double min = (Double) value(a, "min").getValue();
+        double max = (Double) value(a, "max").getValue();
+        if (min == -1e10 && max == 1e10) {     // the defaults: no range to check
+            min = Double.NEGATIVE_INFINITY;
+            max = Double.POSITIVE_INFINITY;
+        } else {
+            min = Math.round(1e10 * min) / 1e10;
+            max = Math.round(1e10 * max) / 1e10;
+        }
+        String desc = (String) value(a, "desc").getValue();
+        String defaultValue = (String) value(a, "defaultValue").getValue();
+
+        Kind kind = Kind.TEXT;   // as OpiMachine.checkArgs, anything that is not a number or an enum is a String
+        String enumType = null;
+        Element type = processingEnv.getTypeUtils().asElement(className);
+        if (type != null && type.getKind() == ElementKind.ENUM) {
+            kind = Kind.ENUM;
+            enumType = ((TypeElement) type).getQualifiedName().toString();
+        } else if (type != null && ((TypeElement) type).getQualifiedName().contentEquals("java.lang.Double"))
+            kind = Kind.DOUBLE;
+        else if (type != null && ((TypeElement) type).getQualifiedName().contentEquals("java.lang.Integer"))
+            kind = Kind.INT;
+
+        if (listList && kind != Kind.DOUBLE) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                String.format("'%s' is a list of lists, which must be of Double.", name), method, a);
+            return null;
+        }
+
+        JsonElement parsed = null;
+        if (optional) {
+            String problem = null;
+            try {
+                parsed = kind == Kind.TEXT && defaultValue.isEmpty() ? JsonParser.parseString("\"\"") : JsonParser.parseString(defaultValue);
+                problem = fits(parsed, kind, type, list || listList ? (listList ? 2 : 1) : 0);
+            } catch (JsonParseException e) {
+                problem = e.getMessage();
+            }
+            if (problem != null) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                    String.format("Default value '%s' for '%s' does not fit the parameter: %s", defaultValue, name, problem), method, a);
+                return null;
+            }
+            if (kind == Kind.ENUM)
+                parsed = constants(parsed, type);
+        }
+        return new Param(name, field(name), kind, enumType, list && !listList, listList, optional, min, max, desc, parsed);
+    }
+
+    /**
+     * @param depth 0 for a single value, 1 for a list and 2 for a list of lists
+     * @return null if value fits, else what is wrong
+     */
+    private static String fits(JsonElement value, Kind kind, Element type, int depth) {
+        if (depth > 0) {
+            if (!value.isJsonArray() || value.getAsJsonArray().isEmpty())
+                return "not a non-empty list";
+            for (JsonElement e : (JsonArray) value) {
+                String problem = fits(e, kind, type, depth - 1);
+                if (problem != null)
+                    return problem;
+            }
+            return null;
+        }
+        if (!value.isJsonPrimitive())
+            return "not a single value";
+        return switch (kind) {
+            case DOUBLE, INT -> value.getAsJsonPrimitive().isNumber() ? null : "not a number";
+            case TEXT -> value.getAsJsonPrimitive().isString() ? null : "not a string";
+            case ENUM -> constant(type, value.getAsString()) != null ? null : "not a constant of " + type;
+        };
+    }
+
+    /** @return value (which fits) with each enum value replaced by the name of its constant */
+    private static JsonElement constants(JsonElement value, Element type) {
+        if (!value.isJsonArray())
+            return new JsonPrimitive(constant(type, value.getAsString()));
+        JsonArray a = new JsonArray();
+        for (JsonElement e : (JsonArray) value)
+            a.add(constants(e, type));
+        return a;
+    }
+
+    /** @return The constant of enum type whose name is name in any case, or null */
+    static String constant(Element type, String name) {
+        for (Element e : type.getEnclosedElements())
+            if (e.getKind() == ElementKind.ENUM_CONSTANT && e.getSimpleName().toString().equalsIgnoreCase(name))
+                return e.getSimpleName().toString();
+        return null;
+    }
+
+    /** Names of the locals in the generated methods, which a component must not hide */
+    private static final Set<String> LOCALS = Set.of("v", "n", "seen", "in", "out", "pairs", "json", "list", "e");
+
+    /**
+     * @return A Java name for the parameter: its parts in camel case (eg "stim.length" is stimLength),
+     *         with a _ after a keyword or the name of a local in the generated methods
+     */
+    static String field(String name) {
+        StringBuilder s = new StringBuilder();
+        boolean upper = false;
+        for (char c : name.toCharArray()) {
+            if (!Character.isJavaIdentifierPart(c)) {
+                upper = s.length() > 0;
+                continue;
+            }
+            s.append(upper ? Character.toUpperCase(c) : c);
+            upper = false;
+        }
+        if (s.length() == 0 || !Character.isJavaIdentifierStart(s.charAt(0)))
+            s.insert(0, '_');
+        return SourceVersion.isKeyword(s) || LOCALS.contains(s.toString()) ? s + "_" : s.toString();
+    }
+}
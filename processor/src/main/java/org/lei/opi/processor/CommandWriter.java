@@ -0,0 +1,258 @@
+package org.lei.opi.processor;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.lei.opi.processor.CommandProcessor.Kind;
+import org.lei.opi.processor.CommandProcessor.Param;
+
+import com.google.gson.JsonElement;
+
+/**
+ * Writes the source of the {@code <Machine>Commands} class for one machine (see {@link CommandProcessor}).
+ *
+ * @since 3.0.0
+ */
+class CommandWriter {
+
+    private final String pkg;
+    private final String machine;
+    private final String name;
+    private final Map<String, List<Param>> commands;
+    private final StringBuilder s = new StringBuilder();
+
+    /**
+     * @param pkg Package of the machine
+     * @param machine Simple name of the machine class
+     * @param name Simple name of the class to write
+     * @param commands Parameters of each command, by method name
+     */
+    CommandWriter(String pkg, String machine, String name, Map<String, List<Param>> commands) {
+        this.pkg = pkg;
+        this.machine = machine;
+        this.name = name;
+        this.commands = commands;
+    }
+
+    /** @return The source of the class */
+    String source() {
+        if (!pkg.isEmpty())
+            line(0, "package %s;", pkg).line(0, "");
+        line(0, "import java.util.Map;");
+        line(0, "");
+        line(0, "import org.lei.opi.core.CommandCodec;");
+        line(0, "import org.lei.opi.core.definitions.Packet;");
+        line(0, "");
+        line(0, "/**");
+        line(0, " * The commands of {@link %s} that have parameters, as records made from its @Parameter annotations", machine);
+        line(0, " * (and those it inherits) by {@code org.lei.opi.processor.CommandProcessor}. Do not edit.");
+        line(0, " */");
+        line(0, "@javax.annotation.processing.Generated(\"org.lei.opi.processor.CommandProcessor\")");
+        line(0, "public final class %s {", name);
+        line(0, "");
+        line(1, "private %s() { ; }", name);
+        for (Map.Entry<String, List<Param>> e : commands.entrySet())
+            command(e.getKey(), e.getValue());
+        line(0, "}");
+        return s.toString();
+    }
+
+    private void command(String command, List<Param> params) {
+        String record = Character.toUpperCase(command.charAt(0)) + command.substring(1);
+        Param stimLength = params.stream().filter(p -> p.name().equals("stim.length")).findFirst().orElse(null);
+
+        line(0, "");
+        line(1, "/**");
+        line(1, " * The parameters of {@code %s}.", command);
+        line(1, " *");
+        for (Param p : params)
+            line(1, " * @param %s %s%s", p.field(), p.field().equals(p.name()) ? "" : "(" + p.name() + ") ", p.desc().replace("*/", "* /"));
+        line(1, " */");
+        StringBuilder components = new StringBuilder();
+        for (Param p : params)
+            components.append(components.length() == 0 ? "" : ", ").append(type(p)).append(' ').append(p.field());
+        line(1, "public record %s(%s) {", record, components);
+        line(0, "");
+        line(2, "/** {@value COMMAND} */");
+        line(2, "public static final String COMMAND = \"%s\";", command);
+        for (Param p : params)
+            if (p.optional() && (p.list() || p.listList()))
+                line(2, "private static final %s %s = %s;", type(p), constant(p), literal(p, p.defaultValue()));
+
+            // fromPairs
+        line(0, "");
+        line(2, "/**");
+        line(2, " * Decode pairs, eg as validated by {@link org.lei.opi.core.OpiMachine#checkArgs}.");
+        line(2, " * The default is used for any optional parameter that is missing.");
+        line(2, " *");
+        line(2, " * @param pairs Parameter names and values");
+        line(2, " *");
+        line(2, " * @return The command");
+        line(2, " *");
+        line(2, " * @throws IllegalArgumentException If a parameter that is not optional is missing, or a value is not a constant of its enum");
+        line(2, " * @throws ClassCastException If a value is not of its parameter's type");
+        line(2, " */");
+        line(2, "public static %s fromPairs(Map<String, Object> pairs) {", record);
+        line(3, "Object v;");
+        if (stimLength != null)
+            line(3, "int n = (v = pairs.get(\"stim.length\")) == null ? 1 : CommandCodec.toInt(v);");
+        for (Param p : params) {
+            if (p.optional())
+                line(3, "%s %s = (v = pairs.get(\"%s\")) == null ? %s : %s;", type(p), p.field(), p.name(), fallback(p, stimLength != null), convert(p, "v"));
+            else {
+                line(3, "if ((v = pairs.get(\"%s\")) == null)", p.name());
+                line(4, "throw CommandCodec.missing(\"%s\", COMMAND, %s.class);", p.name(), machine);
+                line(3, "%s %s = %s;", type(p), p.field(), convert(p, "v"));
+            }
+        }
+        line(3, "return new %s(%s);", record, fields(params));
+        line(2, "}");
+
+            // check
+        line(0, "");
+        line(2, "/**");
+        line(2, " * Check what the types of the components cannot: that lists are not empty and numbers are in range.");
+        line(2, " *");
+        line(2, " * @return null if the command is valid, else an error Packet as from {@link org.lei.opi.core.OpiMachine#checkArgs}");
+        line(2, " */");
+        line(2, "public Packet check() {");
+        for (Param p : params) {
+            boolean ranged = (p.kind() == Kind.DOUBLE || p.kind() == Kind.INT) && !Double.isInfinite(p.min());
+            String test = ranged ? String.format("e < %s || e > %s", number(p.min()), number(p.max())) : null;
+            String range = ranged ? String.format("CommandCodec.outOfRange(\"%s\", COMMAND, %s.class, %s, %s, e)", p.name(), machine, number(p.min()), number(p.max())) : null;
+            String element = p.kind() == Kind.INT ? "int" : "double";
+            if (p.listList()) {
+                line(3, "if (%s.length == 0)", p.field());
+                line(4, "return CommandCodec.notList(\"%s\", COMMAND, %s.class);", p.name(), machine);
+                line(3, "for (%s[] list : %s) {", element, p.field());
+                line(4, "if (list.length == 0)");
+                line(5, "return CommandCodec.notListOfList(\"%s\", COMMAND, %s.class);", p.name(), machine);
+                if (ranged) {
+                    line(4, "for (%s e : list)", element);
+                    line(5, "if (%s)", test);
+                    line(6, "return %s;", range);
+                }
+                line(3, "}");
+            } else if (p.list()) {
+                line(3, "if (%s.length == 0)", p.field());
+                line(4, "return CommandCodec.notList(\"%s\", COMMAND, %s.class);", p.name(), machine);
+                if (ranged) {
+                    line(3, "for (%s e : %s)", element, p.field());
+                    line(4, "if (%s)", test);
+                    line(5, "return %s;", range);
+                }
+            } else if (ranged) {
+                line(3, "{");
+                line(4, "%s e = %s;", element, p.field());
+                line(4, "if (%s)", test);
+                line(5, "return %s;", range);
+                line(3, "}");
+            }
+        }
+        line(3, "return null;");
+        line(2, "}");
+        line(1, "}");
+    }
+
+    /** @return The Java type of p's component */
+    private static String type(Param p) {
+        String element = switch (p.kind()) {
+            case DOUBLE -> "double";
+            case INT -> "int";
+            case TEXT -> "String";
+            case ENUM -> p.enumType();
+        };
+        return element + (p.listList() ? "[][]" : p.list() ? "[]" : "");
+    }
+
+    /** @return The name of the constant that holds p's (list) default */
+    private static String constant(Param p) {
+        return p.field().replaceAll("([a-z0-9])([A-Z])", "$1_$2").toUpperCase(Locale.ROOT) + "_DEFAULT";
+    }
+
+    /** @return An expression for the value of p when it is missing: its default, padded to n elements if it is a list and there is a stim.length */
+    private static String fallback(Param p, boolean padded) {
+        if (!(p.list() || p.listList()))
+            return literal(p, p.defaultValue());
+        return String.format("CommandCodec.pad(%s, %s)", constant(p), padded ? "n" : "1");
+    }
+
+    /** @return An expression that converts pairs value v to p's type */
+    private static String convert(Param p, String v) {
+        if (p.listList())
+            return String.format("CommandCodec.toDoubleLists(%s)", v);
+        return switch (p.kind()) {
+            case DOUBLE -> String.format("CommandCodec.%s(%s)", p.list() ? "toDoubles" : "toDouble", v);
+            case INT -> String.format("CommandCodec.%s(%s)", p.list() ? "toInts" : "toInt", v);
+            case TEXT -> String.format("CommandCodec.%s(%s)", p.list() ? "toTexts" : "toText", v);
+            case ENUM -> p.list()
+                ? String.format("CommandCodec.toEnums(%s.class, %s, %s[]::new)", p.enumType(), v, p.enumType())
+                : String.format("CommandCodec.toEnum(%s.class, %s)", p.enumType(), v);
+        };
+    }
+
+    /** @return A Java literal for value (which fits p, see {@link CommandProcessor}) */
+    private static String literal(Param p, JsonElement value) {
+        if (value.isJsonArray()) {
+            StringBuilder a = new StringBuilder("new ").append(type(p)).append(" {");
+            int i = 0;
+            for (JsonElement e : value.getAsJsonArray())
+                a.append(i++ == 0 ? "" : ", ").append(element(p, e));
+            return a.append("}").toString();
+        }
+        return element(p, value);
+    }
+
+    /** @return A literal for one element (or, in a list of lists, one list) of a default */
+    private static String element(Param p, JsonElement e) {
+        if (e.isJsonArray()) {
+            StringBuilder a = new StringBuilder("{");
+            int i = 0;
+            for (JsonElement x : e.getAsJsonArray())
+                a.append(i++ == 0 ? "" : ", ").append(element(p, x));
+            return a.append("}").toString();
+        }
+        return switch (p.kind()) {
+            case DOUBLE -> number(e.getAsDouble());
+            case INT -> Long.toString(Math.round(e.getAsDouble()));
+            case TEXT -> string(e.getAsString());
+            case ENUM -> p.enumType() + "." + e.getAsString();
+        };
+    }
+
+    private static String number(double d) { return Double.toString(d); }
+
+    /** @return s as a Java string literal */
+    private static String string(String s) {
+        StringBuilder q = new StringBuilder("\"");
+        for (char c : s.toCharArray()) {
+            switch (c) {
+                case '"' -> q.append("\\\"");
+                case '\\' -> q.append("\\\\");
+                case '\n' -> q.append("\\n");
+                case '\r' -> q.append("\\r");
+                case '\t' -> q.append("\\t");
+                default -> {
+                    if (c < ' ')
+                        q.append(String.format("\\u%04x", (int) c));
+                    else
+                        q.append(c);
+                }
+            }
+        }
+        return q.append('"').toString();
+    }
+
+    private static String fields(List<Param> params) {
+        StringBuilder f = new StringBuilder();
+        for (Param p : params)
+            f.append(f.length() == 0 ? "" : ", ").append(p.field());
+        return f.toString();
+    }
+
+    private CommandWriter line(int indent, String format, Object... args) {
+        s.append("    ".repeat(indent)).append(args.length == 0 ? format : String.format(format, args)).append('\n');
+        return this;
+    }
+}
@@ -88,9 +88,8 @@ machineName, machineName);  // environment name
                 File file = new File(String.format("%s%s.r", path, machineName));
                 printStream = new PrintStream(file);
 
-                Class<?> c = Class.forName("org.lei.opi.core." + machineName);
-                Constructor<?> ctor = c.getConstructor(new Class[] {Scene.class});
-                machine = (OpiMachine)ctor.newInstance(new Object[] {null});
+                Constructor<? extends OpiMachine> ctor = OpiMachine.machineClass(machineName).getConstructor(Scene.class);
+                machine = ctor.newInstance(new Object[] {null});
             } catch (Exception e) {
                 System.err.println(machineName + "\n" + e);
                 System.exit(-1);
@@ -10,7 +10,7 @@ import java.util.stream.Stream;
 import java.util.function.Function;
 import java.util.function.Supplier;
 import java.util.HashMap;
-import java.util.List;
+import java.util.Set;
 import java.util.ArrayList;
 
 import com.google.gson.JsonSyntaxException;
@@ -207,7 +207,7 @@ public class OpiFunction {
         } else if (p.className() == Integer.class) {
             str += String.format("the range \\code{[%s, %s]}.", (int)p.min(), (int)p.max());
         } else if (p.className().isEnum()) {
-            List<String> values = machine.enums.get(p.className().getName());
+            Set<String> values = machine.enums.get(p.className().getName()).keySet();
             str += String.format("the set \\code{{%s}}.", String.join(", ",values.stream().map((String s) -> "\"" + s + "\"").toList()));
         } else {
             str = "";